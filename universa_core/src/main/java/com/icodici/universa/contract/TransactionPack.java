@@ -54,7 +54,11 @@ import java.util.stream.Collectors;
 @BiType(name = "TransactionPack")
 public class TransactionPack implements BiSerializable {
 
-    private static byte[] packedBinary;
+    /**
+     * Packed form of this instance, dropped when the pack is changed. It is set on {@link #unpack(byte[], boolean)} so
+     * the received transaction is never packed again.
+     */
+    private byte[] packedBinary;
     private boolean reconstructed = false;
     private Map<HashId, Contract> references = new HashMap<>();
     private Contract contract;
@@ -132,6 +136,7 @@ public class TransactionPack implements BiSerializable {
     protected void putReference(Contract contract) {
         if (!contract.isOk())
             throw new IllegalArgumentException("referenced contract has errors");
+        packedBinary = null;
         references.put(contract.getId(), contract);
     }
 
@@ -176,12 +181,12 @@ public class TransactionPack implements BiSerializable {
      * @return transaction, either unpacked or reconstructed from the self-contained v2 contract
      */
     public static TransactionPack unpack(byte[] packOrContractBytes, boolean allowNonTransacions) throws IOException {
-        packedBinary = packOrContractBytes;
-
         Object x = Boss.load(packOrContractBytes);
 
         if (x instanceof TransactionPack) {
-            return (TransactionPack) x;
+            TransactionPack tp = (TransactionPack) x;
+            tp.packedBinary = packOrContractBytes;
+            return tp;
         }
 
         if (!allowNonTransacions)
@@ -208,9 +213,10 @@ public class TransactionPack implements BiSerializable {
 
 
     /**
-     * Shortcut to {@link Boss#pack(Object)} for this.
+     * Shortcut to {@link Boss#pack(Object)} for this. The result is cached until the pack is changed, so the caller
+     * must not modify it.
      *
-     * @return
+     * @return packed transaction
      */
     public byte[] pack() {
         if (packedBinary == null)
@@ -123,6 +123,16 @@ public enum ItemState {
         return this == PENDING || this == PENDING_NEGATIVE || this == PENDING_POSITIVE;
     }
 
+    /**
+     * Check that the record in this state is not used by any election: the election of the item is over and the item
+     * is not locked by another one. Only such records are deleted by {@link Ledger#removeExpired(int)}.
+     *
+     * @return true if it is final
+     */
+    public boolean isFinal() {
+        return this == UNDEFINED || this == APPROVED || this == REVOKED || this == DECLINED;
+    }
+
     public boolean isPositive() {
         return isApproved() || this == PENDING_POSITIVE;
     }
@@ -10,6 +10,11 @@ package com.icodici.universa.node;
 import com.icodici.db.Db;
 import com.icodici.universa.HashId;
 
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.Callable;
 
 /**
@@ -29,6 +34,23 @@ public interface Ledger {
      */
     StateRecord getRecord(HashId id);
 
+    /**
+     * Get records by their ids, preferably with a single request to the storage. Missing (and expired) records are not
+     * included into the result.
+     *
+     * @param ids to retrieve
+     * @return map of the found records by their ids
+     */
+    default Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        for (HashId id : ids) {
+            StateRecord r = getRecord(id);
+            if (r != null)
+                result.put(id, r);
+        }
+        return result;
+    }
+
     /**
      * Create a record in {@link ItemState#LOCKED_FOR_CREATION} state locked by creatorRecordId. Does not check
      * anything, the business logic of it is in the {@link StateRecord}. Still, if a database logic prevents creation of
@@ -40,6 +62,24 @@ public interface Ledger {
      */
     StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId);
 
+    /**
+     * Bulk version of {@link #createOutputLockRecord(long, HashId)}, preferably with a single request to the storage.
+     * Records that can not be created (e.g. already exist) are not included into the result.
+     *
+     * @param creatorRecordId record that want to create new items
+     * @param newItemHashIds  new items hashes
+     * @return map of the ready saved records by their ids
+     */
+    default Map<HashId, StateRecord> createOutputLockRecords(long creatorRecordId, Collection<HashId> newItemHashIds) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        for (HashId id : newItemHashIds) {
+            StateRecord r = createOutputLockRecord(creatorRecordId, id);
+            if (r != null)
+                result.put(id, r);
+        }
+        return result;
+    }
+
     /**
      * Create new record for a given id and set it to the PENDING state. Normally, it is used to create new root
      * documents. If the record exists, it returns it. If the record does not exists, it creates new one with {@link
@@ -67,6 +107,9 @@ public interface Ledger {
      * to its initial state. Blocks until the callable returns, and returns what the callable returns. If an exception
      * is thrown by the callable, the transaction is rolled back and the exception will be rethrown unless it was a
      * {@link Rollback} instance, which just rollbacks the transaction, in which case it always return null.
+     * <p>
+     * All the ledger calls the callable makes in the same thread, including the nested transactions, are the part of
+     * this transaction.
      *
      * @param callable to execute
      * @return null if transaction is rolled back throwing a {@link Rollback} exception, otherwise what callable
@@ -88,6 +131,42 @@ public interface Ledger {
      */
     void save(StateRecord stateRecord);
 
+    /**
+     * Save many records, preferably with a single request to the storage. The operation is not atomic unless it is
+     * called from the {@link #transaction(Callable)}.
+     *
+     * @param records to save
+     */
+    default void saveAll(Collection<StateRecord> records) {
+        records.forEach(this::save);
+    }
+
+    /**
+     * Delete expired records, no more than the given number, and remove them from the cache, if any. Otherwise expired
+     * records are deleted only when they are read. Default implementation deletes nothing.
+     * <p>
+     * Only the records in the final states, see {@link ItemState#isFinal()}, are deleted: the pending and locked ones
+     * belong to the elections that could still save them by the record id, even if they have expired.
+     *
+     * @param limit maximum number of records to delete
+     *
+     * @return number of records deleted, less than the limit if there are no more expired records
+     */
+    default int removeExpired(int limit) {
+        return 0;
+    }
+
+    /**
+     * Records locked to be revoked by the elections that are not finished, see {@link
+     * StateRecord#lockToRevoke(HashId)}; {@link StateRecord#getLockedByRecordId()} is the record of the election. Used
+     * to restore the in-memory index of the locks when the node starts. Default implementation returns none.
+     *
+     * @return locked records, not expired
+     */
+    default List<StateRecord> getLockedRecords() {
+        return Collections.emptyList();
+    }
+
     /**
      * Refresh record.
      *
@@ -97,6 +176,16 @@ public interface Ledger {
 
     default void close() {}
 
+    /**
+     * The ledger that actually stores the records. Ledgers that delegate to another one, e.g. to collect statistics,
+     * return the ledger they delegate to, so records connected to either of them could be saved by the storage.
+     *
+     * @return ledger that stores the records
+     */
+    default Ledger getStorage() {
+        return this;
+    }
+
     default long countRecords() {
         return -1;
     }
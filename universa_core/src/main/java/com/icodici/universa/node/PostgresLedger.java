@@ -11,15 +11,17 @@ import com.icodici.db.Db;
 import com.icodici.db.DbPool;
 import com.icodici.db.PooledDb;
 import com.icodici.universa.HashId;
+import net.sergeych.tools.Do;
 
 import java.lang.ref.WeakReference;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Map;
-import java.util.Properties;
-import java.util.WeakHashMap;
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.*;
 import java.util.concurrent.Callable;
+import java.util.function.IntConsumer;
 
 /**
  * The basic SQL-based ledger.
@@ -34,6 +36,9 @@ public class PostgresLedger implements Ledger {
 
     private final DbPool dbPool;
 
+    // connection of the transaction the calling thread is in
+    private final ThreadLocal<PooledDb> transactionDb = new ThreadLocal<>();
+
     private boolean sqlite = false;
 
     private Object writeLock = new Object();
@@ -41,6 +46,17 @@ public class PostgresLedger implements Ledger {
     private Map<HashId, WeakReference<StateRecord>> cachedRecords = new WeakHashMap<>();
     private boolean useCache = true;
 
+    // records that are kept in the cache even if nobody else references them, most recently used are kept.
+    // Guarded by cachedRecords
+    private int hotRecordsLimit = 0;
+    private final LinkedHashMap<HashId, StateRecord> hotRecords = new LinkedHashMap<HashId, StateRecord>(16, 0.75f,
+                                                                                                         true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<HashId, StateRecord> eldest) {
+            return size() > hotRecordsLimit;
+        }
+    };
+
     public PostgresLedger(String connectionString, Properties properties) throws SQLException {
         dbPool = new DbPool(connectionString, properties, MAX_CONNECTIONS);
         init(dbPool);
@@ -64,9 +80,13 @@ public class PostgresLedger implements Ledger {
 
     /**
      * Get the instance of the {@link Db} for a calling thread. Safe to call repeatedly (returns the same instance per
-     * thread).
+     * thread). Inside {@link #transaction(Callable)} it is the connection of the transaction, which is not returned to
+     * the pool until the transaction is finished.
      */
     public final <T> T inPool(DbPool.DbConsumer<T> consumer) throws Exception {
+        PooledDb db = transactionDb.get();
+        if (db != null)
+            return consumer.accept(db);
         return dbPool.execute(consumer);
     }
 
@@ -93,17 +113,77 @@ public class PostgresLedger implements Ledger {
         return sr;
     }
 
+    @Override
+    public Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        List<HashId> toLoad = new ArrayList<>();
+        for (HashId id : ids) {
+            StateRecord cached = getFromCache(id);
+            if (cached != null)
+                result.put(id, cached);
+            else
+                toLoad.add(id);
+        }
+        if (!toLoad.isEmpty()) {
+            protect(() -> inPool(db -> {
+                try (
+                        PreparedStatement statement =
+                                db.statement("SELECT * FROM ledger WHERE hash = ANY(?::bytea[])", byteaArray(toLoad));
+                        ResultSet rs = statement.executeQuery()
+                ) {
+                    while (rs.next()) {
+                        StateRecord record = new StateRecord(this, rs);
+                        // it could be loaded by other thread meanwhile, then we use its instance
+                        StateRecord cached = getFromCache(record.getId());
+                        if (cached != null)
+                            record = cached;
+                        else
+                            putToCache(record);
+                        result.put(record.getId(), record);
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Iterator<StateRecord> it = result.values().iterator(); it.hasNext(); ) {
+            StateRecord r = it.next();
+            if (r.isExpired()) {
+                r.destroy();
+                it.remove();
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Build postgres array literal of hashes to pass it as a single parameter, e.g. {@code ANY(?::bytea[])}.
+     */
+    private static String byteaArray(Collection<HashId> ids) {
+        StringBuilder sb = new StringBuilder("{");
+        for (HashId id : ids) {
+            if (sb.length() > 1)
+                sb.append(',');
+            sb.append("\"\\\\x").append(Do.bytesToHex(id.getDigest())).append('"');
+        }
+        return sb.append('}').toString();
+    }
+
     private StateRecord getFromCache(HashId itemId) {
         if (useCache) {
             synchronized (cachedRecords) {
+                StateRecord r = hotRecords.get(itemId);
+                if (r != null)
+                    return r;
                 WeakReference<StateRecord> ref = cachedRecords.get(itemId);
                 if (ref == null)
                     return null;
-                StateRecord r = ref.get();
+                r = ref.get();
                 if (r == null) {
                     cachedRecords.remove(itemId);
                     return null;
                 }
+                if (hotRecordsLimit > 0)
+                    hotRecords.put(itemId, r);
                 return r;
             }
         } else
@@ -114,10 +194,82 @@ public class PostgresLedger implements Ledger {
         if (useCache) {
             synchronized (cachedRecords) {
                 cachedRecords.put(r.getId(), new WeakReference<StateRecord>(r));
+                if (hotRecordsLimit > 0)
+                    hotRecords.put(r.getId(), r);
             }
         }
     }
 
+    /**
+     * Set the number of most recently used records to keep in the cache. Other records are cached only while they are
+     * used somewhere else, as before. Default is 0, the cache keeps no records by itself.
+     *
+     * @param limit number of records to keep
+     */
+    public void setHotRecordsLimit(int limit) {
+        if (limit < 0)
+            throw new IllegalArgumentException("negative limit");
+        synchronized (cachedRecords) {
+            hotRecordsLimit = limit;
+            Iterator<HashId> it = hotRecords.keySet().iterator();
+            while (hotRecords.size() > limit) {
+                it.next();
+                it.remove();
+            }
+        }
+    }
+
+    public int getHotRecordsLimit() {
+        return hotRecordsLimit;
+    }
+
+    /**
+     * Warm up the cache after the restart: load recently created records that are not yet expired, the most recent
+     * first, and keep them in the cache. Records are read with a single query, streaming the results by batches, and
+     * no more than {@link #getHotRecordsLimit()} are loaded, as others would be dropped from the cache anyway.
+     *
+     * @param maxAge    only records created within this time before now are loaded
+     * @param limit     maximum number of records to load
+     * @param batchSize number of rows fetched from the database at once
+     * @param progress  if not null, receives the number of records loaded so far after each batch
+     *
+     * @return number of records loaded
+     */
+    public int preload(Duration maxAge, int limit, int batchSize, IntConsumer progress) {
+        int max = Math.min(limit, hotRecordsLimit);
+        if (!useCache || max <= 0)
+            return 0;
+        ZonedDateTime now = ZonedDateTime.now();
+        long createdAfter = StateRecord.unixTime(now.minus(maxAge));
+        return protect(() -> inPool(db -> db.transaction(() -> {
+            // postgres fetches rows by batches only with the autocommit off, otherwise it reads all of them at once
+            try (
+                    PreparedStatement statement = db.statement(
+                            "SELECT * FROM ledger WHERE created_at >= ? AND expires_at > ? ORDER BY id DESC LIMIT ?",
+                            createdAfter, StateRecord.unixTime(now), max
+                    )
+            ) {
+                statement.setFetchSize(batchSize);
+                int count = 0;
+                try (ResultSet rs = statement.executeQuery()) {
+                    while (rs.next()) {
+                        StateRecord record = new StateRecord(this, rs);
+                        synchronized (cachedRecords) {
+                            // loaded meanwhile by other thread, its instance is already in use
+                            if (getFromCache(record.getId()) == null)
+                                putToCache(record);
+                        }
+                        if (++count % batchSize == 0 && progress != null)
+                            progress.accept(count);
+                    }
+                }
+                if (count % batchSize != 0 && progress != null)
+                    progress.accept(count);
+                return count;
+            }
+        })));
+    }
+
 
     @Override
     public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
@@ -133,6 +285,38 @@ public class PostgresLedger implements Ledger {
         }
     }
 
+    @Override
+    public Map<HashId, StateRecord> createOutputLockRecords(long creatorRecordId, Collection<HashId> newItemHashIds) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        if (newItemHashIds.isEmpty())
+            return result;
+        // same defaults as for the new StateRecord
+        ZonedDateTime now = ZonedDateTime.now();
+        return protect(() -> inPool(db -> {
+            // existing hashes are just skipped, so only created records are returned
+            try (
+                    PreparedStatement statement = db.statement(
+                            "INSERT INTO ledger(hash, state, created_at, expires_at, locked_by_id) " +
+                                    "SELECT h, ?, ?, ?, ? FROM unnest(?::bytea[]) AS h " +
+                                    "ON CONFLICT (hash) DO NOTHING RETURNING *",
+                            ItemState.LOCKED_FOR_CREATION.ordinal(),
+                            StateRecord.unixTime(now),
+                            StateRecord.unixTime(now.plusSeconds(300)),
+                            creatorRecordId,
+                            byteaArray(newItemHashIds)
+                    );
+                    ResultSet rs = statement.executeQuery()
+            ) {
+                while (rs.next()) {
+                    StateRecord record = new StateRecord(this, rs);
+                    putToCache(record);
+                    result.put(record.getId(), record);
+                }
+            }
+            return result;
+        }));
+    }
+
     @Override
     public StateRecord findOrCreate(HashId itemId) {
         // This simple version requires that database is used exclusively by one localnode - the normal way. As nodes
@@ -183,8 +367,16 @@ public class PostgresLedger implements Ledger {
 //            synchronized (transactionLock) {
             // as Rollback exception is instanceof Db.Rollback, it will work as supposed by default:
             // rethrow unchecked exceotions and return null on rollback.
-            try (Db db = dbPool.db()) {
-                return db.transaction(() -> callable.call());
+            if (transactionDb.get() != null)
+                // the inner transaction is a part of the outer one
+                return callable.call();
+            try (PooledDb db = dbPool.db()) {
+                transactionDb.set(db);
+                try {
+                    return db.transaction(() -> callable.call());
+                } finally {
+                    transactionDb.remove();
+                }
             }
 //            }
         });
@@ -203,69 +395,166 @@ public class PostgresLedger implements Ledger {
             });
             synchronized (cachedRecords) {
                 cachedRecords.remove(record.getId());
+                hotRecords.remove(record.getId());
             }
             return null;
         });
     }
 
+    @Override
+    public int removeExpired(int limit) {
+        if (limit <= 0)
+            return 0;
+        long now = StateRecord.unixTime(ZonedDateTime.now());
+        return protect(() -> inPool(db -> {
+            int count = 0;
+            try (
+                    PreparedStatement statement = db.statement(
+                            "DELETE FROM ledger WHERE id IN " +
+                                    "(SELECT id FROM ledger WHERE expires_at < ? AND state IN (?,?,?,?) LIMIT ?) " +
+                                    "AND state IN (?,?,?,?) RETURNING hash",
+                            now, ItemState.UNDEFINED.ordinal(), ItemState.APPROVED.ordinal(),
+                            ItemState.REVOKED.ordinal(), ItemState.DECLINED.ordinal(), limit,
+                            ItemState.UNDEFINED.ordinal(), ItemState.APPROVED.ordinal(),
+                            ItemState.REVOKED.ordinal(), ItemState.DECLINED.ordinal()
+                    );
+                    ResultSet rs = statement.executeQuery()
+            ) {
+                while (rs.next()) {
+                    HashId id = HashId.withDigest(rs.getBytes(1));
+                    synchronized (cachedRecords) {
+                        cachedRecords.remove(id);
+                        hotRecords.remove(id);
+                    }
+                    count++;
+                }
+            }
+            return count;
+        }));
+    }
+
+    @Override
+    public List<StateRecord> getLockedRecords() {
+        long now = StateRecord.unixTime(ZonedDateTime.now());
+        return protect(() -> inPool(db -> {
+            List<StateRecord> result = new ArrayList<>();
+            try (
+                    PreparedStatement statement = db.statement(
+                            "SELECT * FROM ledger WHERE state = ? AND (expires_at IS NULL OR expires_at > ?)",
+                            ItemState.LOCKED.ordinal(), now
+                    );
+                    ResultSet rs = statement.executeQuery()
+            ) {
+                while (rs.next()) {
+                    StateRecord record = new StateRecord(this, rs);
+                    synchronized (cachedRecords) {
+                        // the cached instance could be already in use
+                        StateRecord cached = getFromCache(record.getId());
+                        if (cached != null)
+                            record = cached;
+                        else
+                            putToCache(record);
+                    }
+                    result.add(record);
+                }
+            }
+            return result;
+        }));
+    }
+
     @Override
     public void save(StateRecord stateRecord) {
         if (stateRecord.getLedger() == null) {
             stateRecord.setLedger(this);
-        } else if (stateRecord.getLedger() != this)
+        } else if (stateRecord.getLedger().getStorage() != this)
             throw new IllegalStateException("can't save with a different ledger (make a copy!)");
 
-        // TODO: probably, it should take a PooledDb as an argument and reuse it
-        try (PooledDb db = dbPool.db()) {
-            if (stateRecord.getRecordId() == 0) {
-                try (
-                        PreparedStatement statement =
-                                db.statementReturningKeys(
-                                        "insert into ledger(hash,state,created_at, expires_at, locked_by_id) values(?,?,?,?,?);"
-                                )
-                ) {
-                    statement.setBytes(1, stateRecord.getId().getDigest());
-                    statement.setInt(2, stateRecord.getState().ordinal());
-                    statement.setLong(3, StateRecord.unixTime(stateRecord.getCreatedAt()));
-                    statement.setLong(4, StateRecord.unixTime(stateRecord.getExpiresAt()));
-                    statement.setLong(5, stateRecord.getLockedByRecordId());
-                    statement.executeUpdate();
-                    try (ResultSet keys = statement.getGeneratedKeys()) {
-                        if (!keys.next())
-                            throw new RuntimeException("generated keys are not supported");
-                        long id = keys.getLong(1);
-                        stateRecord.setRecordId(id);
+        try {
+            inPool(db -> {
+                if (stateRecord.getRecordId() == 0) {
+                    try (
+                            PreparedStatement statement =
+                                    db.statementReturningKeys(
+                                            "insert into ledger(hash,state,created_at, expires_at, locked_by_id) values(?,?,?,?,?);"
+                                    )
+                    ) {
+                        statement.setBytes(1, stateRecord.getId().getDigest());
+                        statement.setInt(2, stateRecord.getState().ordinal());
+                        statement.setLong(3, StateRecord.unixTime(stateRecord.getCreatedAt()));
+                        statement.setLong(4, StateRecord.unixTime(stateRecord.getExpiresAt()));
+                        statement.setLong(5, stateRecord.getLockedByRecordId());
+                        statement.executeUpdate();
+                        try (ResultSet keys = statement.getGeneratedKeys()) {
+                            if (!keys.next())
+                                throw new RuntimeException("generated keys are not supported");
+                            long id = keys.getLong(1);
+                            stateRecord.setRecordId(id);
+                        }
                     }
+                    putToCache(stateRecord);
+                } else {
+                    db.update("update ledger set state=?, expires_at=?, locked_by_id=? where id=?",
+                              stateRecord.getState().ordinal(),
+                              StateRecord.unixTime(stateRecord.getExpiresAt()),
+                              stateRecord.getLockedByRecordId(),
+                              stateRecord.getRecordId()
+                    );
                 }
-                putToCache(stateRecord);
-            } else {
-                db.update("update ledger set state=?, expires_at=?, locked_by_id=? where id=?",
-                          stateRecord.getState().ordinal(),
-                          StateRecord.unixTime(stateRecord.getExpiresAt()),
-                          stateRecord.getLockedByRecordId(),
-                          stateRecord.getRecordId()
-                );
-            }
-        } catch (SQLException se) {
+                return null;
+            });
+        } catch (Exception se) {
 //            se.printStackTrace();
-            throw new Failure("StateRecord save failed:" + se);
+            throw new Failure("StateRecord save failed:" + se, se);
         }
     }
 
 
+    /**
+     * New records are inserted one by one as we need their ids, existing records are updated with a single batch.
+     */
+    @Override
+    public void saveAll(Collection<StateRecord> records) {
+        List<StateRecord> existing = new ArrayList<>();
+        for (StateRecord r : records) {
+            if (r.getRecordId() == 0 || r.getLedger().getStorage() != this)
+                save(r);
+            else
+                existing.add(r);
+        }
+        if (existing.isEmpty())
+            return;
+        try {
+            inPool(db -> {
+                try (PreparedStatement statement =
+                             db.statement("update ledger set state=?, expires_at=?, locked_by_id=? where id=?")) {
+                    for (StateRecord r : existing) {
+                        statement.setInt(1, r.getState().ordinal());
+                        statement.setLong(2, StateRecord.unixTime(r.getExpiresAt()));
+                        statement.setLong(3, r.getLockedByRecordId());
+                        statement.setLong(4, r.getRecordId());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+                return null;
+            });
+        } catch (Exception se) {
+            throw new Failure("StateRecord saveAll failed:" + se, se);
+        }
+    }
+
     @Override
     public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
         try {
-            try (
-                    PooledDb db = dbPool.db();
-                    ResultSet rs = db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1",
-                                               stateRecord.getId().getDigest()
-                    );
-            ) {
-                if (rs == null)
-                    throw new StateRecord.NotFoundException("record not found");
-                stateRecord.initFrom(rs);
-            }
+            inPool(db -> {
+                try (ResultSet rs = db.queryRow("SELECT * FROM ledger WHERE hash = ? limit 1",
+                                                stateRecord.getId().getDigest())) {
+                    if (rs == null)
+                        throw new StateRecord.NotFoundException("record not found");
+                    stateRecord.initFrom(rs);
+                }
+                return null;
+            });
         } catch (Exception e) {
             throw new RuntimeException("Failed to reload RecordSet", e);
         }
@@ -281,7 +570,10 @@ public class PostgresLedger implements Ledger {
             this.useCache = true;
         } else {
             this.useCache = false;
-            cachedRecords.clear();
+            synchronized (cachedRecords) {
+                cachedRecords.clear();
+                hotRecords.clear();
+            }
         }
     }
 
@@ -3,6 +3,10 @@ package com.icodici.universa.node;
 import java.io.Serializable;
 import java.time.Duration;
 
+/**
+ * Counts pulses in the fixed time slots. Thread-safe; to limit the rate of many clients at once see {@link
+ * com.icodici.universa.node2.network.RateLimiter}.
+ */
 public class RateCounter extends AbstractRateCounter {
 
     private int limit;
@@ -14,7 +18,7 @@ public class RateCounter extends AbstractRateCounter {
     }
 
     @Override
-    public void reset(int limit, Duration period) {
+    public synchronized void reset(int limit, Duration period) {
         this.limit = limit;
         this.period = period;
     }
@@ -30,14 +34,14 @@ public class RateCounter extends AbstractRateCounter {
     }
 
     @Override
-    public int pulsesLeft() {
+    public synchronized int pulsesLeft() {
         if(currentTimeSlot != null && currentTimeSlot.isActive())
             return currentTimeSlot.limit - currentTimeSlot.currentCount;
 
         return limit;
     }
 
-    public long millisecondsLeft() {
+    public synchronized long millisecondsLeft() {
         if(currentTimeSlot != null && currentTimeSlot.isActive())
             return currentTimeSlot.millisecondsLeft();
 
@@ -45,7 +49,7 @@ public class RateCounter extends AbstractRateCounter {
     }
 
     @Override
-    public boolean countPulse() {
+    public synchronized boolean countPulse() {
         if(currentTimeSlot != null && currentTimeSlot.isActive()) {
         } else {
             currentTimeSlot = new TimeSlot(limit, period);
@@ -63,7 +67,6 @@ public class RateCounter extends AbstractRateCounter {
         private Duration period;
 
         public TimeSlot(int limit, Duration period) {
-            System.out.println("creates new time slot ");
             this.startTime = System.currentTimeMillis();
             this.limit = limit;
             this.period = period;
@@ -16,9 +16,8 @@ import java.lang.ref.WeakReference;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
 import java.sql.SQLException;
-import java.util.Map;
-import java.util.Properties;
-import java.util.WeakHashMap;
+import java.time.ZonedDateTime;
+import java.util.*;
 import java.util.concurrent.Callable;
 
 /**
@@ -36,6 +35,9 @@ public class SqliteLedger implements Ledger {
     private Map<HashId, WeakReference<StateRecord>> cachedRecords = new WeakHashMap<>();
     private boolean useCache = true;
 
+    // true while the calling thread is in the transaction
+    private final ThreadLocal<Boolean> inTransaction = ThreadLocal.withInitial(() -> false);
+
     public SqliteLedger(String connectionString) throws SQLException {
         Properties properties;
             SQLiteConfig config = new SQLiteConfig();
@@ -69,6 +71,59 @@ public class SqliteLedger implements Ledger {
         return sr;
     }
 
+    /**
+     * SQLite limits the number of statement parameters, so big requests are split into chunks of this size.
+     */
+    private static final int MAX_IDS_PER_QUERY = 500;
+
+    @Override
+    public Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        List<HashId> toLoad = new ArrayList<>();
+        for (HashId id : ids) {
+            StateRecord cached = getFromCache(id);
+            if (cached != null)
+                result.put(id, cached);
+            else
+                toLoad.add(id);
+        }
+        for (int from = 0; from < toLoad.size(); from += MAX_IDS_PER_QUERY) {
+            List<HashId> chunk = toLoad.subList(from, Math.min(from + MAX_IDS_PER_QUERY, toLoad.size()));
+            protect(() -> {
+                StringBuilder sql = new StringBuilder("SELECT * FROM ledger WHERE hash IN (");
+                for (int i = 0; i < chunk.size(); i++)
+                    sql.append(i == 0 ? "?" : ",?");
+                sql.append(")");
+                Object[] args = new Object[chunk.size()];
+                for (int i = 0; i < args.length; i++)
+                    args[i] = chunk.get(i).getDigest();
+                try (
+                        PreparedStatement statement = db.statement(sql.toString(), args);
+                        ResultSet rs = statement.executeQuery()
+                ) {
+                    while (rs.next()) {
+                        StateRecord record = new StateRecord(this, rs);
+                        StateRecord cached = getFromCache(record.getId());
+                        if (cached != null)
+                            record = cached;
+                        else
+                            putToCache(record);
+                        result.put(record.getId(), record);
+                    }
+                }
+                return null;
+            });
+        }
+        for (Iterator<StateRecord> it = result.values().iterator(); it.hasNext(); ) {
+            StateRecord r = it.next();
+            if (r.isExpired()) {
+                r.destroy();
+                it.remove();
+            }
+        }
+        return result;
+    }
+
     private StateRecord getFromCache(HashId itemId) {
         if (useCache) {
             synchronized (cachedRecords) {
@@ -109,6 +164,64 @@ public class SqliteLedger implements Ledger {
         }
     }
 
+    /**
+     * All the records are inserted with a single batch in one transaction; the created ones are then read back with
+     * their ids.
+     */
+    @Override
+    public Map<HashId, StateRecord> createOutputLockRecords(long creatorRecordId, Collection<HashId> newItemHashIds) {
+        Map<HashId, StateRecord> result = new HashMap<>();
+        if (newItemHashIds.isEmpty())
+            return result;
+        List<HashId> ids = new ArrayList<>(newItemHashIds);
+        // same defaults as for the new StateRecord
+        ZonedDateTime now = ZonedDateTime.now();
+        synchronized (writeLock) {
+            return transaction(() -> {
+                List<HashId> created = new ArrayList<>();
+                // existing hashes are just skipped, so only created records are returned
+                try (PreparedStatement statement = db.statement(
+                        "INSERT OR IGNORE INTO ledger(hash, state, created_at, expires_at, locked_by_id) " +
+                                "values(?,?,?,?,?)")) {
+                    for (HashId id : ids) {
+                        statement.setBytes(1, id.getDigest());
+                        statement.setInt(2, ItemState.LOCKED_FOR_CREATION.ordinal());
+                        statement.setLong(3, StateRecord.unixTime(now));
+                        statement.setLong(4, StateRecord.unixTime(now.plusSeconds(300)));
+                        statement.setLong(5, creatorRecordId);
+                        statement.addBatch();
+                    }
+                    int[] counts = statement.executeBatch();
+                    for (int i = 0; i < counts.length; i++) {
+                        if (counts[i] > 0)
+                            created.add(ids.get(i));
+                    }
+                }
+                for (int from = 0; from < created.size(); from += MAX_IDS_PER_QUERY) {
+                    List<HashId> chunk = created.subList(from, Math.min(from + MAX_IDS_PER_QUERY, created.size()));
+                    StringBuilder sql = new StringBuilder("SELECT * FROM ledger WHERE hash IN (");
+                    for (int i = 0; i < chunk.size(); i++)
+                        sql.append(i == 0 ? "?" : ",?");
+                    sql.append(")");
+                    Object[] args = new Object[chunk.size()];
+                    for (int i = 0; i < args.length; i++)
+                        args[i] = chunk.get(i).getDigest();
+                    try (
+                            PreparedStatement statement = db.statement(sql.toString(), args);
+                            ResultSet rs = statement.executeQuery()
+                    ) {
+                        while (rs.next()) {
+                            StateRecord record = new StateRecord(this, rs);
+                            putToCache(record);
+                            result.put(record.getId(), record);
+                        }
+                    }
+                }
+                return result;
+            });
+        }
+    }
+
     @Override
     public StateRecord findOrCreate(HashId itemId) {
         // This simple version requires that database is used exclusively by one localnode - the normal way. As nodes
@@ -152,7 +265,15 @@ public class SqliteLedger implements Ledger {
 //            synchronized (transactionLock) {
             // as Rollback exception is instanceof Db.Rollback, it will work as supposed by default:
             // rethrow unchecked exceotions and return null on rollback.
-            return db.transaction(() -> callable.call());
+            if (inTransaction.get())
+                // the inner transaction is a part of the outer one
+                return callable.call();
+            inTransaction.set(true);
+            try {
+                return db.transaction(() -> callable.call());
+            } finally {
+                inTransaction.set(false);
+            }
 //            }
         });
     }
@@ -174,11 +295,89 @@ public class SqliteLedger implements Ledger {
         });
     }
 
+    @Override
+    public int removeExpired(int limit) {
+        if (limit <= 0)
+            return 0;
+        long now = StateRecord.unixTime(ZonedDateTime.now());
+        // records of the elections in progress are kept
+        Object[] finalStates = {ItemState.UNDEFINED.ordinal(), ItemState.APPROVED.ordinal(),
+                ItemState.REVOKED.ordinal(), ItemState.DECLINED.ordinal()};
+        return protect(() -> {
+            // sqlite is usually built without DELETE ... LIMIT
+            List<Long> recordIds = new ArrayList<>();
+            List<HashId> ids = new ArrayList<>();
+            try (
+                    PreparedStatement statement =
+                            db.statement("SELECT id, hash FROM ledger WHERE expires_at < ? AND state IN (?,?,?,?) " +
+                                                 "LIMIT ?", now, finalStates[0], finalStates[1], finalStates[2],
+                                         finalStates[3], limit);
+                    ResultSet rs = statement.executeQuery()
+            ) {
+                while (rs.next()) {
+                    recordIds.add(rs.getLong(1));
+                    ids.add(HashId.withDigest(rs.getBytes(2)));
+                }
+            }
+            int count = 0;
+            for (int from = 0; from < recordIds.size(); from += MAX_IDS_PER_QUERY) {
+                List<Long> chunk = recordIds.subList(from, Math.min(from + MAX_IDS_PER_QUERY, recordIds.size()));
+                StringBuilder sql =
+                        new StringBuilder("DELETE FROM ledger WHERE expires_at < ? AND state IN (?,?,?,?) AND id IN (");
+                for (int i = 0; i < chunk.size(); i++)
+                    sql.append(i == 0 ? "?" : ",?");
+                sql.append(")");
+                Object[] args = new Object[chunk.size() + 5];
+                // the record could be saved with the new expiration or state meanwhile
+                args[0] = now;
+                System.arraycopy(finalStates, 0, args, 1, finalStates.length);
+                for (int i = 0; i < chunk.size(); i++)
+                    args[i + 5] = chunk.get(i);
+                synchronized (writeLock) {
+                    try (PreparedStatement statement = db.statement(sql.toString(), args)) {
+                        count += statement.executeUpdate();
+                    }
+                }
+            }
+            synchronized (cachedRecords) {
+                ids.forEach(cachedRecords::remove);
+            }
+            return count;
+        });
+    }
+
+    @Override
+    public List<StateRecord> getLockedRecords() {
+        long now = StateRecord.unixTime(ZonedDateTime.now());
+        return protect(() -> {
+            List<StateRecord> result = new ArrayList<>();
+            try (
+                    PreparedStatement statement = db.statement(
+                            "SELECT * FROM ledger WHERE state = ? AND (expires_at IS NULL OR expires_at > ?)",
+                            ItemState.LOCKED.ordinal(), now
+                    );
+                    ResultSet rs = statement.executeQuery()
+            ) {
+                while (rs.next()) {
+                    StateRecord record = new StateRecord(this, rs);
+                    // the cached instance could be already in use
+                    StateRecord cached = getFromCache(record.getId());
+                    if (cached != null)
+                        record = cached;
+                    else
+                        putToCache(record);
+                    result.add(record);
+                }
+            }
+            return result;
+        });
+    }
+
     @Override
     public void save(StateRecord stateRecord) {
         if (stateRecord.getLedger() == null) {
             stateRecord.setLedger(this);
-        } else if (stateRecord.getLedger() != this)
+        } else if (stateRecord.getLedger().getStorage() != this)
             throw new IllegalStateException("can't save with  adifferent ledger (make a copy!)");
 
         try {
@@ -219,6 +418,39 @@ public class SqliteLedger implements Ledger {
     }
 
 
+    /**
+     * New records are inserted one by one as we need their ids, existing records are updated with a single batch.
+     */
+    @Override
+    public void saveAll(Collection<StateRecord> records) {
+        List<StateRecord> existing = new ArrayList<>();
+        for (StateRecord r : records) {
+            if (r.getRecordId() == 0 || r.getLedger().getStorage() != this)
+                save(r);
+            else
+                existing.add(r);
+        }
+        if (existing.isEmpty())
+            return;
+        try {
+            synchronized (writeLock) {
+                try (PreparedStatement statement =
+                             db.statement("update ledger set state=?, expires_at=?, locked_by_id=? where id=?")) {
+                    for (StateRecord r : existing) {
+                        statement.setInt(1, r.getState().ordinal());
+                        statement.setLong(2, StateRecord.unixTime(r.getExpiresAt()));
+                        statement.setLong(3, r.getLockedByRecordId());
+                        statement.setLong(4, r.getRecordId());
+                        statement.addBatch();
+                    }
+                    statement.executeBatch();
+                }
+            }
+        } catch (SQLException se) {
+            throw new Ledger.Failure("StateRecord saveAll failed:" + se);
+        }
+    }
+
     @Override
     public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
         try {
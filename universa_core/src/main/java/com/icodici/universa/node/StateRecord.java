@@ -13,6 +13,7 @@ import java.sql.SQLException;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.time.ZoneId;
+import java.util.*;
 
 /**
  * The state of some {@link HashId} - identifiable item (e.g. {@link Approvable} to be sotred in the {@link Ledger}
@@ -180,6 +181,14 @@ public class StateRecord implements HashIdentifiable {
         this.recordId = recordId;
     }
 
+    /**
+     * Forget the recordId assigned by the insert that was rolled back, so the record is inserted again when saved.
+     * Normally, only {@link Ledger} do it.
+     */
+    public void clearRecordId() {
+        this.recordId = 0;
+    }
+
     private void checkLedgerExists() {
         if (ledger == null)
             throw new IllegalStateException("connect to ledger to set recordId");
@@ -239,6 +248,44 @@ public class StateRecord implements HashIdentifiable {
         return lockedRecord;
     }
 
+    /**
+     * Bulk version of {@link #lockToRevoke(HashId)}: reads all the records to lock and saves the locked ones with a
+     * minimal number of requests to the ledger.
+     *
+     * @param idsToRevoke ids of items to lock
+     * @return map of the locked records by their ids, ids that could not be locked are missing
+     */
+    public Map<HashId, StateRecord> lockToRevokeAll(Collection<HashId> idsToRevoke) {
+        checkLedgerExists();
+        if (state != ItemState.PENDING)
+            throw new IllegalStateException("only pending records are allowed to lock others");
+        Map<HashId, StateRecord> result = new HashMap<>();
+        List<StateRecord> toSave = new ArrayList<>();
+        for (StateRecord lockedRecord : ledger.getRecords(idsToRevoke).values()) {
+            switch (lockedRecord.getState()) {
+                case LOCKED:
+                    // if it is locked by us, it's ok
+                    if (lockedRecord.getLockedByRecordId() == recordId)
+                        result.put(lockedRecord.getId(), lockedRecord);
+                    break;
+                case APPROVED:
+                    lockedRecord.setLockedByRecordId(recordId);
+                    lockedRecord.setState(ItemState.LOCKED);
+                    toSave.add(lockedRecord);
+                    result.put(lockedRecord.getId(), lockedRecord);
+                    break;
+                default:
+                    // wrong state, can't lock it
+                    break;
+            }
+        }
+        if (!toSave.isEmpty()) {
+            toSave.forEach(r -> r.dirty = false);
+            ledger.saveAll(toSave);
+        }
+        return result;
+    }
+
     /**
      * Unlock the record if it was in a locked state, does nothing otherwise.
      */
@@ -315,6 +362,34 @@ public class StateRecord implements HashIdentifiable {
         return newRecord;
     }
 
+    /**
+     * Bulk version of {@link #createOutputLockRecord(HashId)}: checks existing records and creates missing ones with a
+     * minimal number of requests to the ledger.
+     *
+     * @param ids ids of the new items to be locked for approval
+     * @return map of the records locked for creation by their ids, ids that could not be locked are missing
+     */
+    public Map<HashId, StateRecord> createOutputLockRecords(Collection<HashId> ids) {
+        checkLedgerExists();
+        checkHaveRecordId();
+        if (state != ItemState.PENDING)
+            throw new IllegalStateException("wrong state to createOutputLockRecord: " + state);
+        Map<HashId, StateRecord> existing = ledger.getRecords(ids);
+        Map<HashId, StateRecord> result = new HashMap<>();
+        List<HashId> missing = new ArrayList<>();
+        for (HashId id : ids) {
+            StateRecord r = existing.get(id);
+            if (r == null)
+                missing.add(id);
+            else if (r.state == ItemState.LOCKED_FOR_CREATION && r.lockedByRecordId == recordId)
+                // it it is locked by us, ok
+                result.put(id, r);
+        }
+        if (!missing.isEmpty())
+            result.putAll(ledger.createOutputLockRecords(recordId, missing));
+        return result;
+    }
+
     private void checkHaveRecordId() {
         if (recordId == 0)
             throw new IllegalStateException("the record must be created");
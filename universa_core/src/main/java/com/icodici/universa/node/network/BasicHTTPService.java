@@ -91,6 +91,13 @@ public interface BasicHTTPService extends AutoCloseable {
          */
         String getDomain();
 
+        /**
+         * @return IP address of the remote side, used to tell the clients apart, e.g. to limit the request rate
+         */
+        default String getRemoteAddress() {
+            return getDomain();
+        }
+
         /**
          * Represent query as Binder of key-values. Values should be decoded, either String or {@link FileUpload}.
          * Contains both query parameters from URL arguments and from forms, where present.
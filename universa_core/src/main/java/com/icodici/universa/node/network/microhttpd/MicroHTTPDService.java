@@ -134,6 +134,11 @@ public class MicroHTTPDService implements BasicHTTPService {
             return session.getRemoteHostName();
         }
 
+        @Override
+        public String getRemoteAddress() {
+            return session.getRemoteIpAddress();
+        }
+
         @Override
         public Binder getParams() {
             final Binder result = new Binder();
@@ -0,0 +1,232 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Limits the number of concurrent elections of the node. Client registrations are admitted while the number of
+ * active elections is below the adaptive limit, otherwise they wait in the bounded queue for a short time and are
+ * rejected if the queue is full or the time is out. Elections started by other nodes are admitted up to the hard
+ * limit, as rejecting them could prevent the network from reaching consensus.
+ * <p>
+ * The adaptive limit follows AIMD rule: it grows by 1 per limit of elections finished in time, and is decreased by
+ * 10% when the election or the ledger latency exceeds the target, not more often than once per decrease interval.
+ */
+public class AdmissionController {
+
+    private static final double DECREASE_FACTOR = 0.9;
+    private static final long DECREASE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final int maxLimit;
+    private final int minLimit;
+    private final int queueSize;
+    private final long queueTimeoutNanos;
+    private final long targetElectionNanos;
+    private final long targetLedgerNanos;
+
+    private double limit;
+    private int active;
+    private int waiting;
+    private long lastDecrease;
+
+    private long admitted;
+    private long rejected;
+    private long decreases;
+
+    /**
+     * Create controller with parameters from the config: {@link Config#getMaxElections()}, {@link
+     * Config#getAdmissionQueueSize()}, {@link Config#getAdmissionQueueTimeout()}, {@link
+     * Config#getTargetElectionTime()} and {@link Config#getTargetLedgerLatency()}.
+     */
+    public AdmissionController(Config config) {
+        this(config.getMaxElections(), config.getAdmissionQueueSize(), config.getAdmissionQueueTimeout(),
+             config.getTargetElectionTime(), config.getTargetLedgerLatency());
+    }
+
+    public AdmissionController(int maxElections, int queueSize, Duration queueTimeout,
+                               Duration targetElectionTime, Duration targetLedgerLatency) {
+        if (maxElections < 1)
+            throw new IllegalArgumentException("maxElections should be positive");
+        maxLimit = maxElections;
+        minLimit = Math.min(16, maxElections);
+        limit = Math.max(minLimit, maxElections / 4);
+        this.queueSize = queueSize;
+        queueTimeoutNanos = queueTimeout.toNanos();
+        targetElectionNanos = targetElectionTime.toNanos();
+        targetLedgerNanos = targetLedgerLatency.toNanos();
+        lastDecrease = System.nanoTime() - DECREASE_INTERVAL_NANOS;
+    }
+
+    /**
+     * Get the permit to start an election requested by the client, waiting in the queue if need.
+     *
+     * @return permit or null if the node is overloaded
+     *
+     * @throws InterruptedException if interrupted while waiting in the queue
+     */
+    public synchronized Permit acquire() throws InterruptedException {
+        if (active < (int) limit)
+            return admit();
+        if (waiting >= queueSize) {
+            rejected++;
+            return null;
+        }
+        waiting++;
+        try {
+            long deadline = System.nanoTime() + queueTimeoutNanos;
+            while (active >= (int) limit) {
+                long left = deadline - System.nanoTime();
+                if (left <= 0) {
+                    rejected++;
+                    return null;
+                }
+                TimeUnit.NANOSECONDS.timedWait(this, left);
+            }
+            return admit();
+        } finally {
+            waiting--;
+        }
+    }
+
+    /**
+     * Get the permit to start an election requested by the client if the limit allows it now, never waits, e.g. for
+     * the items of a batch.
+     *
+     * @return permit or null if the node is overloaded
+     */
+    public synchronized Permit tryAcquire() {
+        if (active < (int) limit)
+            return admit();
+        rejected++;
+        return null;
+    }
+
+    /**
+     * Get the permit to start an election requested by the other node, never waits.
+     *
+     * @return permit or null if the hard limit is reached
+     */
+    public synchronized Permit acquireForPeer() {
+        if (active >= maxLimit) {
+            rejected++;
+            return null;
+        }
+        return admit();
+    }
+
+    /**
+     * Report the time spent by a ledger operation of an election. If it exceeds the target, the limit is decreased.
+     *
+     * @param nanos ledger operation time
+     */
+    public synchronized void onLedgerLatency(long nanos) {
+        if (nanos > targetLedgerNanos)
+            decrease();
+    }
+
+    private Permit admit() {
+        active++;
+        admitted++;
+        return new Permit();
+    }
+
+    private synchronized void release(long electionNanos, boolean completed) {
+        active--;
+        if (completed && electionNanos <= targetElectionNanos)
+            limit = Math.min(maxLimit, limit + 1.0 / limit);
+        else
+            decrease();
+        notify();
+    }
+
+    private void decrease() {
+        long now = System.nanoTime();
+        if (now - lastDecrease >= DECREASE_INTERVAL_NANOS) {
+            lastDecrease = now;
+            limit = Math.max(minLimit, limit * DECREASE_FACTOR);
+            decreases++;
+        }
+    }
+
+    public synchronized int getLimit() {
+        return (int) limit;
+    }
+
+    public synchronized int getActive() {
+        return active;
+    }
+
+    public synchronized int getWaiting() {
+        return waiting;
+    }
+
+    public synchronized long getRejected() {
+        return rejected;
+    }
+
+    public synchronized Binder getStatistics() {
+        return Binder.fromKeysValues(
+                "limit", (int) limit,
+                "active", active,
+                "waiting", waiting,
+                "admitted", admitted,
+                "rejected", rejected,
+                "decreases", decreases
+        );
+    }
+
+    /**
+     * The right to run one election. Must be released when the election is over, or if it was not used.
+     */
+    public class Permit {
+        private final long started = System.nanoTime();
+        private boolean claimed = false;
+        private boolean released = false;
+
+        /**
+         * Mark the permit as used by the election, so {@link #releaseIfUnused()} will not release it.
+         */
+        public synchronized void claim() {
+            claimed = true;
+        }
+
+        /**
+         * Release the permit that was not claimed by an election, e.g. the item is already processed.
+         */
+        public void releaseIfUnused() {
+            synchronized (this) {
+                if (claimed || released)
+                    return;
+                released = true;
+            }
+            // unused permit does not say anything about the latency
+            synchronized (AdmissionController.this) {
+                active--;
+                AdmissionController.this.notify();
+            }
+        }
+
+        /**
+         * Release the permit of the finished election.
+         *
+         * @param completed true if the election has found the consensus, false if it was expired
+         */
+        public void release(boolean completed) {
+            synchronized (this) {
+                if (released)
+                    return;
+                released = true;
+            }
+            AdmissionController.this.release(System.nanoTime() - started, completed);
+        }
+    }
+}
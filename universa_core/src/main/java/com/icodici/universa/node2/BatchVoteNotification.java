@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import net.sergeych.boss.Boss;
+
+import java.io.IOException;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Votes of the node on a batch of items in one notification: the ids of the items and the vote vector, the bitmaps of
+ * approving and declining ones, of the items the node has a copy of and of the ones it asks to answer about. It is
+ * sent over the authenticated session of the node, so it carries no hash of its own.
+ * <p>
+ * Only the vote is sent, not the exact state of the item: the receiving node gets the batch as separate {@link
+ * ItemNotification}s, see {@link #expand()}, with {@link ItemState#PENDING_POSITIVE} for approving votes, {@link
+ * ItemState#PENDING_NEGATIVE} for declining ones and {@link ItemState#PENDING} for the items the node has no opinion
+ * on yet. The dates of the item results are not sent either. Each item is still elected and finished separately.
+ * <p>
+ * The notifications that push the item body are never batched. See {@link Config#isVoteBatching()}.
+ */
+public class BatchVoteNotification extends Notification {
+
+    static final int CODE_BATCH_VOTE_NOTIFICATION = 2;
+
+    /**
+     * Maximum number of items in one batch.
+     */
+    public static final int MAX_SIZE = 1000;
+
+    private List<HashId> itemIds;
+    private BitSet approved;
+    private BitSet declined;
+    private BitSet haveCopy;
+    private BitSet answerRequested;
+
+    /**
+     * Put votes together. All notifications should be from the same node.
+     *
+     * @param from  sending node
+     * @param votes notifications to put to the batch
+     */
+    public BatchVoteNotification(NodeInfo from, Collection<ItemNotification> votes) {
+        super(from);
+        itemIds = new ArrayList<>(votes.size());
+        approved = new BitSet();
+        declined = new BitSet();
+        haveCopy = new BitSet();
+        answerRequested = new BitSet();
+        int i = 0;
+        for (ItemNotification n : votes) {
+            itemIds.add(n.getItemId());
+            ItemResult r = n.getItemResult();
+            if (r.state.isPositive())
+                approved.set(i);
+            else if (r.state != ItemState.PENDING)
+                declined.set(i);
+            if (r.haveCopy)
+                haveCopy.set(i);
+            if (n.answerIsRequested())
+                answerRequested.set(i);
+            i++;
+        }
+    }
+
+    private BatchVoteNotification() {
+    }
+
+    /**
+     * @return number of items in the batch
+     */
+    public int size() {
+        return itemIds.size();
+    }
+
+    /**
+     * Split the batch to the item notifications, in the order the items were put to it.
+     *
+     * @return notifications from the same node
+     */
+    public List<ItemNotification> expand() {
+        ZonedDateTime now = ZonedDateTime.now();
+        List<ItemNotification> result = new ArrayList<>(itemIds.size());
+        for (int i = 0; i < itemIds.size(); i++) {
+            ItemState state = approved.get(i) ? ItemState.PENDING_POSITIVE :
+                    declined.get(i) ? ItemState.PENDING_NEGATIVE : ItemState.PENDING;
+            result.add(new ItemNotification(getFrom(), itemIds.get(i),
+                                            new ItemResult(state, haveCopy.get(i), now, now),
+                                            answerRequested.get(i)));
+        }
+        return result;
+    }
+
+    @Override
+    protected void writeTo(Boss.Writer bw) throws IOException {
+        bw.write(itemIds.size());
+        for (HashId id : itemIds)
+            bw.writeObject(id.getDigest());
+        bw.writeObject(approved.toByteArray());
+        bw.writeObject(declined.toByteArray());
+        bw.writeObject(haveCopy.toByteArray());
+        bw.writeObject(answerRequested.toByteArray());
+    }
+
+    @Override
+    protected void readFrom(Boss.Reader br) throws IOException {
+        int count = br.readInt();
+        if (count < 0 || count > MAX_SIZE)
+            throw new IOException("invalid vote batch size: " + count);
+        itemIds = new ArrayList<>(count);
+        for (int i = 0; i < count; i++)
+            itemIds.add(HashId.withDigest(br.readBinary()));
+        approved = BitSet.valueOf(br.readBinary());
+        declined = BitSet.valueOf(br.readBinary());
+        haveCopy = BitSet.valueOf(br.readBinary());
+        answerRequested = BitSet.valueOf(br.readBinary());
+    }
+
+    @Override
+    protected int getTypeCode() {
+        return CODE_BATCH_VOTE_NOTIFICATION;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+        BatchVoteNotification that = (BatchVoteNotification) o;
+        return getFrom().equals(that.getFrom()) && itemIds.equals(that.itemIds) && approved.equals(that.approved) &&
+                declined.equals(that.declined) && haveCopy.equals(that.haveCopy) &&
+                answerRequested.equals(that.answerRequested);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * getFrom().hashCode() + itemIds.hashCode();
+    }
+
+    @Override
+    public String toString() {
+        return "BatchVote<" + getFrom() + ": " + itemIds.size() + " items>";
+    }
+}
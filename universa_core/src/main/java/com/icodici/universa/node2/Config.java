@@ -10,7 +10,7 @@ package com.icodici.universa.node2;
 import java.time.Duration;
 import java.time.temporal.TemporalAmount;
 
-public class Config {
+public class Config implements Cloneable {
 
     private Duration maxItemCreationAge = Duration.ofDays(5);
     private Duration revokedItemExpiration = maxItemCreationAge.plusDays(10);
@@ -25,6 +25,17 @@ public class Config {
         return klass;
     }
 
+    /**
+     * @return the copy of this config, e.g. to run some nodes of the same network with different settings in tests
+     */
+    public Config copy() {
+        try {
+            return (Config) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);  // Can't happen
+        }
+    }
+
     public Duration getDeclinedItemExpiration() {
         return declinedItemExpiration;
     }
@@ -35,7 +46,14 @@ public class Config {
 
     private Duration declinedItemExpiration = Duration.ofDays(10);
     private Duration maxCacheAge = Duration.ofMinutes(20);
+    private long maxCacheWeight = ItemCache.DEFAULT_MAX_WEIGHT;
+    private Duration errorTraceAge = Duration.ofMinutes(5);
+    private int maxErrorTraces = 10000;
+    private int maxErrorsPerTrace = 32;
     private Duration maxGetItemTime = Duration.ofSeconds(30);
+    private int maxParallelDownloads = 2;
+    private double downloadHedgePercentile = 0.95;
+    private int maxPushedItemSize = 0;
     private int negativeConsensus;
     private int positiveConsensus;
     private Duration maxElectionsTime = Duration.ofMinutes(15);
@@ -73,6 +91,51 @@ public class Config {
         this.maxCacheAge = maxCacheAge;
     }
 
+    /**
+     * Maximum total size of the packed transactions kept in the {@link ItemCache}, in bytes.
+     */
+    public long getMaxCacheWeight() {
+        return maxCacheWeight;
+    }
+
+    public void setMaxCacheWeight(long maxCacheWeight) {
+        this.maxCacheWeight = maxCacheWeight;
+    }
+
+    /**
+     * Time to keep the error trace of the item (see {@link ItemInformer}) since the last error is added to it, unless
+     * the client takes it with {@link Node#checkItem}.
+     */
+    public Duration getErrorTraceAge() {
+        return errorTraceAge;
+    }
+
+    public void setErrorTraceAge(Duration errorTraceAge) {
+        this.errorTraceAge = errorTraceAge;
+    }
+
+    /**
+     * Maximum number of items with error traces kept by the node, the oldest are dropped first.
+     */
+    public int getMaxErrorTraces() {
+        return maxErrorTraces;
+    }
+
+    public void setMaxErrorTraces(int maxErrorTraces) {
+        this.maxErrorTraces = maxErrorTraces;
+    }
+
+    /**
+     * Maximum number of errors kept in the trace of a single item.
+     */
+    public int getMaxErrorsPerTrace() {
+        return maxErrorsPerTrace;
+    }
+
+    public void setMaxErrorsPerTrace(int maxErrorsPerTrace) {
+        this.maxErrorsPerTrace = maxErrorsPerTrace;
+    }
+
     public Duration getMaxGetItemTime() {
         return maxGetItemTime;
     }
@@ -81,6 +144,43 @@ public class Config {
         this.maxGetItemTime = maxGetItemTime;
     }
 
+    /**
+     * Maximum number of nodes the single item is downloaded from at the same time. With 1, the next node is asked only
+     * when the download from the previous one has failed.
+     */
+    public int getMaxParallelDownloads() {
+        return maxParallelDownloads;
+    }
+
+    public void setMaxParallelDownloads(int maxParallelDownloads) {
+        this.maxParallelDownloads = maxParallelDownloads;
+    }
+
+    /**
+     * The download that takes longer than this percentile of the recent downloads is hedged: the item is requested
+     * from one more node and the first answer is used.
+     */
+    public double getDownloadHedgePercentile() {
+        return downloadHedgePercentile;
+    }
+
+    public void setDownloadHedgePercentile(double downloadHedgePercentile) {
+        this.downloadHedgePercentile = downloadHedgePercentile;
+    }
+
+    /**
+     * Items which packed transaction is not bigger than this are sent to all other nodes with the first notification
+     * by the node that starts the election, so they need not download it. Bigger ones are downloaded. Zero, the
+     * default, disables pushing: all nodes of the network should support it before it is enabled.
+     */
+    public int getMaxPushedItemSize() {
+        return maxPushedItemSize;
+    }
+
+    public void setMaxPushedItemSize(int maxPushedItemSize) {
+        this.maxPushedItemSize = maxPushedItemSize;
+    }
+
     public int getNegativeConsensus() {
         return negativeConsensus;
     }
@@ -97,6 +197,383 @@ public class Config {
         this.pollTime = pollTime;
     }
 
+    private Duration firstPollTime = Duration.ofMillis(500);
+    private Duration maxPollTime = Duration.ofSeconds(10);
+
+    /**
+     * Time to poll the nodes that have not voted for the first time, usually shorter than the poll time: in the
+     * healthy network only the lost packets are to be repeated. Then the interval starts from the poll time and
+     * doubles after each unanswered poll, see {@link #getMaxPollTime()}.
+     */
+    public Duration getFirstPollTime() {
+        return firstPollTime;
+    }
+
+    public void setFirstPollTime(Duration firstPollTime) {
+        this.firstPollTime = firstPollTime;
+    }
+
+    /**
+     * Maximum interval between polls of the node that does not answer. Unreachable nodes are polled with it at once.
+     * Set it to the poll time to poll at the fixed rate.
+     */
+    public Duration getMaxPollTime() {
+        return maxPollTime;
+    }
+
+    public void setMaxPollTime(Duration maxPollTime) {
+        this.maxPollTime = maxPollTime;
+    }
+
+    private int downloadThreads = 16;
+    private int checkThreads = Runtime.getRuntime().availableProcessors();
+    private int commitThreads = 4;
+    private int timerThreads = 2;
+    private Duration timerTick = Duration.ofMillis(50);
+    private boolean useVirtualThreads = false;
+
+    /**
+     * Number of threads to download items from other nodes. Downloads are blocking network operations, so it could be
+     * much bigger than the number of cores.
+     */
+    public int getDownloadThreads() {
+        return downloadThreads;
+    }
+
+    public void setDownloadThreads(int downloadThreads) {
+        this.downloadThreads = downloadThreads;
+    }
+
+    /**
+     * Number of threads to check items, the CPU-bound stage. Defaults to the number of available processors.
+     */
+    public int getCheckThreads() {
+        return checkThreads;
+    }
+
+    public void setCheckThreads(int checkThreads) {
+        this.checkThreads = checkThreads;
+    }
+
+    /**
+     * Number of threads to commit the results of elections to the ledger. Should not exceed the ledger connection
+     * pool size.
+     */
+    public int getCommitThreads() {
+        return commitThreads;
+    }
+
+    public void setCommitThreads(int commitThreads) {
+        this.commitThreads = commitThreads;
+    }
+
+    /**
+     * Number of threads to run the timer tasks, e.g. polling other nodes.
+     */
+    public int getTimerThreads() {
+        return timerThreads;
+    }
+
+    public void setTimerThreads(int timerThreads) {
+        this.timerThreads = timerThreads;
+    }
+
+    /**
+     * Precision of the node timer that drives polling and expiration of the elections.
+     */
+    public Duration getTimerTick() {
+        return timerTick;
+    }
+
+    public void setTimerTick(Duration timerTick) {
+        this.timerTick = timerTick;
+    }
+
+    /**
+     * If true and the runtime supports virtual threads, the blocking stages (download and commit) use them instead of
+     * the thread pools, ignoring the thread numbers set for them.
+     */
+    public boolean isUseVirtualThreads() {
+        return useVirtualThreads;
+    }
+
+    public void setUseVirtualThreads(boolean useVirtualThreads) {
+        this.useVirtualThreads = useVirtualThreads;
+    }
+
+    private int maxElections = 10000;
+    private int admissionQueueSize = 1000;
+    private Duration admissionQueueTimeout = Duration.ofMillis(500);
+    private Duration targetElectionTime = Duration.ofSeconds(10);
+    private Duration targetLedgerLatency = Duration.ofMillis(500);
+
+    /**
+     * Hard limit of concurrent elections. Client registrations are limited by the adaptive limit which is always less
+     * or equal to this value, see {@link AdmissionController}.
+     */
+    public int getMaxElections() {
+        return maxElections;
+    }
+
+    public void setMaxElections(int maxElections) {
+        this.maxElections = maxElections;
+    }
+
+    /**
+     * Maximum number of client registrations waiting for the election slot, the rest are rejected immediately.
+     */
+    public int getAdmissionQueueSize() {
+        return admissionQueueSize;
+    }
+
+    public void setAdmissionQueueSize(int admissionQueueSize) {
+        this.admissionQueueSize = admissionQueueSize;
+    }
+
+    /**
+     * Maximum time the client registration waits for the election slot.
+     */
+    public Duration getAdmissionQueueTimeout() {
+        return admissionQueueTimeout;
+    }
+
+    public void setAdmissionQueueTimeout(Duration admissionQueueTimeout) {
+        this.admissionQueueTimeout = admissionQueueTimeout;
+    }
+
+    /**
+     * Elections that take longer decrease the concurrent elections limit.
+     */
+    public Duration getTargetElectionTime() {
+        return targetElectionTime;
+    }
+
+    public void setTargetElectionTime(Duration targetElectionTime) {
+        this.targetElectionTime = targetElectionTime;
+    }
+
+    /**
+     * Ledger operations of the election that take longer decrease the concurrent elections limit.
+     */
+    public Duration getTargetLedgerLatency() {
+        return targetLedgerLatency;
+    }
+
+    public void setTargetLedgerLatency(Duration targetLedgerLatency) {
+        this.targetLedgerLatency = targetLedgerLatency;
+    }
+
+    private int nearQuorumWeight = 4;
+    private int peerItemsWeight = 2;
+    private int clientItemsWeight = 1;
+
+    /**
+     * Share of the check threads given to the items other nodes have already voted for enough to finish the election
+     * soon, relative to other weights, see {@link ElectionScheduler}.
+     */
+    public int getNearQuorumWeight() {
+        return nearQuorumWeight;
+    }
+
+    public void setNearQuorumWeight(int nearQuorumWeight) {
+        this.nearQuorumWeight = nearQuorumWeight;
+    }
+
+    /**
+     * Share of the check threads given to the items registered with other nodes.
+     */
+    public int getPeerItemsWeight() {
+        return peerItemsWeight;
+    }
+
+    public void setPeerItemsWeight(int peerItemsWeight) {
+        this.peerItemsWeight = peerItemsWeight;
+    }
+
+    /**
+     * Share of the check threads given to the items registered by the clients of this node.
+     */
+    public int getClientItemsWeight() {
+        return clientItemsWeight;
+    }
+
+    public void setClientItemsWeight(int clientItemsWeight) {
+        this.clientItemsWeight = clientItemsWeight;
+    }
+
+    private Duration expiredSweepInterval = Duration.ofMinutes(10);
+    private int expiredSweepBatch = 1000;
+    private int expiredSweepRate = 5000;
+
+    /**
+     * Time between the sweeps that delete expired records from the ledger, see {@link LedgerSweeper}. Zero disables
+     * the sweeper, then expired records are deleted only when read.
+     */
+    public Duration getExpiredSweepInterval() {
+        return expiredSweepInterval;
+    }
+
+    public void setExpiredSweepInterval(Duration expiredSweepInterval) {
+        this.expiredSweepInterval = expiredSweepInterval;
+    }
+
+    /**
+     * Number of expired records deleted by the single request to the ledger.
+     */
+    public int getExpiredSweepBatch() {
+        return expiredSweepBatch;
+    }
+
+    public void setExpiredSweepBatch(int expiredSweepBatch) {
+        this.expiredSweepBatch = expiredSweepBatch;
+    }
+
+    /**
+     * Maximum number of expired records deleted per second.
+     */
+    public int getExpiredSweepRate() {
+        return expiredSweepRate;
+    }
+
+    public void setExpiredSweepRate(int expiredSweepRate) {
+        this.expiredSweepRate = expiredSweepRate;
+    }
+
+    private int recentResultsSize = 10000;
+
+    /**
+     * Number of results of the finished elections kept in memory to answer the late notifications about them without
+     * reading the ledger. 0 disables it.
+     */
+    public int getRecentResultsSize() {
+        return recentResultsSize;
+    }
+
+    public void setRecentResultsSize(int recentResultsSize) {
+        this.recentResultsSize = recentResultsSize;
+    }
+
+    private boolean voteBatching = false;
+
+    /**
+     * Whether the votes on different items to the same node, collected by the outbound queue of the network, are sent
+     * together in one {@link BatchVoteNotification}. Off by default. Any node reads the batches, but all nodes of the
+     * network should support them before it is enabled.
+     */
+    public boolean isVoteBatching() {
+        return voteBatching;
+    }
+
+    public void setVoteBatching(boolean voteBatching) {
+        this.voteBatching = voteBatching;
+    }
+
+    private Duration coalescingWindow = Duration.ofMillis(5);
+    private int coalescingBatchSize = 100;
+
+    /**
+     * Time the network collects the notifications to the same node to send them together in one packet; superseded
+     * item notifications are dropped meanwhile. {@link Duration#ZERO} sends each notification immediately.
+     */
+    public Duration getCoalescingWindow() {
+        return coalescingWindow;
+    }
+
+    public void setCoalescingWindow(Duration coalescingWindow) {
+        if (coalescingWindow.isNegative())
+            throw new IllegalArgumentException("coalescing window should not be negative");
+        this.coalescingWindow = coalescingWindow;
+    }
+
+    /**
+     * Number of the notifications collected to the same node that are sent before the coalescing window expires.
+     */
+    public int getCoalescingBatchSize() {
+        return coalescingBatchSize;
+    }
+
+    public void setCoalescingBatchSize(int coalescingBatchSize) {
+        if (coalescingBatchSize < 1 || coalescingBatchSize > BatchVoteNotification.MAX_SIZE)
+            throw new IllegalArgumentException("coalescing batch size should be from 1 to " +
+                                                       BatchVoteNotification.MAX_SIZE);
+        this.coalescingBatchSize = coalescingBatchSize;
+    }
+
+    private int dispatcherThreads = 0;
+    private int dispatcherQueueSize = 10000;
+    private Duration dispatchWait = Duration.ofMillis(50);
+
+    /**
+     * Number of the threads that process the notifications received from other nodes, so the thread receiving them is
+     * not held by the item locks and the ledger. 0, the default, uses the number of processors, but at least 2.
+     */
+    public int getDispatcherThreads() {
+        return dispatcherThreads;
+    }
+
+    public void setDispatcherThreads(int dispatcherThreads) {
+        if (dispatcherThreads < 0)
+            throw new IllegalArgumentException("dispatcher threads should not be negative");
+        this.dispatcherThreads = dispatcherThreads;
+    }
+
+    /**
+     * Number of the received notifications each dispatcher thread could queue. When its queue is full, the receiving
+     * thread waits for {@link #getDispatchWait()}, so the sending nodes are slowed down instead of the memory growing.
+     */
+    public int getDispatcherQueueSize() {
+        return dispatcherQueueSize;
+    }
+
+    public void setDispatcherQueueSize(int dispatcherQueueSize) {
+        if (dispatcherQueueSize < 1)
+            throw new IllegalArgumentException("dispatcher queue size should be positive");
+        this.dispatcherQueueSize = dispatcherQueueSize;
+    }
+
+    /**
+     * Time the receiving thread waits for a place in the full dispatcher queue. Then the notification is dropped; the
+     * item state is polled again by its sender, so the dropped vote only delays the election. Zero drops the
+     * notifications to the full queue at once, without slowing down the receiving.
+     */
+    public Duration getDispatchWait() {
+        return dispatchWait;
+    }
+
+    public void setDispatchWait(Duration dispatchWait) {
+        if (dispatchWait.isNegative())
+            throw new IllegalArgumentException("dispatch wait should not be negative");
+        this.dispatchWait = dispatchWait;
+    }
+
+    private Duration ledgerCommitWindow = Duration.ZERO;
+    private int ledgerCommitBatchSize = 100;
+
+    /**
+     * Time to collect the records saved by different elections to save them together in one ledger transaction, see
+     * {@link GroupCommitLedger}. Zero, the default, saves each record as soon as it is changed.
+     */
+    public Duration getLedgerCommitWindow() {
+        return ledgerCommitWindow;
+    }
+
+    public void setLedgerCommitWindow(Duration ledgerCommitWindow) {
+        this.ledgerCommitWindow = ledgerCommitWindow;
+    }
+
+    /**
+     * Number of the saves in one ledger transaction that commits it before the window expires.
+     */
+    public int getLedgerCommitBatchSize() {
+        return ledgerCommitBatchSize;
+    }
+
+    public void setLedgerCommitBatchSize(int ledgerCommitBatchSize) {
+        if (ledgerCommitBatchSize < 1)
+            throw new IllegalArgumentException("ledger commit batch size should be positive");
+        this.ledgerCommitBatchSize = ledgerCommitBatchSize;
+    }
+
     public TemporalAmount getMaxDownloadOnApproveTime() {
         return maxDownloadOnApproveTime;
     }
@@ -0,0 +1,137 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Recent item download latencies from other nodes. It is used to choose the node to download from, and to decide
+ * when the download takes too long and another node should be asked in parallel (hedged).
+ * <p>
+ * Each node has the exponentially weighted average of its download time, a failure counts as twice the average. The
+ * source is chosen as the better of two random candidates, so the load is spread among the fast nodes instead of
+ * all elections going to the single fastest one, and sometimes at random, so a node that was slow once gets a chance
+ * to show it is fast again. The hedge delay is the given percentile of the recent downloads from all nodes.
+ */
+final class DownloadStatistics {
+
+    private static final double ALPHA = 0.3;
+    private static final int WINDOW = 256;
+    private static final int MIN_SAMPLES = 16;
+    private static final double EXPLORE_PROBABILITY = 0.05;
+    private static final long DEFAULT_HEDGE_NANOS = TimeUnit.MILLISECONDS.toNanos(500);
+    private static final long MIN_HEDGE_NANOS = TimeUnit.MILLISECONDS.toNanos(20);
+
+    private final double hedgePercentile;
+    private final long maxHedgeNanos;
+    private final Random random;
+
+    private final ConcurrentHashMap<Integer, Estimate> estimates = new ConcurrentHashMap<>();
+
+    // guarded by itself
+    private final long[] recent = new long[WINDOW];
+    private int recentCount = 0;
+    private int recentPosition = 0;
+
+    /**
+     * @param hedgePercentile percentile of the recent download times after which the next source is requested, e.g.
+     *                        0.95
+     * @param maxHedgeNanos   the longest hedge delay
+     * @param random          to choose sources with
+     */
+    DownloadStatistics(double hedgePercentile, long maxHedgeNanos, Random random) {
+        if (hedgePercentile <= 0 || hedgePercentile > 1)
+            throw new IllegalArgumentException("bad percentile: " + hedgePercentile);
+        this.hedgePercentile = hedgePercentile;
+        this.maxHedgeNanos = Math.max(maxHedgeNanos, MIN_HEDGE_NANOS);
+        this.random = random;
+    }
+
+    void onSuccess(NodeInfo node, long nanos) {
+        estimate(node).update(nanos);
+        synchronized (recent) {
+            recent[recentPosition] = nanos;
+            recentPosition = (recentPosition + 1) % WINDOW;
+            if (recentCount < WINDOW)
+                recentCount++;
+        }
+    }
+
+    void onFailure(NodeInfo node, long nanos) {
+        Estimate e = estimate(node);
+        e.update(Math.max(nanos, 2 * Math.max((long) e.average, getHedgeDelayNanos())));
+    }
+
+    /**
+     * @return expected download time from the node, 0 if there were no downloads from it
+     */
+    long expectedNanos(NodeInfo node) {
+        Estimate e = estimates.get(node.getNumber());
+        return e == null ? 0 : (long) e.average;
+    }
+
+    /**
+     * Choose the node to download from.
+     *
+     * @param candidates nodes that have the item
+     * @param exclude    nodes that should not be chosen, e.g. which are being downloaded from
+     *
+     * @return chosen node or null if there is no candidate
+     */
+    NodeInfo choose(List<NodeInfo> candidates, Collection<NodeInfo> exclude) {
+        NodeInfo[] available = candidates.stream().filter(n -> !exclude.contains(n)).toArray(NodeInfo[]::new);
+        if (available.length == 0)
+            return null;
+        NodeInfo first = available[random.nextInt(available.length)];
+        if (available.length == 1 || random.nextDouble() < EXPLORE_PROBABILITY)
+            return first;
+        NodeInfo second = available[random.nextInt(available.length - 1)];
+        // pick other than the first
+        if (second == first)
+            second = available[available.length - 1];
+        return expectedNanos(second) < expectedNanos(first) ? second : first;
+    }
+
+    /**
+     * @return time after which the download should be considered slow and the next source should be requested
+     */
+    long getHedgeDelayNanos() {
+        long[] samples;
+        synchronized (recent) {
+            if (recentCount < MIN_SAMPLES)
+                return Math.min(DEFAULT_HEDGE_NANOS, maxHedgeNanos);
+            samples = Arrays.copyOf(recent, recentCount);
+        }
+        Arrays.sort(samples);
+        int index = Math.min(samples.length - 1, (int) Math.ceil(hedgePercentile * samples.length) - 1);
+        return Math.min(maxHedgeNanos, Math.max(MIN_HEDGE_NANOS, samples[Math.max(0, index)]));
+    }
+
+    private Estimate estimate(NodeInfo node) {
+        return estimates.computeIfAbsent(node.getNumber(), n -> new Estimate());
+    }
+
+    private static final class Estimate {
+        private volatile double average = 0;
+        private boolean initialized = false;
+
+        private synchronized void update(long nanos) {
+            if (initialized)
+                average += ALPHA * (nanos - average);
+            else {
+                average = nanos;
+                initialized = true;
+            }
+        }
+    }
+}
@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.utils.LogPrinter;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the tasks of the elections by lanes, so the items of the local clients and of other nodes, and the elections
+ * that are about to finish, do not wait in one queue.
+ * <p>
+ * Finishing tasks (commit and rollback) go to their own executor at once and never wait behind the checks. Other
+ * lanes are queued here and run on the shared executor, no more than the given number at a time; the next task is
+ * taken from the lanes by the deficit round robin, each lane gets the share of the runs proportional to its weight,
+ * see {@link Config#getNearQuorumWeight()}, {@link Config#getPeerItemsWeight()} and {@link
+ * Config#getClientItemsWeight()}. A lane that has no tasks does not keep its share.
+ */
+final class ElectionScheduler {
+
+    private static LogPrinter log = new LogPrinter("ESCH");
+
+    enum Lane {
+        /**
+         * Commit or rollback of the election that has found the consensus.
+         */
+        FINISH,
+        /**
+         * Check of the item other nodes have already voted for enough to finish the election soon.
+         */
+        NEAR_QUORUM,
+        /**
+         * Check of the item registered with other node.
+         */
+        PEER,
+        /**
+         * Check of the item registered by the client of this node.
+         */
+        CLIENT
+    }
+
+    private static final Lane[] QUEUED = {Lane.NEAR_QUORUM, Lane.PEER, Lane.CLIENT};
+
+    private final Executor finishExecutor;
+    private final Executor executor;
+    private final int parallelism;
+
+    // by QUEUED index, guarded by this
+    private final ArrayDeque<Task>[] queues;
+    private final int[] weights;
+    private final int[] deficits;
+    private int current = 0;
+    private int pending = 0;
+    private int running = 0;
+
+    private final AtomicInteger[] lengths = new AtomicInteger[Lane.values().length];
+    private final MetricsRegistry.Histogram[] waits = new MetricsRegistry.Histogram[Lane.values().length];
+
+    /**
+     * @param config         to take the lane weights from
+     * @param finishExecutor to run finishing tasks with
+     * @param executor       to run other tasks with
+     * @param parallelism    maximum number of tasks run with the executor at a time
+     * @param metrics        to register per lane queue lengths and wait times with
+     */
+    @SuppressWarnings("unchecked")
+    ElectionScheduler(Config config, Executor finishExecutor, Executor executor, int parallelism,
+                      MetricsRegistry metrics) {
+        this.finishExecutor = finishExecutor;
+        this.executor = executor;
+        this.parallelism = Math.max(1, parallelism);
+        queues = new ArrayDeque[QUEUED.length];
+        for (int i = 0; i < QUEUED.length; i++)
+            queues[i] = new ArrayDeque<>();
+        weights = new int[]{
+                Math.max(1, config.getNearQuorumWeight()),
+                Math.max(1, config.getPeerItemsWeight()),
+                Math.max(1, config.getClientItemsWeight())
+        };
+        deficits = new int[QUEUED.length];
+        for (Lane lane : Lane.values()) {
+            String name = lane.name().toLowerCase();
+            AtomicInteger length = new AtomicInteger();
+            lengths[lane.ordinal()] = length;
+            metrics.gauge("universa_election_lane_queue_length", "election tasks waiting in the lane",
+                          () -> length.get(), "lane", name);
+            waits[lane.ordinal()] = metrics.histogram("universa_election_lane_wait_seconds",
+                                                      "time election tasks wait in the lane", "lane", name);
+        }
+    }
+
+    /**
+     * Run the task in the lane.
+     */
+    void execute(Lane lane, Runnable task) {
+        Task t = new Task(lane, task);
+        lengths[lane.ordinal()].incrementAndGet();
+        if (lane == Lane.FINISH) {
+            finishExecutor.execute(t);
+            return;
+        }
+        boolean start = false;
+        synchronized (this) {
+            queues[lane.ordinal() - 1].add(t);
+            pending++;
+            if (running < parallelism) {
+                running++;
+                start = true;
+            }
+        }
+        if (start) {
+            try {
+                executor.execute(this::drain);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                synchronized (this) {
+                    running--;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return tasks waiting in the lane
+     */
+    int getQueueLength(Lane lane) {
+        return lengths[lane.ordinal()].get();
+    }
+
+    private void drain() {
+        while (true) {
+            Task t;
+            synchronized (this) {
+                t = next();
+                if (t == null) {
+                    running--;
+                    return;
+                }
+            }
+            t.run();
+        }
+    }
+
+    /**
+     * Take the next task by the deficit round robin, should be called under the lock.
+     *
+     * @return the task or null if there are none
+     */
+    private Task next() {
+        if (pending == 0)
+            return null;
+        while (true) {
+            ArrayDeque<Task> q = queues[current];
+            if (!q.isEmpty() && deficits[current] > 0) {
+                deficits[current]--;
+                pending--;
+                return q.poll();
+            }
+            if (q.isEmpty())
+                deficits[current] = 0;
+            current = (current + 1) % queues.length;
+            if (!queues[current].isEmpty())
+                deficits[current] += weights[current];
+        }
+    }
+
+    private class Task implements Runnable {
+        private final Lane lane;
+        private final Runnable task;
+        private final long queuedAt = System.nanoTime();
+
+        Task(Lane lane, Runnable task) {
+            this.lane = lane;
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            lengths[lane.ordinal()].decrementAndGet();
+            waits[lane.ordinal()].observeSince(queuedAt);
+            try {
+                task.run();
+            } catch (Exception e) {
+                log.e("election task failed in " + lane + " lane: " + e);
+                e.printStackTrace();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+/**
+ * Probabilistic estimation of the recent popularity of the keys, used by {@link ItemCache} to decide which of two
+ * entries is more worth keeping. It is a count-min sketch of 4-bit counters, 16 counters per long, so the memory does
+ * not depend on the number of distinct keys. To keep the estimation recent, all counters are halved after the
+ * sampling period of 10 increments per counter row.
+ * <p>
+ * Not thread safe, the caller should synchronize access to it.
+ */
+final class FrequencySketch {
+
+    private static final long[] SEEDS = {
+            0xc3a5c85c97cb3127L, 0xb492b66fbe98f273L, 0x9ae16a3b2f90404fL, 0xcbf29ce484222325L
+    };
+    private static final long RESET_MASK = 0x7777777777777777L;
+    private static final long ONE_MASK = 0x1111111111111111L;
+    private static final int MAX_CAPACITY = 1 << 30;
+
+    private long[] table;
+    private int mask;
+    private int sampleSize;
+    private int size;
+
+    /**
+     * Create the sketch
+     *
+     * @param expectedKeys expected number of keys that are tracked at once
+     */
+    FrequencySketch(long expectedKeys) {
+        ensureCapacity(expectedKeys);
+    }
+
+    /**
+     * Grow the sketch if the number of tracked keys has grown. Growing loses the collected statistics.
+     *
+     * @param expectedKeys expected number of keys that are tracked at once
+     */
+    void ensureCapacity(long expectedKeys) {
+        int capacity = (int) Math.min(Math.max(expectedKeys, 16), MAX_CAPACITY);
+        if (table != null && table.length >= capacity)
+            return;
+        table = new long[Integer.highestOneBit(capacity - 1) << 1];
+        mask = table.length - 1;
+        sampleSize = 10 * capacity;
+        size = 0;
+    }
+
+    /**
+     * @return estimated number of occurrences of the key, 0 to 15
+     */
+    int frequency(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        int frequency = 15;
+        for (int i = 0; i < 4; i++) {
+            int offset = (start + i) << 2;
+            int count = (int) ((table[indexOf(hash, i)] >>> offset) & 0xfL);
+            frequency = Math.min(frequency, count);
+        }
+        return frequency;
+    }
+
+    /**
+     * Register the occurrence of the key.
+     */
+    void increment(Object key) {
+        int hash = spread(key.hashCode());
+        int start = (hash & 3) << 2;
+        boolean added = false;
+        for (int i = 0; i < 4; i++)
+            added |= incrementAt(indexOf(hash, i), start + i);
+        if (added && ++size >= sampleSize)
+            reset();
+    }
+
+    private boolean incrementAt(int index, int counter) {
+        int offset = counter << 2;
+        long m = 0xfL << offset;
+        if ((table[index] & m) != m) {
+            table[index] += 1L << offset;
+            return true;
+        }
+        return false;
+    }
+
+    private void reset() {
+        int odd = 0;
+        for (int i = 0; i < table.length; i++) {
+            odd += Long.bitCount(table[i] & ONE_MASK);
+            table[i] = (table[i] >>> 1) & RESET_MASK;
+        }
+        size = (size >>> 1) - (odd >>> 2);
+    }
+
+    private int indexOf(int hash, int i) {
+        long h = (hash + SEEDS[i]) * SEEDS[i];
+        h += h >>> 32;
+        return ((int) h) & mask;
+    }
+
+    private static int spread(int x) {
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        x = ((x >>> 16) ^ x) * 0x45d9f3b;
+        return (x >>> 16) ^ x;
+    }
+}
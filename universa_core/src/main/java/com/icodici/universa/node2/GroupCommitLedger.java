@@ -0,0 +1,313 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.Ledger;
+import com.icodici.universa.node.StateRecord;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * The ledger that saves the records changed by concurrent elections together, in one transaction of the ledger it
+ * delegates to, so they share one commit to the storage. The saves are collected over the window or until there are
+ * enough of them, whichever comes first; the first caller of the batch waits for it and commits it, and each caller
+ * returns only when its records are committed, as if it saved them itself. If the batch fails, the saves of each
+ * caller are retried in their own transactions, so a bad record fails only its caller.
+ * <p>
+ * Saves made inside {@link #transaction(Callable)} are not collected, they are already a part of the transaction.
+ * Records it returns are connected to it, so saves made by {@link StateRecord} methods are collected too.
+ */
+class GroupCommitLedger implements Ledger {
+
+    private final Ledger ledger;
+    private final long windowNanos;
+    private final int batchSize;
+
+    // depth of the transactions the calling thread is in
+    private final ThreadLocal<int[]> inTransaction = ThreadLocal.withInitial(() -> new int[1]);
+
+    // batch collecting saves now, guarded by this
+    private Batch current;
+
+    private final MetricsRegistry.Histogram commitLatency;
+    private final AtomicLong commits = new AtomicLong();
+    private final AtomicLong saves = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private volatile int lastBatchSize;
+
+    /**
+     * @param ledger    to save records with
+     * @param window    time to collect the saves
+     * @param batchSize number of saves to commit without waiting for the window to expire
+     * @param metrics   to register commit latency and batch size with
+     */
+    GroupCommitLedger(Ledger ledger, Duration window, int batchSize, MetricsRegistry metrics) {
+        this.ledger = ledger;
+        this.windowNanos = window.toNanos();
+        this.batchSize = Math.max(1, batchSize);
+        commitLatency = metrics.histogram("universa_ledger_group_commit_seconds",
+                                          "time to save the collected records in one transaction");
+        metrics.counter("universa_ledger_group_commits_total", "transactions saving the collected records",
+                        () -> commits.get());
+        metrics.counter("universa_ledger_group_commit_saves_total", "saves committed together with others",
+                        () -> saves.get());
+        metrics.counter("universa_ledger_group_commit_failures_total", "transactions of collected records failed",
+                        () -> failures.get());
+        metrics.gauge("universa_ledger_group_commit_last_size", "saves committed by the last transaction",
+                      () -> lastBatchSize);
+    }
+
+    private StateRecord connect(StateRecord record) {
+        if (record != null)
+            record.setLedger(this);
+        return record;
+    }
+
+    private Map<HashId, StateRecord> connect(Map<HashId, StateRecord> records) {
+        records.values().forEach(r -> r.setLedger(this));
+        return records;
+    }
+
+    private boolean isInTransaction() {
+        return inTransaction.get()[0] > 0;
+    }
+
+    @Override
+    public StateRecord getRecord(HashId id) {
+        return connect(ledger.getRecord(id));
+    }
+
+    @Override
+    public Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        return connect(ledger.getRecords(ids));
+    }
+
+    @Override
+    public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
+        return connect(ledger.createOutputLockRecord(creatorRecordId, newItemHashId));
+    }
+
+    @Override
+    public Map<HashId, StateRecord> createOutputLockRecords(long creatorRecordId, Collection<HashId> newItemHashIds) {
+        return connect(ledger.createOutputLockRecords(creatorRecordId, newItemHashIds));
+    }
+
+    @Override
+    public StateRecord findOrCreate(HashId itemdId) {
+        return connect(ledger.findOrCreate(itemdId));
+    }
+
+    @Override
+    public boolean isApproved(HashId id) {
+        return ledger.isApproved(id);
+    }
+
+    @Override
+    public <T> T transaction(Callable<T> callable) {
+        int[] depth = inTransaction.get();
+        depth[0]++;
+        try {
+            return ledger.transaction(callable);
+        } finally {
+            depth[0]--;
+        }
+    }
+
+    @Override
+    public void destroy(StateRecord record) {
+        ledger.destroy(record);
+    }
+
+    @Override
+    public void save(StateRecord stateRecord) {
+        if (stateRecord.getLedger() == null)
+            stateRecord.setLedger(this);
+        if (isInTransaction())
+            ledger.save(stateRecord);
+        else
+            commit(Collections.singletonList(stateRecord));
+    }
+
+    @Override
+    public void saveAll(Collection<StateRecord> records) {
+        for (StateRecord r : records) {
+            if (r.getLedger() == null)
+                r.setLedger(this);
+        }
+        if (isInTransaction())
+            ledger.saveAll(records);
+        else if (!records.isEmpty())
+            commit(new ArrayList<>(records));
+    }
+
+    @Override
+    public int removeExpired(int limit) {
+        return ledger.removeExpired(limit);
+    }
+
+    @Override
+    public List<StateRecord> getLockedRecords() {
+        return ledger.getLockedRecords();
+    }
+
+    @Override
+    public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        ledger.reload(stateRecord);
+    }
+
+    @Override
+    public void close() {
+        ledger.close();
+    }
+
+    @Override
+    public long countRecords() {
+        return ledger.countRecords();
+    }
+
+    @Override
+    public Ledger getStorage() {
+        return ledger.getStorage();
+    }
+
+    /**
+     * @return number of transactions that saved the collected records
+     */
+    long getCommits() {
+        return commits.get();
+    }
+
+    /**
+     * @return number of saves committed in the collected transactions
+     */
+    long getSaves() {
+        return saves.get();
+    }
+
+    /**
+     * Add the records to the current batch and wait until it is committed.
+     */
+    private void commit(List<StateRecord> records) {
+        Save save = new Save(records);
+        Batch batch;
+        boolean leader = false;
+        synchronized (this) {
+            if (current == null) {
+                current = new Batch();
+                leader = true;
+            }
+            batch = current;
+            batch.saves.add(save);
+            if (batch.saves.size() >= batchSize) {
+                current = null;
+                batch.full.countDown();
+            }
+        }
+        if (leader) {
+            try {
+                batch.full.await(windowNanos, TimeUnit.NANOSECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            synchronized (this) {
+                if (current == batch)
+                    current = null;
+            }
+            flush(batch.saves);
+        }
+        try {
+            save.done.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new Failure("interrupted while waiting for the ledger commit", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException)
+                throw (RuntimeException) cause;
+            throw new Failure("ledger commit failed: " + cause, cause);
+        }
+    }
+
+    /**
+     * Save the batch in one transaction, or each save in its own one if it fails. Should be called once the batch is
+     * closed to new saves.
+     */
+    private void flush(List<Save> batch) {
+        List<StateRecord> records = new ArrayList<>();
+        batch.forEach(s -> records.addAll(s.records));
+        long started = System.nanoTime();
+        try {
+            ledger.transaction(() -> {
+                ledger.saveAll(records);
+                return null;
+            });
+            commits.incrementAndGet();
+            saves.addAndGet(batch.size());
+            lastBatchSize = batch.size();
+            commitLatency.observeSince(started);
+            batch.forEach(s -> s.done.complete(null));
+            return;
+        } catch (Exception e) {
+            failures.incrementAndGet();
+            // the inserts are rolled back, so the records are new again
+            batch.forEach(Save::reset);
+        }
+        for (Save s : batch) {
+            try {
+                ledger.transaction(() -> {
+                    ledger.saveAll(s.records);
+                    return null;
+                });
+                s.done.complete(null);
+            } catch (Exception e) {
+                s.reset();
+                s.done.completeExceptionally(e);
+            }
+        }
+    }
+
+    /**
+     * Records saved by one caller.
+     */
+    private static class Save {
+        final List<StateRecord> records;
+        final boolean[] isNew;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Save(List<StateRecord> records) {
+            this.records = records;
+            isNew = new boolean[records.size()];
+            for (int i = 0; i < isNew.length; i++)
+                isNew[i] = records.get(i).getRecordId() == 0;
+        }
+
+        void reset() {
+            for (int i = 0; i < isNew.length; i++) {
+                if (isNew[i])
+                    records.get(i).clearRecordId();
+            }
+        }
+    }
+
+    private static class Batch {
+        final List<Save> saves = new ArrayList<>();
+        final CountDownLatch full = new CountDownLatch(1);
+    }
+}
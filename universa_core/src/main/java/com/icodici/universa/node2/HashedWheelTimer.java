@@ -0,0 +1,375 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.utils.LogPrinter;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.LongSupplier;
+
+/**
+ * The timer for a big number of imprecise timeouts, like polling and expiration of the elections. Timeouts are put into
+ * the buckets of the wheel by their deadline, and the single worker thread advances the wheel once per tick, running
+ * only the timeouts of the current bucket, so the per-tick cost does not depend on the total number of the timeouts.
+ * Scheduling and cancellation are O(1).
+ * <p>
+ * The timeouts fire not earlier than requested and not later than one tick after. The tasks are not executed by the
+ * timer thread but are passed to the executor, so the long tasks do not delay the timer. Periodic task is not started
+ * again while its previous run is not yet finished.
+ */
+public class HashedWheelTimer implements Scheduler {
+
+    private static LogPrinter log = new LogPrinter("HWTM");
+
+    private final long tickNanos;
+    private final Bucket[] wheel;
+    private final int mask;
+    private final Executor executor;
+
+    private final Queue<Timeout> added = new ConcurrentLinkedQueue<>();
+    private final Queue<Timeout> cancelled = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pending = new AtomicInteger();
+
+    private final LongSupplier nanoClock;
+    private final Thread worker;
+    private final long startTime;
+    private long tick = 0;
+    private volatile boolean active = true;
+
+    /**
+     * Create and start the timer.
+     *
+     * @param tickDuration time the wheel advances by one bucket, the precision of the timer
+     * @param wheelSize    number of buckets, rounded up to the power of 2
+     * @param executor     to run expired tasks with
+     * @param name         of the worker thread
+     */
+    public HashedWheelTimer(Duration tickDuration, int wheelSize, Executor executor, String name) {
+        this(tickDuration, wheelSize, executor, name, System::nanoTime);
+    }
+
+    /**
+     * Create the timer with the given time source. Without the name no worker thread is started, and the wheel is
+     * advanced only by {@link #advance()}, e.g. in tests.
+     *
+     * @param nanoClock the same as {@link System#nanoTime()}
+     */
+    HashedWheelTimer(Duration tickDuration, int wheelSize, Executor executor, String name, LongSupplier nanoClock) {
+        if (tickDuration.isNegative() || tickDuration.isZero())
+            throw new IllegalArgumentException("tick duration should be positive");
+        if (wheelSize < 1 || wheelSize > (1 << 24))
+            throw new IllegalArgumentException("bad wheel size: " + wheelSize);
+        tickNanos = tickDuration.toNanos();
+        int size = Integer.highestOneBit(wheelSize);
+        if (size < wheelSize)
+            size <<= 1;
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++)
+            wheel[i] = new Bucket();
+        mask = size - 1;
+        this.executor = executor;
+        this.nanoClock = nanoClock;
+        startTime = nanoClock.getAsLong();
+        if (name != null) {
+            worker = new Thread(this::run, name);
+            worker.setDaemon(true);
+            worker.start();
+        } else
+            worker = null;
+    }
+
+    /**
+     * Run the task once after the delay.
+     *
+     * @param task  to run with the executor
+     * @param delay minimal delay
+     *
+     * @return timeout that could be cancelled
+     */
+    public Timeout schedule(Runnable task, Duration delay) {
+        return add(new Timeout(task, delay.toNanos(), 0, executor));
+    }
+
+    /**
+     * Run the task once after the delay with the specified executor instead of the timer's one.
+     *
+     * @param task     to run
+     * @param delay    minimal delay
+     * @param executor to run the task with
+     *
+     * @return timeout that could be cancelled
+     */
+    @Override
+    public Timeout schedule(Runnable task, Duration delay, Executor executor) {
+        return add(new Timeout(task, delay.toNanos(), 0, executor));
+    }
+
+    /**
+     * Run the task once after the delay.
+     *
+     * @param task  to run with the executor
+     * @param delay minimal delay
+     * @param unit  of the delay
+     *
+     * @return timeout that could be cancelled
+     */
+    public Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+        return add(new Timeout(task, unit.toNanos(delay), 0, executor));
+    }
+
+    /**
+     * Run the task periodically, first time after the initial delay, until cancelled. If the task is still running
+     * when the next run is due, this run is skipped.
+     *
+     * @param task         to run with the executor
+     * @param initialDelay before the first run
+     * @param period       between the runs
+     *
+     * @return timeout that could be cancelled
+     */
+    @Override
+    public Timeout scheduleAtFixedRate(Runnable task, Duration initialDelay, Duration period) {
+        if (period.isNegative() || period.isZero())
+            throw new IllegalArgumentException("period should be positive");
+        return add(new Timeout(task, initialDelay.toNanos(), period.toNanos(), executor));
+    }
+
+    /**
+     * @return number of timeouts that are scheduled and are not yet expired or cancelled
+     */
+    public int size() {
+        return pending.get();
+    }
+
+    /**
+     * Stop the timer. Pending timeouts will not fire.
+     */
+    @Override
+    public void shutdown() {
+        active = false;
+        if (worker != null)
+            worker.interrupt();
+    }
+
+    private Timeout add(Timeout t) {
+        if (!active)
+            throw new RejectedExecutionException("timer is shut down");
+        pending.incrementAndGet();
+        added.add(t);
+        return t;
+    }
+
+    private void run() {
+        while (active) {
+            long deadline = tickNanos * (tick + 1);
+            long sleepNanos = deadline - (nanoClock.getAsLong() - startTime);
+            if (sleepNanos > 0) {
+                try {
+                    TimeUnit.NANOSECONDS.sleep(sleepNanos);
+                } catch (InterruptedException e) {
+                    if (!active)
+                        break;
+                }
+                continue;
+            }
+            nextTick();
+        }
+    }
+
+    /**
+     * Run the ticks that are due by the clock. Used with the timer that has no worker thread.
+     */
+    void advance() {
+        while (active && tickNanos * (tick + 1) <= nanoClock.getAsLong() - startTime)
+            nextTick();
+    }
+
+    private void nextTick() {
+        try {
+            processCancelled();
+            transferAdded();
+            wheel[(int) (tick & mask)].expire();
+        } catch (Throwable e) {
+            log.e("timer failure: " + e);
+            e.printStackTrace();
+        }
+        tick++;
+    }
+
+    private void processCancelled() {
+        Timeout t;
+        while ((t = cancelled.poll()) != null) {
+            if (t.bucket != null)
+                t.bucket.remove(t);
+        }
+    }
+
+    private void transferAdded() {
+        // limit the amount of work per tick so the wheel will not stall
+        for (int i = 0; i < 100_000; i++) {
+            Timeout t = added.poll();
+            if (t == null)
+                break;
+            if (t.state.get() == CANCELLED)
+                continue;
+            place(t);
+        }
+    }
+
+    /**
+     * Put the timeout to the bucket of its deadline. Called from the worker thread only.
+     */
+    private void place(Timeout t) {
+        long ticks = (t.deadline - startTime + tickNanos - 1) / tickNanos;
+        // it could be already expired, then it goes to the current bucket
+        long target = Math.max(ticks, tick);
+        t.remainingRounds = (target - tick) / wheel.length;
+        wheel[(int) (target & mask)].add(t);
+    }
+
+    private static final int PENDING = 0;
+    private static final int EXPIRED = 1;
+    private static final int CANCELLED = 2;
+
+    /**
+     * The scheduled task handle.
+     */
+    public final class Timeout implements Scheduler.Task {
+        private final Runnable task;
+        private final Executor executor;
+        private final long period;
+        private long deadline;
+        private long remainingRounds;
+        private final AtomicInteger state = new AtomicInteger(PENDING);
+        private final AtomicBoolean running = new AtomicBoolean();
+
+        // bucket list links are accessed only by the worker thread
+        private Bucket bucket;
+        private Timeout next, prev;
+
+        private Timeout(Runnable task, long delayNanos, long periodNanos, Executor executor) {
+            this.task = task;
+            this.executor = executor;
+            this.period = periodNanos;
+            deadline = nanoClock.getAsLong() + Math.max(delayNanos, 0);
+        }
+
+        /**
+         * Cancel the timeout. Does not interrupt the task if it is already running.
+         *
+         * @return true if it was cancelled, false if it was already expired or cancelled
+         */
+        @Override
+        public boolean cancel() {
+            if (!state.compareAndSet(PENDING, CANCELLED))
+                return false;
+            pending.decrementAndGet();
+            cancelled.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state.get() == CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state.get() == EXPIRED;
+        }
+
+        private void fire() {
+            if (period == 0) {
+                if (!state.compareAndSet(PENDING, EXPIRED))
+                    return;
+                pending.decrementAndGet();
+                submit(task);
+            } else {
+                if (state.get() != PENDING)
+                    return;
+                // skip the run if the previous one is not yet finished
+                if (running.compareAndSet(false, true)) {
+                    submit(() -> {
+                        try {
+                            task.run();
+                        } finally {
+                            running.set(false);
+                        }
+                    });
+                }
+                deadline += period;
+                long now = nanoClock.getAsLong();
+                if (deadline < now)
+                    deadline = now;
+                // it will be placed to the wheel on the next tick, with new timeouts
+                added.add(this);
+            }
+        }
+
+        private void submit(Runnable r) {
+            try {
+                executor.execute(r);
+            } catch (RejectedExecutionException e) {
+                if (active)
+                    log.e("timer task is rejected by the executor: " + e);
+                running.set(false);
+            }
+        }
+    }
+
+    /**
+     * Doubly-linked list of the timeouts, accessed only from the worker thread.
+     */
+    private static final class Bucket {
+        private Timeout head, tail;
+
+        void add(Timeout t) {
+            t.bucket = this;
+            t.next = null;
+            t.prev = tail;
+            if (tail == null)
+                head = tail = t;
+            else {
+                tail.next = t;
+                tail = t;
+            }
+        }
+
+        void remove(Timeout t) {
+            Timeout next = t.next;
+            if (t.prev != null)
+                t.prev.next = next;
+            else
+                head = next;
+            if (next != null)
+                next.prev = t.prev;
+            else
+                tail = t.prev;
+            t.prev = t.next = null;
+            t.bucket = null;
+        }
+
+        void expire() {
+            Timeout t = head;
+            while (t != null) {
+                Timeout next = t.next;
+                if (t.remainingRounds <= 0) {
+                    remove(t);
+                    t.fire();
+                } else
+                    t.remainingRounds--;
+                t = next;
+            }
+        }
+    }
+}
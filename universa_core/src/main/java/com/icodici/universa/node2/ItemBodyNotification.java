@@ -0,0 +1,93 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.Approvable;
+import com.icodici.universa.HashId;
+import com.icodici.universa.contract.TransactionPack;
+import com.icodici.universa.node.ItemResult;
+import net.sergeych.boss.Boss;
+import net.sergeych.utils.LogPrinter;
+import org.checkerframework.checker.nullness.qual.Nullable;
+
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * The item notification that also carries the packed transaction of the item, so the receiving node need not
+ * download it. It is sent by the node that has started the election, once, and only for small items: larger ones are
+ * downloaded by the other nodes as usual, see {@link Config#getMaxPushedItemSize()}.
+ */
+public class ItemBodyNotification extends ItemNotification {
+
+    private static LogPrinter log = new LogPrinter("IBN");
+
+    static final int CODE_ITEM_BODY_NOTIFICATION = 1;
+
+    private byte[] packedItem;
+
+    public ItemBodyNotification(NodeInfo from, HashId itemId, ItemResult itemResult, boolean requestResult,
+                                byte[] packedItem) {
+        super(from, itemId, itemResult, requestResult);
+        this.packedItem = packedItem;
+    }
+
+    private ItemBodyNotification() {
+    }
+
+    /**
+     * @return packed transaction of the item, must not be modified
+     */
+    public byte[] getPackedItem() {
+        return packedItem;
+    }
+
+    /**
+     * Unpack the item. It is not checked here, but it is verified that it is the item the notification is about.
+     *
+     * @return unpacked item or null if it can't be unpacked or is not the expected item
+     */
+    public @Nullable Approvable unpackItem() {
+        try {
+            Approvable item = TransactionPack.unpack(packedItem, true).getContract();
+            if (item != null && getItemId().equals(item.getId()))
+                return item;
+            log.e("pushed item from " + getFrom() + " is not " + getItemId());
+        } catch (Exception e) {
+            log.e("failed to unpack pushed item " + getItemId() + " from " + getFrom() + ": " + e);
+        }
+        return null;
+    }
+
+    @Override
+    protected void writeTo(Boss.Writer bw) throws IOException {
+        super.writeTo(bw);
+        bw.writeObject(packedItem);
+    }
+
+    @Override
+    protected void readFrom(Boss.Reader br) throws IOException {
+        super.readFrom(br);
+        packedItem = br.readBinary();
+    }
+
+    @Override
+    protected int getTypeCode() {
+        return CODE_ITEM_BODY_NOTIFICATION;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        return super.equals(o) && Arrays.equals(packedItem, ((ItemBodyNotification) o).packedItem);
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * super.hashCode() + Arrays.hashCode(packedItem);
+    }
+}
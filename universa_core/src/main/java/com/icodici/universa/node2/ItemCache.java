@@ -9,58 +9,195 @@ package com.icodici.universa.node2;
 
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
-import net.sergeych.utils.Base64;
+import com.icodici.universa.contract.Contract;
+import net.sergeych.tools.Binder;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.lang.ref.WeakReference;
 import java.time.Duration;
-import java.time.Instant;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
 
+/**
+ * The cache of recently processed items. It is bounded both by the age of the entry and by the total weight of the
+ * entries, the weight being the size of the packed transaction.
+ * <p>
+ * Along with the contract, the cache keeps its packed transaction, which is immutable and is ready to be sent as is
+ * to the nodes and clients that download the item, see {@link #getPacked(HashId)}.
+ * <p>
+ * Reads are lock-free: the entry is looked up in the concurrent map and the access is recorded to the lossy read
+ * buffer, which is replayed to the eviction policy later, under the lock. The eviction policy is W-TinyLFU: new
+ * entries get to the small LRU window, and when it overflows, the candidate enters the main segmented LRU space only
+ * if it is used more often than the victim it would evict, as estimated by the {@link FrequencySketch}. This way a
+ * stream of big one-time transactions could not flush the items that are really used.
+ * <p>
+ * Entries expire in maxAge since they were put. Expired entries are never returned, and are removed in the order
+ * of insertion by the maintenance task that runs every second, so the expiration costs only the number of entries
+ * that have actually expired.
+ */
 public class ItemCache {
 
-    private final Thread cleaner;
-    private final Duration maxAge;
+    /**
+     * Default maximum total weight, bytes of packed transactions
+     */
+    public static final long DEFAULT_MAX_WEIGHT = 64 * 1024 * 1024;
+
+    /**
+     * Weight of the item which packed size is not known, e.g. it is not a {@link Contract}
+     */
+    static final int DEFAULT_ITEM_WEIGHT = 1024;
+
+    private static final int READ_BUFFER_SIZE = 128;
+    private static final int READ_BUFFER_MASK = READ_BUFFER_SIZE - 1;
+    private static final int DRAIN_THRESHOLD = READ_BUFFER_SIZE / 4;
+    private static final double WINDOW_RATIO = 0.01;
+    private static final double PROTECTED_RATIO = 0.8;
+    private static final long MAINTENANCE_PERIOD_MILLIS = 1000;
+
+    private static final byte REMOVED = 0;
+    private static final byte WINDOW = 1;
+    private static final byte PROBATION = 2;
+    private static final byte PROTECTED = 3;
+
+    private static final ScheduledThreadPoolExecutor maintenanceExecutor = new ScheduledThreadPoolExecutor(1, r -> {
+        Thread t = new Thread(r, "item-cache-maintenance");
+        t.setDaemon(true);
+        t.setPriority(Thread.MIN_PRIORITY);
+        return t;
+    });
+
+    static {
+        maintenanceExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    private final long maxAgeNanos;
+    private final long maxWeight;
+    private final long windowMaxWeight;
+    private final long protectedMaxWeight;
+
+    private final ConcurrentHashMap<HashId, Record> records = new ConcurrentHashMap<>();
+
+    private final AtomicReferenceArray<Record> readBuffer = new AtomicReferenceArray<>(READ_BUFFER_SIZE);
+    private final AtomicLong readBufferWrites = new AtomicLong();
+    private volatile long readBufferReads = 0;
+
+    // everything below is guarded by the evictionLock
+    private final ReentrantLock evictionLock = new ReentrantLock();
+    private final Record window = new Record(null, null, null, 0, 0);
+    private final Record probation = new Record(null, null, null, 0, 0);
+    private final Record protectedSpace = new Record(null, null, null, 0, 0);
+    private final Record writeOrder = new Record(null, null, null, 0, 0);
+    private final FrequencySketch sketch;
+    private long windowWeight = 0;
+    private long protectedWeight = 0;
+    private long totalWeight = 0;
+
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong expirations = new AtomicLong();
+    private final AtomicLong rejections = new AtomicLong();
+
+    private final Maintenance maintenance;
 
     public ItemCache(Duration maxAge) {
-        this.maxAge = maxAge;
-        cleaner = new Thread( ()-> {
-            try {
-                Thread.sleep(5000);
-                cleanUp();
-            } catch (InterruptedException e) {
-            }
-        });
-        cleaner.setDaemon(true);
-        cleaner.setPriority(Thread.MIN_PRIORITY);
-        cleaner.start();
+        this(maxAge, DEFAULT_MAX_WEIGHT);
+    }
+
+    /**
+     * Create the cache
+     *
+     * @param maxAge    time to keep the item since it was put
+     * @param maxWeight maximum total weight of the cached items, in bytes of packed transactions
+     */
+    public ItemCache(Duration maxAge, long maxWeight) {
+        if (maxWeight <= 0)
+            throw new IllegalArgumentException("maxWeight should be positive");
+        maxAgeNanos = maxAge.toNanos();
+        this.maxWeight = maxWeight;
+        windowMaxWeight = Math.max(1, (long) (maxWeight * WINDOW_RATIO));
+        protectedMaxWeight = (long) ((maxWeight - windowMaxWeight) * PROTECTED_RATIO);
+        sketch = new FrequencySketch(Math.min(maxWeight / DEFAULT_ITEM_WEIGHT, 1 << 16));
+        maintenance = new Maintenance(this);
     }
 
+    /**
+     * Remove expired entries now. It is called periodically, so there is usually no need to call it.
+     */
     final void cleanUp() {
-        // we should avoid creating an object for each check:
-        Instant now = Instant.now();
-        records.values().forEach(r->r.checkExpiration(now));
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            expire(System.nanoTime());
+        } finally {
+            evictionLock.unlock();
+        }
     }
 
-    public @Nullable Approvable get(HashId itemId) {
-        Record i = records.get(itemId);
-        if( i != null && i.item == null )
-            throw new RuntimeException("cache: record with empty item");
-        return i != null ? i.item : null;
+    /**
+     * Stop the periodic maintenance. The cache remains usable, but expired entries will be removed only by the
+     * subsequent {@link #put(Approvable)} calls.
+     */
+    public void shutdown() {
+        maintenance.cancel();
     }
 
-    public void put(Approvable item) {
-        // this will plainly override current if any
-        new Record(item);
+    public @Nullable Approvable get(HashId itemId) {
+        Record r = find(itemId);
+        return r != null ? r.item : null;
     }
 
-    private ConcurrentHashMap<HashId,Record> records = new ConcurrentHashMap();
+    /**
+     * Get the packed transaction of the cached contract.
+     *
+     * @param itemId of the contract
+     *
+     * @return packed transaction that must not be modified, or null if the item is not cached or is not a contract
+     */
+    public @Nullable byte[] getPacked(HashId itemId) {
+        Record r = find(itemId);
+        return r != null ? r.packed : null;
+    }
 
-    public void idsCheck(HashId itemId) {
-        for(HashId x: records.keySet()) {
-            System.out.println(" checking "+itemId+" eq "+x+ ": "+itemId.equals(x) + " / " + x.equals(itemId) );
-            System.out.println(" codes: "+itemId.hashCode() + " / "+ x.hashCode());
-            System.out.println(" digest check: "+ Base64.encodeString(itemId.getDigest()));
-            System.out.println(" digest data : "+ Base64.encodeString(x.getDigest()));
+    public void put(Approvable item) {
+        HashId id = item.getId();
+        // received transactions keep the packed binary they were unpacked from, so it is usually not packed again
+        byte[] packed = item instanceof Contract ? ((Contract) item).getPackedTransaction() : null;
+        int weight = packed != null ? packed.length : DEFAULT_ITEM_WEIGHT;
+        evictionLock.lock();
+        try {
+            drainReadBuffer();
+            long now = System.nanoTime();
+            if (weight > maxWeight) {
+                // it would evict everything else, but the older version, if any, should not stay
+                rejections.incrementAndGet();
+                Record old = records.remove(id);
+                if (old != null)
+                    unlink(old);
+            } else {
+                // this will plainly override current if any
+                Record r = new Record(id, item, packed, weight, now + maxAgeNanos);
+                Record old = records.put(id, r);
+                if (old != null)
+                    unlink(old);
+                sketch.ensureCapacity(records.size());
+                sketch.increment(id);
+                r.queue = WINDOW;
+                linkLast(window, r);
+                linkLastByWrite(r);
+                windowWeight += weight;
+                totalWeight += weight;
+            }
+            expire(now);
+            evict();
+        } finally {
+            evictionLock.unlock();
         }
     }
 
@@ -68,21 +205,275 @@ public class ItemCache {
         return records.size();
     }
 
-    private class Record {
-        private Instant expiresAt;
-        private Approvable item;
+    /**
+     * @return current total weight of the cached items
+     */
+    public long getWeight() {
+        evictionLock.lock();
+        try {
+            return totalWeight;
+        } finally {
+            evictionLock.unlock();
+        }
+    }
 
-        private Record(Approvable item) {
-            expiresAt = Instant.now().plus(maxAge);
-            this.item = item;
-            records.put(item.getId(), this);
+    public long getMaxWeight() {
+        return maxWeight;
+    }
+
+    public long getHits() {
+        return hits.sum();
+    }
+
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /**
+     * @return number of entries removed to free space for the new ones
+     */
+    public long getEvictions() {
+        return evictions.get();
+    }
+
+    public long getExpirations() {
+        return expirations.get();
+    }
+
+    /**
+     * @return number of items that were not cached as too big
+     */
+    public long getRejections() {
+        return rejections.get();
+    }
+
+    public Binder getStatistics() {
+        long h = hits.sum();
+        long m = misses.sum();
+        return Binder.fromKeysValues(
+                "size", records.size(),
+                "weight", getWeight(),
+                "maxWeight", maxWeight,
+                "hits", h,
+                "misses", m,
+                "hitRate", h + m == 0 ? 0.0 : (double) h / (h + m),
+                "evictions", evictions.get(),
+                "expirations", expirations.get(),
+                "rejections", rejections.get()
+        );
+    }
+
+    private Record find(HashId itemId) {
+        Record r = records.get(itemId);
+        if (r == null || r.isExpired(System.nanoTime())) {
+            misses.increment();
+            return null;
+        }
+        hits.increment();
+        afterRead(r);
+        return r;
+    }
+
+    private void afterRead(Record r) {
+        long writes = readBufferWrites.get();
+        long pending = writes - readBufferReads;
+        // the buffer is lossy: if it is full, or another reader got the slot, the access is just not counted
+        if (pending < READ_BUFFER_SIZE && readBufferWrites.compareAndSet(writes, writes + 1)) {
+            readBuffer.lazySet((int) (writes & READ_BUFFER_MASK), r);
+            pending++;
         }
+        if (pending >= DRAIN_THRESHOLD && evictionLock.tryLock()) {
+            try {
+                drainReadBuffer();
+            } finally {
+                evictionLock.unlock();
+            }
+        }
+    }
+
+    private void drainReadBuffer() {
+        long reads = readBufferReads;
+        long writes = readBufferWrites.get();
+        for (; reads < writes; reads++) {
+            int index = (int) (reads & READ_BUFFER_MASK);
+            Record r = readBuffer.get(index);
+            // the writer got the slot but has not stored the record yet, it will be read next time
+            if (r == null)
+                break;
+            readBuffer.lazySet(index, null);
+            onAccess(r);
+        }
+        readBufferReads = reads;
+    }
+
+    private void onAccess(Record r) {
+        if (r.queue == REMOVED)
+            return;
+        sketch.increment(r.key);
+        switch (r.queue) {
+            case WINDOW:
+                unlinkAccess(r);
+                linkLast(window, r);
+                break;
+            case PROBATION:
+                // used again: promote to protected, demoting its least recently used entries if need
+                unlinkAccess(r);
+                r.queue = PROTECTED;
+                linkLast(protectedSpace, r);
+                protectedWeight += r.weight;
+                while (protectedWeight > protectedMaxWeight && protectedSpace.next != r) {
+                    Record d = protectedSpace.next;
+                    unlinkAccess(d);
+                    protectedWeight -= d.weight;
+                    d.queue = PROBATION;
+                    linkLast(probation, d);
+                }
+                break;
+            case PROTECTED:
+                unlinkAccess(r);
+                linkLast(protectedSpace, r);
+                break;
+        }
+    }
+
+    private void expire(long now) {
+        Record r;
+        while ((r = writeOrder.writeNext) != writeOrder && r.isExpired(now)) {
+            records.remove(r.key, r);
+            unlink(r);
+            expirations.incrementAndGet();
+        }
+    }
+
+    private void evict() {
+        // the window overflow is moved to the main space, where it competes with its least recently used entries
+        while (windowWeight > windowMaxWeight) {
+            Record candidate = window.next;
+            unlinkAccess(candidate);
+            windowWeight -= candidate.weight;
+            candidate.queue = PROBATION;
+            linkLast(probation, candidate);
+            admit(candidate);
+        }
+        while (totalWeight > maxWeight) {
+            Record victim = probation.next != probation ? probation.next :
+                    (protectedSpace.next != protectedSpace ? protectedSpace.next : window.next);
+            evict(victim);
+        }
+    }
+
+    private void admit(Record candidate) {
+        while (totalWeight > maxWeight && candidate.queue != REMOVED) {
+            Record victim = probation.next != candidate ? probation.next : protectedSpace.next;
+            if (victim == protectedSpace)
+                return;
+            if (sketch.frequency(candidate.key) > sketch.frequency(victim.key))
+                evict(victim);
+            else
+                evict(candidate);
+        }
+    }
+
+    private void evict(Record r) {
+        records.remove(r.key, r);
+        unlink(r);
+        evictions.incrementAndGet();
+    }
 
-        private void checkExpiration(Instant now) {
-            if( expiresAt.isBefore(now) ) {
-                System.out.println("cache expired "+item.getId());
-                records.remove(item.getId());
+    private void unlink(Record r) {
+        switch (r.queue) {
+            case REMOVED:
+                return;
+            case WINDOW:
+                windowWeight -= r.weight;
+                break;
+            case PROTECTED:
+                protectedWeight -= r.weight;
+                break;
+        }
+        totalWeight -= r.weight;
+        r.queue = REMOVED;
+        unlinkAccess(r);
+        r.writePrev.writeNext = r.writeNext;
+        r.writeNext.writePrev = r.writePrev;
+        r.writePrev = r.writeNext = null;
+    }
+
+    private static void linkLast(Record head, Record r) {
+        r.prev = head.prev;
+        r.next = head;
+        head.prev.next = r;
+        head.prev = r;
+    }
+
+    private static void unlinkAccess(Record r) {
+        r.prev.next = r.next;
+        r.next.prev = r.prev;
+        r.prev = r.next = null;
+    }
+
+    private void linkLastByWrite(Record r) {
+        r.writePrev = writeOrder.writePrev;
+        r.writeNext = writeOrder;
+        writeOrder.writePrev.writeNext = r;
+        writeOrder.writePrev = r;
+    }
+
+    private static final class Record {
+        private final HashId key;
+        private final Approvable item;
+        private final byte[] packed;
+        private final int weight;
+        private final long expiresAt;
+
+        // guarded by the evictionLock
+        private byte queue = REMOVED;
+        private Record prev, next;
+        private Record writePrev, writeNext;
+
+        private Record(HashId key, Approvable item, byte[] packed, int weight, long expiresAt) {
+            this.key = key;
+            this.item = item;
+            this.packed = packed;
+            this.weight = weight;
+            this.expiresAt = expiresAt;
+            // the sentinel of the list is linked to itself
+            if (key == null) {
+                prev = next = this;
+                writePrev = writeNext = this;
             }
         }
+
+        private boolean isExpired(long now) {
+            return now - expiresAt > 0;
+        }
+    }
+
+    /**
+     * Periodic maintenance. It references the cache weakly, so the cache that is not used anymore is collected and
+     * its maintenance is cancelled even if {@link #shutdown()} was not called.
+     */
+    private static final class Maintenance implements Runnable {
+        private final WeakReference<ItemCache> cache;
+        private final ScheduledFuture<?> future;
+
+        private Maintenance(ItemCache cache) {
+            this.cache = new WeakReference<>(cache);
+            future = maintenanceExecutor.scheduleWithFixedDelay(this, MAINTENANCE_PERIOD_MILLIS,
+                                                                MAINTENANCE_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run() {
+            ItemCache c = cache.get();
+            if (c == null)
+                cancel();
+            else
+                c.cleanUp();
+        }
+
+        private void cancel() {
+            future.cancel(false);
+        }
     }
 }
@@ -9,76 +9,194 @@ package com.icodici.universa.node2;
 
 import com.icodici.universa.Approvable;
 import com.icodici.universa.ErrorRecord;
+import com.icodici.universa.Errors;
 import com.icodici.universa.HashId;
 
-import java.time.Instant;
+import java.time.Duration;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.LongAdder;
 
 /**
  * The way to attach some information to the item to the clietn software, mainly, error traces.
+ * <p>
+ * The store is bounded: records expire in maxAge since the last information added, the number of records is limited
+ * by removing the oldest ones, and each record keeps only a limited number of errors. Records are kept in the
+ * concurrent map and are expired in the order of creation by the periodic {@link #cleanUp()}, so informing never
+ * locks the whole store.
  */
 public class ItemInformer {
 
+    private final long maxAgeNanos;
+    private final int maxRecords;
+    private final int maxErrorsPerRecord;
+
+    private final ConcurrentHashMap<HashId, Record> records = new ConcurrentHashMap<>();
+
+    /**
+     * Records in the order of creation, may contain records that are already taken; these are skipped. Records are
+     * added without locking, and taken from the head only under the lock of the queue.
+     */
+    private final ConcurrentLinkedQueue<Record> order = new ConcurrentLinkedQueue<>();
+
+    private final LongAdder evictions = new LongAdder();
+    private final LongAdder expirations = new LongAdder();
+
+    public ItemInformer() {
+        this(Duration.ofMinutes(5), 10000, 32);
+    }
+
+    /**
+     * Create informer
+     *
+     * @param maxAge             time to keep the record since the last information added to it
+     * @param maxRecords         maximum number of records, the oldest are removed first
+     * @param maxErrorsPerRecord maximum number of errors kept for the item, the rest are counted only
+     */
+    public ItemInformer(Duration maxAge, int maxRecords, int maxErrorsPerRecord) {
+        maxAgeNanos = maxAge.toNanos();
+        this.maxRecords = maxRecords;
+        this.maxErrorsPerRecord = maxErrorsPerRecord;
+    }
+
+    public ItemInformer(Config config) {
+        this(config.getErrorTraceAge(), config.getMaxErrorTraces(), config.getMaxErrorsPerTrace());
+    }
+
     public void inform(Approvable item) {
-        getRecord(item.getId()).errorRecords.addAll(item.getErrors());
+        getRecord(item.getId()).addErrors(item.getErrors());
     }
 
     public class Record {
         private final HashId hashId;
-        private Instant expiresAt;
-        public final List<ErrorRecord> errorRecords = new ArrayList<>();
-        public final List<String> messages = new ArrayList<>();
-
-        private void checkExpiration(Instant now) {
-            if (expiresAt.isBefore(now))
-                records.remove(this);
-        }
+        private volatile long expiresAt;
+        // guarded by the order queue
+        private long queuedAt;
+        private final List<ErrorRecord> errorRecords = new ArrayList<>();
+        private final List<String> messages = new ArrayList<>();
+        private int droppedErrors = 0;
 
         private Record(HashId id) {
             hashId = id;
-            resetExpiration();
+            queuedAt = System.nanoTime();
+            expiresAt = queuedAt + maxAgeNanos;
         }
 
         private final void resetExpiration() {
-            expiresAt = Instant.now().plusSeconds(300);
+            expiresAt = System.nanoTime() + maxAgeNanos;
         }
 
         private synchronized void addError(ErrorRecord er) {
             resetExpiration();
-            errorRecords.add(er);
+            if (errorRecords.size() < maxErrorsPerRecord)
+                errorRecords.add(er);
+            else
+                droppedErrors++;
+        }
+
+        private synchronized void addErrors(Collection<ErrorRecord> errors) {
+            errors.forEach(this::addError);
         }
 
-        private synchronized void addMessage(ErrorRecord er) {
+        private synchronized void addMessage(String message) {
             resetExpiration();
-            errorRecords.add(er);
+            if (messages.size() < maxErrorsPerRecord)
+                messages.add(message);
+        }
+
+        /**
+         * @return copy of the errors of the item. If some errors were dropped, the last record tells how many.
+         */
+        public synchronized List<ErrorRecord> getErrorRecords() {
+            List<ErrorRecord> result = new ArrayList<>(errorRecords);
+            if (droppedErrors > 0)
+                result.add(new ErrorRecord(Errors.FAILURE, "", "" + droppedErrors + " more errors are omitted"));
+            return result;
         }
-    }
 
-    private ConcurrentHashMap<HashId, Record> records = new ConcurrentHashMap();
+        public synchronized List<String> getMessages() {
+            return new ArrayList<>(messages);
+        }
+    }
 
+    /**
+     * Remove expired records. Records are visited in the order of creation, so only the expired ones and the ones
+     * which expiration was extended are visited. Called periodically by the {@link Node}.
+     */
     final void cleanUp() {
-        // we should avoid creating an object for each check:
-        Instant now = Instant.now();
-        records.values().forEach(r -> r.checkExpiration(now));
+        long now = System.nanoTime();
+        synchronized (order) {
+            Record r;
+            while ((r = order.peek()) != null) {
+                if (records.get(r.hashId) != r) {
+                    // already taken or evicted
+                    order.poll();
+                } else if (r.expiresAt - now <= 0) {
+                    order.poll();
+                    if (records.remove(r.hashId, r))
+                        expirations.increment();
+                } else if (r.queuedAt + maxAgeNanos - now <= 0) {
+                    // the expiration was extended, move it to the tail
+                    order.poll();
+                    r.queuedAt = now;
+                    order.add(r);
+                } else
+                    // the rest are younger
+                    break;
+            }
+        }
     }
 
     public void inform(HashId itemId, ErrorRecord error) {
         getRecord(itemId).addError(error);
     }
 
-    public synchronized Record getRecord(HashId itemId) {
+    public void inform(HashId itemId, String message) {
+        getRecord(itemId).addMessage(message);
+    }
+
+    public Record getRecord(HashId itemId) {
         Record r = records.get(itemId);
-        if (r == null) {
-            r = new Record(itemId);
-            records.put(itemId, r);
+        if (r != null)
+            return r;
+        Record created = new Record(itemId);
+        r = records.putIfAbsent(itemId, created);
+        if (r != null)
+            return r;
+        order.add(created);
+        if (records.size() > maxRecords)
+            evictOldest();
+        return created;
+    }
+
+    private void evictOldest() {
+        synchronized (order) {
+            Record r;
+            while ((r = order.poll()) != null) {
+                if (records.remove(r.hashId, r)) {
+                    evictions.increment();
+                    return;
+                }
+            }
         }
-        return r;
     }
 
     public Record takeFor(HashId id) {
         return records.remove(id);
     }
 
+    public int size() {
+        return records.size();
+    }
+
+    public long getEvictions() {
+        return evictions.sum();
+    }
+
+    public long getExpirations() {
+        return expirations.sum();
+    }
 }
@@ -8,17 +8,40 @@
 package com.icodici.universa.node2;
 
 import com.icodici.universa.HashId;
+import net.sergeych.tools.Binder;
 
-import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Function;
 
 /**
  * The smart lock, allow global synchronize on per-hashId operation. Just call {@link #synchronize(HashId, Function)}
  * and execute your code in a callable argument.
+ * <p>
+ * Locks are kept in the concurrent map only while somebody uses them: each lock is reference-counted, and is removed
+ * from the map as soon as the last user releases it, so there is no global monitor and no dependency on the garbage
+ * collection of {@link HashId} instances. A lock could be pinned for a longer time with {@link #retain()} and {@link
+ * #release()}, e.g. by the election that uses it as a mutex.
  */
 public final class ItemLock {
 
-    private ItemLock() {
+    private final HashId id;
+
+    /**
+     * Number of users of this lock: threads inside {@link #synchronize(HashId, Function)} and pins made by {@link
+     * #retain()}. Guarded by the {@link #monitors} map entry (changed only in compute* calls).
+     */
+    private int references = 0;
+
+    /**
+     * Number of threads that are currently acquiring or holding this lock in {@link #synchronize(HashId, Function)}.
+     */
+    private final AtomicInteger holders = new AtomicInteger();
+
+    private ItemLock(HashId id) {
+        this.id = id;
     }
 
     /**
@@ -34,32 +57,131 @@ public final class ItemLock {
      * @throws Exception whatever callable throws
      */
     static public <T> T synchronize(HashId id, Function<Object, T> callable) throws Exception {
-        ItemLock lock = null;
-
-        // short exclusive mutex: obtaning a lock
-        synchronized (monitors) {
-            lock = monitors.get(id);
-            if (lock == null) {
-                lock = new ItemLock();
-                monitors.put(id, lock);
+        // short non-blocking step: obtaining a lock, it only locks the map bin of the id:
+        ItemLock lock = monitors.compute(id, (k, v) -> {
+            if (v == null)
+                v = new ItemLock(k);
+            v.references++;
+            return v;
+        });
+        try {
+            if (lock.holders.getAndIncrement() > 0)
+                contendedAcquisitions.increment();
+            try {
+                long started = System.nanoTime();
+                // now we only lock the item:
+                synchronized (lock) {
+                    long waited = System.nanoTime() - started;
+                    acquisitions.increment();
+                    totalWaitNanos.add(waited);
+                    maxWaitNanos.accumulate(waited);
+                    return (T) callable.apply(lock);
+                }
+            } finally {
+                lock.holders.decrementAndGet();
             }
+        } finally {
+            lock.release();
         }
-        // now we only lock the item:
-        synchronized (lock) {
-            return (T) callable.apply(lock);
-        }
     }
 
-    static private WeakHashMap<HashId, ItemLock> monitors = new WeakHashMap<>();
+    /**
+     * Pin the lock so it will not be removed from the cache until the matching {@link #release()} call. It let the
+     * same mutex instance to be used out of the {@link #synchronize(HashId, Function)} call. Must be called only from
+     * the callable passed to the {@link #synchronize(HashId, Function)}, when the lock is surely in use.
+     *
+     * @return this instance
+     */
+    public ItemLock retain() {
+        monitors.computeIfPresent(id, (k, v) -> {
+            if (v != this)
+                throw new IllegalStateException("retaining the lock which is not in use");
+            v.references++;
+            return v;
+        });
+        return this;
+    }
+
+    /**
+     * Release the lock pinned with {@link #retain()}. When the last reference is released, the lock is removed from
+     * the cache. Calling it more times than the lock was retained is an error.
+     */
+    public void release() {
+        monitors.computeIfPresent(id, (k, v) -> {
+            if (v != this)
+                return v;
+            return --v.references > 0 ? v : null;
+        });
+    }
+
+    static private final ConcurrentHashMap<HashId, ItemLock> monitors = new ConcurrentHashMap<>();
+
+    static private final LongAdder acquisitions = new LongAdder();
+    static private final LongAdder contendedAcquisitions = new LongAdder();
+    static private final LongAdder totalWaitNanos = new LongAdder();
+    static private final LongAccumulator maxWaitNanos = new LongAccumulator(Math::max, 0);
 
     /**
-     * Niber of cached locks. Not all of them are acquired. Locks are cached as long as corresponding {@link HashId} is
-     * alive, so do not clone() and copy them, use shared instance (it is generally immutable). When the last instance
-     * of this itemId will be garbage collected, the lock will be removed from the cache.
+     * Number of live locks, e.g. locks that are being acquired, held or retained right now. Unused locks are removed
+     * immediately.
      *
-     * @return number of cached locks
+     * @return number of live locks
      */
     public static int size() {
         return monitors.size();
     }
+
+    /**
+     * @return total number of locks acquired with {@link #synchronize(HashId, Function)}
+     */
+    public static long getAcquisitions() {
+        return acquisitions.sum();
+    }
+
+    /**
+     * @return number of acquisitions that had to compete with another thread already acquiring or holding the same
+     *         lock
+     */
+    public static long getContendedAcquisitions() {
+        return contendedAcquisitions.sum();
+    }
+
+    /**
+     * @return total time spent waiting for the locks to be acquired, in nanoseconds
+     */
+    public static long getTotalWaitNanos() {
+        return totalWaitNanos.sum();
+    }
+
+    /**
+     * @return longest single wait for the lock since the last {@link #resetStatistics()}, in nanoseconds
+     */
+    public static long getMaxWaitNanos() {
+        return maxWaitNanos.get();
+    }
+
+    /**
+     * Contention counters in the form suitable to report them to the client.
+     *
+     * @return binder with acquisitions, contended, waitNanos, maxWaitNanos and liveLocks values
+     */
+    public static Binder getStatistics() {
+        return Binder.fromKeysValues(
+                "acquisitions", getAcquisitions(),
+                "contended", getContendedAcquisitions(),
+                "waitNanos", getTotalWaitNanos(),
+                "maxWaitNanos", getMaxWaitNanos(),
+                "liveLocks", size()
+        );
+    }
+
+    /**
+     * Clear contention counters. Live locks are not affected.
+     */
+    public static void resetStatistics() {
+        acquisitions.reset();
+        contendedAcquisitions.reset();
+        totalWaitNanos.reset();
+        maxWaitNanos.reset();
+    }
 }
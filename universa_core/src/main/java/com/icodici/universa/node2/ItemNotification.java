@@ -67,7 +67,7 @@ public class ItemNotification extends Notification {
         super(from);
     }
 
-    private ItemNotification() {
+    protected ItemNotification() {
     }
 
     @Override
@@ -101,5 +101,8 @@ public class ItemNotification extends Notification {
 
     static {
         registerClass(CODE_ITEM_NOTIFICATION, ItemNotification.class);
+        // registered here, so it is known to the node as soon as it could receive any item notification
+        registerClass(ItemBodyNotification.CODE_ITEM_BODY_NOTIFICATION, ItemBodyNotification.class);
+        registerClass(BatchVoteNotification.CODE_BATCH_VOTE_NOTIFICATION, BatchVoteNotification.class);
     }
 }
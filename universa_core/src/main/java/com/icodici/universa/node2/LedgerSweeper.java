@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.node.Ledger;
+import net.sergeych.utils.LogPrinter;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Deletes expired records from the ledger in background, see {@link Ledger#removeExpired(int)}, so the records nobody
+ * reads do not stay in the ledger forever.
+ * <p>
+ * Each sweep deletes records by batches of {@link Config#getExpiredSweepBatch()}, no faster than {@link
+ * Config#getExpiredSweepRate()} records per second, until there are no more expired records; then the next sweep
+ * starts after {@link Config#getExpiredSweepInterval()}. While the node is busy the sweep is paused. Only one batch is
+ * deleted at a time.
+ * <p>
+ * Only the records in the final states are deleted, so the records of the running elections, which could be cached
+ * and saved later by their processors, are never deleted under them, however long the election takes.
+ */
+class LedgerSweeper {
+
+    private static LogPrinter log = new LogPrinter("LSWP");
+
+    /**
+     * Time to wait before checking again if the node is still busy.
+     */
+    static final Duration BUSY_PAUSE = Duration.ofSeconds(1);
+
+    private final Config config;
+    private final Ledger ledger;
+    private final Scheduler timer;
+    private final Executor executor;
+    private final Clock clock;
+    private final BooleanSupplier busy;
+
+    private Scheduler.Task next;
+    private boolean stopped = false;
+
+    // current sweep, accessed by one batch at a time
+    private Instant sweepStarted;
+    private long sweepRemoved;
+
+    private final AtomicLong removed = new AtomicLong();
+    private final AtomicLong sweeps = new AtomicLong();
+    private final AtomicLong pauses = new AtomicLong();
+    private volatile long lastSweepRemoved = 0;
+    private volatile Duration lastSweepTime = Duration.ZERO;
+
+    /**
+     * @param config   sweep settings
+     * @param ledger   to delete expired records from
+     * @param timer    to schedule batches with
+     * @param executor to delete batches with
+     * @param clock    to measure the sweep time
+     * @param busy     returns true while the node should not be disturbed
+     */
+    LedgerSweeper(Config config, Ledger ledger, Scheduler timer, Executor executor, Clock clock,
+                  BooleanSupplier busy) {
+        this.config = config;
+        this.ledger = ledger;
+        this.timer = timer;
+        this.executor = executor;
+        this.clock = clock;
+        this.busy = busy;
+    }
+
+    /**
+     * Schedule the first sweep after the sweep interval, unless the interval is zero.
+     */
+    void start() {
+        Duration interval = config.getExpiredSweepInterval();
+        if (!interval.isZero() && !interval.isNegative())
+            schedule(interval);
+    }
+
+    /**
+     * Cancel the next batch. The batch being deleted is finished.
+     */
+    synchronized void stop() {
+        stopped = true;
+        if (next != null)
+            next.cancel();
+    }
+
+    private synchronized void schedule(Duration delay) {
+        if (!stopped)
+            next = timer.schedule(this::sweepBatch, delay, executor);
+    }
+
+    private void sweepBatch() {
+        if (busy.getAsBoolean()) {
+            pauses.incrementAndGet();
+            schedule(BUSY_PAUSE);
+            return;
+        }
+        if (sweepStarted == null) {
+            sweepStarted = clock.instant();
+            sweepRemoved = 0;
+        }
+        int batch = config.getExpiredSweepBatch();
+        int count;
+        try {
+            count = ledger.removeExpired(batch);
+        } catch (Exception e) {
+            log.e("failed to delete expired records: " + e);
+            finishSweep();
+            return;
+        }
+        sweepRemoved += count;
+        removed.addAndGet(count);
+        if (count < batch)
+            finishSweep();
+        else
+            schedule(Duration.ofNanos(batch * 1_000_000_000L / Math.max(1, config.getExpiredSweepRate())));
+    }
+
+    private void finishSweep() {
+        lastSweepTime = Duration.between(sweepStarted, clock.instant());
+        lastSweepRemoved = sweepRemoved;
+        sweeps.incrementAndGet();
+        sweepStarted = null;
+        if (lastSweepRemoved > 0)
+            log.i("%d expired records deleted in %d ms", lastSweepRemoved, lastSweepTime.toMillis());
+        schedule(config.getExpiredSweepInterval());
+    }
+
+    /**
+     * @return total number of expired records deleted
+     */
+    long getRemoved() {
+        return removed.get();
+    }
+
+    /**
+     * @return number of finished sweeps
+     */
+    long getSweeps() {
+        return sweeps.get();
+    }
+
+    /**
+     * @return number of times the sweep was paused as the node was busy
+     */
+    long getPauses() {
+        return pauses.get();
+    }
+
+    /**
+     * @return records deleted by the last finished sweep
+     */
+    long getLastSweepRemoved() {
+        return lastSweepRemoved;
+    }
+
+    /**
+     * @return time of the last finished sweep, including pauses
+     */
+    Duration getLastSweepTime() {
+        return lastSweepTime;
+    }
+}
@@ -120,6 +120,7 @@ public class Main {
     private void startNode() throws SQLException, IOException {
         PostgresLedger ledger = new PostgresLedger(settings.getStringOrThrow("database"));
         log("ledger constructed");
+        warmUpLedger(ledger);
 
         int n = netConfig.size();
         int negative = (int) Math.ceil(n * 0.11);
@@ -131,9 +132,20 @@ public class Main {
         log("Network consensus is set to: " + negative + " / " + positive);
         config.setPositiveConsensus(positive);
         config.setNegativeConsensus(negative);
-        network = new NetworkV2(netConfig, myInfo, nodeKey);
+        setUpNetwork();
+        network = new NetworkV2(netConfig, myInfo, nodeKey, config);
         node = new Node(config, myInfo, ledger, network);
         cache = node.getCache();
+        node.getMetrics().gauge("universa_ledger_warmup_records", "records loaded to the ledger cache on start",
+                                () -> warmUpRecords);
+        node.getMetrics().gauge("universa_ledger_warmup_seconds", "time spent to warm up the ledger cache on start",
+                                () -> warmUpSeconds);
+        node.getMetrics().counter("universa_client_throttled_by_address_total",
+                                "client requests rejected by the remote address rate limit",
+                                () -> clientHTTPServer.getAddressThrottled());
+        node.getMetrics().counter("universa_client_throttled_by_key_total",
+                                "client commands rejected by the client key rate limit",
+                                () -> clientHTTPServer.getClientThrottled());
 
         StateRecord r = ledger.getRecord(HashId.withDigest("bS/c4YMidaVuzTBhHLkGPFAvPbZQHybzQnXAoBwaZYM8eLYb7mAkVYEpuqKRXYc7anqX47BeNdvFN1n7KluH9A=="));
         if( r != null )
@@ -144,6 +156,59 @@ public class Main {
         clientHTTPServer.setLocalCors(myInfo.getPublicHost().equals("localhost"));
     }
 
+    /**
+     * Set the node-to-node notification settings from config.yaml, where present:
+     * <pre>
+     * coalescing_window_ms: 5          # time notifications to the same node are collected, 0 sends each at once
+     * coalescing_batch_size: 100       # collected notifications sent before the window expires, up to 1000
+     * vote_batching: false             # send the collected votes in one batch, all nodes should support it
+     * dispatcher_threads: 0            # threads processing received notifications, 0 for the number of processors
+     * dispatcher_queue_size: 10000     # received notifications queued per thread, then the receiving waits
+     * dispatch_wait_ms: 50             # wait for the full queue before the notification is dropped, 0 drops at once
+     * </pre>
+     */
+    private void setUpNetwork() {
+        if (settings.containsKey("coalescing_window_ms"))
+            config.setCoalescingWindow(Duration.ofMillis(settings.getIntOrThrow("coalescing_window_ms")));
+        if (settings.containsKey("coalescing_batch_size"))
+            config.setCoalescingBatchSize(settings.getIntOrThrow("coalescing_batch_size"));
+        config.setVoteBatching(settings.getBoolean("vote_batching", false));
+        if (settings.containsKey("dispatcher_threads"))
+            config.setDispatcherThreads(settings.getIntOrThrow("dispatcher_threads"));
+        if (settings.containsKey("dispatcher_queue_size"))
+            config.setDispatcherQueueSize(settings.getIntOrThrow("dispatcher_queue_size"));
+        if (settings.containsKey("dispatch_wait_ms"))
+            config.setDispatchWait(Duration.ofMillis(settings.getIntOrThrow("dispatch_wait_ms")));
+    }
+
+    private volatile int warmUpRecords = 0;
+    private volatile double warmUpSeconds = 0;
+
+    /**
+     * Load recent records to the ledger cache before the node starts, so the first requests after the restart do not
+     * all go to the database. Configured in config.yaml:
+     * <pre>
+     * ledger_warmup_records: 200000    # records to load and keep in the cache, 0 (default) disables the warm-up
+     * ledger_warmup_hours: 24          # only records created within this time are loaded
+     * ledger_warmup_batch: 5000        # rows fetched from the database at once
+     * </pre>
+     */
+    private void warmUpLedger(PostgresLedger ledger) {
+        int records = settings.getInt("ledger_warmup_records", 0);
+        if (records <= 0)
+            return;
+        Duration maxAge = Duration.ofHours(settings.getInt("ledger_warmup_hours", 24));
+        int batch = settings.getInt("ledger_warmup_batch", 5000);
+        log("warming up the ledger cache: up to " + records + " records created within " + maxAge);
+        long started = System.nanoTime();
+        ledger.setHotRecordsLimit(records);
+        warmUpRecords = ledger.preload(maxAge, records, batch, count ->
+                log("ledger warm-up: " + count + " records loaded in " +
+                            (System.nanoTime() - started) / 1000000 + " ms"));
+        warmUpSeconds = (System.nanoTime() - started) / 1e9;
+        log(String.format("ledger warm-up is done: %d records in %.2f s", warmUpRecords, warmUpSeconds));
+    }
+
     /**
      * To use in unti-tests. Start a node and blocks the thread until the nodes stops.
      *
@@ -175,6 +240,7 @@ public class Main {
             log("shutting down");
             network.shutdown();
             clientHTTPServer.shutdown();
+            node.shutdown();
         } catch (Exception e) {
         }
 
@@ -234,9 +300,33 @@ public class Main {
         clientHTTPServer = new ClientHTTPServer(nodeKey, settings.getIntOrThrow("http_client_port"), logger);
         clientHTTPServer.setCache(cache);
         clientHTTPServer.setNetConfig(netConfig);
+        setUpRateLimits();
 //        node = new Node()
     }
 
+    /**
+     * Set the client HTTP server rate limits from config.yaml, where present:
+     * <pre>
+     * client_rate_limit: 50        # command cost units per second for one client key, no limit if not set
+     * client_burst: 200            # cost units one client key could spend at once
+     * address_rate_limit: 200      # requests per second from one IP address, 0 for no limit
+     * address_burst: 1000          # requests one IP address could make at once
+     * command_costs:               # cost of the commands, 1 if not set; batches cost that much per item
+     *   approve: 10
+     *   approveBatch: 10
+     * </pre>
+     */
+    private void setUpRateLimits() {
+        if (settings.containsKey("client_rate_limit"))
+            clientHTTPServer.setClientRateLimit(settings.getIntOrThrow("client_rate_limit"),
+                                                settings.getInt("client_burst", 200));
+        if (settings.containsKey("address_rate_limit"))
+            clientHTTPServer.setAddressRateLimit(settings.getIntOrThrow("address_rate_limit"),
+                                                 settings.getInt("address_burst", 1000));
+        Binder costs = settings.getBinder("command_costs", Binder.EMPTY);
+        costs.forEach((command, cost) -> clientHTTPServer.setCommandCost(command, ((Number) cost).intValue()));
+    }
+
     private void log(String msg) {
         logger.log(msg);
     }
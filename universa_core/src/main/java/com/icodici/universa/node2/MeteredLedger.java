@@ -0,0 +1,198 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.Ledger;
+import com.icodici.universa.node.StateRecord;
+
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+
+/**
+ * The ledger that measures the latency of each method of the ledger it delegates to. Records it returns are
+ * connected to it, so calls made by {@link StateRecord} methods are measured too.
+ */
+class MeteredLedger implements Ledger {
+
+    private final Ledger ledger;
+    private final MetricsRegistry metrics;
+
+    MeteredLedger(Ledger ledger, MetricsRegistry metrics) {
+        this.ledger = ledger;
+        this.metrics = metrics;
+    }
+
+    private MetricsRegistry.Histogram histogram(String method) {
+        return metrics.histogram("universa_ledger_seconds", "ledger call latency", "method", method);
+    }
+
+    private StateRecord connect(StateRecord record) {
+        if (record != null)
+            record.setLedger(this);
+        return record;
+    }
+
+    private Map<HashId, StateRecord> connect(Map<HashId, StateRecord> records) {
+        records.values().forEach(r -> r.setLedger(this));
+        return records;
+    }
+
+    @Override
+    public StateRecord getRecord(HashId id) {
+        long started = System.nanoTime();
+        try {
+            return connect(ledger.getRecord(id));
+        } finally {
+            histogram("getRecord").observeSince(started);
+        }
+    }
+
+    @Override
+    public Map<HashId, StateRecord> getRecords(Collection<HashId> ids) {
+        long started = System.nanoTime();
+        try {
+            return connect(ledger.getRecords(ids));
+        } finally {
+            histogram("getRecords").observeSince(started);
+        }
+    }
+
+    @Override
+    public StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
+        long started = System.nanoTime();
+        try {
+            return connect(ledger.createOutputLockRecord(creatorRecordId, newItemHashId));
+        } finally {
+            histogram("createOutputLockRecord").observeSince(started);
+        }
+    }
+
+    @Override
+    public Map<HashId, StateRecord> createOutputLockRecords(long creatorRecordId, Collection<HashId> newItemHashIds) {
+        long started = System.nanoTime();
+        try {
+            return connect(ledger.createOutputLockRecords(creatorRecordId, newItemHashIds));
+        } finally {
+            histogram("createOutputLockRecords").observeSince(started);
+        }
+    }
+
+    @Override
+    public StateRecord findOrCreate(HashId itemdId) {
+        long started = System.nanoTime();
+        try {
+            return connect(ledger.findOrCreate(itemdId));
+        } finally {
+            histogram("findOrCreate").observeSince(started);
+        }
+    }
+
+    @Override
+    public boolean isApproved(HashId id) {
+        long started = System.nanoTime();
+        try {
+            return ledger.isApproved(id);
+        } finally {
+            histogram("isApproved").observeSince(started);
+        }
+    }
+
+    @Override
+    public <T> T transaction(Callable<T> callable) {
+        long started = System.nanoTime();
+        try {
+            return ledger.transaction(callable);
+        } finally {
+            histogram("transaction").observeSince(started);
+        }
+    }
+
+    @Override
+    public void destroy(StateRecord record) {
+        long started = System.nanoTime();
+        try {
+            ledger.destroy(record);
+        } finally {
+            histogram("destroy").observeSince(started);
+        }
+    }
+
+    @Override
+    public void save(StateRecord stateRecord) {
+        if (stateRecord.getLedger() == null)
+            stateRecord.setLedger(this);
+        long started = System.nanoTime();
+        try {
+            ledger.save(stateRecord);
+        } finally {
+            histogram("save").observeSince(started);
+        }
+    }
+
+    @Override
+    public void saveAll(Collection<StateRecord> records) {
+        for (StateRecord r : records) {
+            if (r.getLedger() == null)
+                r.setLedger(this);
+        }
+        long started = System.nanoTime();
+        try {
+            ledger.saveAll(records);
+        } finally {
+            histogram("saveAll").observeSince(started);
+        }
+    }
+
+    @Override
+    public int removeExpired(int limit) {
+        long started = System.nanoTime();
+        try {
+            return ledger.removeExpired(limit);
+        } finally {
+            histogram("removeExpired").observeSince(started);
+        }
+    }
+
+    @Override
+    public List<StateRecord> getLockedRecords() {
+        long started = System.nanoTime();
+        try {
+            return ledger.getLockedRecords();
+        } finally {
+            histogram("getLockedRecords").observeSince(started);
+        }
+    }
+
+    @Override
+    public void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        long started = System.nanoTime();
+        try {
+            ledger.reload(stateRecord);
+        } finally {
+            histogram("reload").observeSince(started);
+        }
+    }
+
+    @Override
+    public void close() {
+        ledger.close();
+    }
+
+    @Override
+    public long countRecords() {
+        return ledger.countRecords();
+    }
+
+    @Override
+    public Ledger getStorage() {
+        return ledger.getStorage();
+    }
+}
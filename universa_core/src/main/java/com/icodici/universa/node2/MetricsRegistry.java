@@ -0,0 +1,329 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.DoubleSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Lightweight in-process metrics of the node: counters, gauges and latency histograms. Metrics are grouped into
+ * families by name, and metrics of the same family differ by labels, passed as name, value pairs. Asking for the
+ * metric with the same name and labels returns the same instance, so it is not necessary to keep references to them.
+ * <p>
+ * Updating the metric never locks: counters are {@link LongAdder}s and histograms have fixed buckets with atomic
+ * counters. The registry could be exported in Prometheus text format with {@link #toPrometheus()}, or as a {@link
+ * Binder} with {@link #toBinder()}.
+ */
+public class MetricsRegistry {
+
+    /**
+     * Upper bounds of the histogram buckets, in seconds. The last bucket, +Inf, is implied.
+     */
+    static final double[] LATENCY_BUCKETS = {
+            0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10, 30, 60, 120, 300
+    };
+
+    private enum Type {
+        COUNTER, GAUGE, HISTOGRAM;
+
+        String prometheusName() {
+            return name().toLowerCase(Locale.ROOT);
+        }
+    }
+
+    private final ConcurrentHashMap<String, Family> families = new ConcurrentHashMap<>();
+
+    /**
+     * Get or create the counter.
+     *
+     * @param name   metric name, e.g. "universa_downloads_total"
+     * @param help   description of the metric family
+     * @param labels pairs of label names and values
+     *
+     * @return counter
+     */
+    public Counter counter(String name, String help, String... labels) {
+        return (Counter) family(name, help, Type.COUNTER).metric(labels, () -> new Counter());
+    }
+
+    /**
+     * Register the counter which value is calculated by the existing code, e.g. some statistics counter.
+     *
+     * @param name   metric name
+     * @param help   description of the metric family
+     * @param value  provides the current value, should be fast and should never block
+     * @param labels pairs of label names and values
+     */
+    public void counter(String name, String help, LongSupplier value, String... labels) {
+        family(name, help, Type.COUNTER).metric(labels, () -> (Value) () -> value.getAsLong());
+    }
+
+    /**
+     * Register the gauge.
+     *
+     * @param name   metric name
+     * @param help   description of the metric family
+     * @param value  provides the current value, should be fast and should never block
+     * @param labels pairs of label names and values
+     */
+    public void gauge(String name, String help, DoubleSupplier value, String... labels) {
+        family(name, help, Type.GAUGE).metric(labels, () -> (Value) () -> value.getAsDouble());
+    }
+
+    /**
+     * Get or create the latency histogram with the {@link #LATENCY_BUCKETS}.
+     *
+     * @param name   metric name, e.g. "universa_download_seconds"
+     * @param help   description of the metric family
+     * @param labels pairs of label names and values
+     *
+     * @return histogram
+     */
+    public Histogram histogram(String name, String help, String... labels) {
+        return (Histogram) family(name, help, Type.HISTOGRAM).metric(labels, () -> new Histogram());
+    }
+
+    /**
+     * Export all metrics in the Prometheus text exposition format.
+     */
+    public String toPrometheus() {
+        StringBuilder sb = new StringBuilder();
+        for (Family f : new TreeMap<>(families).values()) {
+            sb.append("# HELP ").append(f.name).append(' ').append(f.help).append('\n');
+            sb.append("# TYPE ").append(f.name).append(' ').append(f.type.prometheusName()).append('\n');
+            for (Map.Entry<String, Object> e : new TreeMap<>(f.metrics).entrySet()) {
+                String labels = e.getKey();
+                Object m = e.getValue();
+                if (m instanceof Histogram) {
+                    Histogram h = (Histogram) m;
+                    long[] counts = h.bucketCounts();
+                    long cumulative = 0;
+                    for (int i = 0; i < counts.length; i++) {
+                        cumulative += counts[i];
+                        String le = i < LATENCY_BUCKETS.length ? format(LATENCY_BUCKETS[i]) : "+Inf";
+                        sb.append(f.name).append("_bucket")
+                                .append(withLabel(labels, "le", le)).append(' ').append(cumulative).append('\n');
+                    }
+                    sb.append(f.name).append("_sum").append(labels).append(' ')
+                            .append(format(h.getSumSeconds())).append('\n');
+                    sb.append(f.name).append("_count").append(labels).append(' ').append(cumulative).append('\n');
+                } else {
+                    sb.append(f.name).append(labels).append(' ').append(format(valueOf(m))).append('\n');
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Export all metrics as a binder: metric name is mapped to the binder with "type", "help" and "values", the list
+     * of binders with "labels" and either "value" or histogram "count", "sum" (seconds) and "buckets", the list of
+     * non-cumulative counts for each of {@link #LATENCY_BUCKETS} and the +Inf bucket.
+     */
+    public Binder toBinder() {
+        Binder result = new Binder();
+        for (Family f : new TreeMap<>(families).values()) {
+            List<Binder> values = new ArrayList<>();
+            for (Map.Entry<String, Object> e : new TreeMap<>(f.metrics).entrySet()) {
+                Object m = e.getValue();
+                Binder b = Binder.fromKeysValues("labels", f.labels.get(e.getKey()));
+                if (m instanceof Histogram) {
+                    Histogram h = (Histogram) m;
+                    List<Long> buckets = new ArrayList<>();
+                    long count = 0;
+                    for (long c : h.bucketCounts()) {
+                        buckets.add(c);
+                        count += c;
+                    }
+                    b.put("count", count);
+                    b.put("sum", h.getSumSeconds());
+                    b.put("buckets", buckets);
+                } else
+                    b.put("value", valueOf(m));
+                values.add(b);
+            }
+            result.put(f.name, Binder.fromKeysValues(
+                    "type", f.type.prometheusName(),
+                    "help", f.help,
+                    "values", values
+            ));
+        }
+        return result;
+    }
+
+    private Family family(String name, String help, Type type) {
+        Family f = families.computeIfAbsent(name, n -> new Family(n, help, type));
+        if (f.type != type)
+            throw new IllegalArgumentException("metric " + name + " is already registered as " + f.type);
+        return f;
+    }
+
+    private static double valueOf(Object metric) {
+        if (metric instanceof Counter)
+            return ((Counter) metric).get();
+        return ((Value) metric).get();
+    }
+
+    private static String format(double value) {
+        if (value == Math.rint(value) && !Double.isInfinite(value) && Math.abs(value) < 1e15)
+            return Long.toString((long) value);
+        return Double.toString(value);
+    }
+
+    private static String withLabel(String labels, String name, String value) {
+        String label = name + "=\"" + value + "\"";
+        if (labels.isEmpty())
+            return "{" + label + "}";
+        return labels.substring(0, labels.length() - 1) + "," + label + "}";
+    }
+
+    private static String labelsKey(String[] labels) {
+        if (labels.length == 0)
+            return "";
+        if (labels.length % 2 != 0)
+            throw new IllegalArgumentException("labels should be name, value pairs");
+        StringBuilder sb = new StringBuilder("{");
+        for (int i = 0; i < labels.length; i += 2) {
+            if (i > 0)
+                sb.append(',');
+            sb.append(labels[i]).append("=\"");
+            String v = labels[i + 1];
+            for (int j = 0; j < v.length(); j++) {
+                char c = v.charAt(j);
+                if (c == '\\' || c == '"')
+                    sb.append('\\').append(c);
+                else if (c == '\n')
+                    sb.append("\\n");
+                else
+                    sb.append(c);
+            }
+            sb.append('"');
+        }
+        return sb.append('}').toString();
+    }
+
+    private interface Value {
+        double get();
+    }
+
+    private interface MetricFactory {
+        Object create();
+    }
+
+    private static final class Family {
+        private final String name;
+        private final String help;
+        private final Type type;
+        private final ConcurrentHashMap<String, Object> metrics = new ConcurrentHashMap<>();
+        private final ConcurrentHashMap<String, Binder> labels = new ConcurrentHashMap<>();
+
+        private Family(String name, String help, Type type) {
+            this.name = name;
+            this.help = help;
+            this.type = type;
+        }
+
+        private Object metric(String[] labelPairs, MetricFactory factory) {
+            String key = labelsKey(labelPairs);
+            Object m = metrics.get(key);
+            if (m != null)
+                return m;
+            labels.computeIfAbsent(key, k -> Binder.fromKeysValues((Object[]) labelPairs));
+            return metrics.computeIfAbsent(key, k -> factory.create());
+        }
+    }
+
+    /**
+     * Monotonic counter.
+     */
+    public static final class Counter {
+        private final LongAdder value = new LongAdder();
+
+        public void inc() {
+            value.increment();
+        }
+
+        public void inc(long delta) {
+            value.add(delta);
+        }
+
+        public long get() {
+            return value.sum();
+        }
+    }
+
+    /**
+     * Latency histogram with fixed {@link #LATENCY_BUCKETS}.
+     */
+    public static final class Histogram {
+        private static final long[] BOUNDS_NANOS = new long[LATENCY_BUCKETS.length];
+
+        static {
+            for (int i = 0; i < LATENCY_BUCKETS.length; i++)
+                BOUNDS_NANOS[i] = (long) (LATENCY_BUCKETS[i] * 1e9);
+        }
+
+        private final AtomicLongArray counts = new AtomicLongArray(LATENCY_BUCKETS.length + 1);
+        private final LongAdder sumNanos = new LongAdder();
+
+        public void observeNanos(long nanos) {
+            int low = 0;
+            int high = BOUNDS_NANOS.length;
+            // the first bucket which bound is not less than the value
+            while (low < high) {
+                int mid = (low + high) >>> 1;
+                if (BOUNDS_NANOS[mid] < nanos)
+                    low = mid + 1;
+                else
+                    high = mid;
+            }
+            counts.incrementAndGet(low);
+            sumNanos.add(nanos);
+        }
+
+        public void observe(Duration duration) {
+            observeNanos(duration.toNanos());
+        }
+
+        /**
+         * Observe time passed since the given {@link System#nanoTime()} value.
+         */
+        public void observeSince(long startedNanos) {
+            observeNanos(System.nanoTime() - startedNanos);
+        }
+
+        public long getCount() {
+            long total = 0;
+            for (int i = 0; i < counts.length(); i++)
+                total += counts.get(i);
+            return total;
+        }
+
+        public double getSumSeconds() {
+            return sumNanos.sum() / 1e9;
+        }
+
+        private long[] bucketCounts() {
+            long[] result = new long[counts.length()];
+            for (int i = 0; i < result.length; i++)
+                result[i] = counts.get(i);
+            return result;
+        }
+    }
+}
@@ -8,6 +8,7 @@
 package com.icodici.universa.node2;
 
 import com.icodici.universa.Approvable;
+import com.icodici.universa.ErrorRecord;
 import com.icodici.universa.Errors;
 import com.icodici.universa.HashId;
 import com.icodici.universa.node.ItemResult;
@@ -16,18 +17,24 @@ import com.icodici.universa.node.Ledger;
 import com.icodici.universa.node.StateRecord;
 import com.icodici.universa.node2.network.Network;
 import net.sergeych.tools.AsyncEvent;
-import net.sergeych.tools.Do;
 import net.sergeych.utils.LogPrinter;
 import org.checkerframework.checker.nullness.qual.NonNull;
 import org.checkerframework.checker.nullness.qual.Nullable;
 
+import java.time.Clock;
+import java.time.Duration;
 import java.time.Instant;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Random;
+import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Supplier;
 
 /**
@@ -44,21 +51,234 @@ public class Node {
     private final Ledger ledger;
     private final Network network;
     private final ItemCache cache;
-    private final ItemInformer informer = new ItemInformer();
+    private final ItemInformer informer;
+    private final RecentResults recentResults;
+    private final RevocationIndex revocations = new RevocationIndex();
 
     private ConcurrentHashMap<HashId, ItemProcessor> processors = new ConcurrentHashMap();
 
-    private static ScheduledExecutorService executorService = new ScheduledThreadPoolExecutor(64);
+    // Executors are split by the workload, so slow downloads can't starve checking and voting:
+    private final ExecutorService downloadExecutor;
+    private final ExecutorService checkExecutor;
+    private final ExecutorService commitExecutor;
+    private final ExecutorService timerExecutor;
+
+    /**
+     * Queues the checks of the items by lanes and runs them with the check executor; commits and rollbacks go straight
+     * to the commit executor, so they never wait behind new checks.
+     */
+    private final ElectionScheduler elections;
+
+    /**
+     * Drives polling, expiration and download retries of all elections, so the cost of a tick does not depend on the
+     * number of active elections.
+     */
+    private final Scheduler timer;
+
+    /**
+     * Time of the elections. It is the system clock except in the simulation.
+     */
+    private final Clock clock;
+
+    // false if the timer and the executors are provided from outside and are not ours to shut down
+    private final boolean ownRuntime;
+
+    private final AdmissionController admission;
+    private final LedgerSweeper sweeper;
+    private final DownloadStatistics downloadStatistics;
+
+    private final MetricsRegistry metrics = new MetricsRegistry();
+    private final MetricsRegistry.Counter electionsStarted;
+    private final MetricsRegistry.Histogram downloadLatency;
+    private final MetricsRegistry.Counter downloadFailures;
+    private final MetricsRegistry.Counter itemsPushed;
+    private final MetricsRegistry.Counter pushedItemsUsed;
+    private final MetricsRegistry.Counter pollsSent;
+    private final MetricsRegistry.Counter fixedRatePolls;
+    private final MetricsRegistry.Counter repeatedVotes;
+    private final MetricsRegistry.Counter recentAnswers;
+    private final MetricsRegistry.Counter batchesReceived;
 
     public Node(Config config, NodeInfo myInfo, Ledger ledger, Network network) {
+        this(config, myInfo, ledger, network, Clock.systemDefaultZone(), null, null);
+    }
+
+    /**
+     * Create the node that runs on the given clock, timer and executor instead of its own, e.g. in the simulation,
+     * where the single-threaded executor and the timer are driven by the virtual clock. The node does not shut them
+     * down.
+     *
+     * @param clock     to get the current time from
+     * @param scheduler to schedule polling, expiration and retries with, or null to create own timer
+     * @param executor  to execute all node tasks with, or null to create own executors; should be provided with the
+     *                  scheduler
+     */
+    Node(Config config, NodeInfo myInfo, Ledger ledger, Network network, Clock clock, @Nullable Scheduler scheduler,
+         @Nullable ExecutorService executor) {
         this.config = config;
+        this.clock = clock;
         this.myInfo = myInfo;
+        // ledger calls are measured by the wrapper
+        ledger = new MeteredLedger(ledger, metrics);
+        // saves of concurrent elections could share the commit; it is the outermost wrapper, as the records are
+        // connected to it, and its commits are measured
+        Duration commitWindow = config.getLedgerCommitWindow();
+        if (!commitWindow.isZero() && !commitWindow.isNegative())
+            ledger = new GroupCommitLedger(ledger, commitWindow, config.getLedgerCommitBatchSize(), metrics);
         this.ledger = ledger;
         this.network = network;
-        cache = new ItemCache(config.getMaxCacheAge());
+        cache = new ItemCache(config.getMaxCacheAge(), config.getMaxCacheWeight());
+        admission = new AdmissionController(config);
+        // with the provided runtime the node should behave the same way each run
+        downloadStatistics = new DownloadStatistics(config.getDownloadHedgePercentile(),
+                                                    config.getMaxGetItemTime().toNanos() / 2,
+                                                    executor == null ? new Random() : new Random(myInfo.getNumber()));
+        informer = new ItemInformer(config);
+        recentResults = new RecentResults(config.getRecentResultsSize());
+
+        ownRuntime = executor == null;
+        if (ownRuntime) {
+            boolean virtual = config.isUseVirtualThreads();
+            downloadExecutor = createExecutor("download", config.getDownloadThreads(), virtual);
+            checkExecutor = createExecutor("check", config.getCheckThreads(), false);
+            commitExecutor = createExecutor("commit", config.getCommitThreads(), virtual);
+            timerExecutor = createExecutor("timer", config.getTimerThreads(), false);
+        } else
+            downloadExecutor = checkExecutor = commitExecutor = timerExecutor = executor;
+        timer = scheduler != null ? scheduler :
+                new HashedWheelTimer(config.getTimerTick(), 512, timerExecutor,
+                                     "node-" + myInfo.getNumber() + "-timer");
+        elections = new ElectionScheduler(config, commitExecutor, checkExecutor,
+                                          ownRuntime ? config.getCheckThreads() : 1, metrics);
+
+        Duration cleanUpPeriod = config.getErrorTraceAge().dividedBy(10);
+        timer.scheduleAtFixedRate(() -> informer.cleanUp(), cleanUpPeriod, cleanUpPeriod);
+        // the sweep waits while more than a half of the allowed elections are in progress
+        sweeper = new LedgerSweeper(config, this.ledger, timer, commitExecutor, clock,
+                                    () -> processors.size() > admission.getLimit() / 2);
+        sweeper.start();
+
+        electionsStarted = metrics.counter("universa_elections_started_total", "elections started by the node");
+        downloadLatency = metrics.histogram("universa_download_seconds", "successful item download latency");
+        downloadFailures = metrics.counter("universa_download_failures_total", "failed item download attempts");
+        itemsPushed = metrics.counter("universa_items_pushed_total", "items sent to other nodes with notifications");
+        pushedItemsUsed = metrics.counter("universa_pushed_items_received_total",
+                                          "items received with notifications instead of downloading");
+        pollsSent = metrics.counter("universa_polls_sent_total", "notifications sent to poll nodes that did not vote");
+        fixedRatePolls = metrics.counter("universa_polls_fixed_rate_total",
+                                         "polls that would have been sent with the fixed poll time");
+        metrics.gauge("universa_polls_saved", "polls saved by the adaptive polling, at least",
+                      () -> fixedRatePolls.get() - pollsSent.get());
+        repeatedVotes = metrics.counter("universa_notifications_repeated_total",
+                                        "notifications repeating the vote already registered");
+        recentAnswers = metrics.counter("universa_notifications_finished_total",
+                                        "notifications about finished elections answered from memory");
+        batchesReceived = metrics.counter("universa_vote_batches_received_total", "vote batches received");
+        registerMetrics();
+
+        // the items locked in the ledger stay taken until the ledger releases them, see RevocationIndex
+        int locks = revocations.reconcile(this.ledger.getLockedRecords());
+        if (locks > 0)
+            log.i("restored " + locks + " revocation locks from the ledger");
+
+        network.setCoalescingWindow(config.getCoalescingWindow());
+        network.setCoalescingBatchSize(config.getCoalescingBatchSize());
+        network.setVoteBatching(config.isVoteBatching());
         network.subscribe(myInfo, notification -> onNotification(notification));
     }
 
+    /**
+     * Stop the node timer and executors. Pending elections are abandoned.
+     */
+    public void shutdown() {
+        sweeper.stop();
+        cache.shutdown();
+        if (!ownRuntime)
+            return;
+        timer.shutdown();
+        downloadExecutor.shutdownNow();
+        checkExecutor.shutdown();
+        commitExecutor.shutdown();
+        timerExecutor.shutdownNow();
+    }
+
+    private void registerMetrics() {
+        metrics.gauge("universa_active_elections", "elections in progress", () -> processors.size());
+        metrics.gauge("universa_admission_limit", "current limit of concurrent elections",
+                      () -> admission.getLimit());
+        metrics.counter("universa_admission_rejected_total", "elections rejected as the node is overloaded",
+                        () -> admission.getRejected());
+        metrics.counter("universa_cache_hits_total", "item cache hits", () -> cache.getHits());
+        metrics.counter("universa_cache_misses_total", "item cache misses", () -> cache.getMisses());
+        metrics.counter("universa_cache_evictions_total", "items evicted from the cache", () -> cache.getEvictions());
+        metrics.gauge("universa_cache_weight_bytes", "total size of the cached transactions",
+                      () -> cache.getWeight());
+        metrics.gauge("universa_error_traces", "items with error traces kept", () -> informer.size());
+        metrics.gauge("universa_revocation_locks", "items being revoked by the elections",
+                      () -> revocations.size());
+        metrics.counter("universa_revocation_conflicts_total",
+                        "elections declined as the items they revoke are being revoked by others",
+                        () -> revocations.getConflicts());
+        metrics.counter("universa_ledger_expired_removed_total", "expired records deleted by the sweeper",
+                        () -> sweeper.getRemoved());
+        metrics.counter("universa_ledger_sweeps_total", "finished sweeps of expired records",
+                        () -> sweeper.getSweeps());
+        metrics.counter("universa_ledger_sweep_pauses_total", "sweeps paused as the node was busy",
+                        () -> sweeper.getPauses());
+        metrics.gauge("universa_ledger_last_sweep_removed", "expired records deleted by the last sweep",
+                      () -> sweeper.getLastSweepRemoved());
+        metrics.gauge("universa_ledger_last_sweep_seconds", "duration of the last sweep",
+                      () -> sweeper.getLastSweepTime().toNanos() / 1e9);
+        registerExecutorMetrics("download", downloadExecutor);
+        registerExecutorMetrics("check", checkExecutor);
+        registerExecutorMetrics("commit", commitExecutor);
+        registerExecutorMetrics("timer", timerExecutor);
+        network.registerMetrics(metrics);
+    }
+
+    private void registerExecutorMetrics(String purpose, ExecutorService executor) {
+        // virtual thread executors have no queue to report
+        if (executor instanceof ThreadPoolExecutor) {
+            ThreadPoolExecutor tpe = (ThreadPoolExecutor) executor;
+            metrics.gauge("universa_executor_queue_depth", "tasks waiting in the executor queue",
+                          () -> tpe.getQueue().size(), "pool", purpose);
+            metrics.gauge("universa_executor_active_threads", "threads executing tasks",
+                          () -> tpe.getActiveCount(), "pool", purpose);
+        }
+    }
+
+    private ExecutorService createExecutor(String purpose, int threads, boolean virtual) {
+        if (virtual) {
+            ExecutorService es = createVirtualThreadExecutor();
+            if (es != null)
+                return es;
+            log.d("virtual threads are not supported, using pool for " + purpose);
+        }
+        String prefix = "node-" + myInfo.getNumber() + "-" + purpose + "-";
+        AtomicInteger counter = new AtomicInteger();
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                                                             new LinkedBlockingQueue<>(), r -> {
+            Thread t = new Thread(r, prefix + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Virtual threads are available since Java 21, and we support Java 8, so we look them up dynamically.
+     *
+     * @return new virtual-thread-per-task executor or null if the runtime does not support it
+     */
+    private static ExecutorService createVirtualThreadExecutor() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
     /**
      * Asynchronous (non blocking) check/register item state. IF the item is new and eligible to process with the
      * consensus, the processing will be started immediately. If it is already processing, the current state will be
@@ -66,11 +286,53 @@ public class Node {
      *
      * @param item to register/check state
      *
+     * If the node is overloaded with elections, the registration could wait for a short time, and if it is still
+     * overloaded, returns {@link ItemResult#UNDEFINED} with {@link Errors#NOT_READY} error, and the item is not
+     * processed. The client should try again later.
+     *
      * @return current (or last known) item state
      */
     public @NonNull ItemResult registerItem(Approvable item) {
-        Object x = checkItemInternal(item.getId(), item, true);
-        return (x instanceof ItemResult) ? (ItemResult) x : ((ItemProcessor) x).getResult();
+        return registerItem(item, true);
+    }
+
+    /**
+     * Same as {@link #registerItem(Approvable)}, but the registration could be told not to wait for the election slot
+     * if the node is overloaded, e.g. for the items of a batch.
+     *
+     * @param item to register/check state
+     * @param wait true to wait for the slot for a short time, false to reject at once
+     *
+     * @return current (or last known) item state
+     */
+    public @NonNull ItemResult registerItem(Approvable item, boolean wait) {
+        HashId itemId = item.getId();
+        // items already processed or being processed are answered without the permit, even if the node is overloaded
+        Object known = checkItemInternal(itemId, item, false);
+        if (known instanceof ItemProcessor)
+            return ((ItemProcessor) known).getResult();
+        if (known != ItemResult.UNDEFINED)
+            return (ItemResult) known;
+        AdmissionController.Permit permit;
+        try {
+            permit = wait ? admission.acquire() : admission.tryAcquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            permit = null;
+        }
+        if (permit == null) {
+            debug("overloaded, rejecting " + itemId);
+            ItemResult ir = new ItemResult(ItemState.UNDEFINED, false, ZonedDateTime.now(clock), ZonedDateTime.now(clock));
+            ir.errors = new ArrayList<>();
+            ir.errors.add(new ErrorRecord(Errors.NOT_READY, "", "too many elections, please call again after a while"));
+            return ir;
+        }
+        try {
+            Object x = checkItemInternal(itemId, item, true, permit);
+            return (x instanceof ItemResult) ? (ItemResult) x : ((ItemProcessor) x).getResult();
+        } finally {
+            permit.releaseIfUnused();
+        }
     }
 
     /**
@@ -85,7 +347,7 @@ public class Node {
         ItemResult ir = (x instanceof ItemResult) ? (ItemResult) x : ((ItemProcessor) x).getResult();
         ItemInformer.Record record = informer.takeFor(itemId);
         if( record != null )
-            ir.errors = record.errorRecords;
+            ir.errors = record.getErrorRecords();
         return ir;
     }
 
@@ -108,11 +370,25 @@ public class Node {
     }
 
     private final void onNotification(Notification notification) {
+        if (notification instanceof BatchVoteNotification) {
+            batchesReceived.inc();
+            // each item is voted for separately
+            ((BatchVoteNotification) notification).expand().forEach(this::onNotification);
+            return;
+        }
         if (notification instanceof ItemNotification) {
             ItemNotification in = (ItemNotification) notification;
+            // the pushed item could be needed, so such notifications are always processed
+            if (!(in instanceof ItemBodyNotification) && onNotificationFast(in))
+                return;
             // get processor, create if need
             // register my vote
             Object x = checkItemInternal(in.getItemId(), null, true);
+            if (x == null) {
+                // we are overloaded: the sender will poll us again later
+                debug("overloaded, ignoring notification on " + in.getItemId());
+                return;
+            }
             NodeInfo from = in.getFrom();
             if (x instanceof ItemResult) {
                 ItemResult r = (ItemResult) x;
@@ -132,13 +408,16 @@ public class Node {
                     debug("notification from " + in.getFrom() + ": " + in.getItemId() + ": " + in.getItemResult() + ", " + in.answerIsRequested());
                     debug("my state in it " + ip.getState() + " and I have a copy: " + (ip.item != null));
                     // we might still need to download and process it
+                    if (in instanceof ItemBodyNotification)
+                        ip.receivePushed((ItemBodyNotification) in);
                     if (result.haveCopy) {
 //                    debug("reported source for "+ip.itemId+": "+in.getFrom());
                         ip.addToSources(from);
                     }
-                    if (result.state != ItemState.PENDING)
+                    if (result.state != ItemState.PENDING) {
                         ip.vote(from, result.state);
-                    else
+                        ip.seenVotes.add(from.getNumber(), result.state, result.haveCopy);
+                    } else
                         log.e("-- pending vote on " + in.getItemId() + " from " + from);
                     // We answer only if (1) answer is requested and (2) we have position on the subject:
                     if (in.answerIsRequested() && ip.record.getState() != ItemState.PENDING) {
@@ -158,6 +437,39 @@ public class Node {
         }
     }
 
+    /**
+     * Handle the notification without locking the item, if it repeats the vote already registered or the election is
+     * finished and its result is still in memory. Most notifications are such, as nodes poll each other until they
+     * get all the votes. The answer is sent if requested, the same way the full processing does.
+     *
+     * @return true if the notification is handled
+     */
+    private boolean onNotificationFast(ItemNotification in) {
+        HashId itemId = in.getItemId();
+        NodeInfo from = in.getFrom();
+        ItemResult result = in.getItemResult();
+        ItemProcessor ip = processors.get(itemId);
+        ItemResult answer;
+        if (ip != null) {
+            if (!ip.seenVotes.contains(from.getNumber(), result.state, result.haveCopy))
+                return false;
+            repeatedVotes.inc();
+            // the state could be a bit outdated, the fresh one is broadcast anyway when it changes
+            answer = ip.getResult();
+            if (answer.state == ItemState.PENDING)
+                return true;
+        } else {
+            answer = recentResults.get(itemId);
+            if (answer == null)
+                return false;
+            recentAnswers.inc();
+        }
+        // we have the vote of the node, so we need no answer
+        if (in.answerIsRequested())
+            network.deliver(from, new ItemNotification(myInfo, itemId, answer, false));
+        return true;
+    }
+
     /**
      * Optimized for various usages, check the item, start processing as need, return object depending on the current
      * state. Note that actuall error codes are set to the item itself.
@@ -168,9 +480,20 @@ public class Node {
      *
      * @return instance od {@link ItemProcessor} if the item is being processed (also if it was started by the call),
      *         {@link ItemResult} if it is already processed or can't be processed, say, created_at field is too far in
-     *         the past, in which case result state will be {@link ItemState#DISCARDED}.
+     *         the past, in which case result state will be {@link ItemState#DISCARDED}, or null if the processing
+     *         should be started but the node is overloaded.
      */
     protected Object checkItemInternal(@NonNull HashId itemId, Approvable item, boolean autoStart) {
+        return checkItemInternal(itemId, item, autoStart, null);
+    }
+
+    /**
+     * Same as {@link #checkItemInternal(HashId, Approvable, boolean)}, but uses the already acquired permit if new
+     * election should be started. Otherwise, the election started by the call is admitted as requested by the other
+     * node.
+     */
+    private Object checkItemInternal(@NonNull HashId itemId, Approvable item, boolean autoStart,
+                                     AdmissionController.Permit clientPermit) {
         try {
             // first, let's lock to the item id:
             return ItemLock.synchronize(itemId, (lock) -> {
@@ -192,17 +515,20 @@ public class Node {
                 // we have no consensus on it. We might need to find one, after some precheck.
                 // The contract should not be too old to process:
                 if (item != null &&
-                        item.getCreatedAt().isBefore(ZonedDateTime.now().minus(config.getMaxItemCreationAge()))) {
+                        item.getCreatedAt().isBefore(ZonedDateTime.now(clock).minus(config.getMaxItemCreationAge()))) {
                     // it is too old - client must manually check other nodes. For us it's unknown
                     item.addError(Errors.EXPIRED, "created_at", "too old");
                     return ItemResult.DISCARDED;
                 }
 
                 if (autoStart) {
-                    if (item != null) {
-                        synchronized (cache) { cache.put(item); }
-                    }
-                    ItemProcessor processor = new ItemProcessor(itemId, item, lock);
+                    AdmissionController.Permit permit = clientPermit != null ? clientPermit : admission.acquireForPeer();
+                    if (permit == null)
+                        return null;
+                    permit.claim();
+                    if (item != null)
+                        cache.put(item);
+                    ItemProcessor processor = new ItemProcessor(itemId, item, (ItemLock) lock, permit);
                     processors.put(itemId, processor);
                     return processor;
                 } else {
@@ -231,14 +557,11 @@ public class Node {
      * @return cached item or null if it is missing
      */
     public Approvable getItem(HashId itemId) {
-        synchronized (cache) {
-            @Nullable Approvable i = cache.get(itemId);
-            if (i == null) {
-                debug("cache miss: ");
-            }
-            return i;
+        @Nullable Approvable i = cache.get(itemId);
+        if (i == null) {
+            debug("cache miss: ");
         }
-//        return cache.get(itemId);
+        return i;
     }
 
     public int countElections() {
@@ -253,6 +576,28 @@ public class Node {
         return ledger;
     }
 
+    public AdmissionController getAdmission() {
+        return admission;
+    }
+
+    public MetricsRegistry getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return notifications sent to poll the nodes that did not vote
+     */
+    long getPollsSent() {
+        return pollsSent.get();
+    }
+
+    /**
+     * @return polls the fixed rate polling would have sent instead, see {@link PollSchedule}
+     */
+    long getFixedRatePolls() {
+        return fixedRatePolls.get();
+    }
+
     private class ItemProcessor {
 
         private Approvable item;
@@ -261,80 +606,231 @@ public class Node {
         private Set<NodeInfo> sources = new HashSet<>();
         private Instant expiresAt;
 
-        private Set<NodeInfo> positiveNodes = new HashSet<>();
-        private Set<NodeInfo> negativeNodes = new HashSet<>();
+        private final VoteSet votes = new VoteSet(network.getNodesCount());
+        // checked without the lock to skip the repeated notifications
+        // node numbers start from 1
+        private final SeenVotes seenVotes = new SeenVotes(network.getNodesCount() + 1);
         private List<StateRecord> lockedToRevoke = new ArrayList<>();
+        // taken in the revocation index, guarded by the mutex
+        private List<HashId> takenToRevoke = Collections.emptyList();
+        private long revokeOwner;
         private List<StateRecord> lockedToCreate = new ArrayList<>();
         private boolean consensusFound;
-        private final AsyncEvent<Void> downloadedEvent = new AsyncEvent<>();
         private final AsyncEvent<Void> doneEvent = new AsyncEvent<>();
 
-        private final Object mutex;
-        private ScheduledFuture<?> poller;
-        private ScheduledFuture<?> downloader;
+        private final ItemLock mutex;
+        private final AdmissionController.Permit permit;
+        private Scheduler.Task poller;
+        private PollSchedule pollSchedule;
+        private long pollingStartedAt;
+        private Scheduler.Task expirer;
+        private Scheduler.Task downloadRetry;
+        private Scheduler.Task downloadHedge;
+        // attempts in progress by the source, guarded by the mutex
+        private final Map<NodeInfo, CompletableFuture<Approvable>> downloads = new HashMap<>();
+        private boolean downloading = false;
+        // positive consensus is found, the item is needed to commit the election
+        private boolean commitPending = false;
+        private boolean committed = false;
+        private Scheduler.Task commitTimeout;
+        // the pushed item is being unpacked, so there is no need to download it
+        private boolean unpacking = false;
+        // the item was given to us by the client, not received from other node
+        private final boolean origin;
+        private boolean closed = false;
+        private final long startedAt = System.nanoTime();
 
-        public ItemProcessor(HashId itemId, Approvable item,Object lock) {
-            mutex = lock;
+        public ItemProcessor(HashId itemId, Approvable item, ItemLock lock, AdmissionController.Permit permit) {
+            // the same mutex should be used while the item is processed, so we pin it until close():
+            mutex = lock.retain();
+            this.permit = permit;
             this.itemId = itemId;
+            electionsStarted.inc();
+            origin = item != null;
             if (item == null)
                 item = cache.get(itemId);
             this.item = item;
             record = ledger.findOrCreate(itemId);
-            expiresAt = Instant.now().plus(config.getMaxElectionsTime());
+            expiresAt = Instant.now(clock).plus(config.getMaxElectionsTime());
             consensusFound = false;
+            expirer = timer.schedule(() -> expire(), config.getMaxElectionsTime(), commitExecutor);
             if (this.item != null)
-                executorService.submit(() -> itemDownloaded());
+                elections.execute(checkLane(), () -> itemDownloaded());
         }
 
         private boolean isExpired() {
-            return expiresAt.isBefore(Instant.now());
+            return expiresAt.isBefore(Instant.now(clock));
         }
 
         private long getMillisLeft() {
-            return expiresAt.toEpochMilli() - Instant.now().toEpochMilli();
+            return expiresAt.toEpochMilli() - Instant.now(clock).toEpochMilli();
         }
 
+        /**
+         * Start download from the best of the known sources which is not being downloaded from yet. Unless the limit of
+         * parallel downloads is reached, the next source is requested by the timer if this one does not answer in the
+         * usual download time, so a single slow node can't delay the election. The first valid answer wins, the rest
+         * are cancelled.
+         */
         private void download() {
-            while (!isExpired() && item == null) {
-                if (sources.isEmpty()) {
+            List<NodeInfo> candidates;
+            // Important: it could be disturbed by notifications
+            synchronized (sources) {
+                candidates = new ArrayList<>(sources);
+            }
+            synchronized (mutex) {
+                if (closed || isExpired() || item != null) {
+                    downloading = false;
+                    return;
+                }
+                if (candidates.isEmpty()) {
                     log.e("empty sources for download taks, stopping");
+                    downloading = false;
                     return;
-                } else {
-                    try {
-                        // first we have to wait for sources
-                        NodeInfo source;
-                        // Important: it could be disturbed by notifications
-                        synchronized (sources) {
-                            source = Do.sample(sources);
-                        }
-                        item = network.getItem(itemId, source, config.getMaxGetItemTime());
-                        if (item != null) {
-                            debug("downloaded " + itemId + " from " + source);
-                            itemDownloaded();
-                            return;
-                        } else {
-                            debug("failed to download " + itemId + " from " + source);
-                            Thread.sleep(100);
-                        }
-                    } catch (InterruptedException e) {
-                        e.printStackTrace();
+                }
+                if (downloads.size() >= config.getMaxParallelDownloads())
+                    return;
+                NodeInfo source = downloadStatistics.choose(candidates, downloads.keySet());
+                if (source == null)
+                    // all known sources are being asked, new sources will pulse the download
+                    return;
+                Instant started = clock.instant();
+                CompletableFuture<Approvable> attempt =
+                        network.getItemAsync(itemId, source, config.getMaxGetItemTime(), downloadExecutor);
+                downloads.put(source, attempt);
+                attempt.whenComplete((x, error) -> {
+                    // cancelled as other source has answered
+                    if (!attempt.isCancelled())
+                        downloaded(source, Duration.between(started, clock.instant()).toNanos(), x);
+                });
+                if (downloads.size() < config.getMaxParallelDownloads()) {
+                    if (downloadHedge != null)
+                        downloadHedge.cancel();
+                    downloadHedge = timer.schedule(() -> download(),
+                                                   Duration.ofNanos(downloadStatistics.getHedgeDelayNanos()),
+                                                   downloadExecutor);
+                }
+            }
+        }
+
+        /**
+         * Download attempt is finished. When all attempts have failed, the next round is scheduled with the timer, so
+         * no thread is blocked between attempts.
+         *
+         * @param x downloaded item, null if failed
+         */
+        private void downloaded(NodeInfo source, long nanos, @Nullable Approvable x) {
+            boolean valid = x != null && itemId.equals(x.getId());
+            if (valid) {
+                downloadStatistics.onSuccess(source, nanos);
+                downloadLatency.observeNanos(nanos);
+            } else {
+                downloadStatistics.onFailure(source, nanos);
+                downloadFailures.inc();
+                if (x != null)
+                    log.e("node " + source + " returned wrong item for " + itemId);
+            }
+            synchronized (mutex) {
+                downloads.remove(source);
+                if (closed || item != null)
+                    return;
+                if (!valid) {
+                    debug("failed to download " + itemId + " from " + source);
+                    if (downloads.isEmpty()) {
+                        cancelDownloads();
+                        downloadRetry = timer.schedule(() -> download(), Duration.ofMillis(100), downloadExecutor);
                     }
+                    return;
+                }
+                debug("downloaded " + itemId + " from " + source);
+                item = x;
+                downloading = false;
+                cancelDownloads();
+            }
+            elections.execute(checkLane(), () -> itemDownloaded());
+        }
+
+        /**
+         * @return lane to check the item in: the items of our clients are checked in their own lane, and of the items
+         * of other nodes those having almost enough votes to finish the election are checked first
+         */
+        private ElectionScheduler.Lane checkLane() {
+            if (origin)
+                return ElectionScheduler.Lane.CLIENT;
+            synchronized (mutex) {
+                if (votes.positiveCount() * 2 >= config.getPositiveConsensus() ||
+                        votes.negativeCount() * 2 >= config.getNegativeConsensus())
+                    return ElectionScheduler.Lane.NEAR_QUORUM;
+            }
+            return ElectionScheduler.Lane.PEER;
+        }
+
+        /**
+         * Cancel pending download attempts and timers, should be called under the mutex.
+         */
+        private void cancelDownloads() {
+            if (downloadHedge != null)
+                downloadHedge.cancel();
+            if (downloadRetry != null)
+                downloadRetry.cancel();
+            downloads.values().forEach(f -> f.cancel(true));
+            downloads.clear();
+        }
+
+        /**
+         * Take the items this one revokes in the {@link RevocationIndex}. If some of them are being revoked by other
+         * elections, errors are added to the item, so it is declined without asking the ledger.
+         *
+         * @return false if there are conflicts
+         */
+        private boolean takeRevoking() {
+            Set<Approvable> revoking = item.getRevokingItems();
+            if (revoking.isEmpty())
+                return true;
+            List<HashId> ids = new ArrayList<>();
+            revoking.forEach(a -> ids.add(a.getId()));
+            long owner = record.getRecordId();
+            // the locks restored from the ledger on start could be released there since
+            for (HashId id : ids) {
+                if (revocations.isRestored(id) && revocations.checkRestored(id, ledger.getRecord(id)))
+                    debug("dropped the stale revocation lock of " + id);
+            }
+            Set<HashId> conflicting = revocations.tryLock(ids, owner);
+            if (!conflicting.isEmpty()) {
+                for (HashId id : conflicting)
+                    item.addError(Errors.BAD_REVOKE, id.toString(), "is being revoked by other item");
+                return false;
+            }
+            synchronized (mutex) {
+                if (closed) {
+                    revocations.release(ids, owner);
+                    return false;
                 }
+                takenToRevoke = ids;
+                revokeOwner = owner;
             }
+            return true;
         }
 
         private final void itemDownloaded() {
-            synchronized (cache) { cache.put(item); }
+            cache.put(item);
             checkItem();
-            downloadedEvent.fire();
             startPolling();
+            boolean commit;
+            synchronized (mutex) {
+                commit = commitPending;
+            }
+            // the consensus was found before we've got the item
+            if (commit)
+                elections.execute(ElectionScheduler.Lane.FINISH, () -> commit());
         }
 
         private void pulseDownload() {
             synchronized (mutex) {
-                if (item == null && (downloader == null || downloader.isDone())) {
+                if (item == null && !downloading && !unpacking && !closed) {
                     debug("submitting download");
-                    downloader = (ScheduledFuture<?>) executorService.submit(() -> download());
+                    downloading = true;
+                    downloadExecutor.submit(() -> download());
                 }
             }
         }
@@ -342,9 +838,12 @@ public class Node {
         private final void startPolling() {
             // at this poing the item is with us, so we can start
             synchronized (mutex) {
-                if (!consensusFound) {
-                    long millis = config.getPollTime().toMillis();
-                    poller = executorService.scheduleAtFixedRate(() -> poll(), millis, millis, TimeUnit.MILLISECONDS);
+                if (!consensusFound && !closed) {
+                    pollingStartedAt = clock.millis();
+                    pollSchedule = new PollSchedule(network.getNodesCount(), config.getFirstPollTime().toMillis(),
+                                                    config.getPollTime().toMillis(),
+                                                    config.getMaxPollTime().toMillis());
+                    poller = timer.schedule(() -> poll(), config.getFirstPollTime(), timerExecutor);
                 }
             }
         }
@@ -356,30 +855,61 @@ public class Node {
                 throw new RuntimeException("double check!");
 
             ItemState newState;
+            // time spent in the ledger is reported to the admission controller so it can shrink the limit
+            long ledgerNanos = 0;
             debug("Checking " + itemId + " state was " + record.getState());
             // Check the internal state
             // Too bad if basic check isn't passed, we will not process it further
-            if (item.check()) {
+            if (item.check() && takeRevoking()) {
+                // all the ledger operations below are bulk, so the number of requests does not depend on the
+                // number of inputs and outputs
                 // check the referenced items
-                for (HashId id : item.getReferencedItems()) {
-                    if (!ledger.isApproved(id)) {
-                        item.addError(Errors.BAD_REF, id.toString(), "reference not approved");
+                Set<HashId> referenced = item.getReferencedItems();
+                if (!referenced.isEmpty()) {
+                    long started = System.nanoTime();
+                    Map<HashId, StateRecord> references = ledger.getRecords(referenced);
+                    ledgerNanos += System.nanoTime() - started;
+                    for (HashId id : referenced) {
+                        StateRecord r = references.get(id);
+                        if (r == null || !r.getState().isApproved()) {
+                            item.addError(Errors.BAD_REF, id.toString(), "reference not approved");
+                        }
                     }
                 }
                 // check revoking items
-                for (Approvable a : item.getRevokingItems()) {
-                    StateRecord r = record.lockToRevoke(a.getId());
-                    if (r == null) {
-                        item.addError(Errors.BAD_REVOKE, a.getId().toString(), "can't revoke");
-                    } else
-                        lockedToRevoke.add(r);
+                Set<Approvable> revoking = item.getRevokingItems();
+                if (!revoking.isEmpty()) {
+                    List<HashId> ids = new ArrayList<>();
+                    revoking.forEach(a -> ids.add(a.getId()));
+                    long started = System.nanoTime();
+                    Map<HashId, StateRecord> locked = record.lockToRevokeAll(ids);
+                    // the state of the revoked items is changed now
+                    ids.forEach(recentResults::remove);
+                    ledgerNanos += System.nanoTime() - started;
+                    for (Approvable a : revoking) {
+                        StateRecord r = locked.get(a.getId());
+                        if (r == null) {
+                            item.addError(Errors.BAD_REVOKE, a.getId().toString(), "can't revoke");
+                        } else
+                            lockedToRevoke.add(r);
+                    }
                 }
                 // check new items
+                List<Approvable> goodNewItems = new ArrayList<>();
                 for (Approvable newItem : item.getNewItems()) {
                     if (!newItem.check()) {
                         item.addError(Errors.BAD_NEW_ITEM, newItem.getId().toString(), "bad new item: not passed check");
-                    } else {
-                        StateRecord r = record.createOutputLockRecord(newItem.getId());
+                    } else
+                        goodNewItems.add(newItem);
+                }
+                if (!goodNewItems.isEmpty()) {
+                    List<HashId> ids = new ArrayList<>();
+                    goodNewItems.forEach(a -> ids.add(a.getId()));
+                    long started = System.nanoTime();
+                    Map<HashId, StateRecord> created = record.createOutputLockRecords(ids);
+                    ledgerNanos += System.nanoTime() - started;
+                    for (Approvable newItem : goodNewItems) {
+                        StateRecord r = created.get(newItem.getId());
                         if (r == null) {
                             item.addError(Errors.NEW_ITEM_EXISTS, newItem.getId().toString(), "new item existst in ledger");
                         } else {
@@ -399,37 +929,121 @@ public class Node {
                 informer.inform(item);
             }
             record.setExpiresAt(item.getExpiresAt());
+            long started = System.nanoTime();
             record.save();
+            ledgerNanos += System.nanoTime() - started;
+            admission.onLedgerLatency(ledgerNanos);
             vote(myInfo, record.getState());
             broadcastMyState();
         }
 
-        private final void poll() {
+        /**
+         * Called by the timer when the election time is over. As expiration could be extended meanwhile, it checks
+         * the time again and reschedules self if need.
+         */
+        private final void expire() {
             synchronized (mutex) {
-                if (consensusFound)
+                if (consensusFound || closed)
                     return;
-                if (isExpired()) {
-                    // cancel by timeout expired
-                    debug("consensus not found in maximum allowed time, cancelling " + itemId);
-                    consensusFound = true;
-                    rollbackChanges(ItemState.UNDEFINED);
-                    poller.cancel(false);
-                    if (downloader != null)
-                        downloader.cancel(false);
-                    close();
+                if (!isExpired()) {
+                    // less than a millisecond left should not reschedule it immediately again and again
+                    expirer = timer.schedule(() -> expire(), Duration.ofMillis(Math.max(1, getMillisLeft())),
+                                             commitExecutor);
                     return;
                 }
+                // cancel by timeout expired
+                debug("consensus not found in maximum allowed time, cancelling " + itemId);
+                consensusFound = true;
+                rollbackChanges(ItemState.UNDEFINED);
+            }
+        }
+
+        /**
+         * Requery the nodes that did not yet answered us and are due to be polled, see {@link PollSchedule}, then
+         * schedule the next poll to the earliest due time.
+         */
+        private final void poll() {
+            synchronized (mutex) {
+                if (consensusFound || closed)
+                    return;
             }
-            // at this point we should requery the nodes that did not yet answered us
             Notification notification = new ItemNotification(myInfo, itemId, getResult(), true);
+            // deliver does not block, so we can do it under the lock
+            synchronized (mutex) {
+                if (consensusFound || closed)
+                    return;
+                long now = clock.millis() - pollingStartedAt;
+                long[] nextPoll = {Long.MAX_VALUE};
+                network.eachNode(node -> {
+                    int number = node.getNumber();
+                    if (votes.hasVoted(number))
+                        return;
+                    long fixed = pollSchedule.poll(number, now, network.isReachable(node));
+                    if (fixed >= 0) {
+                        network.deliver(node, notification);
+                        pollsSent.inc();
+                        fixedRatePolls.inc(fixed);
+                    }
+                    nextPoll[0] = Math.min(nextPoll[0], pollSchedule.nextPoll(number));
+                });
+                if (nextPoll[0] != Long.MAX_VALUE)
+                    poller = timer.schedule(() -> poll(), Duration.ofMillis(Math.max(1, nextPoll[0] - now)),
+                                            timerExecutor);
+            }
+        }
+
+        /**
+         * Count the polls the fixed rate polling would have sent to the nodes that never voted. Should be called
+         * under the mutex.
+         */
+        private void countSkippedPolls() {
+            if (pollSchedule == null)
+                return;
+            long now = clock.millis() - pollingStartedAt;
             network.eachNode(node -> {
-                if (!positiveNodes.contains(node) && !negativeNodes.contains(node))
-                    network.deliver(node, notification);
+                if (!votes.hasVoted(node.getNumber()))
+                    fixedRatePolls.inc(pollSchedule.pollsSince(node.getNumber(), now));
             });
         }
 
         private final void broadcastMyState() {
-            network.broadcast(myInfo, new ItemNotification(myInfo, itemId, getResult(), true));
+            ItemResult result = getResult();
+            byte[] packed = origin && config.getMaxPushedItemSize() > 0 ? cache.getPacked(itemId) : null;
+            if (packed != null && packed.length <= config.getMaxPushedItemSize()) {
+                // we've got it from the client, so nobody else has it: push it with the first notification
+                itemsPushed.inc();
+                network.broadcast(myInfo, new ItemBodyNotification(myInfo, itemId, result, true, packed));
+            } else
+                network.broadcast(myInfo, new ItemNotification(myInfo, itemId, result, true));
+        }
+
+        /**
+         * Use the item pushed by the other node instead of downloading it. Unpacking takes time, so it is done by the
+         * check executor; meanwhile the download is not started. Should be called under the mutex.
+         */
+        private void receivePushed(ItemBodyNotification notification) {
+            if (item != null || unpacking || closed)
+                return;
+            unpacking = true;
+            elections.execute(checkLane(), () -> {
+                Approvable x = notification.unpackItem();
+                synchronized (mutex) {
+                    unpacking = false;
+                    if (closed || item != null)
+                        return;
+                    if (x == null) {
+                        // will download it from the known sources
+                        pulseDownload();
+                        return;
+                    }
+                    debug("received pushed " + itemId + " from " + notification.getFrom());
+                    item = x;
+                    downloading = false;
+                    cancelDownloads();
+                }
+                pushedItemsUsed.inc();
+                itemDownloaded();
+            });
         }
 
         private final void vote(NodeInfo node, ItemState state) {
@@ -438,31 +1052,22 @@ public class Node {
             synchronized (mutex) {
                 if (consensusFound)
                     return;
-                Set<NodeInfo> add, remove;
-                if (state.isPositive()) {
-                    add = positiveNodes;
-                    remove = negativeNodes;
-                } else {
-                    add = negativeNodes;
-                    remove = positiveNodes;
-                }
-                add.add(node);
-                remove.remove(node);
-                if (negativeNodes.size() >= config.getNegativeConsensus()) {
+                votes.vote(node.getNumber(), state.isPositive());
+                if (votes.negativeCount() >= config.getNegativeConsensus()) {
                     consensusFound = true;
                     negativeConsenus = true;
-                } else if (positiveNodes.size() >= config.getPositiveConsensus()) {
+                } else if (votes.positiveCount() >= config.getPositiveConsensus()) {
                     consensusFound = positiveConsenus = true;
                 }
-                debug("vote for " + itemId + " from " + node + ": " + state + " > " + positiveNodes.size() + "/" +
-                              negativeNodes.size() + " consFound=" + consensusFound + ": positive=" + positiveConsenus);
+                debug("vote for " + itemId + " from " + node + ": " + state + " > " + votes +
+                              " consFound=" + consensusFound + ": positive=" + positiveConsenus);
                 if (!consensusFound)
                     return;
             }
             if (positiveConsenus) {
                 approveAndCommit();
             } else if (negativeConsenus) {
-                rollbackChanges(ItemState.DECLINED);
+                elections.execute(ElectionScheduler.Lane.FINISH, () -> rollbackChanges(ItemState.DECLINED));
             } else
                 throw new RuntimeException("error: consensus reported without consensus");
         }
@@ -471,34 +1076,49 @@ public class Node {
             // todo: fix logic to surely copy approving item dependency. e.g. download original or at least dependencies
             // first we need to flag our state as approved
             setState(ItemState.APPROVED);
-            executorService.submit(() -> downloadAndCommit());
-        }
-
-        private void downloadAndCommit() {
-            // it may happen that consensus is found earlier than item is download
-            // we still need item to fix all its relations:
-            try {
+            synchronized (mutex) {
                 if (item == null) {
-                    // If positive consensus os found, we can spend more time for final download, and can try
-                    // all the network as the source:
-                    expiresAt = Instant.now().plus(config.getMaxDownloadOnApproveTime());
-                    downloadedEvent.await(getMillisLeft());
+                    // it may happen that consensus is found earlier than item is download, but we still need item
+                    // to fix all its relations. If positive consensus os found, we can spend more time for final
+                    // download, and can try all the network as the source. The item will be committed when
+                    // downloaded, or the record will be destroyed when the time is over, no thread waits for it:
+                    expiresAt = Instant.now(clock).plus(config.getMaxDownloadOnApproveTime());
+                    commitPending = true;
+                    commitTimeout = timer.schedule(() -> commit(), Duration.ofMillis(getMillisLeft()),
+                                                   commitExecutor);
+                    return;
                 }
+            }
+            elections.execute(ElectionScheduler.Lane.FINISH, () -> commit());
+        }
+
+        private void commit() {
+            Approvable item;
+            synchronized (mutex) {
+                if (committed)
+                    return;
+                committed = true;
+                if (commitTimeout != null)
+                    commitTimeout.cancel();
+                item = this.item;
+            }
+            if (item != null) {
                 // We use the caching capability of ledger so we do not get records from
                 // lockedToRevoke/lockedToCreate, as, due to conflicts, these could differ from what the item
                 // yields. We just clean them up afterwards:
                 for (Approvable a : item.getRevokingItems()) {
                     // The record may not exist due to ledger desync, so we create it if need
                     StateRecord r = ledger.findOrCreate(a.getId());
+                    recentResults.remove(a.getId());
                     r.setState(ItemState.REVOKED);
-                    r.setExpiresAt(ZonedDateTime.now().plus(config.getRevokedItemExpiration()));
+                    r.setExpiresAt(ZonedDateTime.now(clock).plus(config.getRevokedItemExpiration()));
                     r.save();
                 }
-                for (Approvable item : item.getNewItems()) {
+                for (Approvable newItem : item.getNewItems()) {
                     // The record may not exist due to ledger desync too, so we create it if need
-                    StateRecord r = ledger.findOrCreate(item.getId());
+                    StateRecord r = ledger.findOrCreate(newItem.getId());
                     r.setState(ItemState.APPROVED);
-                    r.setExpiresAt(item.getExpiresAt());
+                    r.setExpiresAt(newItem.getExpiresAt());
                     r.save();
                 }
                 lockedToCreate.clear();
@@ -507,8 +1127,8 @@ public class Node {
                 if (record.getState() != ItemState.APPROVED) {
                     log.e("record is not approved2 " + record.getState());
                 }
-                debug("approval done for " + itemId+ " : "+getState() + " have copy " + (item == null));
-            } catch (TimeoutException | InterruptedException e) {
+                debug("approval done for " + itemId+ " : "+getState());
+            } else {
                 debug("commit: failed to load item " + itemId + " ledger will not be altered, the record will be destroyed");
                 setState(ItemState.UNDEFINED);
                 record.destroy();
@@ -517,11 +1137,34 @@ public class Node {
         }
 
         private void close() {
+            synchronized (mutex) {
+                if (closed)
+                    return;
+                closed = true;
+            }
             debug("closing "+itemId+" : "+getState());
             doneEvent.fire();
-            if (poller != null)
-                poller.cancel(false);
+            synchronized (mutex) {
+                if (poller != null)
+                    poller.cancel();
+                countSkippedPolls();
+                if (commitTimeout != null)
+                    commitTimeout.cancel();
+                if (expirer != null)
+                    expirer.cancel();
+                cancelDownloads();
+                revocations.release(takenToRevoke, revokeOwner);
+                takenToRevoke = Collections.emptyList();
+            }
+            ItemState state = getState();
+            // late notifications are answered from memory
+            if (state == ItemState.APPROVED || state == ItemState.DECLINED)
+                recentResults.put(itemId, getResult());
             processors.remove(itemId);
+            permit.release(state == ItemState.APPROVED || state == ItemState.DECLINED);
+            metrics.histogram("universa_election_seconds", "election duration by the resulting state",
+                              "outcome", state.name().toLowerCase()).observeSince(startedAt);
+            mutex.release();
             debug("closed "+itemId.toBase64String());
         }
 
@@ -536,7 +1179,7 @@ public class Node {
         }
 
         private void rollbackChanges(ItemState newState) {
-            debug(" rollbacks to: " + itemId + " as " + newState + " consensus: " + positiveNodes.size() + "/" + negativeNodes.size());
+            debug(" rollbacks to: " + itemId + " as " + newState + " consensus: " + votes);
             ledger.transaction(() -> {
                 for (StateRecord r : lockedToRevoke)
                     r.unlock().save();
@@ -546,7 +1189,7 @@ public class Node {
                     r.unlock().save();
                 lockedToCreate.clear();
                 setState(newState);
-                ZonedDateTime expiration = ZonedDateTime.now()
+                ZonedDateTime expiration = ZonedDateTime.now(clock)
                         .plus(newState == ItemState.REVOKED ?
                                       config.getRevokedItemExpiration() : config.getDeclinedItemExpiration());
                 record.setExpiresAt(expiration);
@@ -569,7 +1212,7 @@ public class Node {
          * @return
          */
         private final boolean needsVoteFrom(NodeInfo node) {
-            return record.getState().isPending() && !positiveNodes.contains(node) && !negativeNodes.contains(node);
+            return record.getState().isPending() && !votes.hasVoted(node.getNumber());
         }
 
         private final void addToSources(NodeInfo node) {
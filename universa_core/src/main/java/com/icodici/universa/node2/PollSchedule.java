@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import java.util.Arrays;
+
+/**
+ * When to poll each node that has not yet voted for the item. Not thread-safe, should be used under the item mutex.
+ * <p>
+ * The first poll is sent soon, after the first poll time, as in the healthy network the vote is usually already on
+ * its way and only a lost packet is to be repeated. Then the interval starts from the poll time and doubles after
+ * each unanswered poll, up to the max poll time. Nodes that are known to be unreachable are polled with the max
+ * interval at once.
+ * <p>
+ * All times are milliseconds since the polling has started. To report the traffic saved, the schedule counts the polls
+ * the fixed rate polling with the poll time would have sent instead; the polls between the last one and the vote are
+ * not counted, so the number is a lower estimate.
+ */
+final class PollSchedule {
+
+    private final long firstPoll;
+    private final long poll;
+    private final long maxPoll;
+
+    // by node number, grown as needed
+    private long[] next;
+    private long[] last;
+    private long[] interval;
+
+    /**
+     * @param expectedNodes number of nodes in the network, the bigger node numbers are still accepted
+     * @param firstPoll     time of the first poll
+     * @param poll          interval after the first poll, also the interval of the fixed rate polling
+     * @param maxPoll       maximum interval
+     */
+    PollSchedule(int expectedNodes, long firstPoll, long poll, long maxPoll) {
+        this.poll = Math.max(1, poll);
+        this.maxPoll = Math.max(this.poll, maxPoll);
+        this.firstPoll = Math.min(Math.max(0, firstPoll), this.maxPoll);
+        next = new long[0];
+        last = new long[0];
+        interval = new long[0];
+        grow(expectedNodes);
+    }
+
+    /**
+     * Check whether the node should be polled now; if so, plan the next poll.
+     *
+     * @param node      number of the node
+     * @param now       current time
+     * @param reachable false if the node is known to be unreachable
+     *
+     * @return number of polls the fixed rate polling would have sent since the previous poll, or -1 if the node should
+     *         not be polled now
+     */
+    long poll(int node, long now, boolean reachable) {
+        if (node >= next.length)
+            grow(node + 1);
+        if (interval[node] == 0) {
+            // not polled yet
+            next[node] = reachable ? firstPoll : maxPoll;
+            interval[node] = -1;
+        }
+        if (now < next[node])
+            return -1;
+        long fixed = fixedPolls(last[node], now);
+        long i = interval[node] < 0 ? poll : Math.min(maxPoll, interval[node] * 2);
+        if (!reachable)
+            i = maxPoll;
+        interval[node] = i;
+        last[node] = now;
+        next[node] = now + i;
+        return fixed;
+    }
+
+    /**
+     * @return time of the next poll of the node, 0 if it is not planned yet
+     */
+    long nextPoll(int node) {
+        if (node >= next.length || interval[node] == 0)
+            return 0;
+        return next[node];
+    }
+
+    /**
+     * @return number of polls the fixed rate polling would have sent to the node since its last poll
+     */
+    long pollsSince(int node, long now) {
+        return fixedPolls(node < last.length ? last[node] : 0, now);
+    }
+
+    private long fixedPolls(long from, long to) {
+        return to / poll - from / poll;
+    }
+
+    private void grow(int size) {
+        if (size <= next.length)
+            return;
+        next = Arrays.copyOf(next, size);
+        last = Arrays.copyOf(last, size);
+        interval = Arrays.copyOf(interval, size);
+    }
+}
@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Results of the recently finished elections, to answer the late notifications about them without locking the item
+ * and reading the ledger. Holds up to the given number of results, the oldest are dropped first.
+ * <p>
+ * The result should be removed when the state of the item is changed by other election, e.g. it is being revoked.
+ * Reading does not lock.
+ */
+final class RecentResults {
+
+    private final int capacity;
+    private final ConcurrentHashMap<HashId, ItemResult> results = new ConcurrentHashMap<>();
+    // insertion order, guarded by itself; could contain ids already removed from the results
+    private final ArrayDeque<HashId> order = new ArrayDeque<>();
+
+    RecentResults(int capacity) {
+        this.capacity = capacity;
+    }
+
+    ItemResult get(HashId id) {
+        return results.get(id);
+    }
+
+    void put(HashId id, ItemResult result) {
+        if (capacity <= 0)
+            return;
+        synchronized (order) {
+            if (results.put(id, result) == null)
+                order.add(id);
+            while (order.size() > capacity)
+                results.remove(order.poll());
+        }
+    }
+
+    void remove(HashId id) {
+        results.remove(id);
+    }
+
+    int size() {
+        return results.size();
+    }
+}
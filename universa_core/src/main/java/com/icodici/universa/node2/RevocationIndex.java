@@ -0,0 +1,150 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.StateRecord;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Items being revoked by the elections of the node, by the revoked item id, with the ledger record id of the election
+ * that revokes it, the same as {@link StateRecord#getLockedByRecordId()}. The item that revokes anything already taken
+ * by another election is declined at once, without reading the ledger: with a burst of transactions that spend the
+ * same items only the first one goes to the ledger.
+ * <p>
+ * The ledger lock is still made, the index only guards it. When the node starts, the index is filled with the records
+ * locked in the ledger, see {@link #reconcile(Collection)}: the item registered again finds its pending ledger record
+ * and takes its locks back. The node does not resume the elections otherwise, so these restored locks are checked
+ * against the ledger again when they stop other elections, and dropped if the ledger does not hold them anymore.
+ */
+final class RevocationIndex {
+
+    private final ConcurrentHashMap<HashId, Long> owners = new ConcurrentHashMap<>();
+    private final Set<HashId> restored = ConcurrentHashMap.newKeySet();
+    private final AtomicLong conflicts = new AtomicLong();
+
+    /**
+     * Take all the items for the election, or none of them. The items are taken in the order of their ids, so of the
+     * concurrent elections revoking the same items at least one succeeds.
+     *
+     * @param ids   items to revoke
+     * @param owner ledger record id of the election
+     *
+     * @return items taken by other elections, empty if all the items are now taken by this one
+     */
+    Set<HashId> tryLock(Collection<HashId> ids, long owner) {
+        List<HashId> sorted = new ArrayList<>(ids);
+        Collections.sort(sorted);
+        List<HashId> taken = new ArrayList<>();
+        Set<HashId> conflicting = null;
+        for (HashId id : sorted) {
+            Long prev = owners.putIfAbsent(id, owner);
+            if (prev == null)
+                taken.add(id);
+            else if (prev == owner)
+                restored.remove(id);
+            else {
+                if (conflicting == null)
+                    conflicting = new HashSet<>();
+                conflicting.add(id);
+            }
+        }
+        if (conflicting == null)
+            return Collections.emptySet();
+        taken.forEach(id -> owners.remove(id, owner));
+        conflicts.incrementAndGet();
+        return conflicting;
+    }
+
+    /**
+     * Free the items taken by the election. Items taken by other elections are not affected.
+     */
+    void release(Collection<HashId> ids, long owner) {
+        ids.forEach(id -> {
+            if (owners.remove(id, owner))
+                restored.remove(id);
+        });
+    }
+
+    /**
+     * Add the records locked in the ledger, e.g. when the node starts. Expired records are skipped.
+     *
+     * @param lockedRecords records in the {@link ItemState#LOCKED} state
+     *
+     * @return number of the records added
+     */
+    int reconcile(Collection<StateRecord> lockedRecords) {
+        int count = 0;
+        for (StateRecord r : lockedRecords) {
+            if (r.getState() != ItemState.LOCKED || r.isExpired())
+                continue;
+            if (owners.putIfAbsent(r.getId(), r.getLockedByRecordId()) == null) {
+                restored.add(r.getId());
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return true if the item is taken by the lock restored from the ledger, not by the running election
+     */
+    boolean isRestored(HashId id) {
+        return restored.contains(id);
+    }
+
+    /**
+     * Drop the restored lock if the ledger record of the item does not hold it anymore: it is not locked by the same
+     * election, or the lock has expired, or the record is gone.
+     *
+     * @param id     of the item taken by the restored lock
+     * @param record current ledger record of the item, could be null
+     *
+     * @return true if the lock was dropped
+     */
+    boolean checkRestored(HashId id, StateRecord record) {
+        Long owner = owners.get(id);
+        if (owner == null || !restored.contains(id))
+            return false;
+        if (record != null && record.getState() == ItemState.LOCKED && record.getLockedByRecordId() == owner &&
+                !record.isExpired())
+            return false;
+        if (!owners.remove(id, owner))
+            return false;
+        restored.remove(id);
+        return true;
+    }
+
+    /**
+     * @return ledger record id of the election that revokes the item, 0 if none
+     */
+    long getOwner(HashId id) {
+        Long owner = owners.get(id);
+        return owner != null ? owner : 0;
+    }
+
+    int size() {
+        return owners.size();
+    }
+
+    /**
+     * @return number of elections that have not taken the items as they were taken by others
+     */
+    long getConflicts() {
+        return conflicts.get();
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import java.time.Duration;
+import java.util.concurrent.Executor;
+
+/**
+ * Delayed and periodic tasks of the node. In production it is the {@link HashedWheelTimer}; the simulation provides
+ * the one driven by its virtual clock.
+ */
+public interface Scheduler {
+
+    /**
+     * The scheduled task handle.
+     */
+    interface Task {
+        /**
+         * Cancel the task. Does not interrupt the task if it is already running.
+         *
+         * @return true if it was cancelled, false if it was already expired or cancelled
+         */
+        boolean cancel();
+    }
+
+    /**
+     * Run the task once after the delay with the specified executor.
+     */
+    Task schedule(Runnable task, Duration delay, Executor executor);
+
+    /**
+     * Run the task periodically, first time after the initial delay, until cancelled.
+     */
+    Task scheduleAtFixedRate(Runnable task, Duration initialDelay, Duration period);
+
+    /**
+     * Stop the scheduler. Pending tasks will not run.
+     */
+    void shutdown();
+}
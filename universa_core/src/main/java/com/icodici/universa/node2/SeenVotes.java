@@ -0,0 +1,92 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.node.ItemState;
+
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Last notification seen from each node about the item: its state and whether the node has a copy, one byte per node.
+ * Thread-safe and lock-free, so the repeated notifications could be recognized before the item is locked.
+ * <p>
+ * Node numbers start from 1 and could have gaps, so the array grows to the highest number seen. The growth is rare and
+ * is done under the lock; copied elements of the old array are marked as moved, so no notification is recorded there
+ * after the copy.
+ */
+final class SeenVotes {
+
+    private static final int SEEN = 0x80;
+    private static final int HAVE_COPY = 0x40;
+    // never a code of 4 nodes, as there are less than 63 states
+    private static final int MOVED = -1;
+
+    // 4 nodes per element, by node number, grown as needed
+    private volatile AtomicIntegerArray codes;
+
+    /**
+     * @param expectedNodes number of nodes in the network, the array grows if their numbers are greater
+     */
+    SeenVotes(int expectedNodes) {
+        codes = new AtomicIntegerArray((Math.max(0, expectedNodes) + 3) / 4);
+    }
+
+    /**
+     * @return true if the last notification from the node had the same state and copy flag
+     */
+    boolean contains(int node, ItemState state, boolean haveCopy) {
+        AtomicIntegerArray c = codes;
+        if (node < 0 || (node >>> 2) >= c.length())
+            return false;
+        int shift = (node & 3) * 8;
+        return ((c.get(node >>> 2) >>> shift) & 0xFF) == code(state, haveCopy);
+    }
+
+    /**
+     * Remember the notification from the node, replacing the previous one.
+     */
+    void add(int node, ItemState state, boolean haveCopy) {
+        if (node < 0)
+            return;
+        int index = node >>> 2;
+        int shift = (node & 3) * 8;
+        int mask = 0xFF << shift;
+        int value = code(state, haveCopy) << shift;
+        AtomicIntegerArray c = codes;
+        while (true) {
+            if (index >= c.length()) {
+                c = grow(index + 1);
+                continue;
+            }
+            int current = c.get(index);
+            if (current == MOVED)
+                // being grown, wait for the new array
+                c = grow(0);
+            else if (c.compareAndSet(index, current, (current & ~mask) | value))
+                return;
+        }
+    }
+
+    /**
+     * @return the array of at least this length
+     */
+    private synchronized AtomicIntegerArray grow(int length) {
+        AtomicIntegerArray c = codes;
+        if (c.length() >= length)
+            return c;
+        AtomicIntegerArray grown = new AtomicIntegerArray(length);
+        for (int i = 0; i < c.length(); i++)
+            grown.set(i, c.getAndSet(i, MOVED));
+        codes = grown;
+        return grown;
+    }
+
+    private static int code(ItemState state, boolean haveCopy) {
+        return SEEN | (haveCopy ? HAVE_COPY : 0) | state.ordinal();
+    }
+}
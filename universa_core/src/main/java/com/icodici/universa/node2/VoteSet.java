@@ -0,0 +1,122 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+/**
+ * Votes of the nodes in the single election. Node numbers (see {@link NodeInfo#getNumber()}) are small dense integers,
+ * so votes are kept in two bitsets indexed by the node number, and the number of votes is calculated with popcount.
+ * Recording a vote allocates nothing unless a node number is bigger than any seen before, and the whole set takes
+ * about 2 bits per node of the network.
+ * <p>
+ * Not thread safe, the caller should synchronize access to it.
+ */
+final class VoteSet {
+
+    private static final long[] EMPTY = new long[0];
+
+    private long[] positive;
+    private long[] negative;
+
+    /**
+     * Create set for the network of the given size.
+     *
+     * @param expectedNodes number of nodes in the network, the bigger node numbers are still accepted
+     */
+    VoteSet(int expectedNodes) {
+        int words = wordsFor(expectedNodes);
+        positive = words == 0 ? EMPTY : new long[words];
+        negative = words == 0 ? EMPTY : new long[words];
+    }
+
+    /**
+     * Register the vote of the node, replacing its previous vote if any.
+     *
+     * @param nodeNumber number of the voting node
+     * @param isPositive the vote
+     *
+     * @return true if the vote has been changed
+     */
+    boolean vote(int nodeNumber, boolean isPositive) {
+        if (nodeNumber < 0)
+            throw new IllegalArgumentException("bad node number: " + nodeNumber);
+        int index = nodeNumber >>> 6;
+        if (index >= positive.length)
+            grow(index + 1);
+        long bit = 1L << nodeNumber;
+        long[] add = isPositive ? positive : negative;
+        long[] remove = isPositive ? negative : positive;
+        boolean changed = (add[index] & bit) == 0;
+        add[index] |= bit;
+        remove[index] &= ~bit;
+        return changed;
+    }
+
+    /**
+     * @return true if the node has voted either way
+     */
+    boolean hasVoted(int nodeNumber) {
+        int index = nodeNumber >>> 6;
+        if (nodeNumber < 0 || index >= positive.length)
+            return false;
+        return ((positive[index] | negative[index]) & (1L << nodeNumber)) != 0;
+    }
+
+    boolean isPositive(int nodeNumber) {
+        return test(positive, nodeNumber);
+    }
+
+    boolean isNegative(int nodeNumber) {
+        return test(negative, nodeNumber);
+    }
+
+    int positiveCount() {
+        return count(positive);
+    }
+
+    int negativeCount() {
+        return count(negative);
+    }
+
+    /**
+     * @return approximate heap size taken by the set, in bytes
+     */
+    int footprint() {
+        // object header with two references plus two arrays with their headers
+        return 24 + 2 * (16 + positive.length * 8);
+    }
+
+    @Override
+    public String toString() {
+        return positiveCount() + "/" + negativeCount();
+    }
+
+    private static boolean test(long[] bits, int nodeNumber) {
+        int index = nodeNumber >>> 6;
+        return nodeNumber >= 0 && index < bits.length && (bits[index] & (1L << nodeNumber)) != 0;
+    }
+
+    private static int count(long[] bits) {
+        int n = 0;
+        for (long w : bits)
+            n += Long.bitCount(w);
+        return n;
+    }
+
+    private void grow(int words) {
+        long[] p = new long[words];
+        long[] n = new long[words];
+        System.arraycopy(positive, 0, p, 0, positive.length);
+        System.arraycopy(negative, 0, n, 0, negative.length);
+        positive = p;
+        negative = n;
+    }
+
+    private static int wordsFor(int nodes) {
+        return nodes <= 0 ? 0 : ((nodes - 1) >>> 6) + 1;
+    }
+}
@@ -35,6 +35,7 @@ import java.util.List;
 public class BasicHttpClient {
 
     private final static int DEFAULT_RECONNECT_TIMES = 3;
+    private final static int DEFAULT_READ_TIMEOUT = 5000;
 
     static private LogPrinter log = new LogPrinter("HTCL");
     private String connectMessage;
@@ -140,6 +141,22 @@ public class BasicHttpClient {
      * @throws IOException if the commadn can't be executed after several retries or the remote side reports error.
      */
     public Binder command(String name, Binder params) throws IOException {
+        return command(name, params, DEFAULT_READ_TIMEOUT);
+    }
+
+    /**
+     * Execute a command that could take longer than usual, e.g. batch commands. See {@link #command(String,
+     * Binder)}.
+     *
+     * @param name              command name
+     * @param params            command params
+     * @param readTimeoutMillis time to wait for the answer
+     *
+     * @return decrypted command answer
+     *
+     * @throws IOException if the commadn can't be executed after several retries or the remote side reports error.
+     */
+    public Binder command(String name, Binder params, int readTimeoutMillis) throws IOException {
         if (sessionKey == null)
             throw new IllegalStateException("session key is not yet setlled");
         Binder call = Binder.fromKeysValues(
@@ -149,7 +166,7 @@ public class BasicHttpClient {
         for (int i = 0; i < DEFAULT_RECONNECT_TIMES; i++) {
             ErrorRecord er = null;
             try {
-                Answer a = requestOrThrow("command",
+                Answer a = requestOrThrow(readTimeoutMillis, "command",
                                           "command", "command",
                                           "params", sessionKey.encrypt(Boss.pack(call)),
                                           "session_id", sessionId
@@ -202,8 +219,12 @@ public class BasicHttpClient {
     }
 
     private Answer requestOrThrow(String connect, Object... params) throws IOException {
+        return requestOrThrow(DEFAULT_READ_TIMEOUT, connect, params);
+    }
+
+    private Answer requestOrThrow(int readTimeoutMillis, String connect, Object... params) throws IOException {
 //        System.out.println("---> "+connect+": "+asList(params));
-        Answer answer = request(connect, params);
+        Answer answer = request(connect, Binder.fromKeysValues(params), readTimeoutMillis);
         if (answer.code >= 400 || answer.data.containsKey("errors"))
             throw new EndpointException(answer);
 //        System.out.println("<--- "+answer);
@@ -219,6 +240,10 @@ public class BasicHttpClient {
     }
 
     public Answer request(String path, Binder params) throws IOException {
+        return request(path, params, DEFAULT_READ_TIMEOUT);
+    }
+
+    public Answer request(String path, Binder params, int readTimeoutMillis) throws IOException {
         String charset = "UTF-8";
 
         byte[] data = Boss.pack(params);
@@ -232,7 +257,7 @@ public class BasicHttpClient {
         connection.setDoOutput(true);
 
         connection.setConnectTimeout(2000);
-        connection.setReadTimeout(5000);
+        connection.setReadTimeout(readTimeoutMillis);
         connection.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
         connection.setRequestProperty("User-Agent", "Universa JAVA API Client");
 
@@ -37,6 +37,12 @@ import java.util.concurrent.atomic.AtomicLong;
  * signed(node_key, server_nonce, encrypted(my_public_key, session_key))
  * <p>
  * Threadpool is used, and controlled by setting THREAD_LIMIT to some specific value, or to null for CachedThreadPool.
+ * <p>
+ * Requests are rate limited, so a single client can't take all the threads: each remote address has its own limit for
+ * all requests, and each client key has its own limit for commands, where the command costs as set by {@link
+ * #setCommandCost(String, int)}. The limits are checked before the request is decoded; the throttled requests are
+ * answered with {@link Errors#NOT_READY}. The client key limit is off unless set with {@link
+ * #setClientRateLimit(double, int)}.
  */
 public class BasicHttpServer {
 
@@ -54,6 +60,10 @@ public class BasicHttpServer {
     private final BufferedLogger log;
     private PrivateKey myKey;
 
+    private final RateLimiter<String> addressLimiter = new RateLimiter<>(200, 1000);
+    private final RateLimiter<PublicKey> clientLimiter = new RateLimiter<>(0, 200);
+    private final ConcurrentHashMap<String, Integer> commandCosts = new ConcurrentHashMap<>();
+
     BasicHttpServer(PrivateKey key, int port, int maxTrheads, BufferedLogger log) throws IOException {
         this.myKey = key;
         this.log = log;
@@ -62,13 +72,92 @@ public class BasicHttpServer {
         addEndpoint("/ping", params -> onPing(params));
         addEndpoint("/connect", params -> onConnect(params));
         addEndpoint("/get_token", params -> inSession(params.getLongOrThrow("session_id"), s -> s.getToken(params)));
-        addEndpoint("/command", params -> inSession(params.getLongOrThrow("session_id"), s -> s.command(params)));
+        addEndpoint("/command", params -> onCommand(params));
 
         service.start(port, maxTrheads);
     }
 
     public void on(String path, BasicHTTPService.Handler handler) {
-        service.on(path, handler);
+        service.on(path, (request, response) -> {
+            // before anything is decoded
+            String address = request.getRemoteAddress();
+            if (address != null && !addressLimiter.tryAcquire(address, 1)) {
+                response.setResponseCode(429);
+                response.setBody(Boss.pack(Binder.of(
+                        "result", "error",
+                        "response", Binder.of("errors", Collections.singletonList(throttledError()))
+                )));
+                return;
+            }
+            handler.handle(request, response);
+        });
+    }
+
+    /**
+     * Set the limit of requests from one remote address, for all paths. Default is 200 requests per second with bursts
+     * up to 1000.
+     *
+     * @param ratePerSecond requests per second, 0 for no limit
+     * @param burst         requests that could be made at once
+     */
+    public void setAddressRateLimit(double ratePerSecond, int burst) {
+        addressLimiter.setLimit(ratePerSecond, burst);
+    }
+
+    /**
+     * Set the limit of commands from one client key, where each command takes its cost, see {@link
+     * #setCommandCost(String, int)}. There is no limit by default.
+     *
+     * @param ratePerSecond cost units per second, 0 for no limit
+     * @param burst         cost units that could be spent at once
+     */
+    public void setClientRateLimit(double ratePerSecond, int burst) {
+        clientLimiter.setLimit(ratePerSecond, burst);
+    }
+
+    /**
+     * Set the cost of the command for the client rate limit. Commands cost 1 unless set otherwise.
+     *
+     * @param command name of the command
+     * @param cost    cost units, at least 1
+     */
+    public void setCommandCost(String command, int cost) {
+        if (cost < 1)
+            throw new IllegalArgumentException("command cost should be at least 1");
+        commandCosts.put(command, cost);
+    }
+
+    public int getCommandCost(String command) {
+        return commandCosts.getOrDefault(command, 1);
+    }
+
+    /**
+     * Charge the client of the session for the part of the command known only once it is decoded, e.g. for the items
+     * of the batch. The following commands of the client are throttled until it is refilled.
+     *
+     * @param session of the client
+     * @param cost    cost units to charge
+     */
+    protected void chargeClient(Session session, int cost) {
+        clientLimiter.charge(session.getPublicKey(), cost);
+    }
+
+    /**
+     * @return number of requests rejected by the remote address limit
+     */
+    public long getAddressThrottled() {
+        return addressLimiter.getRejected();
+    }
+
+    /**
+     * @return number of commands rejected by the client key limit
+     */
+    public long getClientThrottled() {
+        return clientLimiter.getRejected();
+    }
+
+    private static ErrorRecord throttledError() {
+        return new ErrorRecord(Errors.NOT_READY, "", "rate limit exceeded, please call again after a while");
     }
 
     private Binder onConnect(Binder params) throws ClientError {
@@ -181,6 +270,19 @@ public class BasicHttpServer {
         }
     }
 
+    /**
+     * Execute the command unless the client is over its limit. The limit is checked before the session is locked and
+     * the command is decrypted, the command cost above the minimal one is charged when the command name is known.
+     */
+    private Binder onCommand(Binder params) throws EncryptionError {
+        Session s = sessionsById.get(params.getLongOrThrow("session_id"));
+        if (s == null)
+            throw new IllegalArgumentException("bad session number");
+        if (!clientLimiter.tryAcquire(s.publicKey, 1))
+            return s.throttled();
+        return inSession(s, session -> session.command(params));
+    }
+
     //
     private Binder inSession(long id, Implementor processor) {
         Session s = sessionsById.get(id);
@@ -260,7 +362,7 @@ public class BasicHttpServer {
     protected class Session {
 
         private PublicKey publicKey;
-        private SymmetricKey sessionKey;
+        private volatile SymmetricKey sessionKey;
         private byte[] serverNonce;
         private byte[] encryptedAnswer;
         private long sessionId = sessionIds.incrementAndGet();
@@ -363,8 +465,26 @@ public class BasicHttpServer {
             );
         }
 
+        /**
+         * Answer the throttled command the way {@link #command(Binder)} answers failed ones, without locking the
+         * session.
+         */
+        private Binder throttled() throws EncryptionError {
+            SymmetricKey key = sessionKey;
+            if (key == null)
+                throw new IllegalStateException("session key is not yet established");
+            return Binder.fromKeysValues(
+                    "result",
+                    key.encrypt(Boss.pack(Binder.fromKeysValues("error", throttledError())))
+            );
+        }
+
         private Binder executeAuthenticatedCommand(Binder params) throws ClientError {
             String cmd = params.getStringOrThrow("command");
+            // one unit is taken before the command is decoded
+            int cost = getCommandCost(cmd);
+            if (cost > 1)
+                clientLimiter.charge(publicKey, cost - 1);
             try {
                 switch (cmd) {
                     case "hello":
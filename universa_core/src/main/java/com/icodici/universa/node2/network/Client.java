@@ -35,6 +35,11 @@ public class Client {
         Config.forceInit(Contract.class);
     }
 
+    /**
+     * Batch commands could take long to process, so the answer is waited longer than usual.
+     */
+    private static final int BATCH_READ_TIMEOUT = 60000;
+
     private final PrivateKey clientPrivateKey;
 
     List<Client> clients;
@@ -167,6 +172,53 @@ public class Client {
         });
     }
 
+    /**
+     * Register many items with a few calls, see {@link ClientHTTPServer#MAX_BATCH_SIZE}. Items are registered
+     * independently: check the errors of each result, e.g. {@link com.icodici.universa.Errors#NOT_READY} means the
+     * item should be registered again later.
+     *
+     * @param packedItems packed transactions
+     *
+     * @return results in the same order
+     */
+    public List<ItemResult> registerBatch(List<byte[]> packedItems) throws ClientError {
+        return protect(() -> {
+            List<ItemResult> results = new ArrayList<>(packedItems.size());
+            for (List<byte[]> part : partition(packedItems))
+                results.addAll(client.command("approveBatch",
+                                              Binder.fromKeysValues("packedItems", part),
+                                              BATCH_READ_TIMEOUT
+                ).getListOrThrow("itemResults"));
+            return results;
+        });
+    }
+
+    /**
+     * Get states of many items with a few calls, see {@link ClientHTTPServer#MAX_BATCH_SIZE}.
+     *
+     * @param itemIds items to check
+     *
+     * @return results in the same order
+     */
+    public List<ItemResult> getStateBatch(List<HashId> itemIds) throws ClientError {
+        return protect(() -> {
+            List<ItemResult> results = new ArrayList<>(itemIds.size());
+            for (List<HashId> part : partition(itemIds))
+                results.addAll(client.command("getStateBatch",
+                                              Binder.fromKeysValues("itemIds", part),
+                                              BATCH_READ_TIMEOUT
+                ).getListOrThrow("itemResults"));
+            return results;
+        });
+    }
+
+    private static <T> List<List<T>> partition(List<T> items) {
+        List<List<T>> parts = new ArrayList<>();
+        for (int i = 0; i < items.size(); i += ClientHTTPServer.MAX_BATCH_SIZE)
+            parts.add(items.subList(i, Math.min(items.size(), i + ClientHTTPServer.MAX_BATCH_SIZE)));
+        return parts;
+    }
+
     public Binder command(String name, Object... params) throws IOException {
         return client.command(name, params);
     }
@@ -8,23 +8,35 @@
 package com.icodici.universa.node2.network;
 
 import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.ErrorRecord;
 import com.icodici.universa.Errors;
 import com.icodici.universa.HashId;
 import com.icodici.universa.contract.Contract;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
 import com.icodici.universa.node.network.BasicHTTPService;
 import com.icodici.universa.node2.ItemCache;
 import com.icodici.universa.node2.Main;
+import com.icodici.universa.node2.MetricsRegistry;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.Node;
+import net.sergeych.boss.Boss;
 import net.sergeych.tools.Binder;
 import net.sergeych.tools.BufferedLogger;
+import net.sergeych.utils.Bytes;
 
 import java.io.IOException;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
 public class ClientHTTPServer extends BasicHttpServer {
 
+    /**
+     * Maximum number of items in a single batch command
+     */
+    public static final int MAX_BATCH_SIZE = 1000;
+
     private final BufferedLogger log;
     private ItemCache cache;
     private NetConfig netConfig;
@@ -47,27 +59,47 @@ public class ClientHTTPServer extends BasicHttpServer {
             encodedString = encodedString.replace(' ', '+');
 
             byte[] data = null;
+            String etag = null;
             if (encodedString.equals("cache_test")) {
                 data = "the cache test data".getBytes();
             } else {
                 HashId id = HashId.withDigest(encodedString);
-                if (cache != null) {
-                    Contract c = (Contract) cache.get(id);
-                    if (c != null) {
-                        data = c.getPackedTransaction();
-                    }
+                // the id is the hash of the contents, so the client that has the tag has the same contract
+                etag = "\"" + id.toBase64String() + "\"";
+                if (etagMatches(request.getHeaders().getString("if-none-match", null), etag)) {
+                    response.getHeaders().put("ETag", etag);
+                    response.setResponseCode(304);
+                    return;
                 }
+                // the packed transaction is kept in the cache, we send it as is
+                if (cache != null)
+                    data = cache.getPacked(id);
             }
             if (data != null) {
                 // contracts are immutable: cache forever
                 Binder hh = response.getHeaders();
                 hh.put("Expires", "Thu, 31 Dec 2037 23:55:55 GMT");
                 hh.put("Cache-Control", "max-age=315360000");
+                if (etag != null)
+                    hh.put("ETag", etag);
                 response.setBody(data);
             } else
                 response.setResponseCode(404);
         });
 
+        // node metrics, in Prometheus text format or, with format=boss, as a packed binder
+        on("/metrics", (request, response) -> {
+            if (node == null) {
+                response.setResponseCode(503);
+                return;
+            }
+            MetricsRegistry metrics = node.getMetrics();
+            if ("boss".equals(request.getParams().getString("format", null)))
+                response.setBody(Boss.pack(metrics.toBinder()));
+            else
+                response.setBody(metrics.toPrometheus());
+        });
+
         addEndpoint("/network", (Binder params, Result result) -> {
             if (networkData == null) {
                 List<Binder> nodes = new ArrayList<Binder>();
@@ -89,7 +121,15 @@ public class ClientHTTPServer extends BasicHttpServer {
 
         addSecureEndpoint("getState", this::getState);
         addSecureEndpoint("approve", this::approve);
+        addSecureEndpoint("getStateBatch", this::getStateBatch);
+        addSecureEndpoint("approveBatch", this::approveBatch);
         addSecureEndpoint("throw_error", this::throw_error);
+
+        // registration checks and stores the item, state is read from the cache or the ledger; batches cost
+        // the same per item, the items past the first one are charged once the batch is decoded
+        setCommandCost("approve", 10);
+        setCommandCost("approveBatch", 10);
+        setCommandCost("getStateBatch", 1);
     }
 
     private Binder throw_error(Binder binder, Session session) throws IOException {
@@ -98,10 +138,15 @@ public class ClientHTTPServer extends BasicHttpServer {
 
     private Binder approve(Binder params, Session session) throws IOException {
         checkNode();
-        return Binder.of(
-                "itemResult",
-                node.registerItem(Contract.fromPackedTransaction(params.getBinaryOrThrow("packedItem")))
-        );
+        ItemResult itemResult = node.registerItem(Contract.fromPackedTransaction(params.getBinaryOrThrow("packedItem")));
+        // the node is overloaded and has not registered the item, the client should retry later
+        if( itemResult.errors != null ) {
+            for (ErrorRecord er : itemResult.errors) {
+                if( er.getError() == Errors.NOT_READY )
+                    throw new CommandFailedException(Errors.NOT_READY, "", er.getMessage());
+            }
+        }
+        return Binder.of("itemResult", itemResult);
     }
 
     private Binder getState(Binder params, Session session) throws CommandFailedException {
@@ -110,6 +155,94 @@ public class ClientHTTPServer extends BasicHttpServer {
                          node.checkItem((HashId)params.get("itemId")));
     }
 
+    /**
+     * Register many items at once. Items are processed independently, so a bad item or the overloaded node does not
+     * fail the whole batch: the result of the item carries the error, e.g. {@link Errors#NOT_READY} if the item should
+     * be registered again later. Items of the batch do not wait for the election slot, so the overloaded node answers
+     * the batch at once.
+     *
+     * @param params "packedItems", the list of packed transactions
+     *
+     * @return "itemResults", the list of results in the same order
+     */
+    private Binder approveBatch(Binder params, Session session) throws IOException {
+        checkNode();
+        List<Object> packedItems = batchOf(params, "packedItems", session, "approveBatch");
+        List<ItemResult> results = new ArrayList<>(packedItems.size());
+        for (Object packed : packedItems) {
+            Contract contract;
+            try {
+                // binaries in the list are decoded as Bytes
+                contract = Contract.fromPackedTransaction(
+                        packed instanceof Bytes ? ((Bytes) packed).toArray() : (byte[]) packed);
+            } catch (Exception e) {
+                results.add(failedResult(Errors.BAD_VALUE, "packedItem", "can't unpack: " + e.getMessage()));
+                continue;
+            }
+            results.add(node.registerItem(contract, false));
+        }
+        return Binder.of("itemResults", results);
+    }
+
+    /**
+     * Get the states of many items at once.
+     *
+     * @param params "itemIds", the list of item ids
+     *
+     * @return "itemResults", the list of results in the same order
+     */
+    private Binder getStateBatch(Binder params, Session session) throws CommandFailedException {
+        checkNode();
+        List<Object> itemIds = batchOf(params, "itemIds", session, "getStateBatch");
+        List<ItemResult> results = new ArrayList<>(itemIds.size());
+        for (Object id : itemIds) {
+            if (id instanceof HashId)
+                results.add(node.checkItem((HashId) id));
+            else
+                results.add(failedResult(Errors.BAD_VALUE, "itemId", "not an item id: " + id));
+        }
+        return Binder.of("itemResults", results);
+    }
+
+    /**
+     * Get the items of the batch and charge the client for them: the command cost is the cost of one item, and it is
+     * already taken.
+     */
+    private <T> List<T> batchOf(Binder params, String name, Session session, String command)
+            throws CommandFailedException {
+        List<T> items = params.getList(name, null);
+        if (items == null)
+            throw new CommandFailedException(Errors.BAD_VALUE, name, "missing");
+        if (items.size() > MAX_BATCH_SIZE)
+            throw new CommandFailedException(Errors.BAD_VALUE, name, "too many items, max is " + MAX_BATCH_SIZE);
+        if (items.size() > 1)
+            chargeClient(session, (items.size() - 1) * getCommandCost(command));
+        return items;
+    }
+
+    private static ItemResult failedResult(Errors code, String objectName, String message) {
+        ItemResult ir = new ItemResult(ItemState.UNDEFINED, false, ZonedDateTime.now(), ZonedDateTime.now());
+        ir.errors = new ArrayList<>();
+        ir.errors.add(new ErrorRecord(code, objectName, message));
+        return ir;
+    }
+
+    /**
+     * Check the If-None-Match header value, that could be a list of tags.
+     */
+    static boolean etagMatches(String ifNoneMatch, String etag) {
+        if (ifNoneMatch == null)
+            return false;
+        for (String tag : ifNoneMatch.split(",")) {
+            tag = tag.trim();
+            if (tag.startsWith("W/"))
+                tag = tag.substring(2);
+            if (tag.equals(etag))
+                return true;
+        }
+        return false;
+    }
+
     private void checkNode() throws CommandFailedException {
         if( node == null ) {
             throw new CommandFailedException(Errors.NOT_READY, "", "please call again after a while");
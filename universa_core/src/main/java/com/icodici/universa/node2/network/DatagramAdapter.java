@@ -16,6 +16,7 @@ import java.util.ArrayList;
 import java.util.List;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.function.Consumer;
 import java.util.function.Function;
 
@@ -60,6 +61,15 @@ public abstract class DatagramAdapter {
 
     protected List<Function<String, String>> errorCallbacks = new ArrayList<>();
 
+    /**
+     * Statistics of the adapter, see getters for details.
+     */
+    protected final LongAdder blocksSent = new LongAdder();
+    protected final LongAdder blocksRetransmitted = new LongAdder();
+    protected final LongAdder blocksAcked = new LongAdder();
+    protected final LongAdder blocksDropped = new LongAdder();
+    protected final LongAdder packetsResent = new LongAdder();
+
     /**
      * Create an instance that listens for the incoming datagrams using the specified configurations. The adapter should
      * start serving incoming datagrams immediately upon creation.
@@ -98,6 +108,41 @@ public abstract class DatagramAdapter {
         }
     }
 
+    /**
+     * @return number of blocks sent for the first time, including service blocks
+     */
+    public long getBlocksSent() {
+        return blocksSent.sum();
+    }
+
+    /**
+     * @return number of blocks sent again as not acknowledged in time
+     */
+    public long getBlocksRetransmitted() {
+        return blocksRetransmitted.sum();
+    }
+
+    /**
+     * @return number of blocks acknowledged by the receiver
+     */
+    public long getBlocksAcked() {
+        return blocksAcked.sum();
+    }
+
+    /**
+     * @return number of blocks given up after {@link #RETRANSMIT_MAX_ATTEMPTS}
+     */
+    public long getBlocksDropped() {
+        return blocksDropped.sum();
+    }
+
+    /**
+     * @return number of single packets of the blocks sent again
+     */
+    public long getPacketsResent() {
+        return packetsResent.sum();
+    }
+
     public void seTestMode(int testMode) {
         this.testMode = testMode;
     }
@@ -9,11 +9,15 @@ package com.icodici.universa.node2.network;
 
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
+import com.icodici.universa.node2.MetricsRegistry;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import com.icodici.universa.node2.Notification;
 
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
 import java.util.concurrent.TimeoutException;
 import java.util.function.Consumer;
 
@@ -64,6 +68,36 @@ public abstract class Network {
     public abstract Approvable getItem(HashId itemId, NodeInfo node, Duration maxTimeout)
             throws InterruptedException;
 
+    /**
+     * Start loading the item from the specified node without blocking the caller. By default it calls {@link
+     * #getItem(HashId, NodeInfo, Duration)} with the executor, and cancelling the returned future interrupts it. The
+     * network that can load items asynchronously, or the simulated one, should override it.
+     *
+     * @param itemId   item to load
+     * @param node     node where the item should be loaded from
+     * @param executor to run the blocking load with
+     *
+     * @return future completed with the item or with null if the node can't provide it
+     */
+    public CompletableFuture<Approvable> getItemAsync(HashId itemId, NodeInfo node, Duration maxTimeout,
+                                                      ExecutorService executor) {
+        CompletableFuture<Approvable> result = new CompletableFuture<>();
+        Future<?> loader = executor.submit(() -> {
+            try {
+                result.complete(getItem(itemId, node, maxTimeout));
+            } catch (InterruptedException e) {
+                result.cancel(false);
+            } catch (Exception e) {
+                result.completeExceptionally(e);
+            }
+        });
+        result.whenComplete((x, error) -> {
+            if (result.isCancelled())
+                loader.cancel(true);
+        });
+        return result;
+    }
+
     /**
      * Deliver notification to all nodes except one
      *
@@ -86,5 +120,56 @@ public abstract class Network {
         netConfig.forEachNode(n -> consumer.accept(n));
     }
 
+    /**
+     * Check whether the node is likely to receive notifications now, e.g. it answered since the last notifications to
+     * it were given up. Nodes that are not reachable are polled less often.
+     *
+     * @param node to check
+     *
+     * @return false if the node is known to be unreachable, true if it is reachable or nothing is known
+     */
+    public boolean isReachable(NodeInfo node) {
+        return true;
+    }
+
+    /**
+     * @return number of nodes in the network
+     */
+    public int getNodesCount() {
+        return netConfig.size();
+    }
+
+    /**
+     * Register metrics of the network transport, if any. Called by the node on creation.
+     *
+     * @param metrics registry of the node
+     */
+    public void registerMetrics(MetricsRegistry metrics) {}
+
+    /**
+     * Send the votes on different items to the same node together, in one {@link
+     * com.icodici.universa.node2.BatchVoteNotification}, if the network collects the notifications before sending
+     * them. Called by the node on creation, see {@link com.icodici.universa.node2.Config#isVoteBatching()}.
+     *
+     * @param voteBatching true to send the votes in batches
+     */
+    public void setVoteBatching(boolean voteBatching) {}
+
+    /**
+     * Set the time the notifications to the same node are collected before sending, if the network collects them.
+     * Called by the node on creation, see {@link com.icodici.universa.node2.Config#getCoalescingWindow()}.
+     *
+     * @param window time to wait, {@link Duration#ZERO} to send each notification immediately
+     */
+    public void setCoalescingWindow(Duration window) {}
+
+    /**
+     * Set the number of the collected notifications to the same node that are sent before the coalescing window
+     * expires. Called by the node on creation, see {@link com.icodici.universa.node2.Config#getCoalescingBatchSize()}.
+     *
+     * @param size from 1 to 1000
+     */
+    public void setCoalescingBatchSize(int size) {}
+
     public void shutdown() {}
 }
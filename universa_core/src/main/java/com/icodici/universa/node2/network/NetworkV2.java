@@ -12,6 +12,9 @@ import com.icodici.crypto.SymmetricKey;
 import com.icodici.universa.Approvable;
 import com.icodici.universa.HashId;
 import com.icodici.universa.contract.TransactionPack;
+import com.icodici.universa.node2.BatchVoteNotification;
+import com.icodici.universa.node2.Config;
+import com.icodici.universa.node2.MetricsRegistry;
 import com.icodici.universa.node2.NetConfig;
 import com.icodici.universa.node2.NodeInfo;
 import com.icodici.universa.node2.Notification;
@@ -33,21 +36,40 @@ public class NetworkV2 extends Network {
     private final NodeInfo myInfo;
     private final PrivateKey myKey;
     private final UDPAdapter adapter;
+    private final NotificationCoalescer outbound;
+    private final NotificationDispatcher inbound;
 
 //    private Map<NodeInfo, Node> nodes = new HashMap<>();
 
     private static LogPrinter log = new LogPrinter("TLN");
-    private Consumer<Notification> consumer;
+    private volatile Consumer<Notification> consumer;
 
     public NetworkV2(NetConfig netConfig, NodeInfo myInfo, PrivateKey myKey) throws IOException {
+        this(netConfig, myInfo, myKey, new Config());
+    }
+
+    /**
+     * Create the network with the notification dispatcher configured by the node settings: {@link
+     * Config#getDispatcherThreads()}, {@link Config#getDispatcherQueueSize()} and {@link Config#getDispatchWait()}.
+     */
+    public NetworkV2(NetConfig netConfig, NodeInfo myInfo, PrivateKey myKey, Config config) throws IOException {
         super(netConfig);
         this.myInfo = myInfo;
         this.myKey = myKey;
 
+        // received notifications are processed off the UDP receiving thread
+        int threads = config.getDispatcherThreads();
+        if (threads == 0)
+            threads = Math.max(2, Runtime.getRuntime().availableProcessors());
+        inbound = new NotificationDispatcher(threads, config.getDispatcherQueueSize(), config.getDispatchWait(),
+                                             this::consume);
+
         adapter = new UDPAdapter(myKey, new SymmetricKey(), myInfo);
 //        adapter.setVerboseLevel(DatagramAdapter.VerboseLevel.BASE);
         adapter.receive(this::onReceived);
         adapter.addErrorsCallback(this::exceptionCallback);
+
+        outbound = new NotificationCoalescer(Duration.ofMillis(5), 100, this::sendPacked);
     }
 
     private final void onReceived(byte[] packedNotifications) {
@@ -57,8 +79,12 @@ public class NetworkV2 extends Network {
                 for (Notification n : nn) {
                     if( n == null )
                         System.out.println("bad notification skipped");
+                    else if (n instanceof BatchVoteNotification) {
+                        // dispatched by items, so the votes on the same item are processed in order
+                        ((BatchVoteNotification) n).expand().forEach(inbound::dispatch);
+                    }
                     else {
-                        consumer.accept(n);
+                        inbound.dispatch(n);
                     }
                 }
             }
@@ -68,6 +94,12 @@ public class NetworkV2 extends Network {
         }
     }
 
+    private void consume(Notification notification) {
+        Consumer<Notification> c = consumer;
+        if (c != null)
+            c.accept(notification);
+    }
+
     private List<Notification> unpack(byte[] packedNotifications) throws IOException {
         List<Notification> nn = new ArrayList<>();
 
@@ -118,16 +150,115 @@ public class NetworkV2 extends Network {
         }
     }
 
+    /**
+     * Notifications to the same node are not sent immediately but are merged over a short window (see {@link
+     * #setCoalescingWindow(Duration)}) into one packed block, superseded item notifications are dropped.
+     */
     @Override
     public void deliver(NodeInfo toNode, Notification notification) {
+        outbound.enqueue(toNode, notification);
+    }
+
+    private void sendPacked(NodeInfo toNode, List<Notification> notifications) {
         try {
-            byte[] data = packNotifications(myInfo, Do.listOf(notification));
+            byte[] data = packNotifications(myInfo, notifications);
             adapter.send(toNode, data);
         } catch (Exception e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Set the time to collect outbound notifications to the same node before sending them in one block.
+     *
+     * @param window time to wait, {@link Duration#ZERO} to send each notification immediately
+     */
+    @Override
+    public void setCoalescingWindow(Duration window) {
+        outbound.setWindow(window);
+    }
+
+    public Duration getCoalescingWindow() {
+        return outbound.getWindow();
+    }
+
+    /**
+     * Set the number of pending notifications to the same node that causes them to be sent before the coalescing
+     * window expires.
+     *
+     * @param size from 1 to 1000
+     */
+    @Override
+    public void setCoalescingBatchSize(int size) {
+        outbound.setMaxBatchSize(size);
+    }
+
+    public int getCoalescingBatchSize() {
+        return outbound.getMaxBatchSize();
+    }
+
+    /**
+     * Send the item notifications collected to the same node in one {@link BatchVoteNotification}, see {@link
+     * NotificationCoalescer}.
+     */
+    @Override
+    public void setVoteBatching(boolean voteBatching) {
+        outbound.setVoteBatching(voteBatching);
+    }
+
+    public boolean isVoteBatching() {
+        return outbound.isVoteBatching();
+    }
+
+    /**
+     * Set the time the receiving thread waits when the received notifications queue is full. When it expires, the
+     * notification is dropped; with zero time, the notifications are dropped at once.
+     *
+     * @param maxWait time to wait
+     */
+    public void setDispatchWait(Duration maxWait) {
+        inbound.setMaxWait(maxWait);
+    }
+
+    public Duration getDispatchWait() {
+        return inbound.getMaxWait();
+    }
+
+    @Override
+    public void registerMetrics(MetricsRegistry metrics) {
+        metrics.counter("universa_udp_blocks_sent_total", "UDP blocks sent for the first time",
+                        adapter::getBlocksSent);
+        metrics.counter("universa_udp_blocks_retransmitted_total", "UDP blocks sent again as not acknowledged",
+                        adapter::getBlocksRetransmitted);
+        metrics.counter("universa_udp_blocks_acked_total", "UDP blocks acknowledged by the receiver",
+                        adapter::getBlocksAcked);
+        metrics.counter("universa_udp_blocks_dropped_total", "UDP blocks given up after all retransmit attempts",
+                        adapter::getBlocksDropped);
+        metrics.counter("universa_udp_packets_resent_total", "single UDP packets sent again",
+                        adapter::getPacketsResent);
+        metrics.counter("universa_notifications_queued_total", "outbound notifications queued",
+                        outbound::getNotificationsQueued);
+        metrics.counter("universa_notifications_superseded_total", "outbound notifications dropped as superseded",
+                        outbound::getNotificationsSuperseded);
+        metrics.counter("universa_vote_batches_sent_total", "vote batches sent", outbound::getVoteBatchesSent);
+        metrics.counter("universa_votes_batched_total", "votes sent in batches", outbound::getVotesBatched);
+        metrics.counter("universa_notifications_dispatched_total", "received notifications queued for processing",
+                        inbound::getDispatched);
+        metrics.counter("universa_notifications_dispatch_waits_total",
+                        "times the receiving thread waited for the full notifications queue", inbound::getWaited);
+        metrics.counter("universa_notifications_dropped_total", "received notifications dropped as the queue was full",
+                        inbound::getDropped);
+        metrics.counter("universa_notifications_failed_total", "received notifications failed to process",
+                        inbound::getFailures);
+        metrics.gauge("universa_notifications_pending", "received notifications waiting to be processed",
+                      inbound::getPending);
+    }
+
+    @Override
+    public boolean isReachable(NodeInfo node) {
+        return adapter.isReachable(node);
+    }
+
     @Override
     public void subscribe(NodeInfo _info, Consumer<Notification> notificationConsumer) {
         consumer = notificationConsumer;
@@ -143,6 +274,10 @@ public class NetworkV2 extends Network {
             HttpURLConnection connection = (HttpURLConnection) url.openConnection();
             connection.setRequestProperty("User-Agent", "Universa JAVA API Client");
             connection.setRequestMethod("GET");
+            // a hung source should not hold the download thread, the item could be asked from another node
+            int timeout = (int) Math.min(Integer.MAX_VALUE, maxTimeout.toMillis());
+            connection.setConnectTimeout(timeout);
+            connection.setReadTimeout(timeout);
             if (200 != connection.getResponseCode())
                 return null;
             byte[] data = Do.read(connection.getInputStream());
@@ -151,6 +286,9 @@ public class NetworkV2 extends Network {
 //            Contract c = Contract.fromPackedTransaction(data);
             return tp.getContract();
         } catch (Exception e) {
+            // the download was cancelled as the item is already received from another node
+            if (Thread.interrupted())
+                throw new InterruptedException();
             System.out.println("download failure: "+e);
             e.printStackTrace();
             return null;
@@ -163,6 +301,8 @@ public class NetworkV2 extends Network {
     }
 
     public void shutdown() {
+        outbound.shutdown();
         adapter.shutdown();
+        inbound.shutdown();
     }
 }
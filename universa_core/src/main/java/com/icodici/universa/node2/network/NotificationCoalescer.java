@@ -0,0 +1,288 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node2.BatchVoteNotification;
+import com.icodici.universa.node2.ItemBodyNotification;
+import com.icodici.universa.node2.ItemNotification;
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.Notification;
+
+import java.time.Duration;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+/**
+ * Per-destination outbound queue that merges notifications to the same node over a short window into one packed
+ * block. The queue of the node is flushed when the window expires or when it reaches the size threshold, whichever
+ * comes first.
+ * <p>
+ * An {@link ItemNotification} supersedes any pending {@link ItemNotification} about the same item to the same node:
+ * only the latest item result is sent, and the answer is requested if any of the merged notifications requested it.
+ * The pushed item of the superseded {@link ItemBodyNotification} is kept.
+ * Other notifications are sent as is, in order.
+ * <p>
+ * With vote batching on, the item notifications that do not push the item body are sent together in one {@link
+ * BatchVoteNotification}, at the place of the first of them, if there are more than one in the block.
+ * <p>
+ * With zero window the notifications are passed to the sender immediately, one by one.
+ */
+class NotificationCoalescer {
+
+    /**
+     * Maximum number of notifications in one packed block, limited by the packet format.
+     */
+    static final int MAX_BATCH_SIZE = 1000;
+
+    private final BiConsumer<NodeInfo, List<Notification>> sender;
+    private final ScheduledExecutorService flusher;
+
+    private volatile long windowMillis;
+    private volatile int maxBatchSize;
+    private volatile boolean voteBatching = false;
+
+    private final ConcurrentHashMap<NodeInfo, Outbound> queues = new ConcurrentHashMap<>();
+
+    private final AtomicLong notificationsQueued = new AtomicLong();
+    private final AtomicLong notificationsSuperseded = new AtomicLong();
+    private final AtomicLong blocksSent = new AtomicLong();
+    private final AtomicLong voteBatchesSent = new AtomicLong();
+    private final AtomicLong votesBatched = new AtomicLong();
+
+    /**
+     * Create the coalescer.
+     *
+     * @param window       time to collect notifications to a node before sending them, zero to send immediately
+     * @param maxBatchSize number of notifications that causes the immediate flush, up to {@link #MAX_BATCH_SIZE}
+     * @param sender       receives the destination and the notifications to pack together into one block
+     */
+    NotificationCoalescer(Duration window, int maxBatchSize, BiConsumer<NodeInfo, List<Notification>> sender) {
+        this.sender = sender;
+        setWindow(window);
+        setMaxBatchSize(maxBatchSize);
+        flusher = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "notification-flusher");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    void setWindow(Duration window) {
+        if (window.isNegative())
+            throw new IllegalArgumentException("negative coalescing window");
+        windowMillis = window.toMillis();
+    }
+
+    Duration getWindow() {
+        return Duration.ofMillis(windowMillis);
+    }
+
+    void setMaxBatchSize(int maxBatchSize) {
+        if (maxBatchSize < 1 || maxBatchSize > MAX_BATCH_SIZE)
+            throw new IllegalArgumentException("batch size should be in 1.." + MAX_BATCH_SIZE);
+        this.maxBatchSize = maxBatchSize;
+    }
+
+    int getMaxBatchSize() {
+        return maxBatchSize;
+    }
+
+    void setVoteBatching(boolean voteBatching) {
+        this.voteBatching = voteBatching;
+    }
+
+    boolean isVoteBatching() {
+        return voteBatching;
+    }
+
+    /**
+     * Queue the notification to the node. Depending on the settings it could be sent right now, or later, with other
+     * notifications to the same node.
+     *
+     * @param toNode       destination
+     * @param notification to send
+     */
+    void enqueue(NodeInfo toNode, Notification notification) {
+        notificationsQueued.incrementAndGet();
+        if (windowMillis <= 0) {
+            send(toNode, Collections.singletonList(notification));
+            return;
+        }
+        Outbound q = queues.computeIfAbsent(toNode, Outbound::new);
+        List<Notification> ready = null;
+        boolean schedule = false;
+        synchronized (q) {
+            q.add(notification);
+            if (q.size() >= maxBatchSize)
+                ready = q.drain();
+            else if (!q.scheduled) {
+                q.scheduled = true;
+                schedule = true;
+            }
+        }
+        if (ready != null)
+            send(toNode, ready);
+        else if (schedule) {
+            try {
+                flusher.schedule(() -> flush(q), windowMillis, TimeUnit.MILLISECONDS);
+            } catch (RejectedExecutionException e) {
+                // shutting down
+                flush(q);
+            }
+        }
+    }
+
+    /**
+     * Send all pending notifications now.
+     */
+    void flushAll() {
+        queues.values().forEach(this::flush);
+    }
+
+    /**
+     * Send all pending notifications and stop the flusher thread.
+     */
+    void shutdown() {
+        flusher.shutdown();
+        flushAll();
+    }
+
+    /**
+     * @return number of notifications passed to {@link #enqueue(NodeInfo, Notification)}
+     */
+    long getNotificationsQueued() {
+        return notificationsQueued.get();
+    }
+
+    /**
+     * @return number of notifications that were merged to the later ones and so were not sent
+     */
+    long getNotificationsSuperseded() {
+        return notificationsSuperseded.get();
+    }
+
+    /**
+     * @return number of packed blocks passed to the sender
+     */
+    long getBlocksSent() {
+        return blocksSent.get();
+    }
+
+    /**
+     * @return number of {@link BatchVoteNotification}s sent
+     */
+    long getVoteBatchesSent() {
+        return voteBatchesSent.get();
+    }
+
+    /**
+     * @return number of item notifications sent in {@link BatchVoteNotification}s
+     */
+    long getVotesBatched() {
+        return votesBatched.get();
+    }
+
+    private void flush(Outbound q) {
+        List<Notification> ready;
+        synchronized (q) {
+            q.scheduled = false;
+            ready = q.drain();
+        }
+        if (ready != null)
+            send(q.toNode, ready);
+    }
+
+    private void send(NodeInfo toNode, List<Notification> notifications) {
+        blocksSent.incrementAndGet();
+        sender.accept(toNode, voteBatching && notifications.size() > 1 ? batchVotes(notifications) : notifications);
+    }
+
+    /**
+     * @return the notifications with the votes put together into one batch, or the same list if there are not enough
+     * votes to batch
+     */
+    private List<Notification> batchVotes(List<Notification> notifications) {
+        List<ItemNotification> votes = new ArrayList<>();
+        for (Notification n : notifications) {
+            // the exact class, item body notifications are sent as is
+            if (n.getClass() == ItemNotification.class)
+                votes.add((ItemNotification) n);
+        }
+        if (votes.size() < 2)
+            return notifications;
+        List<Notification> result = new ArrayList<>(notifications.size() - votes.size() + 1);
+        boolean batched = false;
+        for (Notification n : notifications) {
+            if (n.getClass() != ItemNotification.class)
+                result.add(n);
+            else if (!batched) {
+                result.add(new BatchVoteNotification(votes.get(0).getFrom(), votes));
+                batched = true;
+            }
+        }
+        voteBatchesSent.incrementAndGet();
+        votesBatched.addAndGet(votes.size());
+        return result;
+    }
+
+    /**
+     * Pending notifications to a single node. Keeps the insertion order; item notifications are keyed by item id to
+     * be superseded, others are unique.
+     */
+    private class Outbound {
+        final NodeInfo toNode;
+        LinkedHashMap<Object, Notification> pending = new LinkedHashMap<>();
+        boolean scheduled = false;
+
+        Outbound(NodeInfo toNode) {
+            this.toNode = toNode;
+        }
+
+        void add(Notification notification) {
+            if (notification instanceof ItemNotification) {
+                ItemNotification in = (ItemNotification) notification;
+                HashId id = in.getItemId();
+                // the replaced notification keeps its place in the queue
+                Notification prev = pending.get(id);
+                if (prev != null) {
+                    notificationsSuperseded.incrementAndGet();
+                    boolean answer = in.answerIsRequested() || ((ItemNotification) prev).answerIsRequested();
+                    if (prev instanceof ItemBodyNotification && !(in instanceof ItemBodyNotification))
+                        // the pushed item is not yet sent, it should not be lost
+                        in = new ItemBodyNotification(in.getFrom(), id, in.getItemResult(), answer,
+                                                      ((ItemBodyNotification) prev).getPackedItem());
+                    else if (answer && !in.answerIsRequested())
+                        in = in instanceof ItemBodyNotification ?
+                                new ItemBodyNotification(in.getFrom(), id, in.getItemResult(), true,
+                                                         ((ItemBodyNotification) in).getPackedItem()) :
+                                new ItemNotification(in.getFrom(), id, in.getItemResult(), true);
+                }
+                pending.put(id, in);
+            } else
+                pending.put(new Object(), notification);
+        }
+
+        int size() {
+            return pending.size();
+        }
+
+        /**
+         * @return pending notifications or null if there are none; the queue is then emptied
+         */
+        List<Notification> drain() {
+            if (pending.isEmpty())
+                return null;
+            List<Notification> result = new ArrayList<>(pending.values());
+            pending = new LinkedHashMap<>();
+            return result;
+        }
+    }
+}
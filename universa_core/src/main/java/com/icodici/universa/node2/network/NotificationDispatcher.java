@@ -0,0 +1,177 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.node2.ItemNotification;
+import com.icodici.universa.node2.Notification;
+import net.sergeych.utils.LogPrinter;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Passes received notifications to the consumer in the worker threads, so the thread that receives datagrams is never
+ * held by the consumer, e.g. waiting for the item lock or the ledger.
+ * <p>
+ * Each worker has its own bounded queue. Notifications about the same item always go to the same worker, so they are
+ * consumed in the order they were received; other notifications are partitioned by the sender node. When the queue is
+ * full the receiver waits for the free place up to the configured time (backpressure) and then the notification is
+ * dropped: the item state will be polled again anyway.
+ */
+class NotificationDispatcher {
+
+    private static LogPrinter log = new LogPrinter("NDSP");
+
+    private final Consumer<Notification> consumer;
+    private final List<BlockingQueue<Notification>> queues = new ArrayList<>();
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile long maxWaitNanos;
+    private volatile boolean stopped = false;
+
+    private final AtomicLong dispatched = new AtomicLong();
+    private final AtomicLong waited = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+
+    /**
+     * Create the dispatcher and start the workers.
+     *
+     * @param workers  number of worker threads
+     * @param capacity of the queue of each worker
+     * @param maxWait  time to wait for the place in the full queue before the notification is dropped, could be zero
+     * @param consumer to pass notifications to
+     */
+    NotificationDispatcher(int workers, int capacity, Duration maxWait, Consumer<Notification> consumer) {
+        if (workers < 1 || capacity < 1)
+            throw new IllegalArgumentException("bad dispatcher size: " + workers + " x " + capacity);
+        this.consumer = consumer;
+        setMaxWait(maxWait);
+        for (int i = 0; i < workers; i++) {
+            BlockingQueue<Notification> queue = new ArrayBlockingQueue<>(capacity);
+            queues.add(queue);
+            Thread t = new Thread(() -> work(queue), "notification-dispatcher-" + i);
+            t.setDaemon(true);
+            this.workers.add(t);
+            t.start();
+        }
+    }
+
+    void setMaxWait(Duration maxWait) {
+        if (maxWait.isNegative())
+            throw new IllegalArgumentException("negative wait time");
+        maxWaitNanos = maxWait.toNanos();
+    }
+
+    Duration getMaxWait() {
+        return Duration.ofNanos(maxWaitNanos);
+    }
+
+    /**
+     * Queue the notification to its worker. Blocks while the queue is full, but no longer than the max wait time.
+     *
+     * @param notification to pass to the consumer
+     *
+     * @return false if the notification was dropped
+     */
+    boolean dispatch(Notification notification) {
+        if (stopped)
+            return false;
+        BlockingQueue<Notification> queue = queues.get(partition(notification));
+        if (!queue.offer(notification)) {
+            waited.incrementAndGet();
+            try {
+                if (maxWaitNanos <= 0 || !queue.offer(notification, maxWaitNanos, TimeUnit.NANOSECONDS)) {
+                    dropped.incrementAndGet();
+                    return false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                dropped.incrementAndGet();
+                return false;
+            }
+        }
+        dispatched.incrementAndGet();
+        return true;
+    }
+
+    int partition(Notification notification) {
+        int hash = notification instanceof ItemNotification ?
+                ((ItemNotification) notification).getItemId().hashCode() :
+                notification.getFrom().getNumber();
+        return Math.floorMod(hash, queues.size());
+    }
+
+    /**
+     * Stop the workers. Queued notifications are discarded.
+     */
+    void shutdown() {
+        stopped = true;
+        workers.forEach(Thread::interrupt);
+    }
+
+    private void work(BlockingQueue<Notification> queue) {
+        while (!stopped) {
+            Notification n;
+            try {
+                n = queue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            try {
+                consumer.accept(n);
+            } catch (Exception e) {
+                failures.incrementAndGet();
+                log.e("failed to process notification " + n + ": " + e);
+            }
+        }
+    }
+
+    /**
+     * @return number of notifications queued to the workers
+     */
+    long getDispatched() {
+        return dispatched.get();
+    }
+
+    /**
+     * @return number of times the receiver found the queue full and had to wait
+     */
+    long getWaited() {
+        return waited.get();
+    }
+
+    /**
+     * @return number of notifications dropped as the queue stayed full
+     */
+    long getDropped() {
+        return dropped.get();
+    }
+
+    /**
+     * @return number of notifications the consumer has failed to process
+     */
+    long getFailures() {
+        return failures.get();
+    }
+
+    /**
+     * @return notifications waiting in all queues
+     */
+    int getPending() {
+        int total = 0;
+        for (BlockingQueue<Notification> q : queues)
+            total += q.size();
+        return total;
+    }
+}
@@ -0,0 +1,164 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+
+/**
+ * Token bucket per key, e.g. per client key or remote address: each bucket holds up to the burst of tokens and is
+ * refilled with the given rate; a call takes as many tokens as it costs.
+ * <p>
+ * The bucket is a single atomic value, the time when it will be full again (so-called theoretical arrival time), so
+ * concurrent calls never block each other: taking tokens moves this time forward with compare-and-set, and the bucket
+ * has not enough tokens if the time moves more than the burst ahead of now.
+ * <p>
+ * The cost of the call could be unknown until the request is decoded; then {@link #tryAcquire(Object, int)} the
+ * minimal cost first, to reject the call early, and {@link #charge(Object, int)} the rest later. Charged tokens could
+ * make the bucket empty and the following calls wait for the refill, up to the time of one more full burst.
+ * <p>
+ * Full buckets are the same as missing ones, so they are dropped from time to time to limit the memory used.
+ *
+ * @param <K> type of the key
+ */
+public class RateLimiter<K> {
+
+    private static final int CLEANUP_THRESHOLD = 1024;
+
+    private final ConcurrentHashMap<K, AtomicLong> buckets = new ConcurrentHashMap<>();
+    private final LongSupplier nanoTime;
+    private final AtomicLong rejected = new AtomicLong();
+
+    private volatile long tokenNanos;
+    private volatile long burstNanos;
+    private volatile int nextCleanup = CLEANUP_THRESHOLD;
+
+    /**
+     * Create the limiter.
+     *
+     * @param ratePerSecond tokens added to each bucket per second, 0 for no limit
+     * @param burst         maximum tokens in the bucket
+     */
+    public RateLimiter(double ratePerSecond, int burst) {
+        this(ratePerSecond, burst, System::nanoTime);
+    }
+
+    RateLimiter(double ratePerSecond, int burst, LongSupplier nanoTime) {
+        this.nanoTime = nanoTime;
+        setLimit(ratePerSecond, burst);
+    }
+
+    /**
+     * Change the limit. Tokens already taken are not returned.
+     *
+     * @param ratePerSecond tokens added to each bucket per second, 0 for no limit
+     * @param burst         maximum tokens in the bucket
+     */
+    public void setLimit(double ratePerSecond, int burst) {
+        if (ratePerSecond < 0 || burst < 1)
+            throw new IllegalArgumentException("bad rate limit: " + ratePerSecond + ", " + burst);
+        tokenNanos = ratePerSecond > 0 ? (long) Math.ceil(1e9 / ratePerSecond) : 0;
+        burstNanos = tokenNanos * burst;
+    }
+
+    public boolean isUnlimited() {
+        return tokenNanos == 0;
+    }
+
+    /**
+     * Take the tokens if the bucket has enough of them.
+     *
+     * @param key  of the bucket
+     * @param cost number of tokens to take
+     *
+     * @return true if the tokens are taken, false if the call should be rejected
+     */
+    public boolean tryAcquire(K key, int cost) {
+        long token = tokenNanos;
+        if (token == 0)
+            return true;
+        AtomicLong bucket = bucket(key);
+        long now = nanoTime.getAsLong();
+        long limit = now + burstNanos;
+        while (true) {
+            long fullAt = bucket.get();
+            long next = Math.max(fullAt, now) + cost * token;
+            if (next - limit > 0) {
+                rejected.incrementAndGet();
+                return false;
+            }
+            if (bucket.compareAndSet(fullAt, next))
+                return true;
+        }
+    }
+
+    /**
+     * Take the tokens even if the bucket has not enough of them; then the following calls are rejected until it is
+     * refilled, but no longer than the refill of two bursts.
+     *
+     * @param key  of the bucket
+     * @param cost number of tokens to take
+     */
+    public void charge(K key, int cost) {
+        long token = tokenNanos;
+        if (token == 0 || cost <= 0)
+            return;
+        long now = nanoTime.getAsLong();
+        long max = now + 2 * burstNanos;
+        bucket(key).getAndUpdate(fullAt -> {
+            long next = Math.max(fullAt, now) + cost * token;
+            return next - max > 0 ? max : next;
+        });
+    }
+
+    /**
+     * @return tokens in the bucket now, negative if the bucket is charged more than it has
+     */
+    public double available(K key) {
+        long token = tokenNanos;
+        if (token == 0)
+            return Double.POSITIVE_INFINITY;
+        AtomicLong bucket = buckets.get(key);
+        long now = nanoTime.getAsLong();
+        long used = bucket == null ? 0 : Math.max(0, bucket.get() - now);
+        return (double) (burstNanos - used) / token;
+    }
+
+    /**
+     * @return number of calls rejected by {@link #tryAcquire(Object, int)}
+     */
+    public long getRejected() {
+        return rejected.get();
+    }
+
+    int size() {
+        return buckets.size();
+    }
+
+    private AtomicLong bucket(K key) {
+        AtomicLong bucket = buckets.get(key);
+        if (bucket == null) {
+            if (buckets.size() >= nextCleanup)
+                cleanUp();
+            bucket = buckets.computeIfAbsent(key, k -> new AtomicLong(Long.MIN_VALUE / 2));
+        }
+        return bucket;
+    }
+
+    /**
+     * Drop full buckets. If most buckets are in use, the next cleanup is postponed until there are twice as many.
+     */
+    private synchronized void cleanUp() {
+        if (buckets.size() < nextCleanup)
+            return;
+        long now = nanoTime.getAsLong();
+        buckets.values().removeIf(b -> b.get() - now <= 0);
+        nextCleanup = Math.max(CLEANUP_THRESHOLD, buckets.size() * 2);
+    }
+}
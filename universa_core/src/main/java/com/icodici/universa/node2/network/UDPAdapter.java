@@ -116,6 +116,19 @@ public class UDPAdapter extends DatagramAdapter {
     }
 
 
+    /**
+     * Check whether the node is reachable: it is not if the last block sent to it was given up after all retransmit
+     * attempts and nothing was received from it since.
+     *
+     * @param node to check
+     *
+     * @return false if the node is known to be unreachable
+     */
+    public boolean isReachable(NodeInfo node) {
+        Session session = sessionsById.get(node.getNumber());
+        return session == null || !session.unreachable;
+    }
+
     @Override
     public void shutdown() {
         report(getLabel(), "shutdown");
@@ -154,6 +167,10 @@ public class UDPAdapter extends DatagramAdapter {
         List<DatagramPacket> outs = new ArrayList(block.datagrams.values());
 
         block.sendAttempts++;
+        if(block.sendAttempts == 1)
+            blocksSent.increment();
+        else
+            blocksRetransmitted.increment();
         if(block.type != PacketTypes.PACKET_ACK &&
                 block.type != PacketTypes.ACK &&
                 block.type != PacketTypes.NACK) {
@@ -341,6 +358,8 @@ public class UDPAdapter extends DatagramAdapter {
                         if(block.sendAttempts >= RETRANSMIT_MAX_ATTEMPTS) {
                             report(getLabel(), "block " + block.blockId + " type " + block.type + " will be removed", VerboseLevel.BASE);
                             blocksToRemove.add(block);
+                            blocksDropped.increment();
+                            session.unreachable = true;
                         } else {
                             sendBlock(block, session);
                         }
@@ -389,6 +408,7 @@ public class UDPAdapter extends DatagramAdapter {
             try {
                 if(datagram != null) {
                     socket.send(datagram);
+                    packetsResent.increment();
                     report(getLabel(), " datagram was resent");
                 } else {
                     report(getLabel(), " datagram unexpected became null");
@@ -477,6 +497,10 @@ public class UDPAdapter extends DatagramAdapter {
 
                         report(getLabel(), " got packet with blockId: " + packet.blockId + " packetId: " + packet.packetId + " type: " + packet.type);
 
+                        Session sender = sessionsById.get(packet.senderNodeId);
+                        if (sender != null)
+                            sender.unreachable = false;
+
                         if (waitingBlocks.containsKey(packet.blockId)) {
                             waitingBlock = waitingBlocks.get(packet.blockId);
                         } else {
@@ -754,6 +778,7 @@ public class UDPAdapter extends DatagramAdapter {
                     ackBlockId = Boss.load(block.payload);
                     report(getLabel(), " ackBlockId is: " + ackBlockId);
                     if(session != null) {
+                        blocksAcked.increment();
                         report(getLabel(), " num packets was in queue: " + session.sendingPacketsQueue.size());
                         session.makeBlockDelivered(ackBlockId);
                         session.removeBlockFromWaitingQueue(ackBlockId);
@@ -1032,6 +1057,9 @@ public class UDPAdapter extends DatagramAdapter {
 
         private int state;
 
+        // a block to the node was given up and nothing was received from it since
+        private volatile boolean unreachable = false;
+
         static public final int NOT_EXIST =         0;
         static public final int HANDSHAKE =         1;
         static public final int EXCHANGING =        2;
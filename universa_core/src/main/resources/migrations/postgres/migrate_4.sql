@@ -0,0 +1,2 @@
+-- records locked to be revoked (state 5, LOCKED) are read at start to restore the in-memory index of locks
+create index ix_ledger_locked on ledger(state) where state = 5;
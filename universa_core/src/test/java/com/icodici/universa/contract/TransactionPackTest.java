@@ -16,6 +16,7 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 import java.util.Set;
 import java.util.stream.Collectors;
@@ -90,6 +91,20 @@ public class TransactionPackTest {
         }
     }
 
+    @Test
+    public void packedBinaryIsPerPack() throws Exception {
+        byte[] packedC = c.getPackedTransaction();
+        byte[] packedR0 = r0.getPackedTransaction();
+        assertFalse(Arrays.equals(packedC, packedR0));
+        // packed once
+        assertSame(packedC, c.getPackedTransaction());
+        assertSame(packedR0, r0.getPackedTransaction());
+
+        TransactionPack tp = TransactionPack.unpack(packedR0);
+        assertSame(packedR0, tp.pack());
+        assertSame(packedC, c.getPackedTransaction());
+    }
+
     @Test
     public void packedContractNotContainsOtherItems() throws Exception {
         // if we seal and load a contract without a pack, it should have empty
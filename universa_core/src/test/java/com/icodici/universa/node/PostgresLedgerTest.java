@@ -6,9 +6,12 @@ import net.sergeych.tools.StopWatch;
 import org.junit.Before;
 import org.junit.Test;
 
+import java.time.Duration;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -173,6 +176,33 @@ public class PostgresLedgerTest extends TestCase {
         assertEquals(ItemState.DECLINED, r2.getState());
     }
 
+    @Test
+    public void saveAllAndNestedTransaction() throws Exception {
+        StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r2 = ledger.findOrCreate(HashId.createRandom());
+        StateRecord r3 = new StateRecord(ledger);
+        r3.setId(HashId.createRandom());
+        r3.setState(ItemState.PENDING);
+        // the nested saves use the connection of the transaction, so all of them are rolled back
+        Object y = ledger.transaction(() -> {
+            r1.setState(ItemState.APPROVED);
+            r2.setState(ItemState.DECLINED);
+            ledger.saveAll(Arrays.asList(r1, r2, r3));
+            ledger.transaction(() -> {
+                r1.setState(ItemState.REVOKED);
+                r1.save();
+                return null;
+            });
+            throw new Ledger.Rollback();
+        });
+        assertNull(y);
+        r1.reload();
+        assertEquals(ItemState.PENDING, r1.getState());
+        r2.reload();
+        assertEquals(ItemState.PENDING, r2.getState());
+        assertNull(ledger.getRecord(r3.getId()));
+    }
+
     @Test
     public void approve() throws Exception {
         StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
@@ -278,4 +308,129 @@ public class PostgresLedgerTest extends TestCase {
 
     }
 
+    @Test
+    public void removeExpired() throws Exception {
+        ledger.enableCache(true);
+        List<StateRecord> expired = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.setState(i % 2 == 0 ? ItemState.DECLINED : ItemState.REVOKED);
+            r.setExpiresAt(ZonedDateTime.now().minusHours(1));
+            r.save();
+            expired.add(r);
+        }
+        StateRecord alive = ledger.findOrCreate(HashId.createRandom());
+        // records of the running election are kept even if expired
+        StateRecord pending = ledger.findOrCreate(HashId.createRandom());
+        StateRecord locked = pending.createOutputLockRecord(HashId.createRandom());
+        pending.setExpiresAt(ZonedDateTime.now().minusHours(1));
+        pending.save();
+        locked.setExpiresAt(ZonedDateTime.now().minusHours(1));
+        locked.save();
+        // other tests leave expired records too
+        int removed;
+        do {
+            removed = ledger.removeExpired(100);
+        } while (removed == 100);
+        assertEquals(0, ledger.removeExpired(100));
+        assertSame(alive, ledger.getRecord(alive.getId()));
+        // the election commits its records by ids, so they should be still there
+        pending.setState(ItemState.APPROVED).setExpiresAt(ZonedDateTime.now().plusHours(1));
+        pending.save();
+        locked.setState(ItemState.APPROVED).setExpiresAt(ZonedDateTime.now().plusHours(1));
+        locked.save();
+        ledger.enableCache(false);
+        assertEquals(ItemState.APPROVED, ledger.getRecord(pending.getId()).getState());
+        assertEquals(ItemState.APPROVED, ledger.getRecord(locked.getId()).getState());
+        ledger.enableCache(true);
+        // deleted records are dropped from the cache too, so the new one is created
+        for (StateRecord r : expired) {
+            StateRecord r1 = ledger.findOrCreate(r.getId());
+            assertNotEquals(r.getRecordId(), r1.getRecordId());
+            assertEquals(ItemState.PENDING, r1.getState());
+        }
+    }
+
+    @Test
+    public void preload() throws Exception {
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.approve();
+            ids.add(r.getId());
+        }
+        // cache is disabled
+        assertEquals(0, ledger.preload(Duration.ofHours(1), 100, 2, null));
+
+        ledger.enableCache(true);
+        ledger.setHotRecordsLimit(5);
+        List<Integer> progress = new ArrayList<>();
+        // no more than the cache keeps
+        assertEquals(5, ledger.preload(Duration.ofHours(1), 100, 2, progress::add));
+        assertEquals(Arrays.asList(2, 4, 5), progress);
+        assertEquals(3, ledger.preload(Duration.ofHours(1), 3, 2, null));
+
+        // the most recent records are loaded and kept
+        StateRecord r = ledger.getRecord(ids.get(9));
+        assertEquals(ItemState.APPROVED, r.getState());
+        System.gc();
+        assertSame(r, ledger.getRecord(ids.get(9)));
+    }
+
+    @Test
+    public void bulkOperations() throws Exception {
+        ledger.enableCache(true);
+        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
+        StateRecord other = ledger.findOrCreate(HashId.createRandom());
+
+        List<HashId> approved = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.approve();
+            approved.add(r.getId());
+        }
+        HashId missing = HashId.createRandom();
+        List<HashId> ids = new ArrayList<>(approved);
+        ids.add(missing);
+        ids.add(other.getId());
+
+        Map<HashId, StateRecord> found = ledger.getRecords(ids);
+        assertEquals(6, found.size());
+        assertNull(found.get(missing));
+        for (HashId id : approved)
+            assertEquals(ItemState.APPROVED, found.get(id).getState());
+
+        // pending record can't be locked
+        Map<HashId, StateRecord> locked = owner.lockToRevokeAll(ids);
+        assertEquals(5, locked.size());
+        for (HashId id : approved) {
+            StateRecord r = locked.get(id);
+            r.reload();
+            assertEquals(ItemState.LOCKED, r.getState());
+            assertEquals(owner.getRecordId(), r.getLockedByRecordId());
+        }
+        // locked by us is ok, the second time too
+        assertEquals(5, owner.lockToRevokeAll(approved).size());
+
+        List<HashId> newIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            newIds.add(HashId.createRandom());
+        List<HashId> toCreate = new ArrayList<>(newIds);
+        // existing item could not be created
+        toCreate.add(other.getId());
+        Map<HashId, StateRecord> created = owner.createOutputLockRecords(toCreate);
+        assertEquals(5, created.size());
+        assertNull(created.get(other.getId()));
+        for (HashId id : newIds) {
+            StateRecord r = created.get(id);
+            r.reload();
+            assertEquals(ItemState.LOCKED_FOR_CREATION, r.getState());
+            assertEquals(owner.getRecordId(), r.getLockedByRecordId());
+        }
+        // it is locked by us so it is ok to repeat
+        assertEquals(5, owner.createOutputLockRecords(newIds).size());
+        // but not for others
+        assertEquals(0, other.createOutputLockRecords(newIds).size());
+    }
+
 }
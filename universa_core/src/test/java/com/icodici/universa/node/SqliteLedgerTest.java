@@ -10,6 +10,7 @@ import java.io.File;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -213,6 +214,30 @@ public class SqliteLedgerTest extends TestCase {
         assertEquals(r.getRecordId(), existing2.getLockedByRecordId());
     }
 
+    @Test
+    public void lockedRecords() throws Exception {
+        ledger.enableCache(true);
+        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+        existing.approve();
+        StateRecord expired = ledger.findOrCreate(HashId.createRandom());
+        expired.approve();
+        StateRecord approved = ledger.findOrCreate(HashId.createRandom());
+        approved.approve();
+
+        StateRecord locked = owner.lockToRevoke(existing.getId());
+        owner.lockToRevoke(expired.getId());
+        expired.reload();
+        expired.setExpiresAt(ZonedDateTime.now().minusHours(1));
+        expired.save();
+
+        List<StateRecord> records = ledger.getLockedRecords();
+        assertEquals(1, records.size());
+        assertEquals(locked.getId(), records.get(0).getId());
+        assertEquals(ItemState.LOCKED, records.get(0).getState());
+        assertEquals(owner.getRecordId(), records.get(0).getLockedByRecordId());
+    }
+
     @Test
     public void revoke() throws Exception {
         StateRecord r1 = ledger.findOrCreate(HashId.createRandom());
@@ -264,4 +289,100 @@ public class SqliteLedgerTest extends TestCase {
 
     }
 
+    @Test
+    public void removeExpired() throws Exception {
+        ledger.enableCache(true);
+        List<StateRecord> expired = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.setState(i % 2 == 0 ? ItemState.DECLINED : ItemState.REVOKED);
+            r.setExpiresAt(ZonedDateTime.now().minusHours(1));
+            r.save();
+            expired.add(r);
+        }
+        StateRecord alive = ledger.findOrCreate(HashId.createRandom());
+        // records of the running election are kept even if expired
+        StateRecord pending = ledger.findOrCreate(HashId.createRandom());
+        StateRecord locked = pending.createOutputLockRecord(HashId.createRandom());
+        pending.setExpiresAt(ZonedDateTime.now().minusHours(1));
+        pending.save();
+        locked.setExpiresAt(ZonedDateTime.now().minusHours(1));
+        locked.save();
+        assertEquals(3, ledger.removeExpired(3));
+        assertEquals(2, ledger.removeExpired(3));
+        assertEquals(0, ledger.removeExpired(3));
+        assertSame(alive, ledger.getRecord(alive.getId()));
+        // the election commits its records by ids, so they should be still there
+        pending.setState(ItemState.APPROVED).setExpiresAt(ZonedDateTime.now().plusHours(1));
+        pending.save();
+        locked.setState(ItemState.APPROVED).setExpiresAt(ZonedDateTime.now().plusHours(1));
+        locked.save();
+        ledger.enableCache(false);
+        assertEquals(ItemState.APPROVED, ledger.getRecord(pending.getId()).getState());
+        assertEquals(ItemState.APPROVED, ledger.getRecord(locked.getId()).getState());
+        ledger.enableCache(true);
+        // deleted records are dropped from the cache too, so the new one is created
+        for (StateRecord r : expired) {
+            StateRecord r1 = ledger.findOrCreate(r.getId());
+            assertNotEquals(r.getRecordId(), r1.getRecordId());
+            assertEquals(ItemState.PENDING, r1.getState());
+        }
+    }
+
+    @Test
+    public void bulkOperations() throws Exception {
+        ledger.enableCache(true);
+        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
+        StateRecord other = ledger.findOrCreate(HashId.createRandom());
+
+        List<HashId> approved = new ArrayList<>();
+        for (int i = 0; i < 5; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.approve();
+            approved.add(r.getId());
+        }
+        HashId missing = HashId.createRandom();
+        List<HashId> ids = new ArrayList<>(approved);
+        ids.add(missing);
+        ids.add(other.getId());
+
+        Map<HashId, StateRecord> found = ledger.getRecords(ids);
+        assertEquals(6, found.size());
+        assertNull(found.get(missing));
+        for (HashId id : approved)
+            assertEquals(ItemState.APPROVED, found.get(id).getState());
+
+        // pending record can't be locked
+        Map<HashId, StateRecord> locked = owner.lockToRevokeAll(ids);
+        assertEquals(5, locked.size());
+        for (HashId id : approved) {
+            StateRecord r = locked.get(id);
+            r.reload();
+            assertEquals(ItemState.LOCKED, r.getState());
+            assertEquals(owner.getRecordId(), r.getLockedByRecordId());
+        }
+        // locked by us is ok, the second time too
+        assertEquals(5, owner.lockToRevokeAll(approved).size());
+
+        List<HashId> newIds = new ArrayList<>();
+        for (int i = 0; i < 5; i++)
+            newIds.add(HashId.createRandom());
+        List<HashId> toCreate = new ArrayList<>(newIds);
+        // existing item could not be created
+        toCreate.add(other.getId());
+        Map<HashId, StateRecord> created = owner.createOutputLockRecords(toCreate);
+        assertEquals(5, created.size());
+        assertNull(created.get(other.getId()));
+        for (HashId id : newIds) {
+            StateRecord r = created.get(id);
+            r.reload();
+            assertEquals(ItemState.LOCKED_FOR_CREATION, r.getState());
+            assertEquals(owner.getRecordId(), r.getLockedByRecordId());
+        }
+        // it is locked by us so it is ok to repeat
+        assertEquals(5, owner.createOutputLockRecords(newIds).size());
+        // but not for others
+        assertEquals(0, other.createOutputLockRecords(newIds).size());
+    }
+
 }
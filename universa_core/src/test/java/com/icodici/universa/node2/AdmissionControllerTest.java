@@ -0,0 +1,180 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.Errors;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.TestItem;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+
+    private AdmissionController create(int maxElections, int queueSize) {
+        return new AdmissionController(maxElections, queueSize, Duration.ofMillis(100),
+                                       Duration.ofSeconds(10), Duration.ofMillis(500));
+    }
+
+    @Test
+    public void admitUpToLimit() throws Exception {
+        AdmissionController ac = create(64, 0);
+        int limit = ac.getLimit();
+        assertEquals(16, limit);
+        List<AdmissionController.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < limit; i++) {
+            AdmissionController.Permit p = ac.acquire();
+            assertNotNull(p);
+            p.claim();
+            permits.add(p);
+        }
+        assertEquals(limit, ac.getActive());
+        // no queue, so it is rejected at once
+        assertNull(ac.acquire());
+        assertEquals(1, ac.getRejected());
+
+        // release is idempotent
+        AdmissionController.Permit p = permits.remove(0);
+        p.release(true);
+        p.release(true);
+        assertEquals(limit - 1, ac.getActive());
+        // unused permit releases without affecting the limit
+        AdmissionController.Permit unused = ac.acquire();
+        assertNotNull(unused);
+        unused.releaseIfUnused();
+        unused.releaseIfUnused();
+        assertEquals(limit - 1, ac.getActive());
+        for (AdmissionController.Permit x : permits)
+            x.release(true);
+        assertEquals(0, ac.getActive());
+        assertTrue(ac.getLimit() >= limit);
+    }
+
+    @Test
+    public void queue() throws Exception {
+        AdmissionController ac = create(16, 1);
+        List<AdmissionController.Permit> permits = new ArrayList<>();
+        for (int i = 0; i < 16; i++)
+            permits.add(ac.acquire());
+
+        // waits for the queue timeout and gives up
+        long started = System.nanoTime();
+        assertNull(ac.acquire());
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started) >= 90);
+
+        // waits in the queue until the permit is released
+        CountDownLatch waiting = new CountDownLatch(1);
+        AtomicReference<AdmissionController.Permit> result = new AtomicReference<>();
+        Thread t = new Thread(() -> {
+            try {
+                waiting.countDown();
+                result.set(ac.acquire());
+            } catch (InterruptedException e) {
+                e.printStackTrace();
+            }
+        });
+        t.start();
+        waiting.await();
+        while (ac.getWaiting() == 0)
+            Thread.sleep(1);
+        // the queue is full
+        assertNull(ac.acquire());
+        permits.get(0).release(true);
+        t.join();
+        assertNotNull(result.get());
+        assertEquals(0, ac.getWaiting());
+        assertEquals(16, ac.getActive());
+    }
+
+    @Test
+    public void acquireForPeer() throws Exception {
+        AdmissionController ac = create(32, 0);
+        for (int i = 0; i < 32; i++)
+            assertNotNull(ac.acquireForPeer());
+        assertNull(ac.acquireForPeer());
+        // client elections are over the limit too
+        assertNull(ac.acquire());
+        assertEquals(32, ac.getActive());
+    }
+
+    @Test
+    public void tryAcquire() throws Exception {
+        AdmissionController ac = new AdmissionController(16, 10, Duration.ofSeconds(30),
+                                                         Duration.ofSeconds(10), Duration.ofMillis(500));
+        for (int i = 0; i < 16; i++)
+            assertNotNull(ac.tryAcquire());
+        long started = System.nanoTime();
+        // the queue is not full, but it does not wait
+        assertNull(ac.tryAcquire());
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(5));
+        assertEquals(1, ac.getRejected());
+    }
+
+    @Test
+    public void decrease() throws Exception {
+        AdmissionController ac = create(400, 0);
+        assertEquals(100, ac.getLimit());
+        // expired election
+        ac.acquire().release(false);
+        assertEquals(90, ac.getLimit());
+        // not more often than once a second
+        ac.acquire().release(false);
+        ac.onLedgerLatency(TimeUnit.SECONDS.toNanos(1));
+        assertEquals(90, ac.getLimit());
+        // fast elections increase it slowly
+        for (int i = 0; i < 200; i++)
+            ac.acquire().release(true);
+        assertEquals(92, ac.getLimit());
+        assertEquals(0, ac.getActive());
+    }
+
+    @Test
+    public void finishedItemsAnsweredWhenOverloaded() throws Exception {
+        Config config = new Config();
+        config.setPositiveConsensus(1);
+        config.setNegativeConsensus(1);
+        config.setMaxElections(1);
+        config.setAdmissionQueueSize(0);
+        NetConfig nc = new NetConfig();
+        NodeInfo info = new NodeInfo(null, 1, "node1", "localhost", 17101, 17102, 17104);
+        nc.addNode(info);
+        Node node = new Node(config, info, new MemoryLedger(), new TestSingleNetwork(nc));
+        try {
+            TestItem done = new TestItem(true);
+            node.registerItem(done);
+            assertEquals(ItemState.APPROVED, node.waitItem(done.getId(), 2000).state);
+
+            // the election is closed after the result is known
+            for (int i = 0; i < 200 && node.getAdmission().getActive() > 0; i++)
+                Thread.sleep(10);
+            // the only slot is taken
+            AdmissionController.Permit permit = node.getAdmission().acquire();
+            assertNotNull(permit);
+            permit.claim();
+
+            ItemResult r = node.registerItem(new TestItem(true));
+            assertEquals(ItemState.UNDEFINED, r.state);
+            assertEquals(Errors.NOT_READY, r.errors.get(0).getError());
+            // the finished election is answered anyway
+            r = node.registerItem(done);
+            assertEquals(ItemState.APPROVED, r.state);
+            assertNull(r.errors);
+            permit.release(true);
+        } finally {
+            node.shutdown();
+        }
+    }
+}
@@ -0,0 +1,406 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.Errors;
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.StateRecord;
+import com.icodici.universa.node.TestItem;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Runs real {@link Node}s over the {@link SimulatedNetwork} with the {@link MemoryLedger} in the {@link Simulation}, to
+ * see how the network of the given size, links and config values (poll time, consensus thresholds, etc.) handles the
+ * stream of elections. Thousands of nodes and elections take seconds, not hours, and the same seed gives the same
+ * results.
+ * <p>
+ * The election is finished for the node when its ledger record is saved with the final state; election latency is
+ * the time from the registration to the moment it is finished by the node that registered it, and the propagation
+ * time is the same for the last node of the network.
+ */
+public class ConsensusSimulator {
+
+    private final int nodesCount;
+    private final long seed;
+    private final Config config = new Config();
+    private LinkModel linkModel = LinkModel.uniform(Duration.ofMillis(5), Duration.ofMillis(50), 0);
+    private double badItemsShare = 0;
+    private int offlineNodes = 0;
+    private int batchingNodes = 0;
+    private Duration voteBatchWindow = Duration.ZERO;
+
+    /**
+     * Create the simulator with the consensus set the way {@link Main} does for the network of this size.
+     *
+     * @param nodesCount number of nodes
+     * @param seed       of the simulation
+     */
+    public ConsensusSimulator(int nodesCount, long seed) {
+        this.nodesCount = nodesCount;
+        this.seed = seed;
+        int negative = Math.max(1, (int) Math.ceil(nodesCount * 0.11));
+        int positive = (int) Math.floor(nodesCount * 0.90);
+        if (negative + positive == nodesCount)
+            negative += 1;
+        config.setPositiveConsensus(positive);
+        config.setNegativeConsensus(negative);
+        // waiting for admission would block the simulation thread, so overloaded node rejects at once
+        config.setAdmissionQueueTimeout(Duration.ZERO);
+        // notifications are sent at once unless the nodes batch the votes
+        config.setCoalescingWindow(Duration.ZERO);
+    }
+
+    /**
+     * @return config of all the nodes, could be changed before {@link #run(int, Duration, Duration)}
+     */
+    public Config getConfig() {
+        return config;
+    }
+
+    public void setLinkModel(LinkModel linkModel) {
+        this.linkModel = linkModel;
+    }
+
+    /**
+     * @param share of items that fail the check and should be declined, 0..1
+     */
+    public void setBadItemsShare(double share) {
+        this.badItemsShare = share;
+    }
+
+    /**
+     * @param count number of nodes that are off the network from the start; items are registered and propagation is
+     *              waited for with the online nodes only
+     */
+    public void setOfflineNodes(int count) {
+        if (count < 0 || count >= nodesCount)
+            throw new IllegalArgumentException("bad number of offline nodes: " + count);
+        this.offlineNodes = count;
+    }
+
+    /**
+     * Make some nodes send the votes in batches, see {@link Config#isVoteBatching()}, while others do not, to see how
+     * the mixed network works. Batching is off by default.
+     *
+     * @param count  number of the first nodes that batch the votes, up to all nodes
+     * @param window time these nodes collect the notifications to the same node, see {@link
+     *               Config#getCoalescingWindow()}
+     */
+    public void setVoteBatching(int count, Duration window) {
+        if (count < 0 || count > nodesCount)
+            throw new IllegalArgumentException("bad number of batching nodes: " + count);
+        this.batchingNodes = count;
+        this.voteBatchWindow = window;
+    }
+
+    /**
+     * Run the simulation: register the given number of items with the random nodes, one per interval, and process
+     * them until all nodes have finished all the elections or the time is over.
+     *
+     * @param elections number of items to register
+     * @param interval  between registrations
+     * @param maxTime   virtual time limit
+     *
+     * @return the report
+     */
+    public Report run(int elections, Duration interval, Duration maxTime) {
+        Simulation sim = new Simulation(seed);
+        SimulatedNetwork.Links links = new SimulatedNetwork.Links(sim, linkModel);
+        NetConfig netConfig = new NetConfig();
+        List<NodeInfo> infos = new ArrayList<>();
+        for (int i = 0; i < nodesCount; i++) {
+            // the addresses are never used, the key is not needed
+            int port = 1 + i % 60000;
+            NodeInfo info = new NodeInfo(null, i, "sim_" + i, "localhost", port, port, port);
+            infos.add(info);
+            netConfig.addNode(info);
+        }
+        Tracker tracker = new Tracker(sim, elections);
+        Config batchingConfig = config.copy();
+        batchingConfig.setVoteBatching(true);
+        batchingConfig.setCoalescingWindow(voteBatchWindow);
+        List<Node> nodes = new ArrayList<>();
+        for (NodeInfo info : infos) {
+            MemoryLedger ledger = new MemoryLedger();
+            int number = info.getNumber();
+            ledger.setOnSave(r -> tracker.saved(number, r));
+            SimulatedNetwork network = new SimulatedNetwork(netConfig, info, links);
+            Node node = new Node(number < batchingNodes ? batchingConfig : config, info, ledger, network,
+                                 sim.getClock(), sim.getScheduler(), sim.getExecutor());
+            links.addNode(info, node);
+            nodes.add(node);
+        }
+        int online = nodesCount - offlineNodes;
+        for (int i = online; i < nodesCount; i++)
+            links.setOffline(infos.get(i), true);
+
+        for (int i = 0; i < elections; i++) {
+            int index = i;
+            sim.at(interval.toNanos() * i, () -> {
+                boolean good = sim.getRandom().nextDouble() >= badItemsShare;
+                int origin = sim.getRandom().nextInt(online);
+                TestItem item = new TestItem(good);
+                tracker.started(item.getId(), index, origin);
+                ItemResult r = nodes.get(origin).registerItem(item);
+                if (r.errors != null && r.errors.stream().anyMatch(e -> e.getError() == Errors.NOT_READY))
+                    tracker.rejected++;
+            });
+        }
+
+        long wallStarted = System.nanoTime();
+        sim.run(maxTime, () -> tracker.propagated + tracker.rejected == elections);
+        double wallSeconds = (System.nanoTime() - wallStarted) / 1e9;
+        nodes.forEach(Node::shutdown);
+        long pollsSent = 0, fixedRatePolls = 0;
+        for (Node node : nodes) {
+            pollsSent += node.getPollsSent();
+            fixedRatePolls += node.getFixedRatePolls();
+        }
+        return new Report(tracker, links, sim, wallSeconds, pollsSent, fixedRatePolls);
+    }
+
+    private class Tracker {
+        private final Simulation sim;
+        private final Map<HashId, Integer> indexes = new HashMap<>();
+        private final long[] startedAt;
+        private final int[] origins;
+        private final long[] finishedAt;
+        private final long[] propagatedAt;
+        private final ItemState[] states;
+        private final BitSet[] finishedNodes;
+        private int finished = 0;
+        private int propagated = 0;
+        private int rejected = 0;
+
+        private Tracker(Simulation sim, int elections) {
+            this.sim = sim;
+            startedAt = new long[elections];
+            origins = new int[elections];
+            finishedAt = new long[elections];
+            propagatedAt = new long[elections];
+            states = new ItemState[elections];
+            finishedNodes = new BitSet[elections];
+        }
+
+        private void started(HashId id, int index, int origin) {
+            indexes.put(id, index);
+            origins[index] = origin;
+            startedAt[index] = sim.nanos();
+            finishedNodes[index] = new BitSet(nodesCount);
+        }
+
+        private void saved(int node, StateRecord record) {
+            ItemState state = record.getState();
+            if (state.isPending() || state == ItemState.LOCKED_FOR_CREATION)
+                return;
+            Integer index = indexes.get(record.getId());
+            if (index == null || finishedNodes[index].get(node))
+                return;
+            finishedNodes[index].set(node);
+            if (node == origins[index]) {
+                finishedAt[index] = sim.nanos();
+                states[index] = state;
+                finished++;
+            }
+            if (finishedNodes[index].cardinality() == nodesCount - offlineNodes) {
+                propagatedAt[index] = sim.nanos();
+                propagated++;
+            }
+        }
+    }
+
+    /**
+     * Results of the simulation run.
+     */
+    public class Report {
+        private final int elections;
+        private final int finished;
+        private final int propagated;
+        private final int rejected;
+        private final int approved;
+        private final int declined;
+        private final long[] latencies;
+        private final long[] propagationTimes;
+        private final double virtualSeconds;
+        private final double wallSeconds;
+        private final long messages;
+        private final long lostMessages;
+        private final long downloads;
+        private final long failedDownloads;
+        private final long events;
+        private final long failures;
+        private final long pollsSent;
+        private final long pollsSaved;
+
+        private Report(Tracker t, SimulatedNetwork.Links links, Simulation sim, double wallSeconds, long pollsSent,
+                       long fixedRatePolls) {
+            elections = t.startedAt.length;
+            finished = t.finished;
+            propagated = t.propagated;
+            rejected = t.rejected;
+            int approved = 0, declined = 0;
+            List<Long> ll = new ArrayList<>();
+            List<Long> pp = new ArrayList<>();
+            for (int i = 0; i < elections; i++) {
+                if (t.states[i] == ItemState.APPROVED)
+                    approved++;
+                else if (t.states[i] == ItemState.DECLINED)
+                    declined++;
+                if (t.states[i] != null)
+                    ll.add(t.finishedAt[i] - t.startedAt[i]);
+                if (t.propagatedAt[i] != 0)
+                    pp.add(t.propagatedAt[i] - t.startedAt[i]);
+            }
+            this.approved = approved;
+            this.declined = declined;
+            latencies = ll.stream().mapToLong(x -> x).sorted().toArray();
+            propagationTimes = pp.stream().mapToLong(x -> x).sorted().toArray();
+            virtualSeconds = sim.nanos() / 1e9;
+            this.wallSeconds = wallSeconds;
+            messages = links.getDelivered();
+            lostMessages = links.getLost();
+            downloads = links.getDownloads();
+            failedDownloads = links.getFailedDownloads();
+            events = sim.getProcessed();
+            failures = sim.getFailures();
+            this.pollsSent = pollsSent;
+            pollsSaved = fixedRatePolls - pollsSent;
+        }
+
+        public int getElections() {
+            return elections;
+        }
+
+        /**
+         * @return elections finished by the node that has registered the item
+         */
+        public int getFinished() {
+            return finished;
+        }
+
+        /**
+         * @return elections finished by all nodes
+         */
+        public int getPropagated() {
+            return propagated;
+        }
+
+        public int getRejected() {
+            return rejected;
+        }
+
+        public int getApproved() {
+            return approved;
+        }
+
+        public int getDeclined() {
+            return declined;
+        }
+
+        /**
+         * @return finished elections per second of the virtual time
+         */
+        public double getThroughput() {
+            return virtualSeconds > 0 ? finished / virtualSeconds : 0;
+        }
+
+        /**
+         * @param percentile 0..1
+         *
+         * @return election latency, milliseconds, or NaN if none has finished
+         */
+        public double getLatencyMillis(double percentile) {
+            return percentile(latencies, percentile);
+        }
+
+        /**
+         * @param percentile 0..1
+         *
+         * @return time for all nodes to finish the election, milliseconds, or NaN if none has
+         */
+        public double getPropagationMillis(double percentile) {
+            return percentile(propagationTimes, percentile);
+        }
+
+        public long getMessages() {
+            return messages;
+        }
+
+        public long getLostMessages() {
+            return lostMessages;
+        }
+
+        public long getDownloads() {
+            return downloads;
+        }
+
+        public long getFailedDownloads() {
+            return failedDownloads;
+        }
+
+        public double getVirtualSeconds() {
+            return virtualSeconds;
+        }
+
+        public double getWallSeconds() {
+            return wallSeconds;
+        }
+
+        /**
+         * @return notifications sent by all nodes to poll the nodes that did not vote
+         */
+        public long getPollsSent() {
+            return pollsSent;
+        }
+
+        /**
+         * @return polls saved by the adaptive polling compared to the fixed rate one, at least
+         */
+        public long getPollsSaved() {
+            return pollsSaved;
+        }
+
+        /**
+         * @return tasks that have thrown an exception, should be 0
+         */
+        public long getFailures() {
+            return failures;
+        }
+
+        private double percentile(long[] sorted, double p) {
+            if (sorted.length == 0)
+                return Double.NaN;
+            int index = Math.min(sorted.length - 1, Math.max(0, (int) Math.ceil(p * sorted.length) - 1));
+            return sorted[index] / 1e6;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(
+                    "nodes: %d, elections: %d, finished: %d (approved %d, declined %d), propagated: %d, rejected: %d\n" +
+                            "throughput: %.1f/s, latency ms p50/p90/p99/max: %.1f/%.1f/%.1f/%.1f, " +
+                            "propagation ms p50/p99: %.1f/%.1f\n" +
+                            "messages: %d (%.1f per election), lost: %d, downloads: %d, failed: %d\n" +
+                            "polls sent: %d, saved: %d\n" +
+                            "virtual time: %.2fs, wall time: %.2fs, events: %d, failures: %d",
+                    nodesCount, elections, finished, approved, declined, propagated, rejected,
+                    getThroughput(), getLatencyMillis(0.5), getLatencyMillis(0.9), getLatencyMillis(0.99),
+                    getLatencyMillis(1), getPropagationMillis(0.5), getPropagationMillis(0.99),
+                    messages, elections > 0 ? (double) messages / elections : 0, lostMessages, downloads,
+                    failedDownloads, pollsSent, pollsSaved, virtualSeconds, wallSeconds, events, failures);
+        }
+    }
+}
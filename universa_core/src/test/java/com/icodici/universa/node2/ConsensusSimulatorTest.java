@@ -0,0 +1,155 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.utils.LogPrinter;
+import org.junit.Test;
+
+import java.time.Duration;
+
+import static org.junit.Assert.*;
+
+public class ConsensusSimulatorTest {
+
+    private static LogPrinter log = new LogPrinter("CSIM");
+
+    @Test
+    public void approveAndDecline() throws Exception {
+        ConsensusSimulator cs = new ConsensusSimulator(10, 1);
+        cs.setBadItemsShare(0.3);
+        ConsensusSimulator.Report r = cs.run(50, Duration.ofMillis(20), Duration.ofMinutes(5));
+        log.d(r.toString());
+        assertEquals(0, r.getFailures());
+        assertEquals(0, r.getRejected());
+        assertEquals(50, r.getFinished());
+        assertEquals(50, r.getPropagated());
+        assertEquals(50, r.getApproved() + r.getDeclined());
+        assertTrue(r.getDeclined() > 0);
+        assertTrue(r.getApproved() > 0);
+        assertTrue(r.getLatencyMillis(0.5) >= 5);
+        assertTrue(r.getLatencyMillis(0.5) <= r.getLatencyMillis(1));
+        assertTrue(r.getMessages() > 0);
+    }
+
+    @Test
+    public void sameSeedSameRun() throws Exception {
+        ConsensusSimulator.Report r1 = new ConsensusSimulator(7, 42).run(30, Duration.ofMillis(5), Duration.ofMinutes(5));
+        ConsensusSimulator.Report r2 = new ConsensusSimulator(7, 42).run(30, Duration.ofMillis(5), Duration.ofMinutes(5));
+        assertEquals(r1.getApproved(), r2.getApproved());
+        assertEquals(r1.getMessages(), r2.getMessages());
+        assertEquals(r1.getDownloads(), r2.getDownloads());
+        assertEquals(r1.getLatencyMillis(0.5), r2.getLatencyMillis(0.5), 1e-9);
+        assertEquals(r1.getLatencyMillis(1), r2.getLatencyMillis(1), 1e-9);
+        assertEquals(r1.getVirtualSeconds(), r2.getVirtualSeconds(), 1e-9);
+    }
+
+    @Test
+    public void lossyLinks() throws Exception {
+        ConsensusSimulator cs = new ConsensusSimulator(10, 3);
+        cs.setLinkModel(LinkModel.uniform(Duration.ofMillis(10), Duration.ofMillis(100), 0.2));
+        ConsensusSimulator.Report r = cs.run(20, Duration.ofMillis(50), Duration.ofMinutes(10));
+        log.d(r.toString());
+        assertEquals(0, r.getFailures());
+        assertTrue(r.getLostMessages() > 0);
+        // lost notifications are repeated by polling, so all elections are finished anyway
+        assertEquals(20, r.getFinished());
+        assertEquals(20, r.getApproved());
+    }
+
+    @Test
+    public void adaptivePolling() throws Exception {
+        // 2 of 10 nodes are offline, so the positive consensus of 9 can't be found and the elections are polled until
+        // they expire
+        ConsensusSimulator fixed = new ConsensusSimulator(10, 5);
+        fixed.setOfflineNodes(2);
+        fixed.getConfig().setMaxElectionsTime(Duration.ofMinutes(2));
+        fixed.getConfig().setFirstPollTime(Duration.ofSeconds(1));
+        fixed.getConfig().setMaxPollTime(Duration.ofSeconds(1));
+        ConsensusSimulator.Report rf = fixed.run(5, Duration.ofMillis(100), Duration.ofMinutes(3));
+        log.d(rf.toString());
+
+        ConsensusSimulator adaptive = new ConsensusSimulator(10, 5);
+        adaptive.setOfflineNodes(2);
+        adaptive.getConfig().setMaxElectionsTime(Duration.ofMinutes(2));
+        ConsensusSimulator.Report ra = adaptive.run(5, Duration.ofMillis(100), Duration.ofMinutes(3));
+        log.d(ra.toString());
+
+        assertEquals(0, rf.getFailures());
+        assertEquals(0, ra.getFailures());
+        assertEquals(0, rf.getPollsSaved(), 10);
+        assertTrue(ra.getPollsSent() * 5 < rf.getPollsSent());
+        assertTrue(ra.getPollsSaved() > rf.getPollsSent() / 2);
+        assertTrue(ra.getLostMessages() * 5 < rf.getLostMessages());
+    }
+
+    @Test
+    public void batchedVotes() throws Exception {
+        // 500 elections per second
+        ConsensusSimulator single = new ConsensusSimulator(10, 7);
+        ConsensusSimulator.Report rs = single.run(1000, Duration.ofMillis(2), Duration.ofMinutes(5));
+        log.d(rs.toString());
+
+        ConsensusSimulator batched = new ConsensusSimulator(10, 7);
+        batched.setVoteBatching(10, Duration.ofMillis(20));
+        ConsensusSimulator.Report rb = batched.run(1000, Duration.ofMillis(2), Duration.ofMinutes(5));
+        log.d(rb.toString());
+
+        assertEquals(0, rs.getFailures());
+        assertEquals(0, rb.getFailures());
+        assertEquals(1000, rb.getFinished());
+        assertEquals(1000, rb.getPropagated());
+        assertEquals(rs.getApproved(), rb.getApproved());
+        assertTrue(rb.getMessages() * 5 < rs.getMessages());
+        // the batch window is added to each round
+        assertTrue(rb.getLatencyMillis(0.5) < rs.getLatencyMillis(0.5) + 100);
+    }
+
+    @Test
+    public void mixedVoteBatching() throws Exception {
+        // a half of the nodes send batches, others send single votes
+        ConsensusSimulator cs = new ConsensusSimulator(10, 11);
+        cs.setBadItemsShare(0.3);
+        cs.setVoteBatching(5, Duration.ofMillis(20));
+        cs.setLinkModel(LinkModel.uniform(Duration.ofMillis(5), Duration.ofMillis(50), 0.05));
+        ConsensusSimulator.Report r = cs.run(300, Duration.ofMillis(5), Duration.ofMinutes(10));
+        log.d(r.toString());
+        assertEquals(0, r.getFailures());
+        assertEquals(0, r.getRejected());
+        assertEquals(300, r.getFinished());
+        assertEquals(300, r.getPropagated());
+        assertEquals(300, r.getApproved() + r.getDeclined());
+        assertTrue(r.getDeclined() > 0);
+    }
+
+    @Test
+    public void regionsNetwork() throws Exception {
+        // the same network as largeNetwork, scaled down to run with the other tests
+        ConsensusSimulator cs = new ConsensusSimulator(100, 1);
+        cs.setLinkModel(LinkModel.regions(5, Duration.ofMillis(5), Duration.ofMillis(80), 0.01));
+        ConsensusSimulator.Report r = cs.run(10, Duration.ofMillis(20), Duration.ofMinutes(30));
+        log.d(r.toString());
+        assertEquals(0, r.getFailures());
+        assertEquals(0, r.getRejected());
+        assertEquals(10, r.getFinished());
+        assertEquals(10, r.getPropagated());
+        assertEquals(10, r.getApproved());
+        assertTrue(r.getLostMessages() > 0);
+        // most of the nodes are in other regions
+        assertTrue(r.getLatencyMillis(0.5) >= 80);
+    }
+
+//    @Test
+    public void largeNetwork() throws Exception {
+        ConsensusSimulator cs = new ConsensusSimulator(1000, 1);
+        cs.setLinkModel(LinkModel.regions(5, Duration.ofMillis(5), Duration.ofMillis(80), 0.01));
+        ConsensusSimulator.Report r = cs.run(10, Duration.ofMillis(20), Duration.ofMinutes(30));
+        log.d(r.toString());
+        assertEquals(0, r.getFailures());
+        assertEquals(10, r.getFinished());
+    }
+}
@@ -0,0 +1,89 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.node.network.TestKeys;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class DownloadStatisticsTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private List<NodeInfo> nodes(int count) throws Exception {
+        List<NodeInfo> result = new ArrayList<>();
+        for (int i = 0; i < count; i++)
+            result.add(new NodeInfo(TestKeys.publicKey(i % 3), i + 1, "test" + i, "localhost",
+                                    17101 + i, 17201 + i, 17301 + i));
+        return result;
+    }
+
+    @Test
+    public void chooseFastSources() throws Exception {
+        DownloadStatistics ds = new DownloadStatistics(0.95, 1000 * MS, new Random(1));
+        List<NodeInfo> nodes = nodes(4);
+        // the last node is slow
+        for (int i = 0; i < 10; i++) {
+            ds.onSuccess(nodes.get(0), 10 * MS);
+            ds.onSuccess(nodes.get(1), 12 * MS);
+            ds.onSuccess(nodes.get(2), 15 * MS);
+            ds.onSuccess(nodes.get(3), 500 * MS);
+        }
+        int slow = 0;
+        for (int i = 0; i < 1000; i++) {
+            if (ds.choose(nodes, Collections.emptySet()) == nodes.get(3))
+                slow++;
+        }
+        // only when it is paired with itself in the exploration round
+        assertTrue("slow node chosen " + slow + " times", slow < 100);
+
+        // nodes being downloaded from are skipped
+        NodeInfo n = ds.choose(nodes, Arrays.asList(nodes.get(0), nodes.get(1), nodes.get(2)));
+        assertSame(nodes.get(3), n);
+        assertNull(ds.choose(nodes, nodes));
+    }
+
+    @Test
+    public void failuresArePenalized() throws Exception {
+        DownloadStatistics ds = new DownloadStatistics(0.95, 1000 * MS, new Random(1));
+        List<NodeInfo> nodes = nodes(2);
+        ds.onSuccess(nodes.get(0), 10 * MS);
+        ds.onSuccess(nodes.get(1), 10 * MS);
+        ds.onFailure(nodes.get(1), 1 * MS);
+        assertTrue(ds.expectedNanos(nodes.get(1)) > ds.expectedNanos(nodes.get(0)));
+    }
+
+    @Test
+    public void hedgeDelay() throws Exception {
+        DownloadStatistics ds = new DownloadStatistics(0.9, 1000 * MS, new Random(1));
+        NodeInfo node = nodes(1).get(0);
+        // not enough samples yet
+        assertEquals(500 * MS, ds.getHedgeDelayNanos());
+        for (int i = 1; i <= 100; i++)
+            ds.onSuccess(node, i * MS);
+        assertEquals(90 * MS, ds.getHedgeDelayNanos());
+
+        // is clamped from both sides
+        ds = new DownloadStatistics(0.9, 50 * MS, new Random(1));
+        for (int i = 1; i <= 100; i++)
+            ds.onSuccess(node, i * MS);
+        assertEquals(50 * MS, ds.getHedgeDelayNanos());
+        ds = new DownloadStatistics(0.9, 50 * MS, new Random(1));
+        for (int i = 1; i <= 100; i++)
+            ds.onSuccess(node, 1000);
+        assertEquals(20 * MS, ds.getHedgeDelayNanos());
+    }
+}
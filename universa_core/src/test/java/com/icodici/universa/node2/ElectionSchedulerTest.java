@@ -0,0 +1,113 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.node2.ElectionScheduler.Lane;
+import org.junit.Test;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class ElectionSchedulerTest {
+
+    /**
+     * Runs tasks only when asked to.
+     */
+    private static class ManualExecutor implements Executor {
+        final ArrayDeque<Runnable> tasks = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            tasks.add(command);
+        }
+
+        void runAll() {
+            Runnable r;
+            while ((r = tasks.poll()) != null)
+                r.run();
+        }
+    }
+
+    @Test
+    public void finishDoesNotWaitForChecks() throws Exception {
+        ManualExecutor finish = new ManualExecutor();
+        ManualExecutor check = new ManualExecutor();
+        ElectionScheduler es = new ElectionScheduler(new Config(), finish, check, 1, new MetricsRegistry());
+        List<String> done = new ArrayList<>();
+        for (int i = 0; i < 100; i++)
+            es.execute(Lane.CLIENT, () -> done.add("check"));
+        es.execute(Lane.FINISH, () -> done.add("commit"));
+        assertEquals(100, es.getQueueLength(Lane.CLIENT));
+        assertEquals(1, es.getQueueLength(Lane.FINISH));
+        // only one drain worker is started for all the checks
+        assertEquals(1, check.tasks.size());
+
+        finish.runAll();
+        assertEquals(1, done.size());
+        assertEquals("commit", done.get(0));
+        assertEquals(0, es.getQueueLength(Lane.FINISH));
+
+        check.runAll();
+        assertEquals(101, done.size());
+        assertEquals(0, es.getQueueLength(Lane.CLIENT));
+    }
+
+    @Test
+    public void sharesByWeights() throws Exception {
+        Config config = new Config();
+        config.setNearQuorumWeight(4);
+        config.setPeerItemsWeight(2);
+        config.setClientItemsWeight(1);
+        ManualExecutor check = new ManualExecutor();
+        ElectionScheduler es = new ElectionScheduler(config, check, check, 1, new MetricsRegistry());
+        List<Lane> done = new ArrayList<>();
+        for (Lane lane : new Lane[]{Lane.CLIENT, Lane.PEER, Lane.NEAR_QUORUM}) {
+            for (int i = 0; i < 70; i++)
+                es.execute(lane, () -> done.add(lane));
+        }
+        check.runAll();
+        assertEquals(210, done.size());
+
+        // while all the lanes are busy the runs are shared 4:2:1
+        int[] counts = new int[Lane.values().length];
+        for (Lane lane : done.subList(0, 70))
+            counts[lane.ordinal()]++;
+        assertEquals(40, counts[Lane.NEAR_QUORUM.ordinal()]);
+        assertEquals(20, counts[Lane.PEER.ordinal()]);
+        assertEquals(10, counts[Lane.CLIENT.ordinal()]);
+
+        // the client lane is not starved: it gets its turn in each round
+        for (int i = 0; i + 7 <= 70; i += 7)
+            assertTrue(done.subList(i, i + 7).contains(Lane.CLIENT));
+    }
+
+    @Test
+    public void failedTaskDoesNotStopLane() throws Exception {
+        ManualExecutor check = new ManualExecutor();
+        ElectionScheduler es = new ElectionScheduler(new Config(), check, check, 1, new MetricsRegistry());
+        List<Lane> done = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            es.execute(Lane.CLIENT, () -> done.add(Lane.CLIENT));
+        check.runAll();
+        assertEquals(10, done.size());
+        assertEquals(0, es.getQueueLength(Lane.CLIENT));
+
+        // a failing task does not stop the lane
+        es.execute(Lane.PEER, () -> {
+            throw new RuntimeException("test failure");
+        });
+        es.execute(Lane.PEER, () -> done.add(Lane.PEER));
+        check.runAll();
+        assertEquals(11, done.size());
+        assertEquals(Lane.PEER, done.get(10));
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.Ledger;
+import com.icodici.universa.node.PostgresLedger;
+import com.icodici.universa.node.StateRecord;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class GroupCommitLedgerTest {
+
+    /**
+     * Counts transactions and fails to save the given record.
+     */
+    private static class TestLedger extends MemoryLedger {
+        final AtomicInteger transactions = new AtomicInteger();
+        volatile HashId broken;
+
+        @Override
+        public <T> T transaction(Callable<T> callable) {
+            transactions.incrementAndGet();
+            return super.transaction(callable);
+        }
+
+        @Override
+        public void save(StateRecord stateRecord) {
+            if (stateRecord.getId().equals(broken))
+                throw new Ledger.Failure("test failure");
+            super.save(stateRecord);
+        }
+    }
+
+    @Test
+    public void groupsConcurrentSaves() throws Exception {
+        TestLedger storage = new TestLedger();
+        GroupCommitLedger ledger = new GroupCommitLedger(storage, Duration.ofSeconds(1), 10, new MetricsRegistry());
+        List<StateRecord> records = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            records.add(ledger.findOrCreate(HashId.createRandom()));
+
+        CountDownLatch start = new CountDownLatch(1);
+        ExecutorService es = Executors.newFixedThreadPool(20);
+        for (StateRecord r : records) {
+            es.execute(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                r.setState(ItemState.APPROVED).save();
+            });
+        }
+        start.countDown();
+        es.shutdown();
+        assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+
+        assertEquals(20, ledger.getSaves());
+        // full batches are committed without waiting for the window
+        assertTrue(ledger.getCommits() <= 4);
+        assertEquals(ledger.getCommits(), storage.transactions.get());
+        for (StateRecord r : records)
+            assertEquals(ItemState.APPROVED, storage.getRecord(r.getId()).getState());
+    }
+
+    @Test
+    public void savesInTransactionAreNotCollected() throws Exception {
+        TestLedger storage = new TestLedger();
+        GroupCommitLedger ledger = new GroupCommitLedger(storage, Duration.ofSeconds(30), 10, new MetricsRegistry());
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        long started = System.nanoTime();
+        ledger.transaction(() -> {
+            r.setState(ItemState.APPROVED).save();
+            return null;
+        });
+        assertTrue(System.nanoTime() - started < TimeUnit.SECONDS.toNanos(10));
+        assertEquals(0, ledger.getCommits());
+        assertEquals(ItemState.APPROVED, storage.getRecord(r.getId()).getState());
+    }
+
+    @Test
+    public void badRecordFailsOnlyItsCaller() throws Exception {
+        TestLedger storage = new TestLedger();
+        GroupCommitLedger ledger = new GroupCommitLedger(storage, Duration.ofSeconds(30), 2, new MetricsRegistry());
+        StateRecord good = new StateRecord(ledger);
+        good.setId(HashId.createRandom());
+        good.setState(ItemState.PENDING);
+        StateRecord bad = new StateRecord(ledger);
+        bad.setId(HashId.createRandom());
+        bad.setState(ItemState.PENDING);
+        storage.broken = bad.getId();
+
+        ExecutorService es = Executors.newFixedThreadPool(2);
+        Future<?> goodSave = es.submit(() -> good.save());
+        Future<?> badSave = es.submit(() -> bad.save());
+        goodSave.get(10, TimeUnit.SECONDS);
+        try {
+            badSave.get(10, TimeUnit.SECONDS);
+            fail("save of the broken record should fail");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof Ledger.Failure);
+        }
+        es.shutdown();
+
+        assertNotEquals(0, good.getRecordId());
+        assertEquals(0, bad.getRecordId());
+        assertNotNull(storage.getRecord(good.getId()));
+        assertNull(storage.getRecord(bad.getId()));
+    }
+
+    @Test
+    public void savesOfRecordsAreMetered() throws Exception {
+        MetricsRegistry metrics = new MetricsRegistry();
+        // the same order the node wraps its ledger in
+        GroupCommitLedger ledger = new GroupCommitLedger(new MeteredLedger(new MemoryLedger(), metrics),
+                                                         Duration.ofMillis(10), 10, metrics);
+        StateRecord r = ledger.findOrCreate(HashId.createRandom());
+        assertSame(ledger, r.getLedger());
+        r.setState(ItemState.APPROVED).save();
+        assertEquals(1, metrics.histogram("universa_ledger_seconds", "ledger call latency", "method", "saveAll")
+                .getCount());
+        assertEquals(1, metrics.histogram("universa_ledger_seconds", "ledger call latency", "method", "transaction")
+                .getCount());
+    }
+
+    @Test
+    public void failedBatchIsNotSavedToPostgres() throws Exception {
+        PostgresLedger storage = new PostgresLedger("jdbc:postgresql://localhost:5432/universa_node");
+        storage.enableCache(false);
+        GroupCommitLedger ledger = new GroupCommitLedger(storage, Duration.ofMillis(10), 10, new MetricsRegistry());
+        StateRecord existing = ledger.findOrCreate(HashId.createRandom());
+
+        StateRecord created = new StateRecord(ledger);
+        created.setId(HashId.createRandom());
+        created.setState(ItemState.APPROVED);
+        // the hash is already in the ledger, so it fails after the first record is inserted
+        StateRecord duplicate = new StateRecord(ledger);
+        duplicate.setId(existing.getId());
+        duplicate.setState(ItemState.APPROVED);
+        existing.setState(ItemState.DECLINED);
+        try {
+            ledger.saveAll(asList(created, duplicate, existing));
+            fail("save of the duplicate record should fail");
+        } catch (Ledger.Failure e) {
+            // expected
+        }
+
+        assertEquals(0, created.getRecordId());
+        assertNull(storage.getRecord(created.getId()));
+        assertEquals(ItemState.PENDING, storage.getRecord(existing.getId()).getState());
+    }
+}
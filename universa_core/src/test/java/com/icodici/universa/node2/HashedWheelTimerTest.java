@@ -0,0 +1,168 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class HashedWheelTimerTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    // the time of the timer, moved by the tests
+    private final AtomicLong now = new AtomicLong(1000 * MS);
+    private HashedWheelTimer timer;
+
+    @Before
+    public void setUp() throws Exception {
+        // small wheel to check the rounds are counted properly; tasks run by the thread advancing the wheel
+        timer = new HashedWheelTimer(Duration.ofMillis(10), 8, Runnable::run, null, () -> now.get());
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        timer.shutdown();
+    }
+
+    /**
+     * Move the time forward by the steps, advancing the wheel after each one.
+     */
+    private void passMillis(long millis, long stepMillis) {
+        for (long passed = 0; passed < millis; passed += stepMillis) {
+            now.addAndGet(stepMillis * MS);
+            timer.advance();
+        }
+    }
+
+    @Test
+    public void fireOnce() throws Exception {
+        long started = now.get();
+        List<Long> fired = new ArrayList<>();
+        HashedWheelTimer.Timeout t = timer.schedule(() -> fired.add(now.get() - started), Duration.ofMillis(200));
+        assertEquals(1, timer.size());
+        passMillis(195, 5);
+        assertEquals(0, fired.size());
+        passMillis(100, 5);
+        assertEquals(1, fired.size());
+        // longer than the wheel, so it goes a few rounds, and fires not later than a tick after the deadline:
+        long millis = fired.get(0) / MS;
+        assertTrue("fired too early: " + millis, millis >= 200);
+        assertTrue("fired too late: " + millis, millis <= 210);
+        assertTrue(t.isExpired());
+        assertFalse(t.cancel());
+        assertEquals(0, timer.size());
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        AtomicInteger fired = new AtomicInteger();
+        HashedWheelTimer.Timeout t1 = timer.schedule(() -> fired.incrementAndGet(), Duration.ofMillis(50));
+        HashedWheelTimer.Timeout t2 = timer.schedule(() -> fired.incrementAndGet(), 50, TimeUnit.MILLISECONDS);
+        assertTrue(t1.cancel());
+        assertFalse(t1.cancel());
+        assertTrue(t1.isCancelled());
+        passMillis(200, 10);
+        assertEquals(1, fired.get());
+        assertTrue(t2.isExpired());
+        assertEquals(0, timer.size());
+    }
+
+    @Test
+    public void periodic() throws Exception {
+        long started = now.get();
+        List<Long> fired = new ArrayList<>();
+        HashedWheelTimer.Timeout t = timer.scheduleAtFixedRate(() -> fired.add(now.get() - started),
+                                                               Duration.ofMillis(20), Duration.ofMillis(20));
+        passMillis(300, 10);
+        t.cancel();
+        // each run is due every 20ms and is not later than a tick after it
+        assertEquals(14, fired.size());
+        for (int i = 0; i < fired.size(); i++) {
+            long millis = fired.get(i) / MS;
+            assertTrue("run " + i + " too early: " + millis, millis >= 20 * (i + 1));
+            assertTrue("run " + i + " too late: " + millis, millis <= 20 * (i + 1) + 10);
+        }
+        passMillis(100, 10);
+        assertEquals(14, fired.size());
+        assertEquals(0, timer.size());
+    }
+
+    @Test
+    public void periodicSkipsBusyRun() throws Exception {
+        List<Runnable> queued = new ArrayList<>();
+        HashedWheelTimer t = new HashedWheelTimer(Duration.ofMillis(10), 8, queued::add, null, () -> now.get());
+        AtomicInteger fired = new AtomicInteger();
+        t.scheduleAtFixedRate(() -> fired.incrementAndGet(), Duration.ofMillis(20), Duration.ofMillis(20));
+        for (int i = 0; i < 10; i++) {
+            now.addAndGet(10 * MS);
+            t.advance();
+        }
+        // the first run is not finished yet, so the next ones are not started
+        assertEquals(1, queued.size());
+        queued.remove(0).run();
+        assertEquals(1, fired.get());
+        for (int i = 0; i < 2; i++) {
+            now.addAndGet(10 * MS);
+            t.advance();
+        }
+        assertEquals(1, queued.size());
+        t.shutdown();
+    }
+
+    @Test
+    public void manyTimeouts() throws Exception {
+        int n = 100_000;
+        AtomicInteger fired = new AtomicInteger();
+        AtomicInteger cancelledFired = new AtomicInteger();
+        HashedWheelTimer.Timeout[] tt = new HashedWheelTimer.Timeout[n];
+        for (int i = 0; i < n; i++) {
+            Runnable task = i % 2 == 0 ? () -> fired.incrementAndGet() : () -> cancelledFired.incrementAndGet();
+            tt[i] = timer.schedule(task, Duration.ofMillis(1000 + i % 200));
+        }
+        for (int i = 1; i < n; i += 2)
+            assertTrue(tt[i].cancel());
+        passMillis(990, 10);
+        assertEquals(0, fired.get());
+        passMillis(300, 10);
+        assertEquals(n / 2, fired.get());
+        assertEquals(0, cancelledFired.get());
+        assertEquals(0, timer.size());
+        for (int i = 0; i < n; i += 2)
+            assertTrue(tt[i].isExpired());
+    }
+
+    @Test
+    public void workerThread() throws Exception {
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        HashedWheelTimer t = new HashedWheelTimer(Duration.ofMillis(10), 8, executor, "test-timer");
+        try {
+            CountDownLatch latch = new CountDownLatch(1);
+            long started = System.nanoTime();
+            t.schedule(() -> latch.countDown(), Duration.ofMillis(50));
+            assertTrue(latch.await(5, TimeUnit.SECONDS));
+            long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - started);
+            assertTrue("fired too early: " + millis, millis >= 50);
+        } finally {
+            t.shutdown();
+            executor.shutdown();
+        }
+    }
+}
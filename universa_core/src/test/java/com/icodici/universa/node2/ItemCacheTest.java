@@ -8,11 +8,14 @@
 package com.icodici.universa.node2;
 
 import com.icodici.universa.node.TestItem;
+import net.sergeych.tools.Binder;
 import org.junit.Test;
 
 import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
 
-import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.*;
 
 public class ItemCacheTest {
     @Test
@@ -24,5 +27,87 @@ public class ItemCacheTest {
         Thread.sleep(11);
         c.cleanUp();
         assertEquals(null, c.get(i1.getId()));
+        assertEquals(0, c.size());
+        assertEquals(0, c.getWeight());
+        assertEquals(1, c.getExpirations());
+        c.shutdown();
     }
-}
\ No newline at end of file
+
+    @Test
+    public void weightBound() throws Exception {
+        // room for 100 test items
+        ItemCache c = new ItemCache(Duration.ofMinutes(1), 100 * ItemCache.DEFAULT_ITEM_WEIGHT);
+        for (int i = 0; i < 1000; i++)
+            c.put(new TestItem(true));
+        assertTrue(c.size() <= 100);
+        assertTrue(c.getWeight() <= c.getMaxWeight());
+        assertEquals(c.size() * ItemCache.DEFAULT_ITEM_WEIGHT, c.getWeight());
+        assertEquals(1000 - c.size(), c.getEvictions());
+
+        // an item that is too big is not cached at all
+        c = new ItemCache(Duration.ofMinutes(1), ItemCache.DEFAULT_ITEM_WEIGHT - 1);
+        TestItem i1 = new TestItem(true);
+        c.put(i1);
+        assertNull(c.get(i1.getId()));
+        assertEquals(1, c.getRejections());
+        c.shutdown();
+    }
+
+    @Test
+    public void frequentItemsStay() throws Exception {
+        ItemCache c = new ItemCache(Duration.ofMinutes(1), 100 * ItemCache.DEFAULT_ITEM_WEIGHT);
+        List<TestItem> hot = new ArrayList<>();
+        for (int i = 0; i < 50; i++) {
+            TestItem item = new TestItem(true);
+            hot.add(item);
+            c.put(item);
+        }
+        for (int round = 0; round < 5; round++) {
+            for (TestItem item : hot)
+                assertSame(item, c.get(item.getId()));
+        }
+        // stream of one-time items should not flush the ones that are used
+        for (int i = 0; i < 1000; i++)
+            c.put(new TestItem(true));
+        int found = 0;
+        for (TestItem item : hot) {
+            if (c.get(item.getId()) != null)
+                found++;
+        }
+        assertTrue("only " + found + " of hot items are kept", found >= 45);
+        assertTrue(c.size() <= 100);
+        c.shutdown();
+    }
+
+    @Test
+    public void statistics() throws Exception {
+        ItemCache c = new ItemCache(Duration.ofMinutes(1));
+        TestItem i1 = new TestItem(true);
+        c.put(i1);
+        c.get(i1.getId());
+        c.get(i1.getId());
+        c.get(new TestItem(true).getId());
+        assertEquals(2, c.getHits());
+        assertEquals(1, c.getMisses());
+        Binder s = c.getStatistics();
+        assertEquals(1, s.getIntOrThrow("size"));
+        assertEquals(2.0 / 3, (double) s.get("hitRate"), 1e-9);
+        c.shutdown();
+    }
+
+    @Test
+    public void frequencySketch() throws Exception {
+        FrequencySketch sketch = new FrequencySketch(100);
+        Integer hot = 17;
+        for (int i = 0; i < 10; i++)
+            sketch.increment(hot);
+        sketch.increment(42);
+        assertEquals(10, sketch.frequency(hot));
+        assertTrue(sketch.frequency(42) >= 1);
+        assertTrue(sketch.frequency(1000) <= 1);
+        // counters are 4 bits
+        for (int i = 0; i < 100; i++)
+            sketch.increment(hot);
+        assertTrue(sketch.frequency(hot) <= 15);
+    }
+}
@@ -0,0 +1,64 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.ErrorRecord;
+import com.icodici.universa.Errors;
+import com.icodici.universa.HashId;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class ItemInformerTest {
+
+    @Test
+    public void expiration() throws Exception {
+        ItemInformer informer = new ItemInformer(Duration.ofMillis(200), 100, 10);
+        HashId id1 = HashId.createRandom();
+        HashId id2 = HashId.createRandom();
+        informer.inform(id1, new ErrorRecord(Errors.BAD_VALUE, "", "bad"));
+        informer.inform(id2, new ErrorRecord(Errors.BAD_VALUE, "", "bad"));
+        assertEquals(2, informer.size());
+        Thread.sleep(120);
+        // extends the expiration of the second record
+        informer.inform(id2, new ErrorRecord(Errors.BAD_VALUE, "", "worse"));
+        Thread.sleep(120);
+        informer.cleanUp();
+        assertEquals(1, informer.size());
+        assertEquals(1, informer.getExpirations());
+        assertNull(informer.takeFor(id1));
+        assertEquals(2, informer.takeFor(id2).getErrorRecords().size());
+        assertEquals(0, informer.size());
+        informer.cleanUp();
+        assertEquals(1, informer.getExpirations());
+    }
+
+    @Test
+    public void bounded() throws Exception {
+        ItemInformer informer = new ItemInformer(Duration.ofMinutes(1), 100, 10);
+        HashId first = HashId.createRandom();
+        informer.inform(first, new ErrorRecord(Errors.BAD_VALUE, "", "bad"));
+        for (int i = 0; i < 1000; i++)
+            informer.inform(HashId.createRandom(), new ErrorRecord(Errors.BAD_VALUE, "", "bad"));
+        assertEquals(100, informer.size());
+        assertEquals(901, informer.getEvictions());
+        assertNull(informer.takeFor(first));
+
+        HashId id = HashId.createRandom();
+        for (int i = 0; i < 25; i++)
+            informer.inform(id, new ErrorRecord(Errors.BAD_VALUE, "field" + i, "bad"));
+        List<ErrorRecord> errors = informer.takeFor(id).getErrorRecords();
+        // 10 errors and the note about the rest
+        assertEquals(11, errors.size());
+        assertEquals("field9", errors.get(9).getObjectName());
+        assertEquals(Errors.FAILURE, errors.get(10).getError());
+    }
+}
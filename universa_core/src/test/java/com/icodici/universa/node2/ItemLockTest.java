@@ -8,20 +8,20 @@
 package com.icodici.universa.node2;
 
 import com.icodici.universa.HashId;
-import org.junit.Ignore;
 import org.junit.Test;
 
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 
 public class ItemLockTest {
 
     private int count = 0;
 
-    /*
-    Until the error in sqlite finalizers is fixed, call this test separately.
-     */
     @Test
-    @Ignore("in the sequence  causes SIGSEGV in java machine in sqlite module")
     public void lock() throws Exception {
         for( int z=0; z<10; z++ ) {
             HashId id = HashId.createRandom();
@@ -30,21 +30,62 @@ public class ItemLockTest {
 
             ItemLock.synchronize(id, (__) -> count++);
             ItemLock.synchronize(id, (__) -> count++);
-            ItemLock.synchronize(id, (__) -> count++);
+            ItemLock.synchronize(id, (__) -> {
+                // the lock is alive while it is used
+                assertEquals(1, ItemLock.size());
+                return count++;
+            });
 
             assertEquals(3, count);
-            assertEquals(1, ItemLock.size());
-            id = null;
-            for (int i = 0; i < 10; i++) {
-                System.gc();
-                System.runFinalization();
-                if (ItemLock.size() == 0)
-                    break;
-                Thread.sleep(100);
-            }
+            // and is released as soon as it is not used, no GC required
             assertEquals(0, ItemLock.size());
+        }
+    }
 
+    @Test
+    public void retainAndRelease() throws Exception {
+        HashId id = HashId.createRandom();
+        ItemLock pinned = ItemLock.synchronize(id, (lock) -> ((ItemLock) lock).retain());
+        assertEquals(1, ItemLock.size());
+        // the same instance should be used while it is retained, even with a different copy of the id:
+        ItemLock.synchronize(HashId.withDigest(id.getDigest()), (lock) -> {
+            assertTrue(lock == pinned);
+            return null;
+        });
+        assertEquals(1, ItemLock.size());
+        pinned.release();
+        assertEquals(0, ItemLock.size());
+    }
+
+    @Test
+    public void exclusiveAndCounted() throws Exception {
+        HashId id = HashId.createRandom();
+        ItemLock.resetStatistics();
+        int threads = 8;
+        int rounds = 1000;
+        count = 0;
+        CountDownLatch start = new CountDownLatch(1);
+        List<Thread> tt = new ArrayList<>();
+        for (int i = 0; i < threads; i++) {
+            Thread t = new Thread(() -> {
+                try {
+                    start.await();
+                    for (int k = 0; k < rounds; k++)
+                        ItemLock.synchronize(id, (__) -> count++);
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+            });
+            t.start();
+            tt.add(t);
         }
+        start.countDown();
+        for (Thread t : tt)
+            t.join();
+        assertEquals(threads * rounds, count);
+        assertEquals(threads * rounds, ItemLock.getAcquisitions());
+        assertTrue(ItemLock.getContendedAcquisitions() <= ItemLock.getAcquisitions());
+        assertEquals(0, ItemLock.size());
     }
 
-}
\ No newline at end of file
+}
@@ -11,14 +11,21 @@ import com.icodici.universa.HashId;
 import com.icodici.universa.node.ItemResult;
 import com.icodici.universa.node.ItemState;
 import com.icodici.universa.node.network.TestKeys;
+import net.sergeych.boss.Boss;
 import org.junit.Test;
 
+import java.io.IOException;
 import java.time.ZonedDateTime;
 import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.List;
 
 import static java.util.Arrays.asList;
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.fail;
 
 public class ItemNotificationTest {
     @Test
@@ -46,4 +53,73 @@ public class ItemNotificationTest {
         assertEquals(n, n3);
     }
 
+    @Test
+    public void packUnpackWithBody() throws Exception {
+        NodeInfo ni = new NodeInfo(TestKeys.publicKey(0),1, "test1", "localhost", 17101, 17102, 17104);
+        HashId id1 = HashId.createRandom();
+        ZonedDateTime now = ZonedDateTime.now().truncatedTo(ChronoUnit.SECONDS);
+        ItemResult ir1 = new ItemResult(ItemState.PENDING_POSITIVE, true, now, now.plusDays(30));
+        byte[] body = new byte[]{1, 2, 3, 4, 5};
+
+        ItemNotification n1 = new ItemBodyNotification(ni, id1, ir1, true, body);
+        ItemNotification n2 = new ItemNotification(ni, id1, ir1, false);
+
+        List<Notification> l = Notification.unpack(ni, Notification.pack(asList(n1, n2)));
+        assertEquals(2, l.size());
+        assertEquals(n1, l.get(0));
+        assertArrayEquals(body, ((ItemBodyNotification) l.get(0)).getPackedItem());
+        assertEquals(n2, l.get(1));
+        // not a packed transaction
+        assertNull(((ItemBodyNotification) l.get(0)).unpackItem());
+    }
+
+    @Test
+    public void packUnpackBatch() throws Exception {
+        NodeInfo ni = new NodeInfo(TestKeys.publicKey(0),1, "test1", "localhost", 17101, 17102, 17104);
+        ZonedDateTime now = ZonedDateTime.now();
+        ItemState[] states = {ItemState.APPROVED, ItemState.PENDING, ItemState.DECLINED, ItemState.PENDING_POSITIVE,
+                ItemState.UNDEFINED};
+        List<ItemNotification> votes = new ArrayList<>();
+        for (int i = 0; i < states.length; i++)
+            votes.add(new ItemNotification(ni, HashId.createRandom(), new ItemResult(states[i], i % 2 == 0, now, now),
+                                           i % 3 == 0));
+
+        BatchVoteNotification batch = new BatchVoteNotification(ni, votes);
+        List<Notification> l = Notification.unpack(ni, Notification.pack(asList(batch)));
+        assertEquals(1, l.size());
+        BatchVoteNotification received = (BatchVoteNotification) l.get(0);
+        assertEquals(batch, received);
+        assertEquals(5, received.size());
+
+        ItemState[] expected = {ItemState.PENDING_POSITIVE, ItemState.PENDING, ItemState.PENDING_NEGATIVE,
+                ItemState.PENDING_POSITIVE, ItemState.PENDING_NEGATIVE};
+        List<ItemNotification> expanded = received.expand();
+        for (int i = 0; i < states.length; i++) {
+            ItemNotification n = expanded.get(i);
+            assertEquals(votes.get(i).getItemId(), n.getItemId());
+            assertEquals(ni, n.getFrom());
+            assertEquals(expected[i], n.getItemResult().state);
+            assertEquals(i % 2 == 0, n.getItemResult().haveCopy);
+            assertEquals(i % 3 == 0, n.answerIsRequested());
+        }
+
+        // other votes on the same items make another batch
+        votes.set(1, new ItemNotification(ni, votes.get(1).getItemId(), votes.get(0).getItemResult(), false));
+        assertNotEquals(batch, new BatchVoteNotification(ni, votes));
+    }
+
+    @Test
+    public void rejectBrokenBatch() throws Exception {
+        NodeInfo ni = new NodeInfo(TestKeys.publicKey(0),1, "test1", "localhost", 17101, 17102, 17104);
+        Boss.Writer w = new Boss.Writer();
+        w.write(BatchVoteNotification.CODE_BATCH_VOTE_NOTIFICATION);
+        w.write(BatchVoteNotification.MAX_SIZE + 1);
+        try {
+            Notification.unpack(ni, w.toByteArray());
+            fail("Expected exception to be thrown.");
+        } catch (IOException e) {
+            // too many items
+        }
+    }
+
 }
\ No newline at end of file
@@ -0,0 +1,149 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.StateRecord;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class LedgerSweeperTest {
+
+    private void addRecords(MemoryLedger ledger, int count, boolean expired) {
+        for (int i = 0; i < count; i++) {
+            StateRecord r = ledger.findOrCreate(HashId.createRandom());
+            r.setState(ItemState.DECLINED);
+            r.setExpiresAt(expired ? ZonedDateTime.now().minusHours(1) : ZonedDateTime.now().plusHours(1));
+            r.save();
+        }
+    }
+
+    private Config config() {
+        Config config = new Config();
+        config.setExpiredSweepInterval(Duration.ofMinutes(1));
+        config.setExpiredSweepBatch(10);
+        config.setExpiredSweepRate(100);
+        return config;
+    }
+
+    @Test
+    public void sweepByBatches() throws Exception {
+        Simulation sim = new Simulation(1);
+        MemoryLedger ledger = new MemoryLedger();
+        addRecords(ledger, 35, true);
+        addRecords(ledger, 5, false);
+        LedgerSweeper sweeper = new LedgerSweeper(config(), ledger, sim.getScheduler(), sim.getExecutor(),
+                                                  sim.getClock(), () -> false);
+        sweeper.start();
+
+        // nothing happens before the interval
+        sim.run(Duration.ofSeconds(59));
+        assertEquals(40, ledger.countRecords());
+
+        sim.run(Duration.ofSeconds(61));
+        assertEquals(5, ledger.countRecords());
+        assertEquals(35, sweeper.getRemoved());
+        assertEquals(1, sweeper.getSweeps());
+        assertEquals(35, sweeper.getLastSweepRemoved());
+        // 4 batches, 3 pauses of 0.1s to keep the rate
+        assertEquals(300, sweeper.getLastSweepTime().toMillis());
+
+        // next sweep finds nothing
+        addRecords(ledger, 3, true);
+        sim.run(Duration.ofSeconds(125));
+        assertEquals(5, ledger.countRecords());
+        assertEquals(2, sweeper.getSweeps());
+        assertEquals(3, sweeper.getLastSweepRemoved());
+
+        sweeper.stop();
+        addRecords(ledger, 3, true);
+        sim.run(Duration.ofMinutes(10));
+        assertEquals(8, ledger.countRecords());
+        assertEquals(2, sweeper.getSweeps());
+    }
+
+    @Test
+    public void pauseWhenBusy() throws Exception {
+        Simulation sim = new Simulation(1);
+        MemoryLedger ledger = new MemoryLedger();
+        addRecords(ledger, 25, true);
+        AtomicBoolean busy = new AtomicBoolean(true);
+        LedgerSweeper sweeper = new LedgerSweeper(config(), ledger, sim.getScheduler(), sim.getExecutor(),
+                                                  sim.getClock(), busy::get);
+        sweeper.start();
+
+        sim.run(Duration.ofSeconds(70));
+        assertEquals(25, ledger.countRecords());
+        // checked each second since the first minute
+        assertEquals(11, sweeper.getPauses());
+
+        busy.set(false);
+        sim.run(Duration.ofSeconds(72));
+        assertEquals(0, ledger.countRecords());
+        assertEquals(1, sweeper.getSweeps());
+        sweeper.stop();
+    }
+
+    @Test
+    public void disabled() throws Exception {
+        Simulation sim = new Simulation(1);
+        MemoryLedger ledger = new MemoryLedger();
+        addRecords(ledger, 5, true);
+        Config config = config();
+        config.setExpiredSweepInterval(Duration.ZERO);
+        LedgerSweeper sweeper = new LedgerSweeper(config, ledger, sim.getScheduler(), sim.getExecutor(),
+                                                  sim.getClock(), () -> false);
+        sweeper.start();
+        sim.run(Duration.ofHours(1));
+        assertEquals(5, ledger.countRecords());
+        assertEquals(0, sweeper.getSweeps());
+    }
+
+    @Test
+    public void keepRecordsOfRunningElections() throws Exception {
+        Simulation sim = new Simulation(1);
+        MemoryLedger ledger = new MemoryLedger();
+        addRecords(ledger, 5, true);
+        // the election runs longer than the default expiration of its records: the item is still downloaded, and
+        // the new item it creates is locked
+        StateRecord pending = ledger.findOrCreate(HashId.createRandom());
+        StateRecord owner = ledger.findOrCreate(HashId.createRandom());
+        StateRecord created = owner.createOutputLockRecord(HashId.createRandom());
+        for (StateRecord r : new StateRecord[]{pending, owner, created}) {
+            r.setExpiresAt(ZonedDateTime.now().minusMinutes(1));
+            r.save();
+        }
+        LedgerSweeper sweeper = new LedgerSweeper(config(), ledger, sim.getScheduler(), sim.getExecutor(),
+                                                  sim.getClock(), () -> false);
+        sweeper.start();
+        sim.run(Duration.ofSeconds(70));
+        assertEquals(5, sweeper.getRemoved());
+        assertEquals(3, ledger.countRecords());
+
+        // the election is committed after the sweep
+        owner.setState(ItemState.APPROVED).setExpiresAt(ZonedDateTime.now().plusDays(1));
+        owner.save();
+        created.setState(ItemState.APPROVED).setExpiresAt(ZonedDateTime.now().plusDays(1));
+        created.save();
+        assertEquals(ItemState.APPROVED, ledger.getRecord(created.getId()).getState());
+        assertEquals(ItemState.APPROVED, ledger.getRecord(owner.getId()).getState());
+
+        // the finished election is swept with others once expired
+        pending.setState(ItemState.DECLINED);
+        pending.save();
+        sim.run(Duration.ofSeconds(140));
+        assertEquals(2, ledger.countRecords());
+        sweeper.stop();
+    }
+}
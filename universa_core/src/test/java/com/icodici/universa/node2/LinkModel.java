@@ -0,0 +1,59 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import java.time.Duration;
+import java.util.Random;
+
+/**
+ * Latency and loss of the links between the simulated nodes.
+ */
+public interface LinkModel {
+
+    /**
+     * Time to pass the message over the link.
+     *
+     * @param from   sending node
+     * @param to     receiving node
+     * @param random the simulation random generator, the only source of randomness allowed
+     *
+     * @return delay in nanoseconds, or negative value if the message is lost
+     */
+    long delayNanos(NodeInfo from, NodeInfo to, Random random);
+
+    /**
+     * All links have the same latency uniformly distributed between min and max, and lose the given share of
+     * messages.
+     */
+    static LinkModel uniform(Duration min, Duration max, double lossRate) {
+        long minNanos = min.toNanos();
+        long spread = max.toNanos() - minNanos;
+        if (spread < 0)
+            throw new IllegalArgumentException("max is less than min");
+        return (from, to, random) -> {
+            if (lossRate > 0 && random.nextDouble() < lossRate)
+                return -1;
+            return minNanos + (spread > 0 ? (long) (random.nextDouble() * spread) : 0);
+        };
+    }
+
+    /**
+     * Nodes are split into regions by number; links within the region have the local latency, between regions the
+     * remote one. Both get the uniform jitter of up to 20%.
+     */
+    static LinkModel regions(int regions, Duration local, Duration remote, double lossRate) {
+        long localNanos = local.toNanos();
+        long remoteNanos = remote.toNanos();
+        return (from, to, random) -> {
+            if (lossRate > 0 && random.nextDouble() < lossRate)
+                return -1;
+            long base = from.getNumber() % regions == to.getNumber() % regions ? localNanos : remoteNanos;
+            return base + (long) (random.nextDouble() * base * 0.2);
+        };
+    }
+}
@@ -8,6 +8,8 @@
 package com.icodici.universa.node2;
 
 import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.Errors;
+import com.icodici.universa.HashId;
 import com.icodici.universa.contract.Contract;
 import com.icodici.universa.contract.roles.RoleLink;
 import com.icodici.universa.node.ItemResult;
@@ -83,6 +85,14 @@ public class MainTest {
         byte[] data2 = Do.read(con.getInputStream());
 
         assertArrayEquals(c.getPackedTransaction(), data2);
+        String etag = con.getHeaderField("ETag");
+        assertEquals("\"" + c.getId().toBase64String() + "\"", etag);
+
+        // the client that has the contract should not download it again
+        con = (HttpURLConnection) url.openConnection();
+        con.setRequestMethod("GET");
+        con.setRequestProperty("If-None-Match", etag);
+        assertEquals(304, con.getResponseCode());
 
         url = new URL("http://localhost:8080/network");
         con = (HttpURLConnection) url.openConnection();
@@ -150,6 +160,44 @@ public class MainTest {
 //        assertEquals(ItemState.UNDEFINED, s);
     }
 
+    @Test
+    public void batchCommands() throws Exception {
+        List<Main> mm = new ArrayList<>();
+        for( int i=0; i<3; i++ )
+            mm.add(createMain("node"+(i+1), false));
+        Main main = mm.get(0);
+        PrivateKey myKey = TestKeys.privateKey(3);
+        Client client = new Client(myKey, main.myInfo);
+
+        List<Contract> contracts = new ArrayList<>();
+        for( int i=0; i<10; i++ ) {
+            Contract c = new Contract(myKey);
+            c.seal();
+            contracts.add(c);
+        }
+        List<HashId> ids = contracts.stream().map(c -> c.getId()).collect(Collectors.toList());
+        List<byte[]> packed = contracts.stream().map(c -> c.getPackedTransaction()).collect(Collectors.toList());
+        // the bad item does not fail the batch
+        packed.add(new byte[]{1, 2, 3});
+
+        List<ItemResult> rr = client.registerBatch(packed);
+        assertEquals(11, rr.size());
+        assertEquals(ItemState.UNDEFINED, rr.get(10).state);
+        assertEquals(Errors.BAD_VALUE, rr.get(10).errors.get(0).getError());
+
+        long until = System.currentTimeMillis() + 15000;
+        while(true) {
+            rr = client.getStateBatch(ids);
+            assertEquals(10, rr.size());
+            if( rr.stream().noneMatch(r -> r.state.isPending()) || System.currentTimeMillis() > until )
+                break;
+            Thread.sleep(500);
+        }
+        for( ItemResult r : rr )
+            assertEquals(ItemState.APPROVED, r.state);
+        mm.forEach(x->x.shutdown());
+    }
+
     @Test
     @Ignore("This test nust be started manually")
     public void checkRealNetwork() throws Exception {
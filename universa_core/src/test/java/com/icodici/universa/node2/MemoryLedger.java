@@ -0,0 +1,133 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.Ledger;
+import com.icodici.universa.node.StateRecord;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.function.Consumer;
+
+/**
+ * The ledger that keeps records in memory, like the record cache of the database ledgers does, and has no
+ * transactions. For the simulation and tests only.
+ */
+public class MemoryLedger implements Ledger {
+
+    private final Map<HashId, StateRecord> records = new HashMap<>();
+    private long lastRecordId = 0;
+    private Consumer<StateRecord> onSave;
+
+    /**
+     * Set the listener called after each record is saved, e.g. to see the elections finished.
+     */
+    public void setOnSave(Consumer<StateRecord> onSave) {
+        this.onSave = onSave;
+    }
+
+    @Override
+    public synchronized StateRecord getRecord(HashId id) {
+        StateRecord r = records.get(id);
+        if (r != null && r.isExpired()) {
+            records.remove(id);
+            return null;
+        }
+        return r;
+    }
+
+    @Override
+    public synchronized StateRecord createOutputLockRecord(long creatorRecordId, HashId newItemHashId) {
+        if (records.containsKey(newItemHashId))
+            return null;
+        StateRecord r = new StateRecord(this);
+        r.setState(ItemState.LOCKED_FOR_CREATION);
+        r.setLockedByRecordId(creatorRecordId);
+        r.setId(newItemHashId);
+        r.save();
+        return r;
+    }
+
+    @Override
+    public synchronized StateRecord findOrCreate(HashId itemId) {
+        StateRecord r = getRecord(itemId);
+        if (r == null) {
+            r = new StateRecord(this);
+            r.setId(itemId);
+            r.setState(ItemState.PENDING);
+            r.save();
+        }
+        return r;
+    }
+
+    @Override
+    public <T> T transaction(Callable<T> callable) {
+        try {
+            return callable.call();
+        } catch (Exception e) {
+            throw new Failure("transaction failed", e);
+        }
+    }
+
+    @Override
+    public synchronized void destroy(StateRecord record) {
+        records.remove(record.getId(), record);
+    }
+
+    @Override
+    public void save(StateRecord stateRecord) {
+        synchronized (this) {
+            if (stateRecord.getLedger() == null)
+                stateRecord.setLedger(this);
+            if (stateRecord.getRecordId() == 0)
+                stateRecord.setRecordId(++lastRecordId);
+            records.put(stateRecord.getId(), stateRecord);
+        }
+        if (onSave != null)
+            onSave.accept(stateRecord);
+    }
+
+    @Override
+    public synchronized int removeExpired(int limit) {
+        int count = 0;
+        for (Iterator<StateRecord> it = records.values().iterator(); it.hasNext() && count < limit; ) {
+            StateRecord r = it.next();
+            if (r.isExpired() && r.getState().isFinal()) {
+                it.remove();
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Override
+    public synchronized List<StateRecord> getLockedRecords() {
+        List<StateRecord> result = new ArrayList<>();
+        for (StateRecord r : records.values())
+            if (r.getState() == ItemState.LOCKED && !r.isExpired())
+                result.add(r);
+        return result;
+    }
+
+    @Override
+    public synchronized void reload(StateRecord stateRecord) throws StateRecord.NotFoundException {
+        if (!records.containsKey(stateRecord.getId()))
+            throw new StateRecord.NotFoundException("record not found");
+    }
+
+    @Override
+    public synchronized long countRecords() {
+        return records.size();
+    }
+}
@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.Binder;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MetricsRegistryTest {
+
+    @Test
+    public void counters() throws Exception {
+        MetricsRegistry mr = new MetricsRegistry();
+        MetricsRegistry.Counter c = mr.counter("test_total", "test counter", "kind", "a");
+        c.inc();
+        c.inc(2);
+        // the same instance
+        assertSame(c, mr.counter("test_total", "test counter", "kind", "a"));
+        mr.counter("test_total", "test counter", "kind", "b").inc();
+        AtomicInteger size = new AtomicInteger(7);
+        mr.gauge("test_size", "test gauge", () -> size.get());
+        size.set(11);
+
+        String text = mr.toPrometheus();
+        assertTrue(text.contains("# TYPE test_total counter\n"));
+        assertTrue(text.contains("test_total{kind=\"a\"} 3\n"));
+        assertTrue(text.contains("test_total{kind=\"b\"} 1\n"));
+        assertTrue(text.contains("# TYPE test_size gauge\ntest_size 11\n"));
+        // the family is listed once
+        assertEquals(text.indexOf("# HELP test_total"), text.lastIndexOf("# HELP test_total"));
+
+        try {
+            mr.histogram("test_total", "wrong type");
+            fail("type mismatch should be detected");
+        } catch (IllegalArgumentException e) {
+        }
+    }
+
+    @Test
+    public void histogram() throws Exception {
+        MetricsRegistry mr = new MetricsRegistry();
+        MetricsRegistry.Histogram h = mr.histogram("test_seconds", "test latency", "op", "x\"y");
+        h.observe(Duration.ofMillis(3));
+        h.observe(Duration.ofMillis(3));
+        h.observe(Duration.ofSeconds(1));
+        h.observe(Duration.ofMinutes(10));
+        assertEquals(4, h.getCount());
+        assertEquals(600.006 + 1, h.getSumSeconds(), 1e-6);
+
+        String text = mr.toPrometheus();
+        assertTrue(text.contains("test_seconds_bucket{op=\"x\\\"y\",le=\"0.0025\"} 0\n"));
+        assertTrue(text.contains("test_seconds_bucket{op=\"x\\\"y\",le=\"0.005\"} 2\n"));
+        // bounds are inclusive
+        assertTrue(text.contains("test_seconds_bucket{op=\"x\\\"y\",le=\"1\"} 3\n"));
+        assertTrue(text.contains("test_seconds_bucket{op=\"x\\\"y\",le=\"+Inf\"} 4\n"));
+        assertTrue(text.contains("test_seconds_count{op=\"x\\\"y\"} 4\n"));
+
+        Binder b = mr.toBinder().getBinderOrThrow("test_seconds");
+        assertEquals("histogram", b.getStringOrThrow("type"));
+        List<Binder> values = b.getBinders("values");
+        assertEquals(1, values.size());
+        assertEquals("x\"y", values.get(0).getBinderOrThrow("labels").getStringOrThrow("op"));
+        assertEquals(4L, values.get(0).get("count"));
+        List<Long> buckets = values.get(0).getListOrThrow("buckets");
+        assertEquals(MetricsRegistry.LATENCY_BUCKETS.length + 1, buckets.size());
+        assertEquals(1L, (long) buckets.get(buckets.size() - 1));
+    }
+}
@@ -72,6 +72,14 @@ public class Node2EmulatedNetworkTest extends Node2SingleTest {
         node = nodes.get(0);
     }
 
+    @Override
+    public void tearDown() throws Exception {
+        // nodes are stopped, so the next test should create new ones
+        nodes.forEach(n -> n.shutdown());
+        nodes.clear();
+        network.shutdown();
+    }
+
     @Test
     public void registerGoodItem() throws Exception {
         int N = 100;
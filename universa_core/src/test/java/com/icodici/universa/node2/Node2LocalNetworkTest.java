@@ -91,6 +91,7 @@ public class Node2LocalNetworkTest extends Node2SingleTest {
     @After
     public void tearDown() throws Exception {
         networks.forEach(n->n.shutDown());
+        nodes.forEach((i,n)->n.shutdown());
         nodes.forEach((i,n)->n.getLedger().close());
     }
 
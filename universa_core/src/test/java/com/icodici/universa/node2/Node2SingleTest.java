@@ -52,6 +52,7 @@ public class Node2SingleTest extends TestCase {
     @After
     public void tearDown() throws Exception {
 //        ledger.close();
+        node.shutdown();
         network.shutdown();
     }
 
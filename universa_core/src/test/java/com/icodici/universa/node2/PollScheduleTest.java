@@ -0,0 +1,56 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class PollScheduleTest {
+
+    private List<Long> pollTimes(PollSchedule ps, int node, long until, boolean reachable) {
+        List<Long> times = new ArrayList<>();
+        for (long t = 0; t <= until; t += 100)
+            if (ps.poll(node, t, reachable) >= 0)
+                times.add(t);
+        return times;
+    }
+
+    @Test
+    public void backoff() throws Exception {
+        PollSchedule ps = new PollSchedule(10, 500, 1000, 8000);
+        assertEquals(Arrays.asList(500L, 1500L, 3500L, 7500L, 15500L, 23500L, 31500L),
+                     pollTimes(ps, 3, 32000, true));
+        // each node has its own schedule
+        assertEquals(Arrays.asList(500L, 1500L), pollTimes(ps, 4, 2000, true));
+    }
+
+    @Test
+    public void unreachable() throws Exception {
+        PollSchedule ps = new PollSchedule(10, 500, 1000, 8000);
+        assertEquals(Arrays.asList(8000L, 16000L, 24000L), pollTimes(ps, 1, 24000, false));
+        assertEquals(0, ps.nextPoll(2));
+    }
+
+    @Test
+    public void fixedRateCount() throws Exception {
+        PollSchedule ps = new PollSchedule(2, 500, 1000, 8000);
+        // the fixed rate polling sends nothing before the first poll time
+        assertEquals(0, ps.poll(0, 500, true));
+        assertEquals(1, ps.poll(0, 1500, true));
+        assertEquals(2, ps.poll(0, 3500, true));
+        assertEquals(4, ps.poll(0, 7500, true));
+        assertEquals(2, ps.pollsSince(0, 9999));
+        // numbers beyond the expected are accepted
+        assertEquals(0, ps.poll(100, 500, true));
+    }
+}
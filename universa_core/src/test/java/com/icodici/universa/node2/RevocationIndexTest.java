@@ -0,0 +1,197 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.Errors;
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.FakeItem;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.StateRecord;
+import com.icodici.universa.node.TestItem;
+import org.junit.Test;
+
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static java.util.Arrays.asList;
+import static org.junit.Assert.*;
+
+public class RevocationIndexTest {
+
+    @Test
+    public void allOrNothing() throws Exception {
+        RevocationIndex index = new RevocationIndex();
+        HashId a = HashId.createRandom(), b = HashId.createRandom(), c = HashId.createRandom();
+        assertTrue(index.tryLock(asList(a, b), 1).isEmpty());
+        // the same election could take them again
+        assertTrue(index.tryLock(asList(a, b), 1).isEmpty());
+
+        Set<HashId> conflicts = index.tryLock(asList(b, c), 2);
+        assertEquals(1, conflicts.size());
+        assertTrue(conflicts.contains(b));
+        // c is not taken by the failed election
+        assertEquals(0, index.getOwner(c));
+        assertEquals(1, index.getOwner(b));
+        assertEquals(1, index.getConflicts());
+
+        // others' items are not released
+        index.release(asList(a, b), 2);
+        assertEquals(2, index.size());
+        index.release(asList(a, b), 1);
+        assertEquals(0, index.size());
+        assertTrue(index.tryLock(asList(b, c), 2).isEmpty());
+    }
+
+    @Test
+    public void oneOfConcurrentWins() throws Exception {
+        RevocationIndex index = new RevocationIndex();
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < 10; i++)
+            ids.add(HashId.createRandom());
+        AtomicInteger winners = new AtomicInteger();
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        for (int t = 1; t <= 8; t++) {
+            long owner = t;
+            // each election revokes the same items listed in its own order
+            List<HashId> mine = new ArrayList<>(ids);
+            Collections.rotate(mine, t);
+            es.execute(() -> {
+                if (index.tryLock(mine, owner).isEmpty())
+                    winners.incrementAndGet();
+            });
+        }
+        es.shutdown();
+        assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+        assertEquals(1, winners.get());
+        assertEquals(10, index.size());
+    }
+
+    @Test
+    public void reconcile() throws Exception {
+        MemoryLedger ledger = new MemoryLedger();
+        StateRecord locked = ledger.findOrCreate(HashId.createRandom());
+        locked.setState(ItemState.LOCKED).setLockedByRecordId(1000);
+        locked.save();
+        StateRecord approved = ledger.findOrCreate(HashId.createRandom());
+        approved.setState(ItemState.APPROVED).save();
+        StateRecord expired = new StateRecord(ledger);
+        expired.setId(HashId.createRandom());
+        expired.setState(ItemState.LOCKED).setLockedByRecordId(1001);
+        expired.setExpiresAt(ZonedDateTime.now().minusMinutes(1));
+
+        RevocationIndex index = new RevocationIndex();
+        assertEquals(1, index.reconcile(asList(locked, expired)));
+        assertEquals(1000, index.getOwner(locked.getId()));
+        assertEquals(0, index.getOwner(approved.getId()));
+        assertEquals(0, index.getOwner(expired.getId()));
+        assertTrue(index.isRestored(locked.getId()));
+        assertEquals(1, index.tryLock(asList(locked.getId()), 1).size());
+        // still locked in the ledger
+        assertFalse(index.checkRestored(locked.getId(), locked));
+        assertTrue(index.tryLock(asList(locked.getId()), 1000).isEmpty());
+        // taken back by its election, so it is not checked anymore
+        assertFalse(index.isRestored(locked.getId()));
+        index.release(asList(locked.getId()), 1000);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void dropRestoredLocks() throws Exception {
+        MemoryLedger ledger = new MemoryLedger();
+        StateRecord revoked = ledger.findOrCreate(HashId.createRandom());
+        revoked.setState(ItemState.LOCKED).setLockedByRecordId(1000);
+        revoked.save();
+        StateRecord relocked = ledger.findOrCreate(HashId.createRandom());
+        relocked.setState(ItemState.LOCKED).setLockedByRecordId(1000);
+        relocked.save();
+
+        RevocationIndex index = new RevocationIndex();
+        assertEquals(2, index.reconcile(ledger.getLockedRecords()));
+        revoked.setState(ItemState.REVOKED).save();
+        relocked.setLockedByRecordId(1002);
+        relocked.save();
+        assertTrue(index.checkRestored(revoked.getId(), revoked));
+        assertTrue(index.checkRestored(relocked.getId(), relocked));
+        assertEquals(0, index.size());
+        // locks of the running elections are never checked
+        assertTrue(index.tryLock(asList(revoked.getId()), 1).isEmpty());
+        assertFalse(index.checkRestored(revoked.getId(), null));
+        assertEquals(1, index.getOwner(revoked.getId()));
+    }
+
+    @Test
+    public void nodeRestoresLocks() throws Exception {
+        MemoryLedger ledger = new MemoryLedger();
+        // locked by the election that was in progress when the node was stopped
+        StateRecord locked = ledger.findOrCreate(HashId.createRandom());
+        locked.setState(ItemState.LOCKED).setLockedByRecordId(1000);
+        locked.save();
+        StateRecord free = ledger.findOrCreate(HashId.createRandom());
+        free.setState(ItemState.APPROVED).save();
+
+        Node node = createNode(ledger);
+        try {
+            TestItem spender = new TestItem(true);
+            spender.addRevokingItems(new FakeItem(locked));
+            node.registerItem(spender);
+            assertEquals(ItemState.DECLINED, node.waitItem(spender.getId(), 2000).state);
+            // declined by the index, not by the ledger
+            ItemResult r = node.checkItem(spender.getId());
+            assertTrue(r.errors.stream().anyMatch(e -> e.getError() == Errors.BAD_REVOKE &&
+                    e.getMessage().contains("being revoked")));
+            assertEquals(ItemState.LOCKED, ledger.getRecord(locked.getId()).getState());
+
+            TestItem other = new TestItem(true);
+            other.addRevokingItems(new FakeItem(free));
+            node.registerItem(other);
+            assertEquals(ItemState.APPROVED, node.waitItem(other.getId(), 2000).state);
+            assertEquals(ItemState.REVOKED, ledger.getRecord(free.getId()).getState());
+        } finally {
+            node.shutdown();
+        }
+    }
+
+    @Test
+    public void nodeDropsReleasedLocks() throws Exception {
+        MemoryLedger ledger = new MemoryLedger();
+        StateRecord locked = ledger.findOrCreate(HashId.createRandom());
+        locked.setState(ItemState.LOCKED).setLockedByRecordId(1000);
+        locked.save();
+
+        Node node = createNode(ledger);
+        try {
+            // the election that has locked it is not resumed, and the lock is rolled back in the ledger
+            locked.setState(ItemState.APPROVED).save();
+            TestItem spender = new TestItem(true);
+            spender.addRevokingItems(new FakeItem(locked));
+            node.registerItem(spender);
+            assertEquals(ItemState.APPROVED, node.waitItem(spender.getId(), 2000).state);
+            assertEquals(ItemState.REVOKED, ledger.getRecord(locked.getId()).getState());
+        } finally {
+            node.shutdown();
+        }
+    }
+
+    private Node createNode(MemoryLedger ledger) {
+        Config config = new Config();
+        config.setPositiveConsensus(1);
+        config.setNegativeConsensus(1);
+        NetConfig nc = new NetConfig();
+        NodeInfo info = new NodeInfo(null, 1, "node1", "localhost", 17101, 17102, 17104);
+        nc.addNode(info);
+        return new Node(config, info, ledger, new TestSingleNetwork(nc));
+    }
+}
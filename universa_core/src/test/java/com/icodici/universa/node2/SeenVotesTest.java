@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class SeenVotesTest {
+
+    @Test
+    public void seen() throws Exception {
+        SeenVotes sv = new SeenVotes(10);
+        assertFalse(sv.contains(3, ItemState.UNDEFINED, false));
+        sv.add(3, ItemState.PENDING_POSITIVE, false);
+        assertTrue(sv.contains(3, ItemState.PENDING_POSITIVE, false));
+        assertFalse(sv.contains(3, ItemState.PENDING_POSITIVE, true));
+        assertFalse(sv.contains(3, ItemState.APPROVED, false));
+        // neighbours share the same word
+        assertFalse(sv.contains(2, ItemState.PENDING_POSITIVE, false));
+        assertFalse(sv.contains(4, ItemState.PENDING_POSITIVE, false));
+
+        sv.add(3, ItemState.APPROVED, true);
+        assertTrue(sv.contains(3, ItemState.APPROVED, true));
+        assertFalse(sv.contains(3, ItemState.PENDING_POSITIVE, false));
+
+        // bad numbers are never seen
+        sv.add(-1, ItemState.APPROVED, true);
+        assertFalse(sv.contains(-1, ItemState.APPROVED, true));
+    }
+
+    @Test
+    public void oneBasedNumbers() throws Exception {
+        // nodes are numbered 1..10
+        SeenVotes sv = new SeenVotes(10);
+        for (int node = 1; node <= 10; node++)
+            sv.add(node, ItemState.PENDING_POSITIVE, node % 2 == 0);
+        for (int node = 1; node <= 10; node++)
+            assertTrue(sv.contains(node, ItemState.PENDING_POSITIVE, node % 2 == 0));
+
+        // numbers beyond the expected grow the array and keep what is seen
+        sv.add(100, ItemState.DECLINED, false);
+        assertTrue(sv.contains(100, ItemState.DECLINED, false));
+        assertFalse(sv.contains(99, ItemState.DECLINED, false));
+        assertFalse(sv.contains(1000, ItemState.DECLINED, false));
+        for (int node = 1; node <= 10; node++)
+            assertTrue(sv.contains(node, ItemState.PENDING_POSITIVE, node % 2 == 0));
+    }
+
+    @Test
+    public void concurrentGrowth() throws Exception {
+        SeenVotes sv = new SeenVotes(0);
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            int first = t + 1;
+            es.execute(() -> {
+                for (int node = first; node <= 400; node += 8)
+                    sv.add(node, ItemState.APPROVED, true);
+            });
+        }
+        es.shutdown();
+        assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+        for (int node = 1; node <= 400; node++)
+            assertTrue(sv.contains(node, ItemState.APPROVED, true));
+    }
+
+    @Test
+    public void concurrentNeighbours() throws Exception {
+        SeenVotes sv = new SeenVotes(64);
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            int node = t;
+            es.execute(() -> {
+                for (int i = 0; i < 10000; i++)
+                    sv.add(node, i % 2 == 0 ? ItemState.PENDING_NEGATIVE : ItemState.DECLINED, i % 3 == 0);
+                sv.add(node, ItemState.DECLINED, node % 2 == 0);
+            });
+        }
+        es.shutdown();
+        assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+        for (int node = 0; node < 8; node++)
+            assertTrue(sv.contains(node, ItemState.DECLINED, node % 2 == 0));
+    }
+
+    @Test
+    public void recentResults() throws Exception {
+        RecentResults rr = new RecentResults(3);
+        HashId[] ids = new HashId[5];
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = HashId.createRandom();
+            rr.put(ids[i], ItemResult.UNDEFINED);
+        }
+        // the oldest are dropped
+        assertNull(rr.get(ids[0]));
+        assertNull(rr.get(ids[1]));
+        assertSame(ItemResult.UNDEFINED, rr.get(ids[4]));
+        assertEquals(3, rr.size());
+        rr.remove(ids[4]);
+        assertNull(rr.get(ids[4]));
+
+        RecentResults disabled = new RecentResults(0);
+        disabled.put(ids[0], ItemResult.UNDEFINED);
+        assertNull(disabled.get(ids[0]));
+    }
+}
@@ -0,0 +1,208 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import com.icodici.universa.Approvable;
+import com.icodici.universa.HashId;
+import com.icodici.universa.node2.network.Network;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.function.Consumer;
+
+/**
+ * The network of one simulated node. Notifications are passed as is, without packing, after the delay given by the
+ * {@link LinkModel}; lost notifications are not retransmitted, so the loss rate models the loss of the whole UDP
+ * block. Item download is the request and the answer over the links, a lost one fails after the timeout.
+ * <p>
+ * With the coalescing window, the notifications to the same node are collected over it, like NetworkV2 does, and the
+ * votes among them are sent in one {@link BatchVoteNotification} if vote batching is on.
+ */
+public class SimulatedNetwork extends Network {
+
+    /**
+     * Nodes of the simulation and the counters, shared by all of its networks.
+     */
+    public static class Links {
+        private final Simulation simulation;
+        private final LinkModel model;
+        private final Map<NodeInfo, Consumer<Notification>> consumers = new HashMap<>();
+        private final Map<NodeInfo, Node> nodes = new HashMap<>();
+        private final Set<NodeInfo> offline = new HashSet<>();
+
+        private long delivered = 0;
+        private long lost = 0;
+        private long downloads = 0;
+        private long failedDownloads = 0;
+
+        public Links(Simulation simulation, LinkModel model) {
+            this.simulation = simulation;
+            this.model = model;
+        }
+
+        public void addNode(NodeInfo info, Node node) {
+            nodes.put(info, node);
+        }
+
+        /**
+         * Take the node off the network or return it back. Messages from and to the offline node are lost; other nodes
+         * know it is unreachable, see {@link Network#isReachable(NodeInfo)}.
+         */
+        public void setOffline(NodeInfo node, boolean isOffline) {
+            if (isOffline)
+                offline.add(node);
+            else
+                offline.remove(node);
+        }
+
+        public long getDelivered() {
+            return delivered;
+        }
+
+        public long getLost() {
+            return lost;
+        }
+
+        public long getDownloads() {
+            return downloads;
+        }
+
+        public long getFailedDownloads() {
+            return failedDownloads;
+        }
+
+        /**
+         * Run the task after the link delay, or do nothing if the message is lost.
+         *
+         * @return false if lost
+         */
+        private boolean pass(NodeInfo from, NodeInfo to, Runnable task) {
+            long delay = offline.contains(from) || offline.contains(to) ? -1 :
+                    model.delayNanos(from, to, simulation.getRandom());
+            if (delay < 0) {
+                lost++;
+                return false;
+            }
+            simulation.after(delay, task);
+            return true;
+        }
+    }
+
+    private final NodeInfo myInfo;
+    private final Links links;
+    private final Map<NodeInfo, List<Notification>> pending = new HashMap<>();
+    private long windowNanos = 0;
+    private boolean voteBatching = false;
+
+    public SimulatedNetwork(NetConfig netConfig, NodeInfo myInfo, Links links) {
+        super(netConfig);
+        this.myInfo = myInfo;
+        this.links = links;
+    }
+
+    /**
+     * Set the time to collect the notifications to the same node, zero to send each one at once.
+     */
+    @Override
+    public void setCoalescingWindow(Duration window) {
+        windowNanos = window.toNanos();
+    }
+
+    @Override
+    public void setVoteBatching(boolean voteBatching) {
+        this.voteBatching = voteBatching;
+    }
+
+    @Override
+    public void deliver(NodeInfo toNode, Notification notification) {
+        if (windowNanos <= 0) {
+            send(toNode, notification);
+            return;
+        }
+        List<Notification> queue = pending.get(toNode);
+        if (queue == null) {
+            queue = new ArrayList<>();
+            pending.put(toNode, queue);
+            links.simulation.after(windowNanos, () -> flush(toNode));
+        }
+        queue.add(notification);
+        if (queue.size() >= BatchVoteNotification.MAX_SIZE)
+            flush(toNode);
+    }
+
+    private void flush(NodeInfo toNode) {
+        List<Notification> queue = pending.remove(toNode);
+        if (queue == null)
+            return;
+        List<ItemNotification> votes = new ArrayList<>();
+        for (Notification n : queue) {
+            if (voteBatching && n.getClass() == ItemNotification.class)
+                votes.add((ItemNotification) n);
+            else
+                send(toNode, n);
+        }
+        if (votes.size() == 1)
+            send(toNode, votes.get(0));
+        else if (!votes.isEmpty())
+            send(toNode, new BatchVoteNotification(myInfo, votes));
+    }
+
+    private void send(NodeInfo toNode, Notification notification) {
+        links.pass(myInfo, toNode, () -> {
+            Consumer<Notification> consumer = links.consumers.get(toNode);
+            if (consumer != null) {
+                links.delivered++;
+                consumer.accept(notification);
+            }
+        });
+    }
+
+    @Override
+    public boolean isReachable(NodeInfo node) {
+        return !links.offline.contains(node);
+    }
+
+    @Override
+    public void subscribe(NodeInfo forNode, Consumer<Notification> notificationConsumer) {
+        links.consumers.put(forNode, notificationConsumer);
+    }
+
+    @Override
+    public Approvable getItem(HashId itemId, NodeInfo node, Duration maxTimeout) throws InterruptedException {
+        throw new UnsupportedOperationException("simulated nodes load items asynchronously");
+    }
+
+    @Override
+    public CompletableFuture<Approvable> getItemAsync(HashId itemId, NodeInfo node, Duration maxTimeout,
+                                                      ExecutorService executor) {
+        CompletableFuture<Approvable> result = new CompletableFuture<>();
+        Simulation simulation = links.simulation;
+        links.downloads++;
+        // the request or the answer could be lost, then it times out
+        simulation.after(maxTimeout.toNanos(), () -> {
+            if (result.complete(null))
+                links.failedDownloads++;
+        });
+        links.pass(myInfo, node, () -> {
+            Node source = links.nodes.get(node);
+            Approvable item = source != null ? source.getItem(itemId) : null;
+            links.pass(node, myInfo, () -> {
+                if (result.complete(item) && item == null)
+                    links.failedDownloads++;
+            });
+        });
+        return result;
+    }
+}
@@ -0,0 +1,277 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.utils.LogPrinter;
+
+import java.time.Clock;
+import java.time.Duration;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.Collections;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Random;
+import java.util.concurrent.AbstractExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BooleanSupplier;
+
+/**
+ * Discrete-event simulation core: the virtual clock, the queue of events ordered by the virtual time and the seeded
+ * random generator. Everything runs in the single thread that calls {@link #run(Duration)}, so the run with the same
+ * seed and the same inputs gives the same results, and the virtual time passes as fast as the events are processed.
+ * <p>
+ * The nodes use it via {@link #getClock()}, {@link #getScheduler()} and {@link #getExecutor()}; tasks submitted to the
+ * executor run at the current virtual time, after the already queued ones.
+ */
+public class Simulation {
+
+    private static LogPrinter log = new LogPrinter("SIM");
+
+    private final Instant epoch;
+    private final Random random;
+    private final PriorityQueue<Event> events = new PriorityQueue<>();
+    private long now = 0;
+    private long sequence = 0;
+    private long processed = 0;
+    private long failures = 0;
+
+    private final Clock clock = new VirtualClock(ZoneId.systemDefault());
+    private final SimulatedExecutor executor = new SimulatedExecutor();
+    private final Scheduler scheduler = new SimulatedScheduler();
+
+    /**
+     * @param seed of the random generator, the same seed gives the same run
+     */
+    public Simulation(long seed) {
+        random = new Random(seed);
+        // items are checked against the real time of their creation, so the virtual time starts now
+        epoch = Instant.now();
+    }
+
+    /**
+     * @return virtual time since the start, nanoseconds
+     */
+    public long nanos() {
+        return now;
+    }
+
+    public Random getRandom() {
+        return random;
+    }
+
+    public Clock getClock() {
+        return clock;
+    }
+
+    public Scheduler getScheduler() {
+        return scheduler;
+    }
+
+    public SimulatedExecutor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Run the task at the given virtual time, or now if it is already passed.
+     */
+    public void at(long nanos, Runnable task) {
+        events.add(new Event(Math.max(nanos, now), sequence++, task));
+    }
+
+    public void after(long delayNanos, Runnable task) {
+        at(now + delayNanos, task);
+    }
+
+    /**
+     * Process events until there are none or the virtual time is over.
+     *
+     * @param maxTime of the virtual time to run, since the start
+     *
+     * @return true if all events are processed, false if stopped by time
+     */
+    public boolean run(Duration maxTime) {
+        return run(maxTime, () -> false);
+    }
+
+    /**
+     * Process events until the condition is met, there are no events or the virtual time is over. The condition is
+     * checked after each event, so it should be cheap.
+     *
+     * @param maxTime of the virtual time to run, since the start
+     * @param done    condition to stop
+     *
+     * @return true if stopped by the condition or as there are no more events, false if stopped by time
+     */
+    public boolean run(Duration maxTime, BooleanSupplier done) {
+        long until = maxTime.toNanos();
+        Event e;
+        while (!done.getAsBoolean() && (e = events.peek()) != null) {
+            if (e.time > until) {
+                now = until;
+                return false;
+            }
+            events.poll();
+            now = e.time;
+            processed++;
+            try {
+                e.task.run();
+            } catch (Exception x) {
+                failures++;
+                log.e("task failed at " + now + ": " + x);
+                x.printStackTrace();
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return number of events processed
+     */
+    public long getProcessed() {
+        return processed;
+    }
+
+    /**
+     * @return number of tasks that have thrown
+     */
+    public long getFailures() {
+        return failures;
+    }
+
+    public int getPending() {
+        return events.size();
+    }
+
+    private static final class Event implements Comparable<Event> {
+        private final long time;
+        private final long sequence;
+        private final Runnable task;
+
+        private Event(long time, long sequence, Runnable task) {
+            this.time = time;
+            this.sequence = sequence;
+            this.task = task;
+        }
+
+        @Override
+        public int compareTo(Event o) {
+            int c = Long.compare(time, o.time);
+            return c != 0 ? c : Long.compare(sequence, o.sequence);
+        }
+    }
+
+    private final class VirtualClock extends Clock {
+        private final ZoneId zone;
+
+        private VirtualClock(ZoneId zone) {
+            this.zone = zone;
+        }
+
+        @Override
+        public ZoneId getZone() {
+            return zone;
+        }
+
+        @Override
+        public Clock withZone(ZoneId zone) {
+            return new VirtualClock(zone);
+        }
+
+        @Override
+        public Instant instant() {
+            return epoch.plusNanos(now);
+        }
+    }
+
+    /**
+     * Runs tasks as the events at the current virtual time. Never shuts down.
+     */
+    public final class SimulatedExecutor extends AbstractExecutorService {
+        @Override
+        public void execute(Runnable command) {
+            at(now, command);
+        }
+
+        @Override
+        public void shutdown() {
+        }
+
+        @Override
+        public List<Runnable> shutdownNow() {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public boolean isShutdown() {
+            return false;
+        }
+
+        @Override
+        public boolean isTerminated() {
+            return false;
+        }
+
+        @Override
+        public boolean awaitTermination(long timeout, TimeUnit unit) {
+            return false;
+        }
+    }
+
+    private final class SimulatedTask implements Scheduler.Task {
+        private final Runnable task;
+        private final long period;
+        private final Executor executor;
+        private boolean cancelled = false;
+
+        private SimulatedTask(Runnable task, long period, Executor executor) {
+            this.task = task;
+            this.period = period;
+            this.executor = executor;
+        }
+
+        private void fire() {
+            if (cancelled)
+                return;
+            if (period > 0)
+                after(period, this::fire);
+            executor.execute(task);
+        }
+
+        @Override
+        public boolean cancel() {
+            if (cancelled)
+                return false;
+            cancelled = true;
+            return true;
+        }
+    }
+
+    private final class SimulatedScheduler implements Scheduler {
+        @Override
+        public Task schedule(Runnable task, Duration delay, Executor executor) {
+            SimulatedTask t = new SimulatedTask(task, 0, executor);
+            after(delay.toNanos(), t::fire);
+            return t;
+        }
+
+        @Override
+        public Task scheduleAtFixedRate(Runnable task, Duration initialDelay, Duration period) {
+            if (period.isNegative() || period.isZero())
+                throw new IllegalArgumentException("period should be positive");
+            SimulatedTask t = new SimulatedTask(task, period.toNanos(), executor);
+            after(initialDelay.toNanos(), t::fire);
+            return t;
+        }
+
+        @Override
+        public void shutdown() {
+        }
+    }
+}
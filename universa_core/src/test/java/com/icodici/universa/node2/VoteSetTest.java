@@ -0,0 +1,125 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2;
+
+import net.sergeych.tools.StopWatch;
+import org.junit.Test;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class VoteSetTest {
+
+    @Test
+    public void vote() throws Exception {
+        VoteSet vs = new VoteSet(10);
+        assertFalse(vs.hasVoted(3));
+        assertTrue(vs.vote(3, true));
+        assertFalse(vs.vote(3, true));
+        assertTrue(vs.hasVoted(3));
+        assertTrue(vs.isPositive(3));
+        assertEquals(1, vs.positiveCount());
+        assertEquals(0, vs.negativeCount());
+
+        // change the vote
+        assertTrue(vs.vote(3, false));
+        assertTrue(vs.isNegative(3));
+        assertFalse(vs.isPositive(3));
+        assertEquals(0, vs.positiveCount());
+        assertEquals(1, vs.negativeCount());
+
+        vs.vote(0, true);
+        vs.vote(9, true);
+        assertEquals(2, vs.positiveCount());
+        assertFalse(vs.hasVoted(1));
+        assertFalse(vs.hasVoted(-1));
+        assertFalse(vs.hasVoted(1000));
+    }
+
+    @Test
+    public void grow() throws Exception {
+        VoteSet vs = new VoteSet(0);
+        vs.vote(5, true);
+        vs.vote(64, false);
+        vs.vote(1000, true);
+        assertTrue(vs.isPositive(5));
+        assertTrue(vs.isNegative(64));
+        assertTrue(vs.isPositive(1000));
+        assertFalse(vs.hasVoted(63));
+        assertEquals(2, vs.positiveCount());
+        assertEquals(1, vs.negativeCount());
+    }
+
+    @Test
+    public void footprint() throws Exception {
+        // 1000 nodes should take about 2 bits per node plus small overhead
+        assertTrue(new VoteSet(1000).footprint() < 400);
+    }
+
+    /**
+     * Compares the old representation (two HashSets of NodeInfo, which hash is its number) with {@link VoteSet}.
+     */
+//    @Test
+    public void voteBenchmark() throws Exception {
+        for (int nodes : new int[]{30, 100, 1000}) {
+            int elections = 2_000_000 / nodes;
+            Random random = new Random(17);
+            int[][] order = new int[16][nodes];
+            for (int[] o : order) {
+                for (int i = 0; i < nodes; i++)
+                    o[i] = i;
+                for (int i = nodes - 1; i > 0; i--) {
+                    int j = random.nextInt(i + 1);
+                    int t = o[i];
+                    o[i] = o[j];
+                    o[j] = t;
+                }
+            }
+            int positiveConsensus = nodes * 2 / 3 + 1;
+            for (int round = 0; round < 3; round++) {
+                long hashSetTime = StopWatch.measure(() -> {
+                    int found = 0;
+                    for (int e = 0; e < elections; e++) {
+                        Set<Integer> positive = new HashSet<>();
+                        Set<Integer> negative = new HashSet<>();
+                        for (int n : order[e & 15]) {
+                            Integer node = n;
+                            boolean isPositive = (n & 7) != 0;
+                            (isPositive ? positive : negative).add(node);
+                            (isPositive ? negative : positive).remove(node);
+                            if (positive.size() >= positiveConsensus) {
+                                found++;
+                                break;
+                            }
+                        }
+                    }
+                    assertEquals(elections, found);
+                });
+                long voteSetTime = StopWatch.measure(() -> {
+                    int found = 0;
+                    for (int e = 0; e < elections; e++) {
+                        VoteSet vs = new VoteSet(nodes);
+                        for (int n : order[e & 15]) {
+                            vs.vote(n, (n & 7) != 0);
+                            if (vs.positiveCount() >= positiveConsensus) {
+                                found++;
+                                break;
+                            }
+                        }
+                    }
+                    assertEquals(elections, found);
+                });
+                System.out.printf("%4d nodes, %d elections: HashSet %d ms, VoteSet %d ms\n",
+                                  nodes, elections, hashSetTime, voteSetTime);
+            }
+        }
+    }
+}
@@ -8,6 +8,7 @@
 package com.icodici.universa.node2.network;
 
 import com.icodici.crypto.PrivateKey;
+import com.icodici.universa.Errors;
 import com.icodici.universa.node.TestCase;
 import com.icodici.universa.node.network.TestKeys;
 import net.sergeych.tools.Binder;
@@ -15,6 +16,7 @@ import net.sergeych.tools.BufferedLogger;
 import org.junit.Test;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
 
 public class BasicHttpServerTest extends TestCase {
 
@@ -60,4 +62,42 @@ public class BasicHttpServerTest extends TestCase {
         assertThrows(CommandFailedException.class, ()->c.command("test_error"));
     }
 
-}
\ No newline at end of file
+    @Test
+    public void clientLimitIsOffByDefault() throws Exception {
+        PrivateKey nodeKey = TestKeys.privateKey(1);
+        PrivateKey clientKey = TestKeys.privateKey(2);
+        BasicHttpServer s = new BasicHttpServer(nodeKey, 15600, 32, log);
+        s.setCommandCost("sping", 100);
+        BasicHttpClient c = new BasicHttpClient("http://localhost:15600");
+        c.start(clientKey, nodeKey.getPublicKey());
+        for (int i = 0; i < 20; i++)
+            assertEquals("spong", c.command("sping").getStringOrThrow("sping"));
+        assertEquals(0, s.getClientThrottled());
+        s.shutdown();
+    }
+
+    @Test
+    public void chargedClientIsThrottled() throws Exception {
+        PrivateKey nodeKey = TestKeys.privateKey(1);
+        PrivateKey clientKey = TestKeys.privateKey(2);
+        BasicHttpServer s = new BasicHttpServer(nodeKey, 15600, 32, log);
+        s.setClientRateLimit(1, 100);
+        s.addSecureEndpoint("batch", (params, session) -> {
+            // e.g. the cost of the decoded items
+            s.chargeClient(session, 100);
+            return Binder.of("done", true);
+        });
+        BasicHttpClient c = new BasicHttpClient("http://localhost:15600");
+        c.start(clientKey, nodeKey.getPublicKey());
+        c.command("batch");
+        try {
+            c.command("sping");
+            fail("charged client should be throttled");
+        } catch (ClientError e) {
+            assertEquals(Errors.NOT_READY, e.getErrorRecord().getError());
+        }
+        assertEquals(1, s.getClientThrottled());
+        s.shutdown();
+    }
+
+}
@@ -0,0 +1,160 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node.network.TestKeys;
+import com.icodici.universa.node2.BatchVoteNotification;
+import com.icodici.universa.node2.ItemBodyNotification;
+import com.icodici.universa.node2.ItemNotification;
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.Notification;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class NotificationCoalescerTest {
+
+    private final List<List<Notification>> sent = new ArrayList<>();
+
+    private synchronized void send(NodeInfo to, List<Notification> notifications) {
+        sent.add(notifications);
+        notifyAll();
+    }
+
+    private synchronized void waitSent(int blocks) throws InterruptedException {
+        long until = System.currentTimeMillis() + 5000;
+        while (sent.size() < blocks && System.currentTimeMillis() < until)
+            wait(100);
+    }
+
+    @Test
+    public void coalesceAndSupersede() throws Exception {
+        NodeInfo from = new NodeInfo(TestKeys.publicKey(0), 1, "test1", "localhost", 17101, 17102, 17104);
+        NodeInfo to = new NodeInfo(TestKeys.publicKey(1), 2, "test2", "localhost", 17105, 17106, 17107);
+        ZonedDateTime now = ZonedDateTime.now();
+        ItemResult pending = new ItemResult(ItemState.PENDING, false, now, now.plusDays(30));
+        ItemResult approved = new ItemResult(ItemState.APPROVED, false, now, now.plusDays(30));
+
+        NotificationCoalescer c = new NotificationCoalescer(Duration.ofMillis(50), 100, this::send);
+        HashId id1 = HashId.createRandom();
+        HashId id2 = HashId.createRandom();
+        c.enqueue(to, new ItemNotification(from, id1, pending, true));
+        c.enqueue(to, new ItemNotification(from, id2, pending, false));
+        c.enqueue(to, new ItemNotification(from, id1, approved, false));
+
+        waitSent(1);
+        assertEquals(1, sent.size());
+        List<Notification> block = sent.get(0);
+        assertEquals(2, block.size());
+        ItemNotification n = (ItemNotification) block.get(0);
+        assertEquals(id1, n.getItemId());
+        assertEquals(ItemState.APPROVED, n.getItemResult().state);
+        // the answer request of the superseded notification should be kept
+        assertTrue(n.answerIsRequested());
+        assertEquals(id2, ((ItemNotification) block.get(1)).getItemId());
+        assertEquals(1, c.getNotificationsSuperseded());
+        c.shutdown();
+    }
+
+    @Test
+    public void flushOnSizeAndImmediate() throws Exception {
+        NodeInfo from = new NodeInfo(TestKeys.publicKey(0), 1, "test1", "localhost", 17101, 17102, 17104);
+        NodeInfo to = new NodeInfo(TestKeys.publicKey(1), 2, "test2", "localhost", 17105, 17106, 17107);
+        ZonedDateTime now = ZonedDateTime.now();
+        ItemResult pending = new ItemResult(ItemState.PENDING, false, now, now.plusDays(30));
+
+        // long window: only the size threshold could cause the flush
+        NotificationCoalescer c = new NotificationCoalescer(Duration.ofSeconds(100), 10, this::send);
+        for (int i = 0; i < 25; i++)
+            c.enqueue(to, new ItemNotification(from, HashId.createRandom(), pending, false));
+        assertEquals(2, sent.size());
+        assertEquals(10, sent.get(0).size());
+        assertEquals(10, sent.get(1).size());
+        c.flushAll();
+        assertEquals(3, sent.size());
+        assertEquals(5, sent.get(2).size());
+
+        sent.clear();
+        c.setWindow(Duration.ZERO);
+        c.enqueue(to, new ItemNotification(from, HashId.createRandom(), pending, false));
+        c.enqueue(to, new ItemNotification(from, HashId.createRandom(), pending, false));
+        assertEquals(2, sent.size());
+        c.shutdown();
+    }
+
+    @Test
+    public void pushedItemIsNotSuperseded() throws Exception {
+        NodeInfo from = new NodeInfo(TestKeys.publicKey(0), 1, "test1", "localhost", 17101, 17102, 17104);
+        NodeInfo to = new NodeInfo(TestKeys.publicKey(1), 2, "test2", "localhost", 17105, 17106, 17107);
+        ZonedDateTime now = ZonedDateTime.now();
+        ItemResult pending = new ItemResult(ItemState.PENDING_POSITIVE, true, now, now.plusDays(30));
+        ItemResult approved = new ItemResult(ItemState.APPROVED, true, now, now.plusDays(30));
+        byte[] body = new byte[]{1, 2, 3};
+
+        NotificationCoalescer c = new NotificationCoalescer(Duration.ofSeconds(100), 100, this::send);
+        HashId id1 = HashId.createRandom();
+        c.enqueue(to, new ItemBodyNotification(from, id1, pending, true, body));
+        c.enqueue(to, new ItemNotification(from, id1, approved, false));
+        c.flushAll();
+
+        assertEquals(1, sent.size());
+        assertEquals(1, sent.get(0).size());
+        ItemBodyNotification n = (ItemBodyNotification) sent.get(0).get(0);
+        assertEquals(ItemState.APPROVED, n.getItemResult().state);
+        assertTrue(n.answerIsRequested());
+        assertArrayEquals(body, n.getPackedItem());
+        c.shutdown();
+    }
+    @Test
+    public void batchVotes() throws Exception {
+        NodeInfo from = new NodeInfo(TestKeys.publicKey(0), 1, "test1", "localhost", 17101, 17102, 17104);
+        NodeInfo to = new NodeInfo(TestKeys.publicKey(1), 2, "test2", "localhost", 17105, 17106, 17107);
+        ZonedDateTime now = ZonedDateTime.now();
+        ItemResult positive = new ItemResult(ItemState.PENDING_POSITIVE, true, now, now.plusDays(30));
+
+        NotificationCoalescer c = new NotificationCoalescer(Duration.ofMillis(50), 100, this::send);
+        c.setVoteBatching(true);
+        HashId id1 = HashId.createRandom();
+        HashId id2 = HashId.createRandom();
+        HashId id3 = HashId.createRandom();
+        c.enqueue(to, new ItemBodyNotification(from, id1, positive, true, new byte[]{1, 2, 3}));
+        c.enqueue(to, new ItemNotification(from, id2, positive, true));
+        c.enqueue(to, new ItemNotification(from, id3, positive, false));
+
+        waitSent(1);
+        assertEquals(1, sent.size());
+        List<Notification> block = sent.get(0);
+        // the pushed item is sent as is
+        assertEquals(2, block.size());
+        assertEquals(id1, ((ItemBodyNotification) block.get(0)).getItemId());
+        List<ItemNotification> votes = ((BatchVoteNotification) block.get(1)).expand();
+        assertEquals(2, votes.size());
+        assertEquals(id2, votes.get(0).getItemId());
+        assertTrue(votes.get(0).answerIsRequested());
+        assertEquals(id3, votes.get(1).getItemId());
+        assertEquals(ItemState.PENDING_POSITIVE, votes.get(1).getItemResult().state);
+        assertEquals(1, c.getVoteBatchesSent());
+        assertEquals(2, c.getVotesBatched());
+
+        // a single vote is not batched
+        c.enqueue(to, new ItemNotification(from, id2, positive, false));
+        waitSent(2);
+        assertTrue(sent.get(1).get(0) instanceof ItemNotification);
+        c.shutdown();
+    }
+}
@@ -0,0 +1,135 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import com.icodici.universa.HashId;
+import com.icodici.universa.node.ItemResult;
+import com.icodici.universa.node.ItemState;
+import com.icodici.universa.node2.ItemNotification;
+import com.icodici.universa.node2.NodeInfo;
+import com.icodici.universa.node2.Notification;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.time.ZonedDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class NotificationDispatcherTest {
+
+    private final NodeInfo from = new NodeInfo(null, 1, "test1", "localhost", 17101, 17102, 17104);
+    private final ZonedDateTime now = ZonedDateTime.now();
+
+    private ItemNotification notification(HashId id, int sequence) {
+        // expiration time is used to tell notifications about the same item apart
+        return new ItemNotification(from, id, new ItemResult(ItemState.PENDING, false, now,
+                                                             now.plusSeconds(sequence)), false);
+    }
+
+    @Test
+    public void keepOrderOfItem() throws Exception {
+        Map<HashId, List<Long>> received = new ConcurrentHashMap<>();
+        CountDownLatch done = new CountDownLatch(20 * 100);
+        NotificationDispatcher d = new NotificationDispatcher(4, 1000, Duration.ofSeconds(5), n -> {
+            ItemNotification in = (ItemNotification) n;
+            received.computeIfAbsent(in.getItemId(), k -> new ArrayList<>())
+                    .add(in.getItemResult().expiresAt.toEpochSecond());
+            done.countDown();
+        });
+        List<HashId> ids = new ArrayList<>();
+        for (int i = 0; i < 20; i++)
+            ids.add(HashId.createRandom());
+        for (int k = 0; k < 100; k++)
+            for (HashId id : ids)
+                assertTrue(d.dispatch(notification(id, k)));
+
+        assertTrue(done.await(10, TimeUnit.SECONDS));
+        for (HashId id : ids) {
+            List<Long> seq = received.get(id);
+            assertEquals(100, seq.size());
+            for (int k = 1; k < 100; k++)
+                assertTrue(seq.get(k - 1) < seq.get(k));
+        }
+        assertEquals(2000, d.getDispatched());
+        assertEquals(0, d.getDropped());
+        d.shutdown();
+    }
+
+    @Test
+    public void spreadByItems() throws Exception {
+        NotificationDispatcher d = new NotificationDispatcher(4, 10, Duration.ZERO, n -> {});
+        Map<Integer, Integer> counts = new HashMap<>();
+        for (int i = 0; i < 1000; i++) {
+            HashId id = HashId.createRandom();
+            int p = d.partition(notification(id, 0));
+            assertEquals(p, d.partition(notification(id, 1)));
+            counts.merge(p, 1, Integer::sum);
+        }
+        assertEquals(4, counts.size());
+        counts.values().forEach(c -> assertTrue(c > 150));
+        d.shutdown();
+    }
+
+    @Test
+    public void dropWhenFull() throws Exception {
+        CountDownLatch blocked = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch done = new CountDownLatch(3);
+        NotificationDispatcher d = new NotificationDispatcher(1, 2, Duration.ofMillis(50), n -> {
+            blocked.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                return;
+            }
+            done.countDown();
+        });
+        HashId id = HashId.createRandom();
+        // the first one is taken by the worker that is blocked, the queue holds two more
+        assertTrue(d.dispatch(notification(id, 0)));
+        assertTrue(blocked.await(5, TimeUnit.SECONDS));
+        assertTrue(d.dispatch(notification(id, 1)));
+        assertTrue(d.dispatch(notification(id, 2)));
+        long started = System.nanoTime();
+        assertFalse(d.dispatch(notification(id, 3)));
+        assertTrue(System.nanoTime() - started >= 50_000_000L);
+        d.setMaxWait(Duration.ZERO);
+        assertFalse(d.dispatch(notification(id, 4)));
+        assertEquals(2, d.getDropped());
+        assertEquals(2, d.getWaited());
+        assertEquals(2, d.getPending());
+
+        release.countDown();
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(3, d.getDispatched());
+        d.shutdown();
+    }
+
+    @Test
+    public void survivesConsumerFailure() throws Exception {
+        CountDownLatch done = new CountDownLatch(1);
+        NotificationDispatcher d = new NotificationDispatcher(1, 10, Duration.ZERO, n -> {
+            if (((ItemNotification) n).getItemResult().expiresAt.equals(now))
+                throw new RuntimeException("test failure");
+            done.countDown();
+        });
+        HashId id = HashId.createRandom();
+        d.dispatch(notification(id, 0));
+        d.dispatch(notification(id, 1));
+        assertTrue(done.await(5, TimeUnit.SECONDS));
+        assertEquals(1, d.getFailures());
+        d.shutdown();
+    }
+}
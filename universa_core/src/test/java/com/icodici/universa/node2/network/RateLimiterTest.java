@@ -0,0 +1,108 @@
+/*
+ * Copyright (c) 2017 Sergey Chernov, iCodici S.n.C, All Rights Reserved
+ *
+ * Written by Sergey Chernov <real.sergeych@gmail.com>
+ *
+ */
+
+package com.icodici.universa.node2.network;
+
+import org.junit.Test;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class RateLimiterTest {
+
+    private static final long SECOND = 1_000_000_000L;
+
+    @Test
+    public void burstAndRefill() throws Exception {
+        AtomicLong now = new AtomicLong(1000 * SECOND);
+        RateLimiter<String> rl = new RateLimiter<>(10, 5, now::get);
+        for (int i = 0; i < 5; i++)
+            assertTrue(rl.tryAcquire("a", 1));
+        assertFalse(rl.tryAcquire("a", 1));
+        // other keys have their own buckets
+        assertTrue(rl.tryAcquire("b", 5));
+        assertEquals(1, rl.getRejected());
+
+        // 10 tokens per second
+        now.addAndGet(SECOND / 10);
+        assertTrue(rl.tryAcquire("a", 1));
+        assertFalse(rl.tryAcquire("a", 1));
+
+        // never more than the burst
+        now.addAndGet(10 * SECOND);
+        assertEquals(5, rl.available("a"), 1e-9);
+        assertFalse(rl.tryAcquire("a", 6));
+        assertTrue(rl.tryAcquire("a", 5));
+    }
+
+    @Test
+    public void charge() throws Exception {
+        AtomicLong now = new AtomicLong(0);
+        RateLimiter<String> rl = new RateLimiter<>(10, 5, now::get);
+        assertTrue(rl.tryAcquire("a", 1));
+        rl.charge("a", 9);
+        assertEquals(-5, rl.available("a"), 1e-9);
+        assertFalse(rl.tryAcquire("a", 1));
+
+        // the debt is limited by one more burst
+        rl.charge("a", 100);
+        assertEquals(-5, rl.available("a"), 1e-9);
+        now.addAndGet(SECOND);
+        assertEquals(5, rl.available("a"), 1e-9);
+        assertTrue(rl.tryAcquire("a", 5));
+    }
+
+    @Test
+    public void unlimited() throws Exception {
+        RateLimiter<String> rl = new RateLimiter<>(0, 1);
+        assertTrue(rl.isUnlimited());
+        for (int i = 0; i < 1000; i++)
+            assertTrue(rl.tryAcquire("a", 100));
+        assertEquals(0, rl.size());
+
+        rl.setLimit(1, 1);
+        assertTrue(rl.tryAcquire("a", 1));
+        assertFalse(rl.tryAcquire("a", 1));
+    }
+
+    @Test
+    public void dropFullBuckets() throws Exception {
+        AtomicLong now = new AtomicLong(0);
+        RateLimiter<Integer> rl = new RateLimiter<>(100, 10, now::get);
+        for (int i = 0; i < 5000; i++) {
+            assertTrue(rl.tryAcquire(i, 1));
+            now.addAndGet(SECOND / 1000);
+        }
+        // the buckets are refilled in 10ms, so only the recent ones are kept
+        assertTrue(rl.size() < 2000);
+    }
+
+    @Test
+    public void concurrentCallers() throws Exception {
+        AtomicLong now = new AtomicLong(0);
+        RateLimiter<String> rl = new RateLimiter<>(1, 1000, now::get);
+        AtomicInteger passed = new AtomicInteger();
+        ExecutorService es = Executors.newFixedThreadPool(8);
+        for (int t = 0; t < 8; t++) {
+            es.execute(() -> {
+                for (int i = 0; i < 1000; i++)
+                    if (rl.tryAcquire("a", 1))
+                        passed.incrementAndGet();
+            });
+        }
+        es.shutdown();
+        assertTrue(es.awaitTermination(10, TimeUnit.SECONDS));
+        // the time is stopped, so exactly the burst passes
+        assertEquals(1000, passed.get());
+        assertEquals(7000, rl.getRejected());
+    }
+}